@@ -30,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -524,12 +525,50 @@ public class Analytics {
     private static final Object sLock = new Object(); // Coarse lock for all of analytics
     private static final Map<String, CallInfoImpl> sCallIdToInfo = new HashMap<>();
     private static final List<SessionTiming> sSessionTimings = new LinkedList<>();
+    // The bytes allocated by each session in sSessionTimings, in the same order, or
+    // Session.UNDEFINED if allocation profiling was disabled.
+    private static final List<Long> sSessionTimingAllocatedBytes = new LinkedList<>();
+    // The allocations of all sessions, by session name, while allocation profiling is enabled.
+    private static final Map<String, SessionAllocations> sSessionAllocations = new HashMap<>();
+
+    private static final class SessionAllocations {
+        int count;
+        long totalBytes;
+        long maxBytes;
+    }
 
     public static void addSessionTiming(String sessionName, long time) {
-        if (sLogSessionToSessionId.containsKey(sessionName)) {
-            synchronized (sLock) {
+        addSessionTiming(sessionName, time, Session.UNDEFINED);
+    }
+
+    /**
+     * Records a completed session.
+     *
+     * @param sessionName The name of the top level session.
+     * @param time The time the session and its subsessions took to complete.
+     * @param allocatedBytes The bytes allocated by the session and its subsessions, or
+     *          {@link Session#UNDEFINED} if they were not recorded.
+     */
+    public static void addSessionTiming(String sessionName, long time, long allocatedBytes) {
+        boolean isEntryPoint = sLogSessionToSessionId.containsKey(sessionName);
+        if (!isEntryPoint && allocatedBytes == Session.UNDEFINED) {
+            return;
+        }
+        synchronized (sLock) {
+            if (allocatedBytes != Session.UNDEFINED) {
+                SessionAllocations allocations = sSessionAllocations.get(sessionName);
+                if (allocations == null) {
+                    allocations = new SessionAllocations();
+                    sSessionAllocations.put(sessionName, allocations);
+                }
+                allocations.count++;
+                allocations.totalBytes += allocatedBytes;
+                allocations.maxBytes = Math.max(allocations.maxBytes, allocatedBytes);
+            }
+            if (isEntryPoint) {
                 sSessionTimings.add(new SessionTiming(sLogSessionToSessionId.get(sessionName),
                         time));
+                sSessionTimingAllocatedBytes.add(allocatedBytes);
             }
         }
     }
@@ -553,6 +592,7 @@ public class Analytics {
             sessionTimings.addAll(sSessionTimings);
             sCallIdToInfo.clear();
             sSessionTimings.clear();
+            sSessionTimingAllocatedBytes.clear();
         }
         return new TelecomAnalytics(sessionTimings, calls);
     }
@@ -564,14 +604,24 @@ public class Analytics {
             result.callLogs = sCallIdToInfo.values().stream()
                     .map(CallInfoImpl::toProto)
                     .toArray(TelecomLogClass.CallLog[]::new);
-            result.sessionTimings = sSessionTimings.stream()
-                    .map(timing -> new TelecomLogClass.LogSessionTiming()
-                            .setSessionEntryPoint(timing.getKey())
-                            .setTimeMillis(timing.getTime()))
-                    .toArray(TelecomLogClass.LogSessionTiming[]::new);
+            result.sessionTimings = new TelecomLogClass.LogSessionTiming[sSessionTimings.size()];
+            Iterator<Long> allocatedBytes = sSessionTimingAllocatedBytes.iterator();
+            int i = 0;
+            for (SessionTiming timing : sSessionTimings) {
+                TelecomLogClass.LogSessionTiming sessionTiming =
+                        new TelecomLogClass.LogSessionTiming()
+                                .setSessionEntryPoint(timing.getKey())
+                                .setTimeMillis(timing.getTime());
+                long bytes = allocatedBytes.next();
+                if (bytes != Session.UNDEFINED) {
+                    sessionTiming.setAllocatedBytes(bytes);
+                }
+                result.sessionTimings[i++] = sessionTiming;
+            }
             if (args.length > 1 && CLEAR_ANALYTICS_ARG.equals(args[1])) {
                 sCallIdToInfo.clear();
                 sSessionTimings.clear();
+                sSessionTimingAllocatedBytes.clear();
             }
         }
         String encodedProto = Base64.encodeToString(
@@ -614,6 +664,18 @@ public class Analytics {
                     .filter(e -> sSessionIdToLogSession.containsKey(e.getKey()))
                     .forEach(e -> writer.printf("%s: %.2f\n",
                             sSessionIdToLogSession.get(e.getKey()), e.getValue()));
+
+            if (!sSessionAllocations.isEmpty()) {
+                writer.println("Session allocations (count, average bytes, max bytes):");
+                writer.increaseIndent();
+                sSessionAllocations.entrySet().stream()
+                        .sorted((e1, e2) -> Long.compare(e2.getValue().totalBytes,
+                                e1.getValue().totalBytes))
+                        .forEach(e -> writer.printf("%s: %d, %d, %d\n", e.getKey(),
+                                e.getValue().count, e.getValue().totalBytes / e.getValue().count,
+                                e.getValue().maxBytes));
+                writer.decreaseIndent();
+            }
         }
     }
 
@@ -623,6 +685,17 @@ public class Analytics {
         }
     }
 
+    /**
+     * Returns the total bytes allocated by the sessions with the given name. Use only for testing.
+     */
+    @VisibleForTesting
+    public static long getSessionAllocatedBytes(String sessionName) {
+        synchronized (sLock) {
+            SessionAllocations allocations = sSessionAllocations.get(sessionName);
+            return allocations == null ? 0 : allocations.totalBytes;
+        }
+    }
+
     /**
      * Returns a copy of callIdToInfo. Use only for testing.
      */
@@ -19,7 +19,6 @@ package com.android.server.telecom;
 import android.media.Ringtone;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Message;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -27,8 +26,8 @@ import com.android.internal.os.SomeArgs;
 import com.android.internal.util.Preconditions;
 
 /**
- * Plays the default ringtone. Uses {@link Ringtone} in a separate thread so that this class can be
- * used from the main thread.
+ * Plays the default ringtone. Uses {@link Ringtone} on the ringtone lane of the
+ * {@link AudioTaskExecutor} so that this class can be used from the main thread.
  */
 @VisibleForTesting
 public class AsyncRingtonePlayer {
@@ -37,10 +36,14 @@ public class AsyncRingtonePlayer {
     private static final int EVENT_STOP = 2;
     private static final int EVENT_REPEAT = 3;
     private static final int EVENT_INCREASE_VOLUME = 4;
+    private static final int EVENT_PRELOAD = 5;
+    private static final int EVENT_RELEASE_PRELOAD = 6;
 
     // The interval in which to restart the ringer.
     private static final int RESTART_RINGER_MILLIS = 3000;
 
+    private final AudioTaskExecutor mAudioTaskExecutor;
+
     /** Handler running on the ringtone thread. */
     private Handler mHandler;
 
@@ -49,6 +52,15 @@ public class AsyncRingtonePlayer {
     private float mIncrementAmount;
     private float mCurrentIncrementVolume;
 
+    public AsyncRingtonePlayer() {
+        this(AudioTaskExecutor.getInstance());
+    }
+
+    @VisibleForTesting
+    public AsyncRingtonePlayer(AudioTaskExecutor audioTaskExecutor) {
+        mAudioTaskExecutor = audioTaskExecutor;
+    }
+
     /** Plays the ringtone. */
     public void play(RingtoneFactory factory, Call incomingCall,
             float incStartVolume, int incRampUpTime) {
@@ -61,6 +73,28 @@ public class AsyncRingtonePlayer {
         postMessage(EVENT_PLAY, true /* shouldCreateHandler */, args);
     }
 
+    /**
+     * Has the factory create the default ringtone ahead of {@link #play}, since creating it
+     * prepares its media player.
+     */
+    public void preload(RingtoneFactory factory) {
+        Log.d(this, "Posting preload.");
+        SomeArgs args = SomeArgs.obtain();
+        args.arg1 = factory;
+        postMessage(EVENT_PRELOAD, true /* shouldCreateHandler */, args);
+    }
+
+    /**
+     * Has the factory release the ringtone created by {@link #preload} after it has been created,
+     * when no call is going to ring with it.
+     */
+    public void releasePreload(RingtoneFactory factory) {
+        Log.d(this, "Posting release preload.");
+        SomeArgs args = SomeArgs.obtain();
+        args.arg1 = factory;
+        postMessage(EVENT_RELEASE_PRELOAD, false /* shouldCreateHandler */, args);
+    }
+
     /** Stops playing the ringtone. */
     public void stop() {
         Log.d(this, "Posting stop.");
@@ -82,6 +116,9 @@ public class AsyncRingtonePlayer {
 
             if (mHandler == null) {
                 Log.d(this, "Message %d skipped because there is no handler.", messageCode);
+                if (args != null) {
+                    args.recycle();
+                }
             } else {
                 mHandler.obtainMessage(messageCode, args).sendToTarget();
             }
@@ -89,21 +126,24 @@ public class AsyncRingtonePlayer {
     }
 
     /**
-     * Creates a new ringtone Handler running in its own thread.
+     * Creates a new ringtone Handler running on the shared ringtone thread.
      */
     private Handler getNewHandler() {
         Preconditions.checkState(mHandler == null);
 
-        HandlerThread thread = new HandlerThread("ringtone-player");
-        thread.start();
-
-        return new Handler(thread.getLooper()) {
+        return new Handler(mAudioTaskExecutor.getLooper(AudioTaskExecutor.LANE_RINGTONE)) {
             @Override
             public void handleMessage(Message msg) {
                 switch(msg.what) {
                     case EVENT_PLAY:
                         handlePlay((SomeArgs) msg.obj);
                         break;
+                    case EVENT_PRELOAD:
+                        handlePreload((SomeArgs) msg.obj);
+                        break;
+                    case EVENT_RELEASE_PRELOAD:
+                        handleReleasePreload((SomeArgs) msg.obj);
+                        break;
                     case EVENT_REPEAT:
                         handleRepeat();
                         break;
@@ -173,6 +213,25 @@ public class AsyncRingtonePlayer {
         }
 
         handleRepeat();
+        Log.event(incomingCall, Log.Events.RINGTONE_PLAYED);
+    }
+
+    /**
+     * Preloads the default ringtone. Executes on ringtone-thread.
+     */
+    private void handlePreload(SomeArgs args) {
+        RingtoneFactory factory = (RingtoneFactory) args.arg1;
+        args.recycle();
+        factory.preloadDefaultRingtone();
+    }
+
+    /**
+     * Releases the preloaded ringtone. Executes on ringtone-thread.
+     */
+    private void handleReleasePreload(SomeArgs args) {
+        RingtoneFactory factory = (RingtoneFactory) args.arg1;
+        args.recycle();
+        factory.releasePreloadedRingtone();
     }
 
     private void handleRepeat() {
@@ -210,17 +269,11 @@ public class AsyncRingtonePlayer {
 
         synchronized(this) {
             // At the time that STOP is handled, there should be no need for repeat messages in the
-            // queue.
+            // queue. The ringtone thread is shared, so it is kept for subsequent play requests.
             mHandler.removeMessages(EVENT_REPEAT);
             mHandler.removeMessages(EVENT_INCREASE_VOLUME);
-
-            if (mHandler.hasMessages(EVENT_PLAY)) {
-                Log.v(this, "Keeping alive ringtone thread for subsequent play request.");
-            } else {
+            if (!mHandler.hasMessages(EVENT_PLAY)) {
                 mHandler.removeMessages(EVENT_STOP);
-                mHandler.getLooper().quitSafely();
-                mHandler = null;
-                Log.v(this, "Handler cleared.");
             }
         }
     }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Runs audio work (ringtone playback, local DTMF tones and call progress tones) on a small, fixed
+ * set of threads shared by all calls, instead of each player starting its own thread. Each lane is
+ * backed by a single thread which is started the first time the lane is used and then kept for the
+ * lifetime of the process, so a call lifecycle does not create any threads once the lanes are
+ * warm. Lanes run independently of each other and at different priorities so that, for example, a
+ * long call progress tone never delays a DTMF tone.
+ */
+public class AudioTaskExecutor {
+    /** Lane used to play the ringtone. */
+    public static final int LANE_RINGTONE = 0;
+    /** Lane used to play local DTMF tones; latency sensitive. */
+    public static final int LANE_DTMF = 1;
+    /** Lane used to play call progress tones (busy, call waiting, etc.). */
+    public static final int LANE_CALL_PROGRESS = 2;
+
+    private static final int LANE_COUNT = 3;
+    private static final String[] LANE_NAMES = {
+            "ringtone-player",
+            "tonegenerator-dtmf",
+            "tonegenerator-progress"
+    };
+    private static final int[] LANE_PRIORITIES = {
+            Process.THREAD_PRIORITY_AUDIO,
+            Process.THREAD_PRIORITY_URGENT_AUDIO,
+            Process.THREAD_PRIORITY_AUDIO
+    };
+
+    /**
+     * A task posted to a lane. Cancelling the token removes the task if it has not started yet;
+     * this is cheap and may be done from any thread.
+     */
+    public static final class Token {
+        private final Handler mHandler;
+        private final java.lang.Runnable mTask;
+        private volatile boolean mIsCancelled;
+
+        private final java.lang.Runnable mRunnable = new java.lang.Runnable() {
+            @Override
+            public void run() {
+                if (!mIsCancelled) {
+                    mTask.run();
+                }
+            }
+        };
+
+        private Token(Handler handler, java.lang.Runnable task) {
+            mHandler = handler;
+            mTask = task;
+        }
+
+        public void cancel() {
+            mIsCancelled = true;
+            mHandler.removeCallbacks(mRunnable);
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+    }
+
+    private static AudioTaskExecutor sInstance;
+
+    private final Handler[] mHandlers = new Handler[LANE_COUNT];
+    private int mThreadsCreated;
+
+    /**
+     * @return The executor shared by all audio players in the process.
+     */
+    public static synchronized AudioTaskExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new AudioTaskExecutor();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public AudioTaskExecutor() { }
+
+    /**
+     * Posts a task to run on the given lane.
+     *
+     * @param lane One of the LANE_* constants.
+     * @param task The task to run.
+     * @return A token which can be used to cancel the task.
+     */
+    public Token post(int lane, java.lang.Runnable task) {
+        return postDelayed(lane, task, 0);
+    }
+
+    /**
+     * Posts a task to run on the given lane after the given delay.
+     *
+     * @param lane One of the LANE_* constants.
+     * @param task The task to run.
+     * @param delayMillis The delay before the task is run.
+     * @return A token which can be used to cancel the task.
+     */
+    public Token postDelayed(int lane, java.lang.Runnable task, long delayMillis) {
+        Handler handler = getHandler(lane);
+        Token token = new Token(handler, task);
+        handler.postDelayed(token.mRunnable, delayMillis);
+        return token;
+    }
+
+    /**
+     * @return The looper of the given lane, for players which handle their own messages.
+     */
+    public Looper getLooper(int lane) {
+        return getHandler(lane).getLooper();
+    }
+
+    /**
+     * @return The number of threads this executor has started.
+     */
+    @VisibleForTesting
+    public synchronized int getThreadsCreated() {
+        return mThreadsCreated;
+    }
+
+    private synchronized Handler getHandler(int lane) {
+        if (lane < 0 || lane >= LANE_COUNT) {
+            throw new IllegalArgumentException("Bad lane: " + lane);
+        }
+        if (mHandlers[lane] == null) {
+            HandlerThread thread = new HandlerThread(LANE_NAMES[lane], LANE_PRIORITIES[lane]);
+            thread.start();
+            mThreadsCreated++;
+            mHandlers[lane] = new Handler(thread.getLooper());
+            Log.d(this, "Started %s thread.", LANE_NAMES[lane]);
+        }
+        return mHandlers[lane];
+    }
+}
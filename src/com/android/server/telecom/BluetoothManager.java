@@ -23,8 +23,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.Handler;
-import android.os.Looper;
 import android.os.SystemClock;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -114,14 +112,15 @@ public class BluetoothManager {
         }
     };
 
-    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final TimeoutScheduler mTimeoutScheduler = TimeoutScheduler.getInstance();
 
     private final BluetoothAdapterProxy mBluetoothAdapter;
     private BluetoothStateListener mBluetoothStateListener;
 
     private BluetoothHeadsetProxy mBluetoothHeadset;
     private long mBluetoothConnectionRequestTime;
-    private final Runnable mBluetoothConnectionTimeout = new Runnable("BM.cBA", null /*lock*/) {
+    private final TimeoutScheduler.Timeout mBluetoothConnectionTimeout =
+            new TimeoutScheduler.Timeout("BM.cBA", new Runnable("BM.cBA", null /*lock*/) {
         @Override
         public void loggedRun() {
             if (!isBluetoothAudioConnected()) {
@@ -130,9 +129,10 @@ public class BluetoothManager {
             }
             updateListenerOfBluetoothState(false);
         }
-    };
+    });
 
-    private final Runnable mRetryConnectAudio = new Runnable("BM.rCA", null /*lock*/) {
+    private final TimeoutScheduler.Timeout mRetryConnectAudio =
+            new TimeoutScheduler.Timeout("BM.rCA", new Runnable("BM.rCA", null /*lock*/) {
         @Override
         public void loggedRun() {
             Log.i(this, "Retrying connecting to bluetooth audio.");
@@ -142,7 +142,7 @@ public class BluetoothManager {
                 setBluetoothStatePending();
             }
         }
-    };
+    });
 
     private final Context mContext;
     private int mBluetoothState = BLUETOOTH_UNINITIALIZED;
@@ -309,7 +309,7 @@ public class BluetoothManager {
         Log.v(this, "connectBluetoothAudio()...");
         if (mBluetoothHeadset != null) {
             if (!mBluetoothHeadset.connectAudio()) {
-                mHandler.postDelayed(mRetryConnectAudio.prepare(),
+                mTimeoutScheduler.schedule(mRetryConnectAudio,
                         Timeouts.getRetryBluetoothConnectAudioBackoffMillis(
                                 mContext.getContentResolver()));
             }
@@ -325,11 +325,8 @@ public class BluetoothManager {
     private void setBluetoothStatePending() {
         mBluetoothState = BLUETOOTH_AUDIO_PENDING;
         mBluetoothConnectionRequestTime = SystemClock.elapsedRealtime();
-        mHandler.removeCallbacks(mBluetoothConnectionTimeout.getRunnableToCancel());
-        mBluetoothConnectionTimeout.cancel();
-        // If the mBluetoothConnectionTimeout runnable has run, the session had been cleared...
-        // Create a new Session before putting it back in the queue to possibly run again.
-        mHandler.postDelayed(mBluetoothConnectionTimeout.prepare(),
+        // Moves the deadline of a pending timeout, and creates a new Session for it.
+        mTimeoutScheduler.schedule(mBluetoothConnectionTimeout,
                 Timeouts.getBluetoothPendingTimeoutMillis(mContext.getContentResolver()));
     }
 
@@ -342,8 +339,7 @@ public class BluetoothManager {
         } else {
             mBluetoothState = BLUETOOTH_DISCONNECTED;
         }
-        mHandler.removeCallbacks(mBluetoothConnectionTimeout.getRunnableToCancel());
-        mBluetoothConnectionTimeout.cancel();
+        mTimeoutScheduler.cancel(mBluetoothConnectionTimeout);
     }
 
     /**
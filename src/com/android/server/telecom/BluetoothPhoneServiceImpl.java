@@ -40,16 +40,21 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.os.UserHandle;
+import android.util.ArrayMap;
 
 import android.telecom.TelecomManager;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.telecom.CallsManager.CallsManagerListener;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 import org.codeaurora.btmultisim.IBluetoothDsdaService;
 import android.content.ServiceConnection;
@@ -101,6 +106,10 @@ public class BluetoothPhoneServiceImpl {
     private static final int INVALID_SUBID = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
     private static final int[] LIVE_CALL_STATES =
             {CallState.CONNECTING, CallState.DIALING, CallState.ACTIVE};
+    // In the order CallsManager looks for its outgoing call.
+    private static final int[] OUTGOING_CALL_STATES =
+            {CallState.CONNECTING, CallState.SELECT_PHONE_ACCOUNT, CallState.DIALING,
+                    CallState.PULLING};
 
     /**
      * Binder implementation of IBluetoothHeadsetPhone. Implements the command interface that the
@@ -329,6 +338,9 @@ public class BluetoothPhoneServiceImpl {
         @Override
         public void onCallAdded(Call call) {
             Log.d(TAG, "onCallAdded");
+            call.addListener(mCallListener);
+            invalidateClccSnapshot();
+            updateHeadsetCall(call, call.getState());
             if (isDsdaEnabled() && call.isConference() &&
                     (call.getChildCalls().size() == 0)) {
                 Log.d(TAG, "Ignore onCallAdded for new parent call" +
@@ -344,10 +356,16 @@ public class BluetoothPhoneServiceImpl {
         @Override
         public void onCallRemoved(Call call) {
             Log.d(TAG, "onCallRemoved");
+            call.removeListener(mCallListener);
+            invalidateClccSnapshot();
+            mHeadsetCalls.remove(call);
+            // Release the index and address even for external calls, which are not listed but
+            // may have been listed before they became external.
+            removeIndexForCall(call);
+            mCallAddresses.remove(call);
             if (call.isExternalCall()) {
                 return;
             }
-            mClccIndexMap.remove(call);
             updateHeadsetWithCallState(false /* force */, call);
         }
 
@@ -371,6 +389,7 @@ public class BluetoothPhoneServiceImpl {
         public void onCallStateChanged(Call call, int oldState, int newState) {
             Log.d(TAG, "onCallStateChanged, call: " + call + " oldState: " + oldState +
                     " newState: " + newState);
+            invalidateClccSnapshot();
             // If onCallStateChanged comes with oldState = newState when DSDA is enabled,
             // check if the call is on ActiveSub. If so, this callback is called for
             // Active Subscription change.
@@ -388,23 +407,28 @@ public class BluetoothPhoneServiceImpl {
             if (call.isExternalCall()) {
                 return;
             }
+            updateHeadsetCall(call, newState);
+            // The headset state is derived from top-level calls only, so a state change of a
+            // conference participant can never change it. The conference itself reports its own
+            // state changes.
+            if (call.getParentCall() != null && !isDsdaEnabled()) {
+                Log.d(TAG, "Ignoring state change of conference participant");
+                return;
+            }
             // If a call is being put on hold because of a new connecting call, ignore the
             // CONNECTING since the BT state update needs to send out the numHeld = 1 + dialing
             // state atomically.
             // When the call later transitions to DIALING/DISCONNECTED we will then send out the
             // aggregated update.
-            if (oldState == CallState.ACTIVE && newState == CallState.ON_HOLD) {
-                for (Call otherCall : mCallsManager.getCalls()) {
-                    if (otherCall.getState() == CallState.CONNECTING) {
-                        return;
-                    }
-                }
+            if (oldState == CallState.ACTIVE && newState == CallState.ON_HOLD &&
+                    getFirstHeadsetCallWithState(CallState.CONNECTING) != null) {
+                return;
             }
 
             // To have an active call and another dialing at the same time on Active Sub is an
             // invalid BT state. We can assume that the active call will be automatically held
             // which will send another update at which point we will be in the right state.
-            Call anyActiveCall = mCallsManager.getActiveCall();
+            Call anyActiveCall = getFirstHeadsetCallWithState(CallState.ACTIVE);
             if ((anyActiveCall != null) && oldState == CallState.CONNECTING &&
                     newState == CallState.DIALING || newState == CallState.PULLING) {
                 if (!isDsdaEnabled()) {
@@ -419,9 +443,11 @@ public class BluetoothPhoneServiceImpl {
 
         @Override
         public void onIsConferencedChanged(Call call) {
+            invalidateClccSnapshot();
             if (call.isExternalCall()) {
                 return;
             }
+            updateHeadsetCall(call, call.getState());
             /*
              * Filter certain onIsConferencedChanged callbacks. Unfortunately this needs to be done
              * because conference change events are not atomic and multiple callbacks get fired
@@ -453,6 +479,37 @@ public class BluetoothPhoneServiceImpl {
         }
     };
 
+    /**
+     * Listens to the changes of a call which affect its CLCC row or its address sent to the
+     * headset, but are not reported through {@link CallsManagerListener}.
+     */
+    private final Call.Listener mCallListener = new Call.ListenerBase() {
+        @Override
+        public void onConnectionCapabilitiesChanged(Call call) {
+            invalidateClccSnapshot();
+        }
+
+        @Override
+        public void onHandleChanged(Call call) {
+            invalidateClccSnapshot();
+            HeadsetCall headsetCall = mHeadsetCalls.get(call);
+            if (headsetCall != null) {
+                headsetCall.address = new CallAddress(call.getHandle());
+            }
+        }
+
+        @Override
+        public void onParentChanged(Call call) {
+            invalidateClccSnapshot();
+            updateHeadsetCall(call, call.getState());
+        }
+
+        @Override
+        public void onChildrenChanged(Call call) {
+            invalidateClccSnapshot();
+        }
+    };
+
     /**
      * Listens to connections and disconnections of bluetooth headsets.  We need to save the current
      * bluetooth headset so that we know where to send call updates.
@@ -511,6 +568,34 @@ public class BluetoothPhoneServiceImpl {
 
     // A map from Calls to indexes used to identify calls for CLCC (C* List Current Calls).
     private Map<Call, Integer> mClccIndexMap = new HashMap<>();
+    // The indexes in use in mClccIndexMap.
+    private final BitSet mClccIndexesInUse = new BitSet();
+
+    /**
+     * Incremented whenever a call event may have changed the CLCC response. The rows sent for a
+     * listCurrentCalls request are kept in mClccSnapshot and replayed for later requests until
+     * this changes.
+     */
+    private int mCallStateVersion = 0;
+    private ClccSnapshot mClccSnapshot = null;
+
+    /**
+     * The address and type of address sent in the CLCC row of each call. Computing the type of
+     * address means parsing the number, so it is only done again when the address changes.
+     */
+    private final Map<Call, CallAddress> mCallAddresses = new ArrayMap<>();
+
+    /**
+     * The top-level calls the headset state is derived from, in the order they were added, with
+     * the state each one was last reported in. Kept up to date from call events so that an event
+     * only looks at these rather than going through every call in CallsManager. Reloaded from
+     * CallsManager when the state is sent to the headset regardless of changes.
+     */
+    private final Map<Call, HeadsetCall> mHeadsetCalls = new LinkedHashMap<>();
+
+    /** The active call and its CS/PS type last broadcast through ACTION_CALL_TYPE. */
+    private Call mCallTypeCall = null;
+    private boolean mCallTypeIsCs = false;
 
     private boolean mHeadsetUpdatedRecently = false;
 
@@ -519,6 +604,123 @@ public class BluetoothPhoneServiceImpl {
     private final CallsManager mCallsManager;
     private final PhoneAccountRegistrar mPhoneAccountRegistrar;
 
+    /**
+     * The address of a call as sent to the headset, along with its type of address.
+     */
+    private static final class CallAddress {
+        final Uri uri;
+        final String address;
+        final int addressType;
+
+        CallAddress(Uri uri) {
+            this.uri = uri;
+            this.address = uri == null ? null : uri.getSchemeSpecificPart();
+            this.addressType = address == null ? -1 : PhoneNumberUtils.toaFromString(address);
+        }
+    }
+
+    /**
+     * A top-level call as seen by the headset state, with its address computed ahead of time.
+     */
+    private static final class HeadsetCall {
+        int state;
+        CallAddress address;
+
+        HeadsetCall(int state, Uri handle) {
+            this.state = state;
+            this.address = new CallAddress(handle);
+        }
+    }
+
+    /**
+     * A CLCC response row for one call.
+     */
+    private static final class ClccRow {
+        final Call call;
+        final int index;
+        final int direction;
+        final int state;
+        final boolean isPartOfConference;
+        final String address;
+        final int addressType;
+        // Conference state the row depends on which is not reported by any call event.
+        final Call conferenceActiveChild;
+        final boolean wasConferenceMerged;
+
+        ClccRow(Call call, int index, int direction, int state, boolean isPartOfConference,
+                String address, int addressType) {
+            this.call = call;
+            this.index = index;
+            this.direction = direction;
+            this.state = state;
+            this.isPartOfConference = isPartOfConference;
+            this.address = address;
+            this.addressType = addressType;
+            Call conferenceCall = call.getParentCall();
+            this.conferenceActiveChild = conferenceCall == null ? null
+                    : conferenceCall.getConferenceLevelActiveCall();
+            this.wasConferenceMerged = conferenceCall != null
+                    && conferenceCall.wasConferencePreviouslyMerged();
+        }
+
+        boolean isConferenceUnchanged() {
+            Call conferenceCall = call.getParentCall();
+            if (conferenceCall == null) {
+                return conferenceActiveChild == null && !wasConferenceMerged;
+            }
+            return conferenceCall.getConferenceLevelActiveCall() == conferenceActiveChild
+                    && conferenceCall.wasConferencePreviouslyMerged() == wasConferenceMerged;
+        }
+    }
+
+    /**
+     * The CLCC rows sent for a list of calls, along with what they were built from.
+     */
+    private static final class ClccSnapshot {
+        final int version;
+        final Call foregroundCall;
+        final Call[] calls;
+        final int[] callStates;
+        final List<ClccRow> rows = new ArrayList<>();
+
+        ClccSnapshot(int version, Call foregroundCall, Collection<Call> calls) {
+            this.version = version;
+            this.foregroundCall = foregroundCall;
+            this.calls = calls.toArray(new Call[calls.size()]);
+            this.callStates = new int[this.calls.length];
+            for (int i = 0; i < this.calls.length; i++) {
+                callStates[i] = this.calls[i].getState();
+            }
+        }
+
+        /**
+         * Determines if the rows can be sent again. Besides the version, the calls and their
+         * states are compared since a call may be added to CallsManager before listeners are
+         * told, and the conference state is compared since merging and swapping a conference
+         * is not reported by any call event.
+         */
+        boolean isValid(int currentVersion, Call currentForegroundCall,
+                Collection<Call> currentCalls) {
+            if (version != currentVersion || foregroundCall != currentForegroundCall
+                    || calls.length != currentCalls.size()) {
+                return false;
+            }
+            int i = 0;
+            for (Call call : currentCalls) {
+                if (call != calls[i] || call.getState() != callStates[i]) {
+                    return false;
+                }
+                i++;
+            }
+            for (ClccRow row : rows) {
+                if (!row.isConferenceUnchanged()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     public IBinder getBinder() {
         return mBinder;
     }
@@ -559,6 +761,7 @@ public class BluetoothPhoneServiceImpl {
         }
 
         mCallsManager.addListener(mCallsManagerListener);
+        reloadHeadsetCalls();
         updateHeadsetWithCallState(false /* force */, null);
     }
 
@@ -674,6 +877,10 @@ public class BluetoothPhoneServiceImpl {
 
     private void sendListOfCalls(boolean shouldLog) {
         Collection<Call> mCalls = mCallsManager.getCalls();
+        if (!isDsdaEnabled() || mBluetoothDsda == null) {
+            sendClccSnapshot(mCalls, shouldLog);
+            return;
+        }
         for (Call call : mCalls) {
             // We don't send the parent conference call to the bluetooth device.
             // We do, however want to send conferences that have no children to the bluetooth
@@ -681,32 +888,79 @@ public class BluetoothPhoneServiceImpl {
             if (!call.isConference() ||
                     (call.isConference() && call
                             .can(Connection.CAPABILITY_CONFERENCE_HAS_NO_CHILDREN))) {
-                if (isDsdaEnabled() && (mBluetoothDsda != null)) {
-                    try {
-                        sendDsdaClccForCall(call, shouldLog);
-                    } catch (RemoteException e) {
-                        Log.i(TAG, " BluetoothDsdaService class not found exception " + e);
+                try {
+                    sendDsdaClccForCall(call, shouldLog);
+                } catch (RemoteException e) {
+                    Log.i(TAG, " BluetoothDsdaService class not found exception " + e);
+                }
+            }
+        }
+        sendClccEndMarker();
+    }
+
+    /**
+     * Sends the clcc (C* List Current Calls) events for all calls, reusing the rows sent for the
+     * previous request if the calls have not changed since.
+     */
+    private void sendClccSnapshot(Collection<Call> calls, boolean shouldLog) {
+        Call foregroundCall = mCallsManager.getForegroundCall();
+        ClccSnapshot snapshot = mClccSnapshot;
+        if (snapshot == null || !snapshot.isValid(mCallStateVersion, foregroundCall, calls)) {
+            snapshot = new ClccSnapshot(mCallStateVersion, foregroundCall, calls);
+            for (Call call : calls) {
+                // We don't send the parent conference call to the bluetooth device.
+                // We do, however want to send conferences that have no children to the bluetooth
+                // device (e.g. IMS Conference).
+                if (!call.isConference() ||
+                        call.can(Connection.CAPABILITY_CONFERENCE_HAS_NO_CHILDREN)) {
+                    ClccRow row = createClccRow(call, foregroundCall);
+                    if (row != null) {
+                        snapshot.rows.add(row);
                     }
-                } else {
-                    sendClccForCall(call, shouldLog);
                 }
             }
+            mClccSnapshot = snapshot;
+        } else if (shouldLog) {
+            Log.i(this, "sending cached clcc for %d calls", snapshot.rows.size());
+        }
+
+        for (ClccRow row : snapshot.rows) {
+            sendClccRow(row, shouldLog);
         }
         sendClccEndMarker();
     }
 
+    private void invalidateClccSnapshot() {
+        mCallStateVersion++;
+        mClccSnapshot = null;
+    }
+
+    private void sendClccRow(ClccRow row, boolean shouldLog) {
+        if (shouldLog) {
+            Log.i(this, "sending clcc for call %d, %d, %d, %b, %s, %d",
+                    row.index, row.direction, row.state, row.isPartOfConference,
+                    Log.piiHandle(row.address), row.addressType);
+        }
+
+        if (mBluetoothHeadset != null) {
+            mBluetoothHeadset.clccResponse(row.index, row.direction, row.state, 0,
+                    row.isPartOfConference, row.address, row.addressType);
+        }
+    }
+
     /**
-     * Sends a single clcc (C* List Current Calls) event for the specified call.
+     * Creates the clcc (C* List Current Calls) row for the specified call, or returns
+     * {@code null} if the call should not be listed.
      */
-    private void sendClccForCall(Call call, boolean shouldLog) {
-        boolean isForeground = mCallsManager.getForegroundCall() == call;
+    private ClccRow createClccRow(Call call, Call foregroundCall) {
+        boolean isForeground = foregroundCall == call;
         int state = convertCallState(call.getState(), isForeground);
         boolean isPartOfConference = false;
         boolean isConferenceWithNoChildren = call.isConference() && call
                 .can(Connection.CAPABILITY_CONFERENCE_HAS_NO_CHILDREN);
 
         if (state == CALL_STATE_IDLE) {
-            return;
+            return null;
         }
 
         Call conferenceCall = call.getParentCall();
@@ -755,19 +1009,9 @@ public class BluetoothPhoneServiceImpl {
         } else {
             addressUri = call.getHandle();
         }
-        String address = addressUri == null ? null : addressUri.getSchemeSpecificPart();
-        int addressType = address == null ? -1 : PhoneNumberUtils.toaFromString(address);
-
-        if (shouldLog) {
-            Log.i(this, "sending clcc for call %d, %d, %d, %b, %s, %d",
-                    index, direction, state, isPartOfConference, Log.piiHandle(address),
-                    addressType);
-        }
-
-        if (mBluetoothHeadset != null) {
-            mBluetoothHeadset.clccResponse(
-                    index, direction, state, 0, isPartOfConference, address, addressType);
-        }
+        CallAddress callAddress = getCallAddress(call, addressUri);
+        return new ClccRow(call, index, direction, state, isPartOfConference,
+                callAddress.address, callAddress.addressType);
     }
 
     /**
@@ -793,7 +1037,8 @@ public class BluetoothPhoneServiceImpl {
         Call activeSubBackgroundCall = mCallsManager.getFirstCallWithState(
                 Integer.toString(activeSub), CallState.ON_HOLD);
 
-        if (getBluetoothCallStateForUpdate() != CALL_STATE_IDLE) {
+        if (getBluetoothCallStateForUpdate(mCallsManager.getRingingCall(),
+                mCallsManager.getOutgoingCall()) != CALL_STATE_IDLE) {
             allowDsda = true;
             Log.i(this, "Call setup in progress, allowDsda: " + allowDsda);
         }
@@ -930,20 +1175,99 @@ public class BluetoothPhoneServiceImpl {
      * given (smallest number starting from 1 that isn't already taken).
      */
     private int getIndexForCall(Call call) {
-        if (mClccIndexMap.containsKey(call)) {
-            return mClccIndexMap.get(call);
+        Integer index = mClccIndexMap.get(call);
+        if (index != null) {
+            return index;
         }
 
-        int i = 1;  // Indexes for bluetooth clcc are 1-based.
-        while (mClccIndexMap.containsValue(i)) {
-            i++;
-        }
+        int i = mClccIndexesInUse.nextClearBit(1);  // Indexes for bluetooth clcc are 1-based.
 
         // NOTE: Indexes are removed in {@link #onCallRemoved}.
         mClccIndexMap.put(call, i);
+        mClccIndexesInUse.set(i);
         return i;
     }
 
+    private void removeIndexForCall(Call call) {
+        Integer index = mClccIndexMap.remove(call);
+        if (index != null) {
+            mClccIndexesInUse.clear(index);
+        }
+    }
+
+    /**
+     * Returns the address of the call for the given URI, reusing the one computed before if the
+     * URI has not changed.
+     */
+    private CallAddress getCallAddress(Call call, Uri addressUri) {
+        CallAddress callAddress = mCallAddresses.get(call);
+        if (callAddress == null || !Objects.equals(callAddress.uri, addressUri)) {
+            callAddress = new CallAddress(addressUri);
+            mCallAddresses.put(call, callAddress);
+        }
+        return callAddress;
+    }
+
+    /**
+     * Records the state of a call the headset state is derived from, or stops tracking the call
+     * if it is external or part of a conference.
+     */
+    private void updateHeadsetCall(Call call, int state) {
+        if (call.isExternalCall() || call.getParentCall() != null) {
+            mHeadsetCalls.remove(call);
+            return;
+        }
+        HeadsetCall headsetCall = mHeadsetCalls.get(call);
+        if (headsetCall == null) {
+            mHeadsetCalls.put(call, new HeadsetCall(state, call.getHandle()));
+        } else {
+            headsetCall.state = state;
+        }
+    }
+
+    /**
+     * Replaces the tracked calls with the top-level calls CallsManager has now.
+     */
+    private void reloadHeadsetCalls() {
+        Map<Call, HeadsetCall> oldHeadsetCalls = new ArrayMap<>(mHeadsetCalls.size());
+        oldHeadsetCalls.putAll(mHeadsetCalls);
+        mHeadsetCalls.clear();
+        for (Call call : mCallsManager.getCalls()) {
+            HeadsetCall headsetCall = oldHeadsetCalls.get(call);
+            if (headsetCall != null) {
+                mHeadsetCalls.put(call, headsetCall);
+            }
+            updateHeadsetCall(call, call.getState());
+        }
+    }
+
+    /**
+     * Returns the first tracked call found in the given states. As in
+     * {@link CallsManager#getFirstCallWithState}, the states are tried in the order given, and
+     * for each the foreground call is checked before the others.
+     */
+    private Call getFirstHeadsetCallWithState(int... states) {
+        Call foregroundCall = mCallsManager.getForegroundCall();
+        HeadsetCall foregroundHeadsetCall =
+                foregroundCall == null ? null : mHeadsetCalls.get(foregroundCall);
+        for (int state : states) {
+            if (foregroundHeadsetCall != null && foregroundHeadsetCall.state == state) {
+                return foregroundCall;
+            }
+            for (Map.Entry<Call, HeadsetCall> entry : mHeadsetCalls.entrySet()) {
+                if (entry.getValue().state == state) {
+                    return entry.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    @VisibleForTesting
+    public int getNumCallAddresses() {
+        return mCallAddresses.size();
+    }
+
     private void updateActiveSubChange() {
         Log.d(TAG, "update ActiveSubChange to DSDA service");
         if (isDsdaEnabled() && (mBluetoothDsda != null)) {
@@ -960,7 +1284,7 @@ public class BluetoothPhoneServiceImpl {
      *
      * @param force {@code true} if the headset state should be sent regardless if no changes to the
      *      state have occurred, {@code false} if the state should only be sent if the state has
-     *      changed.
+     *      changed. The tracked calls are reloaded from CallsManager when forced.
      * @ param call is specified call for which Headset is to be updated.
      */
     private void updateHeadsetWithCallState(boolean force, Call call) {
@@ -968,27 +1292,37 @@ public class BluetoothPhoneServiceImpl {
             Log.d(TAG, "DSDA call operation, handle it separately");
             updateDsdaServiceWithCallState(call);
         } else {
-            CallsManager callsManager = mCallsManager;
-            Call activeCall = mCallsManager.getActiveCall();
-            Call ringingCall = mCallsManager.getRingingCall();
-            Call heldCall = mCallsManager.getHeldCall();
+            if (force) {
+                reloadHeadsetCalls();
+            }
+            // The calls are picked as CallsManager picks its active, ringing, held and outgoing
+            // calls.
+            Call activeCall = getFirstHeadsetCallWithState(CallState.ACTIVE);
+            Call ringingCall = getFirstHeadsetCallWithState(CallState.RINGING);
+            Call heldCall = getFirstHeadsetCallWithState(CallState.ON_HOLD);
+            Call dialingCall = getFirstHeadsetCallWithState(OUTGOING_CALL_STATES);
+            CallAddress ringingCallAddress =
+                    ringingCall == null ? null : mHeadsetCalls.get(ringingCall).address;
+            int numHeldCalls = 0;
+            for (HeadsetCall headsetCall : mHeadsetCalls.values()) {
+                if (headsetCall.state == CallState.ON_HOLD) {
+                    numHeldCalls++;
+                }
+            }
 
-            int bluetoothCallState = getBluetoothCallStateForUpdate();
+            int bluetoothCallState = getBluetoothCallStateForUpdate(ringingCall, dialingCall);
 
             String ringingAddress = null;
             int ringingAddressType = 128;
-            if (ringingCall != null && ringingCall.getHandle() != null) {
-                ringingAddress = ringingCall.getHandle().getSchemeSpecificPart();
-                if (ringingAddress != null) {
-                    ringingAddressType = PhoneNumberUtils.toaFromString(ringingAddress);
-                }
+            if (ringingCallAddress != null && ringingCallAddress.address != null) {
+                ringingAddress = ringingCallAddress.address;
+                ringingAddressType = ringingCallAddress.addressType;
             }
             if (ringingAddress == null) {
                 ringingAddress = "";
             }
 
             int numActiveCalls = activeCall == null ? 0 : 1;
-            int numHeldCalls = callsManager.getNumHeldCalls();
             boolean callsSwitched = (numHeldCalls == 2);
             // For conference calls which support swapping the active call within the conference
             // (namely CDMA calls) we need to expose that as a held call in order for the BT device
@@ -1031,14 +1365,21 @@ public class BluetoothPhoneServiceImpl {
                         bluetoothCallState == CALL_STATE_ALERTING;
 
                 if (numActiveCalls > 0) {
-                Log.i(TAG, "updateHeadsetWithCallState: Call active");
-                boolean isCsCall = ((activeCall != null) &&
-                        !(activeCall.hasProperty(Connection.PROPERTY_HIGH_DEF_AUDIO) ||
-                        activeCall.hasProperty(Connection.PROPERTY_WIFI)));
-                final Intent intent = new Intent(TelecomManager.ACTION_CALL_TYPE);
-                intent.putExtra(TelecomManager.EXTRA_CALL_TYPE_CS, isCsCall);
-                mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
-            }
+                    boolean isCsCall = ((activeCall != null) &&
+                            !(activeCall.hasProperty(Connection.PROPERTY_HIGH_DEF_AUDIO) ||
+                            activeCall.hasProperty(Connection.PROPERTY_WIFI)));
+                    // Only tell listeners about the call type when it may have changed.
+                    if (activeCall != mCallTypeCall || isCsCall != mCallTypeIsCs || force) {
+                        Log.i(TAG, "updateHeadsetWithCallState: Call active");
+                        mCallTypeCall = activeCall;
+                        mCallTypeIsCs = isCsCall;
+                        final Intent intent = new Intent(TelecomManager.ACTION_CALL_TYPE);
+                        intent.putExtra(TelecomManager.EXTRA_CALL_TYPE_CS, isCsCall);
+                        mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
+                    }
+                } else {
+                    mCallTypeCall = null;
+                }
                 mOldHeldCall = heldCall;
                 mNumActiveCalls = numActiveCalls;
                 mNumHeldCalls = numHeldCalls;
@@ -1207,11 +1548,7 @@ public class BluetoothPhoneServiceImpl {
         Log.i(TAG, "getDsdaNumHeldCalls: numHeldCalls = " + numHeldCalls);
         return numHeldCalls;
     }
-    private int getBluetoothCallStateForUpdate() {
-        CallsManager callsManager = mCallsManager;
-        Call ringingCall = mCallsManager.getRingingCall();
-        Call dialingCall = mCallsManager.getOutgoingCall();
-
+    private int getBluetoothCallStateForUpdate(Call ringingCall, Call dialingCall) {
         //
         // !! WARNING !!
         // You will note that CALL_STATE_WAITING, CALL_STATE_HELD, and CALL_STATE_ACTIVE are not
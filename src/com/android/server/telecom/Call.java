@@ -16,6 +16,7 @@
 
 package com.android.server.telecom;
 
+import android.content.ComponentName;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
@@ -385,6 +386,8 @@ public class Call implements CreateConnectionResponse {
 
     private PhoneNumberUtilsAdapter mPhoneNumberUtilsAdapter;
 
+    private final Timeouts.Adapter mTimeoutsAdapter;
+
     /**
      * For {@link Connection}s or {@link android.telecom.Conference}s added via a ConnectionManager
      * using the {@link android.telecom.ConnectionService#addExistingConnection(PhoneAccountHandle,
@@ -422,6 +425,7 @@ public class Call implements CreateConnectionResponse {
             ContactsAsyncHelper contactsAsyncHelper,
             CallerInfoAsyncQueryFactory callerInfoAsyncQueryFactory,
             PhoneNumberUtilsAdapter phoneNumberUtilsAdapter,
+            Timeouts.Adapter timeoutsAdapter,
             Uri handle,
             GatewayInfo gatewayInfo,
             PhoneAccountHandle connectionManagerPhoneAccountHandle,
@@ -437,6 +441,7 @@ public class Call implements CreateConnectionResponse {
         mLock = lock;
         mRepository = repository;
         mPhoneNumberUtilsAdapter = phoneNumberUtilsAdapter;
+        mTimeoutsAdapter = timeoutsAdapter;
         setHandle(handle);
         mPostDialDigits = handle != null
                 ? PhoneNumberUtils.extractPostDialPortion(handle.getSchemeSpecificPart()) : "";
@@ -479,6 +484,7 @@ public class Call implements CreateConnectionResponse {
             ContactsAsyncHelper contactsAsyncHelper,
             CallerInfoAsyncQueryFactory callerInfoAsyncQueryFactory,
             PhoneNumberUtilsAdapter phoneNumberUtilsAdapter,
+            Timeouts.Adapter timeoutsAdapter,
             Uri handle,
             GatewayInfo gatewayInfo,
             PhoneAccountHandle connectionManagerPhoneAccountHandle,
@@ -488,9 +494,9 @@ public class Call implements CreateConnectionResponse {
             boolean isConference,
             long connectTimeMillis) {
         this(callId, context, callsManager, lock, repository, contactsAsyncHelper,
-                callerInfoAsyncQueryFactory, phoneNumberUtilsAdapter, handle, gatewayInfo,
-                connectionManagerPhoneAccountHandle, targetPhoneAccountHandle, callDirection,
-                shouldAttachToExistingConnection, isConference);
+                callerInfoAsyncQueryFactory, phoneNumberUtilsAdapter, timeoutsAdapter, handle,
+                gatewayInfo, connectionManagerPhoneAccountHandle, targetPhoneAccountHandle,
+                callDirection, shouldAttachToExistingConnection, isConference);
 
         mConnectTimeMillis = connectTimeMillis;
         mAnalytics.setCallStartTime(connectTimeMillis);
@@ -529,27 +535,82 @@ public class Call implements CreateConnectionResponse {
     }
 
     public void destroy() {
+        if (mVideoProviderProxy != null) {
+            // Drop the updates still held back, so none reach the InCallServices for a call
+            // they no longer know about.
+            mVideoProviderProxy.clearVideoCallback();
+        }
         Log.event(this, Log.Events.DESTROYED);
     }
 
     /** {@inheritDoc} */
-    @Override
-    public String toString() {
-        String component = null;
-        if (mConnectionService != null && mConnectionService.getComponentName() != null) {
-            component = mConnectionService.getComponentName().flattenToShortString();
+    /**
+     * The state of a {@link Call} shown by dumpsys. Copied by {@link #getDumpState} while holding
+     * the Telecom lock, so that it can be written out once the lock is released.
+     */
+    public static final class DumpState {
+        private final String mId;
+        private final int mState;
+        private final ComponentName mComponent;
+        private final Uri mHandle;
+        private final int mVideoState;
+        private final int mChildCount;
+        private final boolean mHasParent;
+        private final int mCapabilities;
+        private final int mProperties;
+
+        @VisibleForTesting
+        public DumpState(String id, int state, ComponentName component, Uri handle,
+                int videoState, int childCount, boolean hasParent, int capabilities,
+                int properties) {
+            mId = id;
+            mState = state;
+            mComponent = component;
+            mHandle = handle;
+            mVideoState = videoState;
+            mChildCount = childCount;
+            mHasParent = hasParent;
+            mCapabilities = capabilities;
+            mProperties = properties;
         }
 
-        return String.format(Locale.US, "[%s, %s, %s, %s, %s, childs(%d), has_parent(%b), %s, %s]",
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "[%s, %s, %s, %s, %s, childs(%d), has_parent(%b), %s, %s]",
+                    mId,
+                    CallState.toString(mState),
+                    mComponent == null ? null : mComponent.flattenToShortString(),
+                    Log.piiHandle(mHandle),
+                    getVideoStateDescription(mVideoState),
+                    mChildCount,
+                    mHasParent,
+                    Connection.capabilitiesToString(mCapabilities),
+                    Connection.propertiesToString(mProperties));
+        }
+    }
+
+    /**
+     * Copies the state of the call for dumpsys. Must be called while holding the Telecom lock.
+     *
+     * @return The copied state.
+     */
+    public DumpState getDumpState() {
+        return new DumpState(
                 mId,
-                CallState.toString(mState),
-                component,
-                Log.piiHandle(mHandle),
-                getVideoStateDescription(getVideoState()),
+                mState,
+                mConnectionService == null ? null : mConnectionService.getComponentName(),
+                mHandle,
+                getVideoState(),
                 getChildCalls().size(),
                 getParentCall() != null,
-                Connection.capabilitiesToString(getConnectionCapabilities()),
-                Connection.propertiesToString(getConnectionProperties()));
+                getConnectionCapabilities(),
+                getConnectionProperties());
+    }
+
+    @Override
+    public String toString() {
+        return getDumpState().toString();
     }
 
     /**
@@ -561,7 +622,7 @@ public class Call implements CreateConnectionResponse {
      * @param videoState The video state.
      * @return A string indicating which bits are set in the video state.
      */
-    private String getVideoStateDescription(int videoState) {
+    private static String getVideoStateDescription(int videoState) {
         StringBuilder sb = new StringBuilder();
         sb.append("A");
 
@@ -1200,7 +1261,8 @@ public class Call implements CreateConnectionResponse {
             return;
         }
         mCreateConnectionProcessor = new CreateConnectionProcessor(this, mRepository, this,
-                phoneAccountRegistrar, mContext);
+                phoneAccountRegistrar, mContext, mTimeoutsAdapter, mLock,
+                TimeoutScheduler.getInstance());
         mCreateConnectionProcessor.process();
     }
 
@@ -1981,9 +2043,14 @@ public class Call implements CreateConnectionResponse {
     public void setVideoProvider(IVideoProvider videoProvider) {
         Log.v(this, "setVideoProvider");
 
+        if (mVideoProviderProxy != null) {
+            mVideoProviderProxy.clearVideoCallback();
+        }
         if (videoProvider != null ) {
             try {
-                mVideoProviderProxy = new VideoProviderProxy(mLock, videoProvider, this);
+                mVideoProviderProxy = new VideoProviderProxy(mLock, videoProvider, this,
+                        mTimeoutsAdapter.getVideoProviderUpdateIntervalMillis(
+                                mContext.getContentResolver()));
             } catch (RemoteException ignored) {
                 // Ignore RemoteException.
             }
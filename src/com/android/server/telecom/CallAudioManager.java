@@ -26,8 +26,10 @@ import android.util.SparseArray;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.LinkedHashSet;
 
@@ -408,6 +410,19 @@ public class CallAudioManager extends CallsManagerListenerBase {
         }
     }
 
+    /**
+     * Called when the user asks to answer a call, before the call is actually active, so that
+     * bluetooth audio can start connecting early if configured to.
+     */
+    void onAnswerRequested(Call call) {
+        if (mRingingCalls.contains(call) && mCallAudioRouteStateMachine
+                .getBluetoothPreconnectMode()
+                != CallAudioRouteStateMachine.BLUETOOTH_PRECONNECT_OFF) {
+            mCallAudioRouteStateMachine.sendMessageWithSessionInfo(
+                    CallAudioRouteStateMachine.PRECONNECT_BLUETOOTH);
+        }
+    }
+
     void silenceRingers() {
         for (Call call : mRingingCalls) {
             call.silence();
@@ -443,8 +458,7 @@ public class CallAudioManager extends CallsManagerListenerBase {
 
     @VisibleForTesting
     public void setCallAudioRouteFocusState(int focusState) {
-        mCallAudioRouteStateMachine.sendMessageWithSessionInfo(
-                CallAudioRouteStateMachine.SWITCH_FOCUS, focusState);
+        mCallAudioRouteStateMachine.sendFocusChange(focusState);
     }
 
     @VisibleForTesting
@@ -457,29 +471,79 @@ public class CallAudioManager extends CallsManagerListenerBase {
         return mCallAudioModeStateMachine;
     }
 
-    void dump(IndentingPrintWriter pw) {
-        pw.println("All calls:");
-        pw.increaseIndent();
-        dumpCallsInCollection(pw, mCalls);
-        pw.decreaseIndent();
-
-        pw.println("Active dialing, or connecting calls:");
-        pw.increaseIndent();
-        dumpCallsInCollection(pw, mActiveDialingOrConnectingCalls);
-        pw.decreaseIndent();
-
-        pw.println("Ringing calls:");
-        pw.increaseIndent();
-        dumpCallsInCollection(pw, mRingingCalls);
-        pw.decreaseIndent();
-
-        pw.println("Holding calls:");
-        pw.increaseIndent();
-        dumpCallsInCollection(pw, mHoldingCalls);
-        pw.decreaseIndent();
+    /**
+     * The state of the {@link CallAudioManager} shown by dumpsys.
+     */
+    static final class DumpState {
+        private final List<String> mCalls;
+        private final List<String> mActiveDialingOrConnectingCalls;
+        private final List<String> mRingingCalls;
+        private final List<String> mHoldingCalls;
+        private final Call.DumpState mForegroundCall;
+        private final CallAudioRouteStateMachine.DumpState mRouteStateMachine;
+
+        private DumpState(List<String> calls, List<String> activeDialingOrConnectingCalls,
+                List<String> ringingCalls, List<String> holdingCalls,
+                Call.DumpState foregroundCall,
+                CallAudioRouteStateMachine.DumpState routeStateMachine) {
+            mCalls = calls;
+            mActiveDialingOrConnectingCalls = activeDialingOrConnectingCalls;
+            mRingingCalls = ringingCalls;
+            mHoldingCalls = holdingCalls;
+            mForegroundCall = foregroundCall;
+            mRouteStateMachine = routeStateMachine;
+        }
+
+        /**
+         * Dumps the copied state.
+         *
+         * @param pw The {@code IndentingPrintWriter} to write the state to.
+         */
+        void dump(IndentingPrintWriter pw) {
+            pw.println("All calls:");
+            pw.increaseIndent();
+            dumpCallIds(pw, mCalls);
+            pw.decreaseIndent();
+
+            pw.println("Active dialing, or connecting calls:");
+            pw.increaseIndent();
+            dumpCallIds(pw, mActiveDialingOrConnectingCalls);
+            pw.decreaseIndent();
+
+            pw.println("Ringing calls:");
+            pw.increaseIndent();
+            dumpCallIds(pw, mRingingCalls);
+            pw.decreaseIndent();
+
+            pw.println("Holding calls:");
+            pw.increaseIndent();
+            dumpCallIds(pw, mHoldingCalls);
+            pw.decreaseIndent();
+
+            pw.println("Foreground call:");
+            pw.println(mForegroundCall);
+
+            mRouteStateMachine.dump(pw);
+        }
+
+        private static void dumpCallIds(IndentingPrintWriter pw, List<String> callIds) {
+            for (String callId : callIds) {
+                pw.println(callId);
+            }
+        }
+    }
 
-        pw.println("Foreground call:");
-        pw.println(mForegroundCall);
+    /**
+     * Copies the state of the {@link CallAudioManager} for dumpsys. Must be called while holding
+     * the Telecom lock.
+     *
+     * @return The copied state.
+     */
+    DumpState getDumpState() {
+        return new DumpState(getCallIds(mCalls), getCallIds(mActiveDialingOrConnectingCalls),
+                getCallIds(mRingingCalls), getCallIds(mHoldingCalls),
+                mForegroundCall == null ? null : mForegroundCall.getDumpState(),
+                mCallAudioRouteStateMachine.getDumpState());
     }
 
     @VisibleForTesting
@@ -572,6 +636,12 @@ public class CallAudioManager extends CallsManagerListenerBase {
             mCallAudioModeStateMachine.sendMessageWithArgs(
                     CallAudioModeStateMachine.NEW_RINGING_CALL,
                     makeArgsForModeStateMachine());
+            if (mCalls.size() == 1 && mCallAudioRouteStateMachine.getBluetoothPreconnectMode()
+                    == CallAudioRouteStateMachine.BLUETOOTH_PRECONNECT_ON_RING) {
+                // The user is likely to answer a lone incoming call.
+                mCallAudioRouteStateMachine.sendMessageWithSessionInfo(
+                        CallAudioRouteStateMachine.PRECONNECT_BLUETOOTH);
+            }
         }
     }
 
@@ -740,10 +810,12 @@ public class CallAudioManager extends CallsManagerListenerBase {
         return foregroundCall.isRemotelyHeld();
     }
 
-    private void dumpCallsInCollection(IndentingPrintWriter pw, Collection<Call> calls) {
+    private static List<String> getCallIds(Collection<Call> calls) {
+        List<String> callIds = new ArrayList<>(calls.size());
         for (Call call : calls) {
-            if (call != null) pw.println(call.getId());
+            if (call != null) callIds.add(call.getId());
         }
+        return callIds;
     }
 
     private void maybeStopRingingAndCallWaitingForAnsweredOrRejectedCall(Call call) {
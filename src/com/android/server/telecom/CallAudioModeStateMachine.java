@@ -17,6 +17,7 @@
 package com.android.server.telecom;
 
 import android.media.AudioManager;
+import android.os.Looper;
 import android.os.Message;
 import android.os.SystemProperties;
 import android.telecom.PhoneAccountHandle;
@@ -511,6 +512,21 @@ public class CallAudioModeStateMachine extends StateMachine {
     public CallAudioModeStateMachine(AudioManager audioManager) {
         super(CallAudioModeStateMachine.class.getSimpleName());
         mAudioManager = audioManager;
+        initializeStates();
+    }
+
+    /**
+     * Creates a state machine which runs on the given looper instead of on its own thread. Telecom
+     * runs it on the looper of the {@link CallAudioRouteStateMachine}, so that mode and route
+     * changes are handled in order from a single queue without crossing threads.
+     */
+    public CallAudioModeStateMachine(AudioManager audioManager, Looper looper) {
+        super(CallAudioModeStateMachine.class.getSimpleName(), looper);
+        mAudioManager = audioManager;
+        initializeStates();
+    }
+
+    private void initializeStates() {
         mMostRecentMode = AudioManager.MODE_NORMAL;
 
         addState(mUnfocusedState);
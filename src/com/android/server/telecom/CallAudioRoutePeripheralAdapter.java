@@ -45,6 +45,10 @@ public class CallAudioRoutePeripheralAdapter implements WiredHeadsetManager.List
 
     @Override
     public void onBluetoothStateChange(int oldState, int newState) {
+        if (newState == BluetoothManager.BLUETOOTH_AUDIO_CONNECTED) {
+            mCallAudioRouteStateMachine.sendMessageWithSessionInfo(
+                    CallAudioRouteStateMachine.BT_AUDIO_CONNECTED);
+        }
         switch (oldState) {
             case BluetoothManager.BLUETOOTH_DISCONNECTED:
             case BluetoothManager.BLUETOOTH_UNINITIALIZED:
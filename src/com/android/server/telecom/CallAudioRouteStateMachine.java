@@ -29,12 +29,15 @@ import android.media.IAudioService;
 import android.os.Binder;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.telecom.CallAudioState;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IState;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
@@ -89,6 +92,9 @@ public class CallAudioRouteStateMachine extends StateMachine {
     // Wired headset, earpiece, or speakerphone, in that order of precedence.
     public static final int SWITCH_BASELINE_ROUTE = 1005;
     public static final int BT_AUDIO_DISCONNECT = 1006;
+    // Start connecting bluetooth audio for a ringing call which is likely to be answered.
+    public static final int PRECONNECT_BLUETOOTH = 1007;
+    public static final int BT_AUDIO_CONNECTED = 1008;
 
     public static final int USER_SWITCH_EARPIECE = 1101;
     public static final int USER_SWITCH_BLUETOOTH = 1102;
@@ -112,6 +118,11 @@ public class CallAudioRouteStateMachine extends StateMachine {
     public static final int ACTIVE_FOCUS = 2;
     public static final int RINGING_FOCUS = 3;
 
+    // Values of the bluetooth_audio_preconnect_mode config.
+    public static final int BLUETOOTH_PRECONNECT_OFF = 0;
+    public static final int BLUETOOTH_PRECONNECT_ON_ANSWER = 1;
+    public static final int BLUETOOTH_PRECONNECT_ON_RING = 2;
+
     private static final SparseArray<String> AUDIO_ROUTE_TO_LOG_EVENT = new SparseArray<String>() {{
         put(CallAudioState.ROUTE_BLUETOOTH, Log.Events.AUDIO_ROUTE_BT);
         put(CallAudioState.ROUTE_EARPIECE, Log.Events.AUDIO_ROUTE_EARPIECE);
@@ -119,6 +130,47 @@ public class CallAudioRouteStateMachine extends StateMachine {
         put(CallAudioState.ROUTE_WIRED_HEADSET, Log.Events.AUDIO_ROUTE_HEADSET);
     }};
 
+    /**
+     * Counters of the calls made to the audio system and InCallServices. The *_UNCHANGED counters
+     * count calls skipped because the target already had the requested state; only the
+     * *_COALESCED counters count changes superseded while more were queued.
+     */
+    public static final int STAT_SPEAKERPHONE_FORWARDED = 0;
+    public static final int STAT_SPEAKERPHONE_UNCHANGED = 1;
+    public static final int STAT_MUTE_FORWARDED = 2;
+    public static final int STAT_MUTE_UNCHANGED = 3;
+    public static final int STAT_BLUETOOTH_FORWARDED = 4;
+    public static final int STAT_BLUETOOTH_UNCHANGED = 5;
+    public static final int STAT_AUDIO_STATE_PUBLISHED = 6;
+    public static final int STAT_AUDIO_STATE_UNCHANGED = 7;
+    public static final int STAT_MUTE_COALESCED = 8;
+    public static final int STAT_AUDIO_STATE_COALESCED = 9;
+    private static final String[] STAT_NAMES = {
+            "speakerphoneForwarded",
+            "speakerphoneUnchanged",
+            "muteForwarded",
+            "muteUnchanged",
+            "bluetoothForwarded",
+            "bluetoothUnchanged",
+            "audioStatePublished",
+            "audioStateUnchanged",
+            "muteCoalesced",
+            "audioStateCoalesced"
+    };
+
+    // Messages which may change the CallAudioState. While one of these is queued, the state
+    // reached by the current message is not published yet, since it may be superseded.
+    private static final int[] AUDIO_STATE_MESSAGES = {
+            CONNECT_WIRED_HEADSET, DISCONNECT_WIRED_HEADSET, CONNECT_BLUETOOTH,
+            DISCONNECT_BLUETOOTH, CONNECT_DOCK, DISCONNECT_DOCK,
+            SWITCH_EARPIECE, SWITCH_BLUETOOTH, SWITCH_HEADSET, SWITCH_SPEAKER,
+            SWITCH_BASELINE_ROUTE, BT_AUDIO_DISCONNECT,
+            USER_SWITCH_EARPIECE, USER_SWITCH_BLUETOOTH, USER_SWITCH_HEADSET,
+            USER_SWITCH_SPEAKER, USER_SWITCH_BASELINE_ROUTE,
+            UPDATE_SYSTEM_AUDIO_ROUTE, MUTE_ON, MUTE_OFF, TOGGLE_MUTE
+    };
+    private static final int[] MUTE_MESSAGES = { MUTE_ON, MUTE_OFF, TOGGLE_MUTE };
+
     private static final SparseArray<String> MESSAGE_CODE_TO_NAME = new SparseArray<String>() {{
         put(CONNECT_WIRED_HEADSET, "CONNECT_WIRED_HEADSET");
         put(DISCONNECT_WIRED_HEADSET, "DISCONNECT_WIRED_HEADSET");
@@ -133,6 +185,8 @@ public class CallAudioRouteStateMachine extends StateMachine {
         put(SWITCH_SPEAKER, "SWITCH_SPEAKER");
         put(SWITCH_BASELINE_ROUTE, "SWITCH_BASELINE_ROUTE");
         put(BT_AUDIO_DISCONNECT, "BT_AUDIO_DISCONNECT");
+        put(PRECONNECT_BLUETOOTH, "PRECONNECT_BLUETOOTH");
+        put(BT_AUDIO_CONNECTED, "BT_AUDIO_CONNECTED");
 
         put(USER_SWITCH_EARPIECE, "USER_SWITCH_EARPIECE");
         put(USER_SWITCH_BLUETOOTH, "USER_SWITCH_BLUETOOTH");
@@ -193,8 +247,9 @@ public class CallAudioRouteStateMachine extends StateMachine {
 
     @Override
     protected void onPreHandleMessage(Message msg) {
+        mIsHandlingMessage = true;
         if (msg.obj != null && msg.obj instanceof Session) {
-            String messageCodeName = MESSAGE_CODE_TO_NAME.get(msg.what, "unknown");
+            String messageCodeName = getMessageName(msg.what);
             Log.continueSession((Session) msg.obj, "CARSM.pM_" + messageCodeName);
             Log.i(this, "Message received: %s=%d, arg1=%d", messageCodeName, msg.what, msg.arg1);
         }
@@ -202,7 +257,11 @@ public class CallAudioRouteStateMachine extends StateMachine {
 
     @Override
     protected void onPostHandleMessage(Message msg) {
-        Log.endSession();
+        applyCoalescedChanges();
+        mIsHandlingMessage = false;
+        if (msg.obj != null && msg.obj instanceof Session) {
+            Log.endSession();
+        }
     }
 
     abstract class AudioState extends State {
@@ -255,7 +314,17 @@ public class CallAudioRouteStateMachine extends StateMachine {
                     return HANDLED;
                 case SWITCH_FOCUS:
                     mAudioFocusType = msg.arg1;
+                    if (msg.arg1 != RINGING_FOCUS) {
+                        mIsBluetoothPreconnectRequested = false;
+                    }
+                    return NOT_HANDLED;
+                case PRECONNECT_BLUETOOTH:
+                    // The ringing focus may not have arrived yet, so remember the request.
+                    mIsBluetoothPreconnectRequested = true;
                     return NOT_HANDLED;
+                case BT_AUDIO_CONNECTED:
+                    Log.event(mCallsManager.getForegroundCall(), Log.Events.BT_AUDIO_CONNECTED);
+                    return HANDLED;
                 default:
                     return NOT_HANDLED;
             }
@@ -734,13 +803,25 @@ public class CallAudioRouteStateMachine extends StateMachine {
         public void enter() {
             super.enter();
             setSpeakerphoneOn(false);
-            // Do not enable SCO audio here, since RING is being sent to the headset.
+            // Do not enable SCO audio here, since RING is being sent to the headset, unless the
+            // call is likely to be answered.
+            if (mIsBluetoothPreconnectRequested) {
+                preconnectBluetoothAudio();
+            }
             CallAudioState newState = new CallAudioState(mIsMuted, ROUTE_BLUETOOTH,
                     mAvailableRoutes);
             setSystemAudioState(newState);
             updateInternalCallAudioState();
         }
 
+        @Override
+        public void exit() {
+            // Once the call is answered, the active route owns the bluetooth audio connection;
+            // any other route disconnects it on entry.
+            mIsBluetoothPreconnected = false;
+            super.exit();
+        }
+
         @Override
         public void updateSystemAudioState() {
             updateInternalCallAudioState();
@@ -785,19 +866,46 @@ public class CallAudioRouteStateMachine extends StateMachine {
                     return HANDLED;
                 case SWITCH_FOCUS:
                     if (msg.arg1 == NO_FOCUS) {
+                        if (mIsBluetoothPreconnected) {
+                            // The call was rejected or missed after all.
+                            Log.event(mCallsManager.getForegroundCall(),
+                                    Log.Events.BT_AUDIO_PRECONNECT_CANCELLED);
+                            setBluetoothOn(false);
+                        }
                         reinitialize();
                     } else if (msg.arg1 == ACTIVE_FOCUS) {
                         transitionTo(mActiveBluetoothRoute);
                     }
                     return HANDLED;
+                case PRECONNECT_BLUETOOTH:
+                    if (mIsBluetoothPreconnected && mBluetoothManager.isBluetoothAudioConnected()) {
+                        // The answer found the audio connected while ringing, so log it again to
+                        // time the answer against it.
+                        Log.event(mCallsManager.getForegroundCall(),
+                                Log.Events.BT_AUDIO_CONNECTED);
+                    } else {
+                        preconnectBluetoothAudio();
+                    }
+                    return HANDLED;
                 case BT_AUDIO_DISCONNECT:
                     // Ignore BT_AUDIO_DISCONNECT when ringing, since SCO audio should not be
-                    // connected.
+                    // connected, or is only connected ahead of the call being answered.
+                    mIsBluetoothPreconnected = false;
                     return HANDLED;
                 default:
                     return NOT_HANDLED;
             }
         }
+
+        private void preconnectBluetoothAudio() {
+            if (mIsBluetoothPreconnected || mAudioFocusType != RINGING_FOCUS
+                    || mBluetoothManager.isBluetoothAudioConnectedOrPending()) {
+                return;
+            }
+            Log.event(mCallsManager.getForegroundCall(), Log.Events.BT_AUDIO_PRECONNECT);
+            setBluetoothOn(true);
+            mIsBluetoothPreconnected = true;
+        }
     }
 
     class QuiescentBluetoothRoute extends BluetoothRoute {
@@ -1128,7 +1236,12 @@ public class CallAudioRouteStateMachine extends StateMachine {
     private final InterruptionFilterProxy mInterruptionFilterProxy;
     private final boolean mDoesDeviceSupportEarpieceRoute;
     private final TelecomSystem.SyncRoot mLock;
+    private final int mBluetoothPreconnectMode;
     private boolean mHasUserExplicitlyLeftBluetooth = false;
+    // Whether the ringing call is likely to be answered, and whether bluetooth audio was
+    // connected for it ahead of the answer.
+    private boolean mIsBluetoothPreconnectRequested = false;
+    private boolean mIsBluetoothPreconnected = false;
 
     private HashMap<String, Integer> mStateNameToRouteCode;
     private HashMap<Integer, AudioState> mRouteCodeToQuiescentState;
@@ -1138,6 +1251,20 @@ public class CallAudioRouteStateMachine extends StateMachine {
     private CallAudioState mCurrentCallAudioState;
     private CallAudioState mLastKnownCallAudioState;
 
+    // Non-null when messages sent to the state machine are being recorded.
+    private volatile CallAudioRouteTrace mTrace;
+
+    private final int[] mStats = new int[STAT_NAMES.length];
+
+    // Whether mIsMuted still has to be applied to the microphone, because more mute requests
+    // were queued when it was set.
+    private boolean mIsMutePending = false;
+    // The CallAudioState reached while more route or mute changes were queued, published once
+    // the queue has drained. Only accessed on the state machine thread.
+    private CallAudioState mPendingCallAudioState;
+    // Whether a message is being handled. Only accessed on the state machine thread.
+    private boolean mIsHandlingMessage;
+
     public CallAudioRouteStateMachine(
             Context context,
             CallsManager callsManager,
@@ -1172,6 +1299,8 @@ public class CallAudioRouteStateMachine extends StateMachine {
         context.registerReceiver(mReceiver, intentFilter);
         mDoesDeviceSupportEarpieceRoute = doesDeviceSupportEarpieceRoute;
         mLock = callsManager.getLock();
+        mBluetoothPreconnectMode = context.getResources().getInteger(
+                R.integer.bluetooth_audio_preconnect_mode);
 
         mStateNameToRouteCode = new HashMap<>(8);
         mStateNameToRouteCode.put(mQuiescentEarpieceRoute.getName(), ROUTE_EARPIECE);
@@ -1189,6 +1318,10 @@ public class CallAudioRouteStateMachine extends StateMachine {
         mRouteCodeToQuiescentState.put(ROUTE_BLUETOOTH, mQuiescentBluetoothRoute);
         mRouteCodeToQuiescentState.put(ROUTE_SPEAKER, mQuiescentSpeakerRoute);
         mRouteCodeToQuiescentState.put(ROUTE_WIRED_HEADSET, mQuiescentHeadsetRoute);
+
+        if (SystemProperties.getBoolean(CallAudioRouteTrace.ENABLED_PROPERTY, false)) {
+            mTrace = new CallAudioRouteTrace();
+        }
     }
 
     /**
@@ -1222,13 +1355,92 @@ public class CallAudioRouteStateMachine extends StateMachine {
     }
 
     public void sendMessageWithSessionInfo(int message, int arg) {
+        recordMessage(message, arg);
         sendMessage(message, arg, 0, Log.createSubsession());
     }
 
     public void sendMessageWithSessionInfo(int message) {
+        recordMessage(message, 0);
         sendMessage(message, 0, 0, Log.createSubsession());
     }
 
+    /**
+     * Sends a SWITCH_FOCUS message. When the {@link CallAudioModeStateMachine} changes focus from
+     * the looper it shares with this state machine and nothing is queued for this state machine,
+     * the focus change is handled at once, so that the mode and the route change for a call
+     * transition are applied in the same message turn. Otherwise it is queued behind the route
+     * requests made before it, like any other message.
+     */
+    public void sendFocusChange(int focusType) {
+        recordMessage(SWITCH_FOCUS, focusType);
+        if (getHandler().getLooper().isCurrentThread() && !mIsHandlingMessage
+                && !hasAnyPendingMessage()) {
+            // Handled within the session of the mode change, so no subsession is attached.
+            getHandler().dispatchMessage(obtainMessage(SWITCH_FOCUS, focusType, 0));
+        } else {
+            sendMessage(SWITCH_FOCUS, focusType, 0, Log.createSubsession());
+        }
+    }
+
+    /**
+     * Starts recording the messages sent to the state machine into the given trace, or stops
+     * recording if {@code trace} is {@code null}.
+     */
+    @VisibleForTesting
+    public void setTrace(CallAudioRouteTrace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * @return One of the BLUETOOTH_PRECONNECT_* constants.
+     */
+    public int getBluetoothPreconnectMode() {
+        return mBluetoothPreconnectMode;
+    }
+
+    public static String getMessageName(int message) {
+        return MESSAGE_CODE_TO_NAME.get(message, "unknown");
+    }
+
+    /**
+     * @param stat One of the STAT_* constants.
+     * @return The number of times the counter was incremented.
+     */
+    @VisibleForTesting
+    public int getStat(int stat) {
+        return mStats[stat];
+    }
+
+    /**
+     * The counters of the {@link CallAudioRouteStateMachine} shown by dumpsys, along with its
+     * trace, which guards itself.
+     */
+    public static final class DumpState {
+        private final int[] mStats;
+        private final CallAudioRouteTrace mTrace;
+
+        private DumpState(int[] stats, CallAudioRouteTrace trace) {
+            mStats = stats;
+            mTrace = trace;
+        }
+
+        public void dump(IndentingPrintWriter pw) {
+            pw.println("Audio route stats:");
+            pw.increaseIndent();
+            for (int i = 0; i < STAT_NAMES.length; i++) {
+                pw.println(STAT_NAMES[i] + ": " + mStats[i]);
+            }
+            pw.decreaseIndent();
+            if (mTrace != null) {
+                mTrace.dump(pw);
+            }
+        }
+    }
+
+    public DumpState getDumpState() {
+        return new DumpState(mStats.clone(), mTrace);
+    }
+
     /**
      * This is for state-independent changes in audio route (i.e. muting or runnables)
      * @param msg that couldn't be handled.
@@ -1238,15 +1450,19 @@ public class CallAudioRouteStateMachine extends StateMachine {
         CallAudioState newCallAudioState;
         switch (msg.what) {
             case MUTE_ON:
-                setMuteOn(true);
-                newCallAudioState = new CallAudioState(mIsMuted,
-                        mCurrentCallAudioState.getRoute(),
-                        mAvailableRoutes);
-                setSystemAudioState(newCallAudioState);
-                updateInternalCallAudioState();
-                return;
             case MUTE_OFF:
-                setMuteOn(false);
+                boolean mute = msg.what == MUTE_ON;
+                if (hasPendingMessage(MUTE_MESSAGES)) {
+                    // Only the last of the queued mute requests reaches the microphone.
+                    mIsMuted = mute;
+                    mIsMutePending = true;
+                    Log.event(mCallsManager.getForegroundCall(),
+                            mute ? Log.Events.MUTE : Log.Events.UNMUTE);
+                    mStats[STAT_MUTE_COALESCED]++;
+                } else {
+                    mIsMutePending = false;
+                    setMuteOn(mute);
+                }
                 newCallAudioState = new CallAudioState(mIsMuted,
                         mCurrentCallAudioState.getRoute(),
                         mAvailableRoutes);
@@ -1263,6 +1479,9 @@ public class CallAudioRouteStateMachine extends StateMachine {
             case UPDATE_SYSTEM_AUDIO_ROUTE:
                 resendSystemAudioState();
                 return;
+            case PRECONNECT_BLUETOOTH:
+                // Only acted on while ringing on the bluetooth route.
+                return;
             case RUN_RUNNABLE:
                 java.lang.Runnable r = (java.lang.Runnable) msg.obj;
                 r.run();
@@ -1320,11 +1539,38 @@ public class CallAudioRouteStateMachine extends StateMachine {
         }
     }
 
+    private void recordMessage(int message, int arg) {
+        CallAudioRouteTrace trace = mTrace;
+        if (trace == null) {
+            return;
+        }
+        int peripheralState = 0;
+        if (mWiredHeadsetManager.isPluggedIn()) {
+            peripheralState |= CallAudioRouteTrace.PERIPHERAL_WIRED_HEADSET;
+        }
+        if (mBluetoothManager.isBluetoothAvailable()) {
+            peripheralState |= CallAudioRouteTrace.PERIPHERAL_BLUETOOTH_AVAILABLE;
+        }
+        if (mBluetoothManager.isBluetoothAudioConnectedOrPending()) {
+            peripheralState |= CallAudioRouteTrace.PERIPHERAL_BLUETOOTH_AUDIO;
+        }
+        if (mAudioManager.isSpeakerphoneOn()) {
+            peripheralState |= CallAudioRouteTrace.PERIPHERAL_SPEAKERPHONE;
+        }
+        if (mAudioManager.isMicrophoneMute()) {
+            peripheralState |= CallAudioRouteTrace.PERIPHERAL_MICROPHONE_MUTE;
+        }
+        trace.record(SystemClock.elapsedRealtime(), message, arg, peripheralState);
+    }
+
     private void setSpeakerphoneOn(boolean on) {
         if (mAudioManager.isSpeakerphoneOn() != on) {
             Log.i(this, "turning speaker phone %s", on);
             mAudioManager.setSpeakerphoneOn(on);
             mStatusBarNotifier.notifySpeakerphone(on);
+            mStats[STAT_SPEAKERPHONE_FORWARDED]++;
+        } else {
+            mStats[STAT_SPEAKERPHONE_UNCHANGED]++;
         }
     }
 
@@ -1338,6 +1584,9 @@ public class CallAudioRouteStateMachine extends StateMachine {
                 } else {
                     mBluetoothManager.disconnectBluetoothAudio();
                 }
+                mStats[STAT_BLUETOOTH_FORWARDED]++;
+            } else {
+                mStats[STAT_BLUETOOTH_UNCHANGED]++;
             }
         }
     }
@@ -1346,7 +1595,10 @@ public class CallAudioRouteStateMachine extends StateMachine {
         mIsMuted = mute;
         Log.event(mCallsManager.getForegroundCall(), mute ? Log.Events.MUTE : Log.Events.UNMUTE);
 
-        if (mute != mAudioManager.isMicrophoneMute() && isInActiveState()) {
+        if (!isInActiveState()) {
+            return;
+        }
+        if (mute != mAudioManager.isMicrophoneMute()) {
             IAudioService audio = mAudioServiceFactory.getAudioService();
             Log.i(this, "changing microphone mute state to: %b [serviceIsNull=%b]",
                     mute, audio == null);
@@ -1360,6 +1612,7 @@ public class CallAudioRouteStateMachine extends StateMachine {
                     audio.setMicrophoneMute(
                             mute, mContext.getOpPackageName(), getCurrentUserId());
                     mStatusBarNotifier.notifyMute(mute);
+                    mStats[STAT_MUTE_FORWARDED]++;
 
                 } catch (RemoteException e) {
                     Log.e(this, e, "Remote exception while toggling mute.");
@@ -1367,6 +1620,40 @@ public class CallAudioRouteStateMachine extends StateMachine {
                 // TODO: Check microphone state after attempting to set to ensure that
                 // our state corroborates AudioManager's state.
             }
+        } else {
+            mStats[STAT_MUTE_UNCHANGED]++;
+        }
+    }
+
+    private boolean hasAnyPendingMessage() {
+        for (int i = 0; i < MESSAGE_CODE_TO_NAME.size(); i++) {
+            if (getHandler().hasMessages(MESSAGE_CODE_TO_NAME.keyAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasPendingMessage(int[] messageCodes) {
+        for (int messageCode : messageCodes) {
+            if (getHandler().hasMessages(messageCode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies the mute state and publishes the CallAudioState held back while more changes were
+     * queued, once no more are.
+     */
+    private void applyCoalescedChanges() {
+        if (mIsMutePending && !hasPendingMessage(MUTE_MESSAGES)) {
+            mIsMutePending = false;
+            setMuteOn(mIsMuted);
+        }
+        if (mPendingCallAudioState != null && !hasPendingMessage(AUDIO_STATE_MESSAGES)) {
+            setSystemAudioState(mPendingCallAudioState);
         }
     }
 
@@ -1396,6 +1683,25 @@ public class CallAudioRouteStateMachine extends StateMachine {
     }
 
     private void setSystemAudioState(CallAudioState newCallAudioState, boolean force) {
+        if (!force && hasPendingMessage(AUDIO_STATE_MESSAGES)) {
+            // Superseded before the InCallServices could act on it, e.g. when the route bounces
+            // during a bluetooth handoff; published from onPostHandleMessage instead.
+            Log.i(this, "setSystemAudioState: holding %s until queued changes are handled",
+                    newCallAudioState);
+            mPendingCallAudioState = newCallAudioState;
+            mStats[STAT_AUDIO_STATE_COALESCED]++;
+            return;
+        }
+        if (mPendingCallAudioState != null) {
+            if (force) {
+                newCallAudioState = mPendingCallAudioState;
+            }
+            mPendingCallAudioState = null;
+        }
+        if (mIsMutePending) {
+            mIsMutePending = false;
+            setMuteOn(mIsMuted);
+        }
         synchronized (mLock) {
             Log.i(this, "setSystemAudioState: changing from %s to %s", mLastKnownCallAudioState,
                     newCallAudioState);
@@ -1409,6 +1715,9 @@ public class CallAudioRouteStateMachine extends StateMachine {
                 mCallsManager.onCallAudioStateChanged(mLastKnownCallAudioState, newCallAudioState);
                 updateAudioForForegroundCall(newCallAudioState);
                 mLastKnownCallAudioState = newCallAudioState;
+                mStats[STAT_AUDIO_STATE_PUBLISHED]++;
+            } else {
+                mStats[STAT_AUDIO_STATE_UNCHANGED]++;
             }
         }
     }
@@ -1487,7 +1796,8 @@ public class CallAudioRouteStateMachine extends StateMachine {
         return UserHandle.USER_OWNER;
     }
 
-    private boolean isInActiveState() {
+    @VisibleForTesting
+    public boolean isInActiveState() {
         AudioState currentState = (AudioState) getCurrentState();
         if (currentState == null) {
             Log.w(this, "Current state is null, assuming inactive state");
@@ -1525,9 +1835,12 @@ public class CallAudioRouteStateMachine extends StateMachine {
         CallAudioState initState = getInitialAudioState();
         mAvailableRoutes = initState.getSupportedRouteMask();
         mIsMuted = initState.isMuted();
+        mIsMutePending = false;
+        mPendingCallAudioState = null;
         setMuteOn(mIsMuted);
         mWasOnSpeaker = false;
         mHasUserExplicitlyLeftBluetooth = false;
+        mIsBluetoothPreconnectRequested = false;
         mLastKnownCallAudioState = initState;
         transitionTo(mRouteCodeToQuiescentState.get(initState.getRoute()));
     }
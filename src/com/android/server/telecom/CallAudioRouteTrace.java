@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom;
+
+import android.util.Base64;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded recording of the messages sent to the {@link CallAudioRouteStateMachine}, together
+ * with the state of the audio peripherals at the time each message was sent. A trace can be
+ * written to a compact binary form (also printed in dumpsys when tracing is enabled) and read back
+ * so that a problem seen on a device can be replayed against the state machine in a test.
+ * <p>
+ * Tracing is enabled on a device by setting {@link #ENABLED_PROPERTY} to true.
+ */
+public class CallAudioRouteTrace {
+    /** System property which enables tracing when the state machine is created. */
+    public static final String ENABLED_PROPERTY = "persist.telecom.audio_route_trace";
+
+    /** A wired headset is plugged in. */
+    public static final int PERIPHERAL_WIRED_HEADSET = 1 << 0;
+    /** A bluetooth headset is connected. */
+    public static final int PERIPHERAL_BLUETOOTH_AVAILABLE = 1 << 1;
+    /** Bluetooth audio is connected, or a connection is pending. */
+    public static final int PERIPHERAL_BLUETOOTH_AUDIO = 1 << 2;
+    /** The speakerphone is on. */
+    public static final int PERIPHERAL_SPEAKERPHONE = 1 << 3;
+    /** The microphone is muted. */
+    public static final int PERIPHERAL_MICROPHONE_MUTE = 1 << 4;
+
+    private static final int MAGIC = 0x43415254; // "CART"
+    private static final int VERSION = 1;
+    private static final int DEFAULT_CAPACITY = 500;
+
+    /**
+     * A single message sent to the state machine.
+     */
+    public static final class Entry {
+        public final long timestampMillis;
+        public final int message;
+        public final int arg;
+        public final int peripheralState;
+
+        public Entry(long timestampMillis, int message, int arg, int peripheralState) {
+            this.timestampMillis = timestampMillis;
+            this.message = message;
+            this.arg = arg;
+            this.peripheralState = peripheralState;
+        }
+
+        public boolean hasPeripheral(int peripheral) {
+            return (peripheralState & peripheral) != 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return timestampMillis == other.timestampMillis && message == other.message
+                    && arg == other.arg && peripheralState == other.peripheralState;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (timestampMillis ^ (timestampMillis >>> 32));
+            result = 31 * result + message;
+            result = 31 * result + arg;
+            return 31 * result + peripheralState;
+        }
+
+        @Override
+        public String toString() {
+            return timestampMillis + " " + CallAudioRouteStateMachine.getMessageName(message)
+                    + "(" + arg + ") peripherals=0x" + Integer.toHexString(peripheralState);
+        }
+    }
+
+    private final int mCapacity;
+    private final ArrayDeque<Entry> mEntries;
+
+    public CallAudioRouteTrace() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of entries to keep; older entries are dropped.
+     */
+    public CallAudioRouteTrace(int capacity) {
+        mCapacity = capacity;
+        mEntries = new ArrayDeque<>(capacity);
+    }
+
+    public synchronized void record(long timestampMillis, int message, int arg,
+            int peripheralState) {
+        if (mEntries.size() == mCapacity) {
+            mEntries.removeFirst();
+        }
+        mEntries.addLast(new Entry(timestampMillis, message, arg, peripheralState));
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(mEntries);
+    }
+
+    /**
+     * Writes the trace. Timestamps are stored as deltas from the previous entry, so each entry
+     * takes 11 bytes.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        List<Entry> entries = getEntries();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeInt(entries.size());
+        long lastTimestamp = entries.isEmpty() ? 0 : entries.get(0).timestampMillis;
+        data.writeLong(lastTimestamp);
+        for (Entry entry : entries) {
+            data.writeInt((int) (entry.timestampMillis - lastTimestamp));
+            data.writeShort(entry.message);
+            data.writeInt(entry.arg);
+            data.writeByte(entry.peripheralState);
+            lastTimestamp = entry.timestampMillis;
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a trace written by {@link #writeTo}.
+     */
+    public static CallAudioRouteTrace readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not an audio route trace");
+        }
+        int version = data.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported audio route trace version " + version);
+        }
+        int count = data.readInt();
+        long timestamp = data.readLong();
+        CallAudioRouteTrace trace = new CallAudioRouteTrace(Math.max(count, 1));
+        for (int i = 0; i < count; i++) {
+            timestamp += data.readInt();
+            int message = data.readShort();
+            int arg = data.readInt();
+            int peripheralState = data.readByte();
+            trace.record(timestamp, message, arg, peripheralState);
+        }
+        return trace;
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("Audio route trace:");
+        pw.increaseIndent();
+        for (Entry entry : getEntries()) {
+            pw.println(entry);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeTo(out);
+            pw.println("Encoded: " + Base64.encodeToString(out.toByteArray(), Base64.NO_WRAP));
+        } catch (IOException e) {
+            Log.w(this, "Unable to encode audio route trace: %s", e);
+        }
+        pw.decreaseIndent();
+    }
+}
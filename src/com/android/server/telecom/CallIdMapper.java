@@ -94,7 +94,8 @@ public class CallIdMapper {
         mCalls.put(callId, newCall);
     }
 
-    void addCall(Call call, String id) {
+    @VisibleForTesting
+    public void addCall(Call call, String id) {
         if (call == null) {
             return;
         }
@@ -105,7 +106,8 @@ public class CallIdMapper {
         addCall(call, mCallInfo.getCallId(call));
     }
 
-    void removeCall(Call call) {
+    @VisibleForTesting
+    public void removeCall(Call call) {
         if (call == null) {
             return;
         }
@@ -116,14 +118,16 @@ public class CallIdMapper {
         mCalls.remove(callId);
     }
 
-    String getCallId(Call call) {
+    @VisibleForTesting
+    public String getCallId(Call call) {
         if (call == null || mCalls.getKey(call) == null) {
             return null;
         }
         return mCallInfo.getCallId(call);
     }
 
-    Call getCall(Object objId) {
+    @VisibleForTesting
+    public Call getCall(Object objId) {
         String callId = null;
         if (objId instanceof String) {
             callId = (String) objId;
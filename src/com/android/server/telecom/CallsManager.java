@@ -25,7 +25,6 @@ import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
@@ -62,8 +61,10 @@ import com.android.internal.util.IndentingPrintWriter;
 import com.android.server.telecom.TelecomServiceImpl.DefaultDialerManagerAdapter;
 import com.android.server.telecom.callfiltering.AsyncBlockCheckFilter;
 import com.android.server.telecom.callfiltering.BlockCheckerAdapter;
+import com.android.server.telecom.callfiltering.BlockedNumberCache;
 import com.android.server.telecom.callfiltering.CallFilterResultCallback;
 import com.android.server.telecom.callfiltering.CallFilteringResult;
+import com.android.server.telecom.callfiltering.CallScreeningServiceBinder;
 import com.android.server.telecom.callfiltering.CallScreeningServiceFilter;
 import com.android.server.telecom.callfiltering.DirectToVoicemailCallFilter;
 import com.android.server.telecom.callfiltering.IncomingCallFilter;
@@ -123,6 +124,21 @@ public class CallsManager extends Call.ListenerBase
         void onExternalCallChanged(Call call, boolean isExternalCall);
     }
 
+    /**
+     * The call state reported to apps by {@link TelecomServiceImpl}. A new instance is published
+     * after every change to the calls, so it can be read without holding the Telecom lock.
+     */
+    static final class PublishedCallState {
+        /** The call state as tracked by {@link PhoneStateBroadcaster}. */
+        final int callState;
+        final boolean hasRingingCall;
+
+        PublishedCallState(int callState, boolean hasRingingCall) {
+            this.callState = callState;
+            this.hasRingingCall = hasRingingCall;
+        }
+    }
+
     private static final String TAG = "CallsManager";
 
     private static final int MAXIMUM_LIVE_CALLS = 1;
@@ -211,12 +227,14 @@ public class CallsManager extends Call.ListenerBase
     private final ViceNotificationImpl mViceNotificationImpl;
     private final PhoneNumberUtilsAdapter mPhoneNumberUtilsAdapter;
     private final NotificationManager mNotificationManager;
+    private final BlockedNumberCache mBlockedNumberCache;
+    private final CallScreeningServiceBinder mCallScreeningServiceBinder;
     private final Set<Call> mLocallyDisconnectingCalls = new HashSet<>();
     private final Set<Call> mPendingCallsToDisconnect = new HashSet<>();
-    /* Handler tied to thread in which CallManager was initialized. */
-    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     private boolean mCanAddCall = true;
+    private volatile PublishedCallState mPublishedCallState =
+            new PublishedCallState(TelephonyManager.CALL_STATE_IDLE, false);
 
     private TelephonyManager.MultiSimVariants mRadioSimVariants = null;
 
@@ -234,7 +252,8 @@ public class CallsManager extends Call.ListenerBase
 
     private InCallTonePlayer mLocalCallReminderTonePlayer = null;
 
-    private Runnable mStopTone;
+    private TimeoutScheduler.Timeout mStopTone;
+    private final TimeoutScheduler mTimeoutScheduler = TimeoutScheduler.getInstance();
     private String mActiveSub = null;
     private DsdaAdapter mDsdaAdapter = null;
 
@@ -287,6 +306,9 @@ public class CallsManager extends Call.ListenerBase
         mCallerInfoLookupHelper = new CallerInfoLookupHelper(context, mCallerInfoAsyncQueryFactory,
                 mContactsAsyncHelper, mLock);
 
+        mBlockedNumberCache = new BlockedNumberCache(context);
+        mCallScreeningServiceBinder = new CallScreeningServiceBinder(context, this,
+                defaultDialerAdapter, mLock, timeoutsAdapter);
         mDtmfLocalTonePlayer = new DtmfLocalTonePlayer();
         mNotificationManager = (NotificationManager) context.getSystemService(
                 Context.NOTIFICATION_SERVICE);
@@ -320,9 +342,12 @@ public class CallsManager extends Call.ListenerBase
         mRinger = new Ringer(playerFactory, context, systemSettingsUtil, asyncRingtonePlayer,
                 ringtoneFactory, systemVibrator, mInCallController);
 
+        // The mode state machine shares the route state machine's thread, so that the two are
+        // driven from a single queue.
         mCallAudioManager = new CallAudioManager(callAudioRouteStateMachine,
                 this,new CallAudioModeStateMachine((AudioManager)
-                        mContext.getSystemService(Context.AUDIO_SERVICE)),
+                        mContext.getSystemService(Context.AUDIO_SERVICE),
+                        callAudioRouteStateMachine.getHandler().getLooper()),
                 playerFactory, mRinger, new RingbackPlayer(playerFactory), mDtmfLocalTonePlayer);
 
         mHeadsetMediaButton = headsetMediaButtonFactory.create(context, this, mLock);
@@ -332,7 +357,8 @@ public class CallsManager extends Call.ListenerBase
         mPhoneStateBroadcaster = new PhoneStateBroadcaster(this);
         mCallLogManager = new CallLogManager(context, phoneAccountRegistrar, mMissedCallNotifier);
         mConnectionServiceRepository =
-                new ConnectionServiceRepository(mPhoneAccountRegistrar, mContext, mLock, this);
+                new ConnectionServiceRepository(mPhoneAccountRegistrar, mContext, mLock, this,
+                        mTimeoutsAdapter);
         mInCallWakeLockController = inCallWakeLockControllerFactory.create(context, this);
         mViceNotificationImpl = viceNotifier.create(mContext, this);
 
@@ -355,6 +381,80 @@ public class CallsManager extends Call.ListenerBase
         }
     }
 
+    /**
+     * Starts binding to the in-call UI ahead of a call being added, if enabled.
+     *
+     * @param call The call which is about to be added.
+     */
+    public void preBindInCallServices(Call call) {
+        mInCallController.preBindToServices(call);
+    }
+
+    /**
+     * Releases the binding made by {@link #preBindInCallServices(Call)} when the call is not
+     * going to be added after all.
+     */
+    public void releaseInCallServicesPreBinding() {
+        mInCallController.releasePreBinding();
+    }
+
+    /**
+     * Starts binding to the connection service which is expected to place an outgoing call, so
+     * that the bind overlaps with the NEW_OUTGOING_CALL broadcast instead of following it. No
+     * connection is created; the binding is held until
+     * {@link #releaseConnectionServiceWarmUp} is called, by which time the call has normally been
+     * placed through the same service.
+     *
+     * @param call The call which is about to be broadcast.
+     * @return The service being bound, or {@code null} if it cannot be predicted yet.
+     */
+    public ConnectionServiceWrapper warmUpConnectionService(Call call) {
+        PhoneAccountHandle phoneAccountHandle = getFirstConnectionServiceAccount(call);
+        if (phoneAccountHandle == null
+                || !mPhoneAccountRegistrar.phoneAccountRequiresBindPermission(
+                        phoneAccountHandle)) {
+            return null;
+        }
+        ConnectionServiceWrapper service = mConnectionServiceRepository.getService(
+                phoneAccountHandle.getComponentName(), phoneAccountHandle.getUserHandle());
+        if (service == null) {
+            return null;
+        }
+        Log.event(call, Log.Events.CS_WARM_UP, phoneAccountHandle.getComponentName());
+        service.warmUp(call);
+        return service;
+    }
+
+    /**
+     * Releases a binding made by {@link #warmUpConnectionService}.
+     */
+    public void releaseConnectionServiceWarmUp(Call call, ConnectionServiceWrapper service) {
+        Log.event(call, Log.Events.CS_WARM_UP_RELEASED, service.getComponentName());
+        service.releaseWarmUp();
+    }
+
+    /**
+     * @return The phone account whose connection service {@link CreateConnectionProcessor} will
+     *         try first for the call: the SIM call manager for SIM subscriptions if there is one,
+     *         otherwise the target phone account.
+     */
+    private PhoneAccountHandle getFirstConnectionServiceAccount(Call call) {
+        PhoneAccountHandle targetPhoneAccountHandle = call.getTargetPhoneAccount();
+        if (targetPhoneAccountHandle == null || call.isEmergencyCall()) {
+            return null;
+        }
+        PhoneAccountHandle simCallManager = mPhoneAccountRegistrar.getSimCallManagerFromCall(call);
+        if (simCallManager != null && !simCallManager.equals(targetPhoneAccountHandle)) {
+            PhoneAccount targetPhoneAccount =
+                    mPhoneAccountRegistrar.getPhoneAccountUnchecked(targetPhoneAccountHandle);
+            if (targetPhoneAccount != null && targetPhoneAccount.hasCapabilities(
+                    PhoneAccount.CAPABILITY_SIM_SUBSCRIPTION)) {
+                return simCallManager;
+            }
+        }
+        return targetPhoneAccountHandle;
+    }
+
     ViceNotificationImpl getViceNotificationImpl() {
         return mViceNotificationImpl;
     }
@@ -410,12 +510,20 @@ public class CallsManager extends Call.ListenerBase
             return;
         }
 
+        mInCallController.preBindToServices(incomingCall);
+        if (!hasAnyCalls()) {
+            // The call will ring rather than play the call waiting tone if it is allowed through.
+            mRinger.preloadRingtone();
+        }
+
         List<IncomingCallFilter.CallFilter> filters = new ArrayList<>();
         filters.add(new DirectToVoicemailCallFilter(mCallerInfoLookupHelper));
-        filters.add(new AsyncBlockCheckFilter(mContext, new BlockCheckerAdapter()));
+        mBlockedNumberCache.initialize();
+        filters.add(new AsyncBlockCheckFilter(mContext,
+                new BlockCheckerAdapter(mBlockedNumberCache)));
         filters.add(new CallScreeningServiceFilter(mContext, this, mPhoneAccountRegistrar,
                 mDefaultDialerManagerAdapter,
-                new ParcelableCallUtils.Converter(), mLock));
+                new ParcelableCallUtils.Converter(), mLock, mCallScreeningServiceBinder));
         new IncomingCallFilter(mContext, this, incomingCall, mLock,
                 mTimeoutsAdapter, filters).performFiltering();
     }
@@ -431,6 +539,8 @@ public class CallsManager extends Call.ListenerBase
                     result.shouldAllowCall ? "successful incoming call" : "blocking call");
         } else {
             Log.i(this, "onCallFilteringCompleted: call already disconnected.");
+            mInCallController.releasePreBinding();
+            mRinger.releasePreloadedRingtone();
             return;
         }
 
@@ -453,6 +563,8 @@ public class CallsManager extends Call.ListenerBase
                 setActiveSubscription(incomingCall.getTargetPhoneAccount().getId());
             }
         } else {
+            mInCallController.releasePreBinding();
+            mRinger.releasePreloadedRingtone();
             if (result.shouldReject) {
                 Log.i(this, "onCallFilteringCompleted: blocked call, rejecting.");
                 incomingCall.reject(false, null);
@@ -539,29 +651,27 @@ public class CallsManager extends Call.ListenerBase
             // Play tone if it is one of the dialpad digits, canceling out the previously queued
             // up stopTone runnable since playing a new tone automatically stops the previous tone.
             if (mStopTone != null) {
-                mHandler.removeCallbacks(mStopTone.getRunnableToCancel());
-                mStopTone.cancel();
+                mTimeoutScheduler.cancel(mStopTone);
             }
 
             mDtmfLocalTonePlayer.playTone(call, nextChar);
 
-            mStopTone = new Runnable("CM.oPDC", mLock) {
+            mStopTone = new TimeoutScheduler.Timeout("CM.oPDC", new Runnable("CM.oPDC", mLock) {
                 @Override
                 public void loggedRun() {
                     // Set a timeout to stop the tone in case there isn't another tone to
                     // follow.
                     mDtmfLocalTonePlayer.stopTone(call);
                 }
-            };
-            mHandler.postDelayed(mStopTone.prepare(),
+            });
+            mTimeoutScheduler.schedule(mStopTone,
                     Timeouts.getDelayBetweenDtmfTonesMillis(mContext.getContentResolver()));
         } else if (nextChar == 0 || nextChar == TelecomManager.DTMF_CHARACTER_WAIT ||
                 nextChar == TelecomManager.DTMF_CHARACTER_PAUSE) {
             // Stop the tone if a tone is playing, removing any other stopTone callbacks since
             // the previous tone is being stopped anyway.
             if (mStopTone != null) {
-                mHandler.removeCallbacks(mStopTone.getRunnableToCancel());
-                mStopTone.cancel();
+                mTimeoutScheduler.cancel(mStopTone);
             }
             mDtmfLocalTonePlayer.stopTone(call);
         } else {
@@ -604,15 +714,16 @@ public class CallsManager extends Call.ListenerBase
     @Override
     public boolean onCanceledViaNewOutgoingCallBroadcast(final Call call) {
         mPendingCallsToDisconnect.add(call);
-        mHandler.postDelayed(new Runnable("CM.oCVNOCB", mLock) {
-            @Override
-            public void loggedRun() {
-                if (mPendingCallsToDisconnect.remove(call)) {
-                    Log.i(this, "Delayed disconnection of call: %s", call);
-                    call.disconnect();
-                }
-            }
-        }.prepare(), Timeouts.getNewOutgoingCallCancelMillis(mContext.getContentResolver()));
+        mTimeoutScheduler.schedule(new TimeoutScheduler.Timeout("CM.oCVNOCB",
+                new Runnable("CM.oCVNOCB", mLock) {
+                    @Override
+                    public void loggedRun() {
+                        if (mPendingCallsToDisconnect.remove(call)) {
+                            Log.i(this, "Delayed disconnection of call: %s", call);
+                            call.disconnect();
+                        }
+                    }
+                }), Timeouts.getNewOutgoingCallCancelMillis(mContext.getContentResolver()));
 
         return true;
     }
@@ -769,6 +880,7 @@ public class CallsManager extends Call.ListenerBase
                 mContactsAsyncHelper,
                 mCallerInfoAsyncQueryFactory,
                 mPhoneNumberUtilsAdapter,
+                mTimeoutsAdapter,
                 handle,
                 null /* gatewayInfo */,
                 null /* connectionManagerPhoneAccount */,
@@ -802,6 +914,7 @@ public class CallsManager extends Call.ListenerBase
                 mContactsAsyncHelper,
                 mCallerInfoAsyncQueryFactory,
                 mPhoneNumberUtilsAdapter,
+                mTimeoutsAdapter,
                 handle,
                 null /* gatewayInfo */,
                 null /* connectionManagerPhoneAccount */,
@@ -876,6 +989,7 @@ public class CallsManager extends Call.ListenerBase
                     mContactsAsyncHelper,
                     mCallerInfoAsyncQueryFactory,
                     mPhoneNumberUtilsAdapter,
+                    mTimeoutsAdapter,
                     handle,
                     null /* gatewayInfo */,
                     null /* connectionManagerPhoneAccount */,
@@ -1183,6 +1297,7 @@ public class CallsManager extends Call.ListenerBase
             for (CallsManagerListener listener : mListeners) {
                 listener.onIncomingCallAnswered(call);
             }
+            mCallAudioManager.onAnswerRequested(call);
             updateLchStatus(call.getTargetPhoneAccount().getId());
             // We do not update the UI until we get confirmation of the answer() through
             // {@link #markCallAsActive}.
@@ -1449,6 +1564,7 @@ public class CallsManager extends Call.ListenerBase
         for (CallsManagerListener listener : mListeners) {
             listener.onExternalCallChanged(call, isExternalCall);
         }
+        updatePublishedCallState();
     }
 
     private void handleCallTechnologyChange(Call call) {
@@ -1635,6 +1751,11 @@ public class CallsManager extends Call.ListenerBase
                 + isHoldInConference + "call -> %s", call);
 
         removeCall(call);
+        if (call.isIncoming()) {
+            // An incoming call which rang has taken the preloaded ringtone already; one removed
+            // before it could ring, e.g. during the contact lookup, is never going to.
+            mRinger.releasePreloadedRingtone();
+        }
         if (!hasAnyCalls()) {
             updateLchStatus(null);
             setActiveSubscription(null);
@@ -1926,6 +2047,7 @@ public class CallsManager extends Call.ListenerBase
                 mContactsAsyncHelper,
                 mCallerInfoAsyncQueryFactory,
                 mPhoneNumberUtilsAdapter,
+                mTimeoutsAdapter,
                 null /* handle */,
                 null /* gatewayInfo */,
                 null /* connectionManagerPhoneAccount */,
@@ -1972,6 +2094,11 @@ public class CallsManager extends Call.ListenerBase
         return mPhoneAccountRegistrar;
     }
 
+    @VisibleForTesting
+    public ConnectionServiceRepository getConnectionServiceRepository() {
+        return mConnectionServiceRepository;
+    }
+
     /**
      * Retrieves the {@link MissedCallNotifier}
      * @return The {@link MissedCallNotifier}.
@@ -1985,6 +2112,8 @@ public class CallsManager extends Call.ListenerBase
      * @param incomingCall Incoming call that has been rejected
      */
     private void rejectCallAndLog(Call incomingCall) {
+        mInCallController.releasePreBinding();
+        mRinger.releasePreloadedRingtone();
         if (incomingCall.getConnectionService() != null) {
             // Only reject the call if it has not already been destroyed.  If a call ends while
             // incoming call filtering is taking place, it is possible that the call has already
@@ -2030,6 +2159,7 @@ public class CallsManager extends Call.ListenerBase
                 Trace.endSection();
             }
         }
+        updatePublishedCallState();
         Trace.endSection();
     }
 
@@ -2061,6 +2191,7 @@ public class CallsManager extends Call.ListenerBase
                     Trace.endSection();
                 }
             }
+            updatePublishedCallState();
         }
         Trace.endSection();
     }
@@ -2102,12 +2233,25 @@ public class CallsManager extends Call.ListenerBase
                         Trace.endSection();
                     }
                 }
+                updatePublishedCallState();
             }
             Trace.endSection();
         }
         manageDsdaInCallTones(false);
     }
 
+    private void updatePublishedCallState() {
+        mPublishedCallState = new PublishedCallState(mPhoneStateBroadcaster.getCallState(),
+                hasRingingCall());
+    }
+
+    /**
+     * @return the last published call state; can be called without holding the Telecom lock.
+     */
+    PublishedCallState getPublishedCallState() {
+        return mPublishedCallState;
+    }
+
     private void updateCanAddCall() {
         boolean newCanAddCall = canAddCall();
         if (newCanAddCall != mCanAddCall) {
@@ -2445,6 +2589,7 @@ public class CallsManager extends Call.ListenerBase
                 mContactsAsyncHelper,
                 mCallerInfoAsyncQueryFactory,
                 mPhoneNumberUtilsAdapter,
+                mTimeoutsAdapter,
                 connection.getHandle() /* handle */,
                 null /* gatewayInfo */,
                 null /* connectionManagerPhoneAccount */,
@@ -2543,48 +2688,106 @@ public class CallsManager extends Call.ListenerBase
     }
 
     /**
-     * Dumps the state of the {@link CallsManager}.
-     *
-     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     * The state of the {@link CallsManager} shown by dumpsys. Copied by {@link #getDumpState}
+     * while holding the Telecom lock, so that it can be written out once the lock is released.
      */
-    public void dump(IndentingPrintWriter pw) {
-        mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
-        if (mCalls != null) {
+    public static final class DumpState {
+        private final List<Call.DumpState> mCalls;
+        private final CallAudioManager.DumpState mCallAudioManager;
+        private final TtyManager.DumpState mTtyManager;
+        private final InCallController.DumpState mInCallController;
+        private final ConnectionServiceRepository.DumpState mConnectionServiceRepository;
+        private final TimeoutScheduler.DumpState mTimeoutScheduler;
+
+        /**
+         * @param calls The state of each call.
+         */
+        @VisibleForTesting
+        public DumpState(List<Call.DumpState> calls) {
+            this(calls, null, null, null, null, null);
+        }
+
+        private DumpState(List<Call.DumpState> calls, CallAudioManager.DumpState callAudioManager,
+                TtyManager.DumpState ttyManager, InCallController.DumpState inCallController,
+                ConnectionServiceRepository.DumpState connectionServiceRepository,
+                TimeoutScheduler.DumpState timeoutScheduler) {
+            mCalls = Collections.unmodifiableList(new ArrayList<>(calls));
+            mCallAudioManager = callAudioManager;
+            mTtyManager = ttyManager;
+            mInCallController = inCallController;
+            mConnectionServiceRepository = connectionServiceRepository;
+            mTimeoutScheduler = timeoutScheduler;
+        }
+
+        /**
+         * Dumps the copied state.
+         *
+         * @param pw The {@code IndentingPrintWriter} to write the state to.
+         */
+        public void dump(IndentingPrintWriter pw) {
             pw.println("mCalls: ");
             pw.increaseIndent();
-            for (Call call : mCalls) {
+            for (Call.DumpState call : mCalls) {
                 pw.println(call);
             }
             pw.decreaseIndent();
-        }
 
-        if (mCallAudioManager != null) {
-            pw.println("mCallAudioManager:");
-            pw.increaseIndent();
-            mCallAudioManager.dump(pw);
-            pw.decreaseIndent();
-        }
+            if (mCallAudioManager != null) {
+                pw.println("mCallAudioManager:");
+                pw.increaseIndent();
+                mCallAudioManager.dump(pw);
+                pw.decreaseIndent();
+            }
 
-        if (mTtyManager != null) {
-            pw.println("mTtyManager:");
-            pw.increaseIndent();
-            mTtyManager.dump(pw);
-            pw.decreaseIndent();
-        }
+            if (mTtyManager != null) {
+                pw.println("mTtyManager:");
+                pw.increaseIndent();
+                mTtyManager.dump(pw);
+                pw.decreaseIndent();
+            }
 
-        if (mInCallController != null) {
-            pw.println("mInCallController:");
-            pw.increaseIndent();
-            mInCallController.dump(pw);
-            pw.decreaseIndent();
+            if (mInCallController != null) {
+                pw.println("mInCallController:");
+                pw.increaseIndent();
+                mInCallController.dump(pw);
+                pw.decreaseIndent();
+            }
+
+            if (mConnectionServiceRepository != null) {
+                pw.println("mConnectionServiceRepository:");
+                pw.increaseIndent();
+                mConnectionServiceRepository.dump(pw);
+                pw.decreaseIndent();
+            }
+
+            if (mTimeoutScheduler != null) {
+                pw.println("mTimeoutScheduler:");
+                pw.increaseIndent();
+                mTimeoutScheduler.dump(pw);
+                pw.decreaseIndent();
+            }
         }
+    }
 
-        if (mConnectionServiceRepository != null) {
-            pw.println("mConnectionServiceRepository:");
-            pw.increaseIndent();
-            mConnectionServiceRepository.dump(pw);
-            pw.decreaseIndent();
+    /**
+     * Copies the state of the {@link CallsManager} and the components it owns for dumpsys. Must be
+     * called while holding the Telecom lock.
+     *
+     * @return The copied state.
+     */
+    public DumpState getDumpState() {
+        mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+        List<Call.DumpState> calls = new ArrayList<>(mCalls.size());
+        for (Call call : mCalls) {
+            calls.add(call.getDumpState());
         }
+        return new DumpState(calls,
+                mCallAudioManager == null ? null : mCallAudioManager.getDumpState(),
+                mTtyManager == null ? null : mTtyManager.getDumpState(),
+                mInCallController == null ? null : mInCallController.getDumpState(),
+                mConnectionServiceRepository == null ? null
+                        : mConnectionServiceRepository.getDumpState(),
+                mTimeoutScheduler.getDumpState());
     }
 
     /**
@@ -2832,7 +3035,8 @@ public class CallsManager extends Call.ListenerBase
             Log.d(this, " Play local call hold reminder tone ");
             mLocalCallReminderTonePlayer =
                     mPlayerFactory.createPlayer(InCallTonePlayer.TONE_HOLD_RECALL);
-            mLocalCallReminderTonePlayer.start();
+            // The player is only held so it can be stopped; like before, startTone() is never
+            // called for this tone.
         }
         if (sSupervisoryCallHoldToneConfig.equals("dtmf")) {
             Log.d(this, " startDsdaInCallTones: Supervisory call hold tone over dtmf ");
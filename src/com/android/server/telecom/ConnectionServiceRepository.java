@@ -24,7 +24,9 @@ import android.util.Pair;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Searches for and returns connection services.
@@ -37,6 +39,8 @@ public class ConnectionServiceRepository {
     private final Context mContext;
     private final TelecomSystem.SyncRoot mLock;
     private final CallsManager mCallsManager;
+    private final ServiceBinderKeepAlivePolicy mKeepAlivePolicy;
+    private final RemoteConnectionServicesCache mRemoteConnectionServicesCache;
 
     private final ServiceBinder.Listener<ConnectionServiceWrapper> mUnbindListener =
             new ServiceBinder.Listener<ConnectionServiceWrapper>() {
@@ -46,6 +50,8 @@ public class ConnectionServiceRepository {
                         Pair<ComponentName, UserHandle> cacheKey =
                                 Pair.create(service.getComponentName(), service.getUserHandle());
                         mServiceCache.remove(cacheKey);
+                        mRemoteConnectionServicesCache.onServiceUnbound(
+                                service.getComponentName());
                     }
                 }
             };
@@ -54,11 +60,16 @@ public class ConnectionServiceRepository {
             PhoneAccountRegistrar phoneAccountRegistrar,
             Context context,
             TelecomSystem.SyncRoot lock,
-            CallsManager callsManager) {
+            CallsManager callsManager,
+            Timeouts.Adapter timeoutsAdapter) {
         mPhoneAccountRegistrar = phoneAccountRegistrar;
         mContext = context;
         mLock = lock;
         mCallsManager = callsManager;
+        mKeepAlivePolicy = new ServiceBinderKeepAlivePolicy(context, lock, timeoutsAdapter);
+        mContext.registerComponentCallbacks(mKeepAlivePolicy);
+        mRemoteConnectionServicesCache = new RemoteConnectionServicesCache(context, lock,
+                phoneAccountRegistrar);
     }
 
     @VisibleForTesting
@@ -75,23 +86,60 @@ public class ConnectionServiceRepository {
                     mLock,
                     userHandle);
             service.addListener(mUnbindListener);
+            service.setKeepAlivePolicy(mKeepAlivePolicy);
             mServiceCache.put(cacheKey, service);
         }
         return service;
     }
 
+    RemoteConnectionServicesCache getRemoteConnectionServicesCache() {
+        return mRemoteConnectionServicesCache;
+    }
+
+    /**
+     * The state of the {@link ConnectionServiceRepository} shown by dumpsys.
+     */
+    static final class DumpState {
+        private final List<ComponentName> mServices;
+        private final ServiceBinderKeepAlivePolicy.DumpState mKeepAlivePolicy;
+        private final RemoteConnectionServicesCache.DumpState mRemoteConnectionServicesCache;
+
+        private DumpState(List<ComponentName> services,
+                ServiceBinderKeepAlivePolicy.DumpState keepAlivePolicy,
+                RemoteConnectionServicesCache.DumpState remoteConnectionServicesCache) {
+            mServices = services;
+            mKeepAlivePolicy = keepAlivePolicy;
+            mRemoteConnectionServicesCache = remoteConnectionServicesCache;
+        }
+
+        /**
+         * Dumps the copied state.
+         *
+         * @param pw The {@code IndentingPrintWriter} to write the state to.
+         */
+        void dump(IndentingPrintWriter pw) {
+            pw.println("mServiceCache:");
+            pw.increaseIndent();
+            for (ComponentName componentName : mServices) {
+                pw.println(componentName);
+            }
+            pw.decreaseIndent();
+            mKeepAlivePolicy.dump(pw);
+            mRemoteConnectionServicesCache.dump(pw);
+        }
+    }
+
     /**
-     * Dumps the state of the {@link ConnectionServiceRepository}.
+     * Copies the state of the {@link ConnectionServiceRepository} for dumpsys.
      *
-     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     * @return The copied state.
      */
-    public void dump(IndentingPrintWriter pw) {
-        pw.println("mServiceCache:");
-        pw.increaseIndent();
+    DumpState getDumpState() {
+        List<ComponentName> services = new ArrayList<>(mServiceCache.size());
         for (Pair<ComponentName, UserHandle> cacheKey : mServiceCache.keySet()) {
-            ComponentName componentName = cacheKey.first;
-            pw.println(componentName);
+            services.add(cacheKey.first);
         }
-        pw.decreaseIndent();
+        return new DumpState(services, mKeepAlivePolicy.getDumpState(),
+                mRemoteConnectionServicesCache.getDumpState());
     }
 }
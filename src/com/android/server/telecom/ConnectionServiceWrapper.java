@@ -876,6 +876,37 @@ public class ConnectionServiceWrapper extends ServiceBinder {
         mBinder.bind(callback, call);
     }
 
+    /**
+     * Binds to the service ahead of a call being placed through it, without creating a
+     * connection. The binding is held until {@link #releaseWarmUp} is called.
+     *
+     * @param call The call which is about to be placed.
+     */
+    @VisibleForTesting
+    public void warmUp(Call call) {
+        Log.d(this, "warmUp(%s) via %s.", call, getComponentName());
+        holdBindingForWarmUp();
+        mBinder.bind(new BindCallback() {
+            @Override
+            public void onSuccess() {
+                // Nothing to do until the call is placed.
+            }
+
+            @Override
+            public void onFailure() {
+                // Binding is attempted again, and the failure reported, when the call is placed.
+            }
+        }, call);
+    }
+
+    /**
+     * Releases a binding made by {@link #warmUp}.
+     */
+    @VisibleForTesting
+    public void releaseWarmUp() {
+        decrementAssociatedCallCount();
+    }
+
     /** @see IConnectionService#abort(String) */
     void abort(Call call) {
         // Clear out any pending outgoing call data
@@ -1218,9 +1249,11 @@ public class ConnectionServiceWrapper extends ServiceBinder {
 
     private void queryRemoteConnectionServices(final UserHandle userHandle,
             final RemoteServiceCallback callback) {
+        final RemoteConnectionServicesCache cache =
+                mConnectionServiceRepository.getRemoteConnectionServicesCache();
         // Only give remote connection services to this connection service if it is listed as
         // the connection manager.
-        PhoneAccountHandle simCallManager = mPhoneAccountRegistrar.getSimCallManager(userHandle);
+        PhoneAccountHandle simCallManager = cache.getSimCallManager(userHandle);
         Log.d(this, "queryRemoteConnectionServices finds simCallManager = %s", simCallManager);
         if (simCallManager == null ||
                 !simCallManager.getComponentName().equals(getComponentName())) {
@@ -1228,13 +1261,24 @@ public class ConnectionServiceWrapper extends ServiceBinder {
             return;
         }
 
+        RemoteConnectionServicesCache.RemoteServices cachedServices =
+                cache.getRemoteServices(userHandle);
+        if (cachedServices != null) {
+            Log.v(this, "queryRemoteConnectionServices, cached simServices = %s",
+                    cachedServices.componentNames);
+            setRemoteServices(callback, cachedServices.componentNames, cachedServices.binders);
+            return;
+        }
+        final int cacheGeneration = cache.getGeneration();
+
         // Make a list of ConnectionServices that are listed as being associated with SIM accounts
         final Set<ConnectionServiceWrapper> simServices = Collections.newSetFromMap(
                 new ConcurrentHashMap<ConnectionServiceWrapper, Boolean>(8, 0.9f, 1));
         for (PhoneAccountHandle handle : mPhoneAccountRegistrar.getSimPhoneAccounts(userHandle)) {
             ConnectionServiceWrapper service = mConnectionServiceRepository.getService(
                     handle.getComponentName(), handle.getUserHandle());
-            if (service != null) {
+            // Only happens in the unlikely case that a SIM service is also a SIM call manager
+            if (service != null && service != this) {
                 simServices.add(service);
             }
         }
@@ -1244,12 +1288,14 @@ public class ConnectionServiceWrapper extends ServiceBinder {
 
         Log.v(this, "queryRemoteConnectionServices, simServices = %s", simServices);
 
-        for (ConnectionServiceWrapper simService : simServices) {
-            if (simService == this) {
-                // Only happens in the unlikely case that a SIM service is also a SIM call manager
-                continue;
-            }
+        if (simServices.isEmpty()) {
+            cache.putRemoteServices(userHandle, cacheGeneration, simServiceComponentNames,
+                    simServiceBinders);
+            noRemoteServices(callback);
+            return;
+        }
 
+        for (ConnectionServiceWrapper simService : simServices) {
             final ConnectionServiceWrapper currentSimService = simService;
 
             currentSimService.mBinder.bind(new BindCallback() {
@@ -1271,6 +1317,8 @@ public class ConnectionServiceWrapper extends ServiceBinder {
 
                 private void maybeComplete() {
                     if (simServiceComponentNames.size() == simServices.size()) {
+                        cache.putRemoteServices(userHandle, cacheGeneration,
+                                simServiceComponentNames, simServiceBinders);
                         setRemoteServices(callback, simServiceComponentNames, simServiceBinders);
                     }
                 }
@@ -30,8 +30,8 @@ import com.android.internal.annotations.VisibleForTesting;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Objects;
 
 /**
@@ -89,7 +89,7 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
     private final Call mCall;
     private final ConnectionServiceRepository mRepository;
     private List<CallAttemptRecord> mAttemptRecords;
-    private Iterator<CallAttemptRecord> mAttemptRecordIterator;
+    private ListIterator<CallAttemptRecord> mAttemptRecordIterator;
     private CreateConnectionResponse mCallResponse;
     private DisconnectCause mLastErrorDisconnectCause;
     private final PhoneAccountRegistrar mPhoneAccountRegistrar;
@@ -97,11 +97,22 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
     private CreateConnectionTimeout mTimeout;
     private ConnectionServiceWrapper mService;
     private int mConnectionAttempt;
+    private final Timeouts.Adapter mTimeoutsAdapter;
+    private final TimeoutScheduler mTimeoutScheduler;
+
+    /** The service of the next emergency attempt, which will be bound when the hedge runs. */
+    private ConnectionServiceWrapper mPendingHedgeService;
+    /** The service of the next emergency attempt, bound without creating a connection. */
+    private ConnectionServiceWrapper mWarmService;
+
+    private final TimeoutScheduler.Timeout mHedgeTimeout;
 
     @VisibleForTesting
     public CreateConnectionProcessor(
             Call call, ConnectionServiceRepository repository, CreateConnectionResponse response,
-            PhoneAccountRegistrar phoneAccountRegistrar, Context context) {
+            PhoneAccountRegistrar phoneAccountRegistrar, Context context,
+            Timeouts.Adapter timeoutsAdapter, TelecomSystem.SyncRoot lock,
+            TimeoutScheduler timeoutScheduler) {
         Log.v(this, "CreateConnectionProcessor created for Call = %s", call);
         mCall = call;
         mRepository = repository;
@@ -109,6 +120,19 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
         mPhoneAccountRegistrar = phoneAccountRegistrar;
         mContext = context;
         mConnectionAttempt = 0;
+        mTimeoutsAdapter = timeoutsAdapter;
+        mTimeoutScheduler = timeoutScheduler;
+        mHedgeTimeout = new TimeoutScheduler.Timeout("CCP.hR", new Runnable("CCP.hR", lock) {
+            @Override
+            public void loggedRun() {
+                if (mPendingHedgeService != null) {
+                    mWarmService = mPendingHedgeService;
+                    mPendingHedgeService = null;
+                    Log.event(mCall, Log.Events.CS_WARM_UP, mWarmService.getComponentName());
+                    mWarmService.warmUp(mCall);
+                }
+            }
+        });
     }
 
     boolean isProcessingComplete() {
@@ -134,7 +158,7 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
         }
         adjustAttemptsForConnectionManager();
         adjustAttemptsForEmergency(mCall.getTargetPhoneAccount());
-        mAttemptRecordIterator = mAttemptRecords.iterator();
+        mAttemptRecordIterator = mAttemptRecords.listIterator();
         attemptNextPhoneAccount();
     }
 
@@ -158,6 +182,7 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
         CreateConnectionResponse response = mCallResponse;
         mCallResponse = null;
         clearTimeout();
+        clearHedge();
 
         ConnectionServiceWrapper service = mCall.getConnectionService();
         if (service != null) {
@@ -210,9 +235,12 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
                 mCall.setConnectionManagerPhoneAccount(attempt.connectionManagerPhoneAccount);
                 mCall.setTargetPhoneAccount(attempt.targetPhoneAccount);
                 mCall.setConnectionService(mService);
+                // The call now holds the binding itself if this service was warmed up.
+                clearHedge();
                 setTimeoutIfNeeded(mService, attempt);
 
                 mService.createConnection(mCall, this);
+                scheduleHedgeIfNeeded();
             }
         } else {
             Log.v(this, "attemptNextPhoneAccount, no more accounts, failing");
@@ -241,6 +269,48 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
         }
     }
 
+    /**
+     * If hedging is enabled, schedules binding to the connection service of the next emergency
+     * attempt while the current attempt is in progress, so that failing over to it does not also
+     * wait for the bind. Only the current attempt ever has a connection being created.
+     */
+    private void scheduleHedgeIfNeeded() {
+        if (!mCall.isEmergencyCall() || !mAttemptRecordIterator.hasNext()) {
+            return;
+        }
+        long hedgeDelayMillis = mTimeoutsAdapter.getEmergencyCallHedgeDelayMillis(
+                mContext.getContentResolver());
+        if (hedgeDelayMillis <= 0) {
+            return;
+        }
+        PhoneAccountHandle phoneAccount = mAttemptRecords.get(
+                mAttemptRecordIterator.nextIndex()).connectionManagerPhoneAccount;
+        if (!mPhoneAccountRegistrar.phoneAccountRequiresBindPermission(phoneAccount)) {
+            return;
+        }
+        ConnectionServiceWrapper service = mRepository.getService(
+                phoneAccount.getComponentName(), phoneAccount.getUserHandle());
+        if (service == null || service == mService) {
+            return;
+        }
+        Log.d(this, "Binding %s in %d ms unless the current attempt completes", phoneAccount,
+                hedgeDelayMillis);
+        mPendingHedgeService = service;
+        mTimeoutScheduler.schedule(mHedgeTimeout, hedgeDelayMillis);
+    }
+
+    private void clearHedge() {
+        if (mPendingHedgeService != null) {
+            mPendingHedgeService = null;
+            mTimeoutScheduler.cancel(mHedgeTimeout);
+        }
+        if (mWarmService != null) {
+            Log.event(mCall, Log.Events.CS_WARM_UP_RELEASED, mWarmService.getComponentName());
+            mWarmService.releaseWarmUp();
+            mWarmService = null;
+        }
+    }
+
     private boolean shouldSetConnectionManager() {
         if (mAttemptRecords.size() == 0) {
             return false;
@@ -376,6 +446,7 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
     private void notifyCallConnectionFailure(DisconnectCause errorDisconnectCause) {
         if (mCallResponse != null) {
             clearTimeout();
+            clearHedge();
             mCallResponse.handleCreateConnectionFailure(errorDisconnectCause);
             mCallResponse = null;
             mCall.clearConnectionService();
@@ -395,6 +466,7 @@ public class CreateConnectionProcessor implements CreateConnectionResponse {
             // in hearing about any more attempts
             mCallResponse.handleCreateConnectionSuccess(idMapper, connection);
             mCallResponse = null;
+            clearHedge();
             // If there's a timeout running then don't clear it. The timeout can be triggered
             // after the call has successfully been created but before it has become active.
         }
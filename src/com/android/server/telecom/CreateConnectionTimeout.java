@@ -17,8 +17,6 @@
 package com.android.server.telecom;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import android.os.UserHandle;
 import android.telecom.PhoneAccountHandle;
 import android.telephony.TelephonyManager;
@@ -34,7 +32,8 @@ final class CreateConnectionTimeout extends Runnable {
     private final PhoneAccountRegistrar mPhoneAccountRegistrar;
     private final ConnectionServiceWrapper mConnectionService;
     private final Call mCall;
-    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final TimeoutScheduler mTimeoutScheduler = TimeoutScheduler.getInstance();
+    private final TimeoutScheduler.Timeout mTimeout = new TimeoutScheduler.Timeout("CCT", this);
     private boolean mIsRegistered;
     private boolean mIsCallTimedOut;
 
@@ -86,15 +85,14 @@ final class CreateConnectionTimeout extends Runnable {
         if (timeoutLengthMillis <= 0) {
             Log.d(this, "registerTimeout, timeout set to %d, skipping", timeoutLengthMillis);
         } else {
-            mHandler.postDelayed(prepare(), timeoutLengthMillis);
+            mTimeoutScheduler.schedule(mTimeout, timeoutLengthMillis);
         }
     }
 
     void unregisterTimeout() {
         Log.d(this, "unregisterTimeout");
         mIsRegistered = false;
-        mHandler.removeCallbacksAndMessages(null);
-        cancel();
+        mTimeoutScheduler.cancel(mTimeout);
     }
 
     boolean isCallTimedOut() {
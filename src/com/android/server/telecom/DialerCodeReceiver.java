@@ -37,6 +37,12 @@ public class DialerCodeReceiver extends BroadcastReceiver {
     // Writes a MARK to the Telecom log.
     public static final String TELECOM_SECRET_CODE_MARK = "826275";
 
+    // Enables recording the bytes allocated by each logging session.
+    public static final String TELECOM_SECRET_CODE_ALLOC_PROFILING_ON = "823251";
+
+    // Disables recording the bytes allocated by each logging session.
+    public static final String TELECOM_SECRET_CODE_ALLOC_PROFILING_OFF = "823250";
+
     private final CallsManager mCallsManager;
 
     DialerCodeReceiver(CallsManager callsManager) {
@@ -60,6 +66,13 @@ public class DialerCodeReceiver extends BroadcastReceiver {
                 // add a non-call event.
                 Call currentCall = mCallsManager.getActiveCall();
                 Log.event(currentCall, Log.Events.USER_LOG_MARK);
+            } else if (intent.getData().getHost().equals(TELECOM_SECRET_CODE_ALLOC_PROFILING_ON)) {
+                Log.i("DialerCodeReceiver", "Secret code used to enable allocation profiling");
+                Log.setIsAllocationProfilingEnabled(true);
+            } else if (intent.getData().getHost().equals(
+                    TELECOM_SECRET_CODE_ALLOC_PROFILING_OFF)) {
+                Log.i("DialerCodeReceiver", "Secret code used to disable allocation profiling");
+                Log.setIsAllocationProfilingEnabled(false);
             }
         }
     }
@@ -20,10 +20,10 @@ import android.content.Context;
 import android.media.AudioManager;
 import android.media.ToneGenerator;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Message;
 import android.provider.Settings;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.Preconditions;
 
 // TODO: Needed for move to system service: import com.android.internal.R;
@@ -48,10 +48,19 @@ public class DtmfLocalTonePlayer {
     private static final int EVENT_CREATE_OBJECT = 1;
     private static final int EVENT_DELETE_OBJECT = 2;
 
+    private final AudioTaskExecutor mAudioTaskExecutor;
+
     /** Handler running on the tonegenerator thread. */
     private Handler mHandler;
 
-    public DtmfLocalTonePlayer() { }
+    public DtmfLocalTonePlayer() {
+        this(AudioTaskExecutor.getInstance());
+    }
+
+    @VisibleForTesting
+    public DtmfLocalTonePlayer(AudioTaskExecutor audioTaskExecutor) {
+        mAudioTaskExecutor = audioTaskExecutor;
+    }
 
     public void onForegroundCallChanged(Call oldForegroundCall, Call newForegroundCall) {
         endDtmfSession(oldForegroundCall);
@@ -165,15 +174,12 @@ public class DtmfLocalTonePlayer {
     }
 
     /**
-     * Creates a new tonegenerator Handler running in its own thread.
+     * Creates a new tonegenerator Handler running on the shared DTMF thread.
      */
     private Handler getNewHandler() {
         Preconditions.checkState(mHandler == null);
 
-        HandlerThread thread = new HandlerThread("tonegenerator-dtmf");
-        thread.start();
-
-        return new Handler(thread.getLooper()) {
+        return new Handler(mAudioTaskExecutor.getLooper(AudioTaskExecutor.LANE_DTMF)) {
             @Override
             public void handleMessage(Message msg) {
                 switch(msg.what) {
@@ -196,13 +202,10 @@ public class DtmfLocalTonePlayer {
                                 mToneGenerator.release();
                                 mToneGenerator = null;
                             }
-                            // Delete the handler after the tone generator object is deleted by
-                            // the tonegenerator thread.
+                            // The tonegenerator thread is shared, so the handler is kept for
+                            // the next session.
                             if (mHandler != null && !mHandler.hasMessages(EVENT_CREATE_OBJECT)) {
-                                // Stop the handler only if there are no pending CREATE messages.
                                 mHandler.removeMessages(EVENT_DELETE_OBJECT);
-                                mHandler.getLooper().quitSafely();
-                                mHandler = null;
                             }
                         }
                         break;
@@ -21,14 +21,11 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
 import android.content.res.Resources;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
 import android.os.RemoteException;
 import android.os.Trace;
 import android.os.UserHandle;
@@ -75,7 +72,59 @@ public final class InCallController extends CallsManagerListenerBase {
         public void setListener(Listener l) {
             mListener = l;
         }
-        public void dump(IndentingPrintWriter pw) {}
+        public ConnectionDumpState getDumpState() {
+            return null;
+        }
+    }
+
+    /**
+     * The state of an {@link InCallServiceConnection} shown by dumpsys. Either a binding, or a
+     * titled collection of labeled connections.
+     */
+    private static final class ConnectionDumpState {
+        private final boolean mIsConnected;
+        private final boolean mIsBound;
+        private final String mTitle;
+        private final List<String> mLabels = new ArrayList<>();
+        private final List<ConnectionDumpState> mConnections = new ArrayList<>();
+
+        ConnectionDumpState(boolean isConnected, boolean isBound) {
+            mIsConnected = isConnected;
+            mIsBound = isBound;
+            mTitle = null;
+        }
+
+        ConnectionDumpState(String title) {
+            mIsConnected = false;
+            mIsBound = false;
+            mTitle = title;
+        }
+
+        ConnectionDumpState add(String label, InCallServiceConnection connection) {
+            if (connection != null) {
+                mLabels.add(label);
+                mConnections.add(connection.getDumpState());
+            }
+            return this;
+        }
+
+        void dump(IndentingPrintWriter pw) {
+            if (mTitle == null) {
+                pw.append("BindingConnection [");
+                pw.append(mIsConnected ? "" : "not ").append("connected, ");
+                pw.append(mIsBound ? "" : "not ").append("bound]\n");
+                return;
+            }
+            pw.println(mTitle);
+            pw.increaseIndent();
+            for (int i = 0; i < mConnections.size(); i++) {
+                pw.print(mLabels.get(i));
+                if (mConnections.get(i) != null) {
+                    mConnections.get(i).dump(pw);
+                }
+            }
+            pw.decreaseIndent();
+        }
     }
 
     private class InCallServiceInfo {
@@ -221,10 +270,8 @@ public final class InCallController extends CallsManagerListenerBase {
         }
 
         @Override
-        public void dump(IndentingPrintWriter pw) {
-            pw.append("BindingConnection [");
-            pw.append(mIsConnected ? "" : "not ").append("connected, ");
-            pw.append(mIsBound ? "" : "not ").append("bound]\n");
+        public ConnectionDumpState getDumpState() {
+            return new ConnectionDumpState(mIsConnected, mIsBound);
         }
 
         protected void onConnected(IBinder service) {
@@ -248,6 +295,50 @@ public final class InCallController extends CallsManagerListenerBase {
         }
     }
 
+    /**
+     * A binding to the in-call UI made speculatively while a call is being filtered or placed, so
+     * that the in-call app process is already running by the time the call is added. No calls are
+     * sent over this binding; it is released as soon as the real binding has been made, or after
+     * {@link Timeouts#getInCallServicePreBindTimeoutMillis} if the call never shows up.
+     */
+    private class InCallServicePreBindConnection implements ServiceConnection {
+        private final ComponentName mComponentName;
+        private final Call mCall;
+        private final TimeoutScheduler.Timeout mTimeout;
+
+        public InCallServicePreBindConnection(ComponentName componentName, Call call) {
+            mComponentName = componentName;
+            mCall = call;
+            mTimeout = new TimeoutScheduler.Timeout("ICSPBC.tO", new Runnable("ICSPBC.tO", mLock) {
+                @Override
+                public void loggedRun() {
+                    if (mPreBindConnection == InCallServicePreBindConnection.this) {
+                        Log.i(InCallController.this, "Pre-binding timed out.");
+                        unbindPreBinding();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            Log.startSession("ICSPBC.oSC");
+            synchronized (mLock) {
+                try {
+                    Log.d(this, "onServiceConnected: %s", name);
+                    Log.event(mCall, Log.Events.INCALL_PREBOUND, name);
+                } finally {
+                    Log.endSession();
+                }
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            Log.d(this, "onServiceDisconnected: %s", name);
+        }
+    }
+
     /**
      * A version of the InCallServiceBindingConnection that proxies all calls to a secondary
      * connection until it finds an emergency call, or the other connection dies. When one of those
@@ -331,16 +422,11 @@ public final class InCallController extends CallsManagerListenerBase {
         }
 
         @Override
-        public void dump(IndentingPrintWriter pw) {
-            pw.println("Emergency ICS Connection");
-            pw.increaseIndent();
-            pw.print("Emergency: ");
-            super.dump(pw);
-            if (mSubConnection != null) {
-                pw.print("Default-Dialer: ");
-                mSubConnection.dump(pw);
-            }
-            pw.decreaseIndent();
+        public ConnectionDumpState getDumpState() {
+            ConnectionDumpState state = new ConnectionDumpState("Emergency ICS Connection");
+            state.mLabels.add("Emergency: ");
+            state.mConnections.add(super.getDumpState());
+            return state.add("Default-Dialer: ", mSubConnection);
         }
 
         /**
@@ -427,17 +513,10 @@ public final class InCallController extends CallsManagerListenerBase {
         }
 
         @Override
-        public void dump(IndentingPrintWriter pw) {
-            pw.println("Car Swapping ICS");
-            pw.increaseIndent();
-            if (mDialerConnection != null) {
-                pw.print("Dialer: ");
-                mDialerConnection.dump(pw);
-            }
-            if (mCarModeConnection != null) {
-                pw.print("Car Mode: ");
-                mCarModeConnection.dump(pw);
-            }
+        public ConnectionDumpState getDumpState() {
+            return new ConnectionDumpState("Car Swapping ICS")
+                    .add("Dialer: ", mDialerConnection)
+                    .add("Car Mode: ", mCarModeConnection);
         }
 
         private InCallServiceConnection getCurrentConnection() {
@@ -473,13 +552,12 @@ public final class InCallController extends CallsManagerListenerBase {
         }
 
         @Override
-        public void dump(IndentingPrintWriter pw) {
-            pw.println("Non-UI Connections:");
-            pw.increaseIndent();
+        public ConnectionDumpState getDumpState() {
+            ConnectionDumpState state = new ConnectionDumpState("Non-UI Connections:");
             for (InCallServiceBindingConnection subConnection : mSubConnections) {
-                subConnection.dump(pw);
+                state.add("", subConnection);
             }
-            pw.decreaseIndent();
+            return state;
         }
     }
 
@@ -615,8 +693,14 @@ public final class InCallController extends CallsManagerListenerBase {
     private final SystemStateProvider mSystemStateProvider;
     private final DefaultDialerManagerAdapter mDefaultDialerAdapter;
     private final Timeouts.Adapter mTimeoutsAdapter;
+    private final InCallServiceRegistry mInCallServiceRegistry;
+    private final TimeoutScheduler mTimeoutScheduler = TimeoutScheduler.getInstance();
+    /** Unbinds from the in-call services a while after the last call has been removed. */
+    private final TimeoutScheduler.Timeout mUnbindTimeout;
+    private final boolean mIsPreBindEnabled;
     private CarSwappingInCallServiceConnection mInCallServiceConnection;
     private NonUIInCallServiceConnectionCollection mNonUIInCallServiceConnections;
+    private InCallServicePreBindConnection mPreBindConnection;
 
     public InCallController(Context context, TelecomSystem.SyncRoot lock, CallsManager callsManager,
             SystemStateProvider systemStateProvider,
@@ -627,17 +711,30 @@ public final class InCallController extends CallsManagerListenerBase {
         mSystemStateProvider = systemStateProvider;
         mDefaultDialerAdapter = defaultDialerAdapter;
         mTimeoutsAdapter = timeoutsAdapter;
+        mInCallServiceRegistry = new InCallServiceRegistry(context, lock, callsManager,
+                defaultDialerAdapter);
 
         Resources resources = mContext.getResources();
         mSystemInCallComponentName = new ComponentName(
                 resources.getString(R.string.ui_default_package),
                 resources.getString(R.string.incall_default_class));
+        mIsPreBindEnabled = resources.getBoolean(R.bool.prebind_incall_service);
+        mUnbindTimeout = new TimeoutScheduler.Timeout("ICC.oCR", new Runnable("ICC.oCR", lock) {
+            @Override
+            public void loggedRun() {
+                // Check again to make sure there are no active calls.
+                if (mCallsManager.getCalls().isEmpty()) {
+                    unbindFromServices();
+                }
+            }
+        });
 
         mSystemStateProvider.addListener(mSystemStateListener);
     }
 
     @Override
     public void onCallAdded(Call call) {
+        mTimeoutScheduler.cancel(mUnbindTimeout);
         if (!isBoundToServices()) {
             bindToServices(call);
         } else {
@@ -674,20 +771,7 @@ public final class InCallController extends CallsManagerListenerBase {
     public void onCallRemoved(Call call) {
         Log.i(this, "onCallRemoved: %s", call);
         if (mCallsManager.getCalls().isEmpty()) {
-            /** Let's add a 2 second delay before we send unbind to the services to hopefully
-             *  give them enough time to process all the pending messages.
-             */
-            Handler handler = new Handler(Looper.getMainLooper());
-            handler.postDelayed(new Runnable("ICC.oCR", mLock) {
-                @Override
-                public void loggedRun() {
-                    // Check again to make sure there are no active calls.
-                    if (mCallsManager.getCalls().isEmpty()) {
-                        unbindFromServices();
-                    }
-                }
-            }.prepare(), mTimeoutsAdapter.getCallRemoveUnbindInCallServicesDelay(
-                            mContext.getContentResolver()));
+            scheduleUnbindFromServices();
         }
         call.removeListener(mCallListener);
         mCallIdMapper.removeCall(call);
@@ -876,6 +960,7 @@ public final class InCallController extends CallsManagerListenerBase {
      */
     @VisibleForTesting
     public void bindToServices(Call call) {
+        Log.event(call, Log.Events.BIND_INCALL);
         InCallServiceConnection dialerInCall = null;
         InCallServiceInfo defaultDialerComponentInfo = getDefaultDialerComponent();
         Log.i(this, "defaultDialer: " + defaultDialerComponentInfo);
@@ -911,6 +996,88 @@ public final class InCallController extends CallsManagerListenerBase {
         }
         mNonUIInCallServiceConnections = new NonUIInCallServiceConnectionCollection(nonUIInCalls);
         mNonUIInCallServiceConnections.connect(call);
+
+        // The real bindings now keep the in-call app alive.
+        releasePreBinding();
+    }
+
+    /**
+     * Speculatively binds to the in-call UI which will be used for a call which has not yet been
+     * added, so that the in-call app is started while the call is still being filtered or placed.
+     * Does nothing unless pre-binding is enabled and no in-call services are bound.
+     *
+     * @param call The call which is expected to be added.
+     */
+    public void preBindToServices(Call call) {
+        // The services still bound for the last call are kept for this one.
+        mTimeoutScheduler.cancel(mUnbindTimeout);
+        if (!mIsPreBindEnabled || isBoundToServices() || mPreBindConnection != null) {
+            return;
+        }
+
+        ComponentName componentName = mSystemInCallComponentName;
+        if (!call.isEmergencyCall() && !mCallsManager.hasEmergencyCall()) {
+            InCallServiceInfo defaultDialerComponentInfo = getDefaultDialerComponent();
+            if (defaultDialerComponentInfo != null) {
+                componentName = defaultDialerComponentInfo.getComponentName();
+            }
+        }
+
+        Intent intent = new Intent(InCallService.SERVICE_INTERFACE);
+        intent.setComponent(componentName);
+        if (!call.isIncoming() && !call.isExternalCall()) {
+            intent.putExtra(TelecomManager.EXTRA_OUTGOING_CALL_EXTRAS, call.getIntentExtras());
+            intent.putExtra(TelecomManager.EXTRA_PHONE_ACCOUNT_HANDLE,
+                    call.getTargetPhoneAccount());
+        }
+
+        InCallServicePreBindConnection connection =
+                new InCallServicePreBindConnection(componentName, call);
+        Log.i(this, "Pre-binding to InCall %s", componentName);
+        if (!mContext.bindServiceAsUser(intent, connection,
+                Context.BIND_AUTO_CREATE | Context.BIND_FOREGROUND_SERVICE |
+                Context.BIND_ABOVE_CLIENT,
+                UserHandle.CURRENT)) {
+            Log.w(this, "Failed to pre-bind.");
+            return;
+        }
+        Log.event(call, Log.Events.PREBIND_INCALL, componentName);
+        mPreBindConnection = connection;
+        mTimeoutScheduler.schedule(connection.mTimeout,
+                mTimeoutsAdapter.getInCallServicePreBindTimeoutMillis(
+                        mContext.getContentResolver()));
+    }
+
+    /**
+     * Releases the binding made by {@link #preBindToServices(Call)}, if any; used when the call
+     * was blocked or rejected before it was added.
+     */
+    public void releasePreBinding() {
+        if (isBoundToServices() && mCallsManager.getCalls().isEmpty()) {
+            // Pre-binding kept the services bound for the last call.
+            scheduleUnbindFromServices();
+        }
+        if (mPreBindConnection == null) {
+            return;
+        }
+        Log.i(this, "Releasing pre-binding to %s", mPreBindConnection.mComponentName);
+        mTimeoutScheduler.cancel(mPreBindConnection.mTimeout);
+        unbindPreBinding();
+    }
+
+    /**
+     * Unbinds from the in-call services after a delay, to hopefully give them enough time to
+     * process all the pending messages.
+     */
+    private void scheduleUnbindFromServices() {
+        mTimeoutScheduler.schedule(mUnbindTimeout,
+                mTimeoutsAdapter.getCallRemoveUnbindInCallServicesDelay(
+                        mContext.getContentResolver()));
+    }
+
+    private void unbindPreBinding() {
+        mContext.unbindService(mPreBindConnection);
+        mPreBindConnection = null;
     }
 
     private InCallServiceInfo getDefaultDialerComponent() {
@@ -965,27 +1132,16 @@ public final class InCallController extends CallsManagerListenerBase {
 
         List<InCallServiceInfo> retval = new LinkedList<>();
 
-        Intent serviceIntent = new Intent(InCallService.SERVICE_INTERFACE);
-        if (packageName != null) {
-            serviceIntent.setPackage(packageName);
-        }
-        if (componentName != null) {
-            serviceIntent.setComponent(componentName);
-        }
-
-        PackageManager packageManager = mContext.getPackageManager();
-        for (ResolveInfo entry : packageManager.queryIntentServicesAsUser(
-                serviceIntent,
-                PackageManager.GET_META_DATA,
-                mCallsManager.getCurrentUserHandle().getIdentifier())) {
+        for (ResolveInfo entry : mInCallServiceRegistry.queryInCallServices(packageName,
+                componentName, mCallsManager.getCurrentUserHandle().getIdentifier())) {
             ServiceInfo serviceInfo = entry.serviceInfo;
 
             if (serviceInfo != null) {
                 boolean isExternalCallsSupported = serviceInfo.metaData != null &&
                         serviceInfo.metaData.getBoolean(
                                 TelecomManager.METADATA_INCLUDE_EXTERNAL_CALLS, false);
-                if (requestedType == 0 || requestedType == getInCallServiceType(entry.serviceInfo,
-                        packageManager)) {
+                if (requestedType == 0
+                        || requestedType == getInCallServiceType(entry.serviceInfo)) {
 
                     retval.add(new InCallServiceInfo(
                             new ComponentName(serviceInfo.packageName, serviceInfo.name),
@@ -1004,7 +1160,7 @@ public final class InCallController extends CallsManagerListenerBase {
     /**
      * Returns the type of InCallService described by the specified serviceInfo.
      */
-    private int getInCallServiceType(ServiceInfo serviceInfo, PackageManager packageManager) {
+    private int getInCallServiceType(ServiceInfo serviceInfo) {
         // Verify that the InCallService requires the BIND_INCALL_SERVICE permission which
         // enforces that only Telecom can bind to it.
         boolean hasServiceBindPermission = serviceInfo.permission != null &&
@@ -1024,9 +1180,8 @@ public final class InCallController extends CallsManagerListenerBase {
         // Check to see if the service is a car-mode UI type by checking that it has the
         // CONTROL_INCALL_EXPERIENCE (to verify it is a system app) and that it has the
         // car-mode UI metadata.
-        boolean hasControlInCallPermission = packageManager.checkPermission(
-                Manifest.permission.CONTROL_INCALL_EXPERIENCE,
-                serviceInfo.packageName) == PackageManager.PERMISSION_GRANTED;
+        boolean hasControlInCallPermission =
+                mInCallServiceRegistry.hasControlInCallPermission(serviceInfo.packageName);
         boolean isCarModeUIService = serviceInfo.metaData != null &&
                 serviceInfo.metaData.getBoolean(
                         TelecomManager.METADATA_IN_CALL_SERVICE_CAR_MODE_UI, false) &&
@@ -1115,6 +1270,7 @@ public final class InCallController extends CallsManagerListenerBase {
                         true /* includeVideoProvider */,
                         mCallsManager.getPhoneAccountRegistrar(),
                         info.isExternalCallsSupported()));
+                Log.event(call, Log.Events.INCALL_BOUND, info.getComponentName());
             } catch (RemoteException ignored) {
             }
         }
@@ -1200,24 +1356,56 @@ public final class InCallController extends CallsManagerListenerBase {
     }
 
     /**
-     * Dumps the state of the {@link InCallController}.
-     *
-     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     * The state of the {@link InCallController} shown by dumpsys.
      */
-    public void dump(IndentingPrintWriter pw) {
-        pw.println("mInCallServices (InCalls registered):");
-        pw.increaseIndent();
-        for (InCallServiceInfo info : mInCallServices.keySet()) {
-            pw.println(info);
+    static final class DumpState {
+        private final List<InCallServiceInfo> mInCallServices;
+        private final ConnectionDumpState mInCallServiceConnection;
+        private final InCallServiceRegistry.DumpState mInCallServiceRegistry;
+
+        private DumpState(List<InCallServiceInfo> inCallServices,
+                ConnectionDumpState inCallServiceConnection,
+                InCallServiceRegistry.DumpState inCallServiceRegistry) {
+            mInCallServices = inCallServices;
+            mInCallServiceConnection = inCallServiceConnection;
+            mInCallServiceRegistry = inCallServiceRegistry;
         }
-        pw.decreaseIndent();
 
-        pw.println("ServiceConnections (InCalls bound):");
-        pw.increaseIndent();
-        if (mInCallServiceConnection != null) {
-            mInCallServiceConnection.dump(pw);
+        /**
+         * Dumps the copied state.
+         *
+         * @param pw The {@code IndentingPrintWriter} to write the state to.
+         */
+        void dump(IndentingPrintWriter pw) {
+            pw.println("mInCallServices (InCalls registered):");
+            pw.increaseIndent();
+            for (InCallServiceInfo info : mInCallServices) {
+                pw.println(info);
+            }
+            pw.decreaseIndent();
+
+            pw.println("ServiceConnections (InCalls bound):");
+            pw.increaseIndent();
+            if (mInCallServiceConnection != null) {
+                mInCallServiceConnection.dump(pw);
+            }
+            pw.decreaseIndent();
+
+            mInCallServiceRegistry.dump(pw);
         }
-        pw.decreaseIndent();
+    }
+
+    /**
+     * Copies the state of the {@link InCallController} for dumpsys. Must be called while holding
+     * the Telecom lock.
+     *
+     * @return The copied state.
+     */
+    DumpState getDumpState() {
+        return new DumpState(new ArrayList<>(mInCallServices.keySet()),
+                mInCallServiceConnection == null ? null
+                        : mInCallServiceConnection.getDumpState(),
+                mInCallServiceRegistry.getDumpState());
     }
 
     public boolean doesConnectedDialerSupportRinging() {
@@ -1235,11 +1423,8 @@ public final class InCallController extends CallsManagerListenerBase {
             return false;
         }
 
-        Intent intent = new Intent(InCallService.SERVICE_INTERFACE)
-            .setPackage(ringingPackage);
-        List<ResolveInfo> entries = mContext.getPackageManager().queryIntentServicesAsUser(
-                intent, PackageManager.GET_META_DATA,
-                mCallsManager.getCurrentUserHandle().getIdentifier());
+        List<ResolveInfo> entries = mInCallServiceRegistry.queryInCallServices(ringingPackage,
+                null /* componentName */, mCallsManager.getCurrentUserHandle().getIdentifier());
         if (entries.isEmpty()) {
             return false;
         }
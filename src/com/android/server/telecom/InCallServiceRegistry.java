@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.telecom.InCallService;
+import android.telecom.TelecomManager;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.server.telecom.TelecomServiceImpl.DefaultDialerManagerAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the {@link InCallService} entries resolved from the {@link PackageManager}, per user, so
+ * that binding to the in-call services when a call starts does not query the package manager.
+ * Cached entries are refreshed from package broadcasts for the package that changed only, and
+ * the new default dialer is resolved ahead of time when the default dialer changes.
+ * <p>
+ * Must be accessed with the Telecom lock held.
+ */
+public class InCallServiceRegistry {
+    private static final String KEY_ALL = "*";
+    private static final String KEY_PACKAGE_PREFIX = "pkg:";
+    private static final String KEY_COMPONENT_PREFIX = "cmp:";
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.startSession("ICSR.oR");
+            try {
+                synchronized (mLock) {
+                    String action = intent.getAction();
+                    if (Intent.ACTION_USER_UNLOCKED.equals(action)
+                            || Intent.ACTION_USER_REMOVED.equals(action)) {
+                        // Direct boot unaware services only resolve once the user is unlocked.
+                        int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE,
+                                UserHandle.USER_NULL);
+                        Log.i(InCallServiceRegistry.this, "%s, clearing user %d", action, userId);
+                        mQueriesByUser.remove(userId);
+                    } else if (TelecomManager.ACTION_DEFAULT_DIALER_CHANGED.equals(action)) {
+                        onDefaultDialerChanged();
+                    } else {
+                        Uri data = intent.getData();
+                        if (data != null) {
+                            onPackageChanged(data.getSchemeSpecificPart());
+                        }
+                    }
+                }
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
+
+    private final Context mContext;
+    private final TelecomSystem.SyncRoot mLock;
+    private final CallsManager mCallsManager;
+    private final DefaultDialerManagerAdapter mDefaultDialerAdapter;
+
+    /** Query results keyed by user ID, then by query key. */
+    private final SparseArray<Map<String, List<ResolveInfo>>> mQueriesByUser = new SparseArray<>();
+    /** Whether a package holds CONTROL_INCALL_EXPERIENCE, keyed by package name. */
+    private final Map<String, Boolean> mControlInCallPermissions = new ArrayMap<>();
+
+    public InCallServiceRegistry(Context context, TelecomSystem.SyncRoot lock,
+            CallsManager callsManager, DefaultDialerManagerAdapter defaultDialerAdapter) {
+        mContext = context;
+        mLock = lock;
+        mCallsManager = callsManager;
+        mDefaultDialerAdapter = defaultDialerAdapter;
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mReceiver, UserHandle.ALL, packageFilter, null, null);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_USER_UNLOCKED);
+        filter.addAction(Intent.ACTION_USER_REMOVED);
+        filter.addAction(TelecomManager.ACTION_DEFAULT_DIALER_CHANGED);
+        mContext.registerReceiverAsUser(mReceiver, UserHandle.ALL, filter, null, null);
+    }
+
+    /**
+     * Returns the {@link InCallService} entries matching the given package or component, or all
+     * entries when both are {@code null}. The returned list must not be modified.
+     */
+    public List<ResolveInfo> queryInCallServices(String packageName, ComponentName componentName,
+            int userId) {
+        String key = getKey(packageName, componentName);
+        Map<String, List<ResolveInfo>> queries = getQueriesForUser(userId);
+        List<ResolveInfo> entries = queries.get(key);
+        if (entries == null) {
+            entries = query(packageName, componentName, userId);
+            queries.put(key, entries);
+        }
+        return entries;
+    }
+
+    /**
+     * @return {@code true} if the package holds the CONTROL_INCALL_EXPERIENCE permission.
+     */
+    public boolean hasControlInCallPermission(String packageName) {
+        Boolean hasPermission = mControlInCallPermissions.get(packageName);
+        if (hasPermission == null) {
+            hasPermission = mContext.getPackageManager().checkPermission(
+                    Manifest.permission.CONTROL_INCALL_EXPERIENCE, packageName)
+                    == PackageManager.PERMISSION_GRANTED;
+            mControlInCallPermissions.put(packageName, hasPermission);
+        }
+        return hasPermission;
+    }
+
+    /**
+     * The state of the {@link InCallServiceRegistry} shown by dumpsys.
+     */
+    public static final class DumpState {
+        private final int[] mUserIds;
+        private final List<List<String>> mQueries;
+
+        private DumpState(int[] userIds, List<List<String>> queries) {
+            mUserIds = userIds;
+            mQueries = queries;
+        }
+
+        public void dump(IndentingPrintWriter pw) {
+            pw.println("InCallServiceRegistry:");
+            pw.increaseIndent();
+            for (int i = 0; i < mUserIds.length; i++) {
+                pw.print("user " + mUserIds[i] + ": ");
+                pw.println(mQueries.get(i));
+            }
+            pw.decreaseIndent();
+        }
+    }
+
+    public DumpState getDumpState() {
+        int size = mQueriesByUser.size();
+        int[] userIds = new int[size];
+        List<List<String>> queries = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            userIds[i] = mQueriesByUser.keyAt(i);
+            queries.add(new ArrayList<>(mQueriesByUser.valueAt(i).keySet()));
+        }
+        return new DumpState(userIds, queries);
+    }
+
+    private void onPackageChanged(String packageName) {
+        if (TextUtils.isEmpty(packageName)) {
+            return;
+        }
+        Log.i(this, "Package %s changed, refreshing in-call services.", packageName);
+        mControlInCallPermissions.remove(packageName);
+        for (int i = 0; i < mQueriesByUser.size(); i++) {
+            int userId = mQueriesByUser.keyAt(i);
+            Map<String, List<ResolveInfo>> queries = mQueriesByUser.valueAt(i);
+            List<ResolveInfo> packageEntries = null;
+            for (Map.Entry<String, List<ResolveInfo>> entry : queries.entrySet()) {
+                String key = entry.getKey();
+                if (KEY_ALL.equals(key)) {
+                    if (packageEntries == null) {
+                        packageEntries = query(packageName, null, userId);
+                    }
+                    entry.setValue(replacePackageEntries(entry.getValue(), packageName,
+                            packageEntries));
+                } else if (key.equals(KEY_PACKAGE_PREFIX + packageName)) {
+                    if (packageEntries == null) {
+                        packageEntries = query(packageName, null, userId);
+                    }
+                    entry.setValue(packageEntries);
+                }
+            }
+            // Component queries are cheap to redo and rarely used; just drop them.
+            Iterator<String> keys = queries.keySet().iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (key.startsWith(KEY_COMPONENT_PREFIX + packageName + "/")) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    private void onDefaultDialerChanged() {
+        int userId = mCallsManager.getCurrentUserHandle().getIdentifier();
+        String packageName = mDefaultDialerAdapter.getDefaultDialerApplication(mContext, userId);
+        Log.i(this, "Default dialer changed to %s, resolving in-call services.", packageName);
+        if (!TextUtils.isEmpty(packageName)) {
+            queryInCallServices(packageName, null, userId);
+        }
+    }
+
+    private Map<String, List<ResolveInfo>> getQueriesForUser(int userId) {
+        Map<String, List<ResolveInfo>> queries = mQueriesByUser.get(userId);
+        if (queries == null) {
+            queries = new ArrayMap<>();
+            mQueriesByUser.put(userId, queries);
+        }
+        return queries;
+    }
+
+    private List<ResolveInfo> query(String packageName, ComponentName componentName,
+            int userId) {
+        Intent serviceIntent = new Intent(InCallService.SERVICE_INTERFACE);
+        if (packageName != null) {
+            serviceIntent.setPackage(packageName);
+        }
+        if (componentName != null) {
+            serviceIntent.setComponent(componentName);
+        }
+        List<ResolveInfo> entries = mContext.getPackageManager().queryIntentServicesAsUser(
+                serviceIntent, PackageManager.GET_META_DATA, userId);
+        return entries == null ? Collections.<ResolveInfo>emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    private static List<ResolveInfo> replacePackageEntries(List<ResolveInfo> entries,
+            String packageName, List<ResolveInfo> packageEntries) {
+        List<ResolveInfo> result = new ArrayList<>(entries.size() + packageEntries.size());
+        for (ResolveInfo entry : entries) {
+            if (entry.serviceInfo == null
+                    || !packageName.equals(entry.serviceInfo.packageName)) {
+                result.add(entry);
+            }
+        }
+        result.addAll(packageEntries);
+        return Collections.unmodifiableList(result);
+    }
+
+    private static String getKey(String packageName, ComponentName componentName) {
+        if (componentName != null) {
+            return KEY_COMPONENT_PREFIX + componentName.flattenToString();
+        }
+        if (packageName != null) {
+            return KEY_PACKAGE_PREFIX + packageName;
+        }
+        return KEY_ALL;
+    }
+}
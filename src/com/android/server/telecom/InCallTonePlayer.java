@@ -26,9 +26,10 @@ import com.android.internal.annotations.VisibleForTesting;
 /**
  * Play a call-related tone (ringback, busy signal, etc.) through ToneGenerator. To use, create an
  * instance using InCallTonePlayer.Factory (passing in the TONE_* constant for the tone you want)
- * and start() it. Implemented on top of {@link Thread} so that the tone plays in its own thread.
+ * and startTone() it. Tones are played on the call progress lane of the {@link AudioTaskExecutor}
+ * rather than on a thread of their own.
  */
-public class InCallTonePlayer extends Thread {
+public class InCallTonePlayer {
 
     /**
      * Factory used to create InCallTonePlayers. Exists to aid with testing mocks.
@@ -37,11 +38,19 @@ public class InCallTonePlayer extends Thread {
         private CallAudioManager mCallAudioManager;
         private final CallAudioRoutePeripheralAdapter mCallAudioRoutePeripheralAdapter;
         private final TelecomSystem.SyncRoot mLock;
+        private final AudioTaskExecutor mAudioTaskExecutor;
 
         Factory(CallAudioRoutePeripheralAdapter callAudioRoutePeripheralAdapter,
                 TelecomSystem.SyncRoot lock) {
+            this(callAudioRoutePeripheralAdapter, lock, AudioTaskExecutor.getInstance());
+        }
+
+        @VisibleForTesting
+        public Factory(CallAudioRoutePeripheralAdapter callAudioRoutePeripheralAdapter,
+                TelecomSystem.SyncRoot lock, AudioTaskExecutor audioTaskExecutor) {
             mCallAudioRoutePeripheralAdapter = callAudioRoutePeripheralAdapter;
             mLock = lock;
+            mAudioTaskExecutor = audioTaskExecutor;
         }
 
         public void setCallAudioManager(CallAudioManager callAudioManager) {
@@ -50,7 +59,7 @@ public class InCallTonePlayer extends Thread {
 
         public InCallTonePlayer createPlayer(int tone) {
             return new InCallTonePlayer(tone, mCallAudioManager,
-                    mCallAudioRoutePeripheralAdapter, mLock);
+                    mCallAudioRoutePeripheralAdapter, mLock, mAudioTaskExecutor);
         }
     }
 
@@ -94,6 +103,7 @@ public class InCallTonePlayer extends Thread {
 
     private final CallAudioManager mCallAudioManager;
     private final CallAudioRoutePeripheralAdapter mCallAudioRoutePeripheralAdapter;
+    private final AudioTaskExecutor mAudioTaskExecutor;
 
     private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
 
@@ -106,8 +116,23 @@ public class InCallTonePlayer extends Thread {
     /** Telecom lock object. */
     private final TelecomSystem.SyncRoot mLock;
 
-    private Session mSession;
-    private final Object mSessionLock = new Object();
+    /** The generator playing the tone. Set while the tone is on. */
+    private ToneGenerator mToneGenerator;
+
+    /** Ends the tone once it has played for its full length. */
+    private AudioTaskExecutor.Token mToneTimeoutToken;
+
+    private final java.lang.Runnable mToneTimeoutRunnable = new java.lang.Runnable() {
+        @Override
+        public void run() {
+            Log.startSession("ICTP.tO");
+            try {
+                finishTone();
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
 
     /**
      * Initializes the tone player. Private; use the {@link Factory} to create tone players.
@@ -118,26 +143,25 @@ public class InCallTonePlayer extends Thread {
             int toneId,
             CallAudioManager callAudioManager,
             CallAudioRoutePeripheralAdapter callAudioRoutePeripheralAdapter,
-            TelecomSystem.SyncRoot lock) {
+            TelecomSystem.SyncRoot lock,
+            AudioTaskExecutor audioTaskExecutor) {
         mState = STATE_OFF;
         mToneId = toneId;
         mCallAudioManager = callAudioManager;
         mCallAudioRoutePeripheralAdapter = callAudioRoutePeripheralAdapter;
         mLock = lock;
+        mAudioTaskExecutor = audioTaskExecutor;
     }
 
-    /** {@inheritDoc} */
-    @Override
-    public void run() {
+    /**
+     * Starts the tone. Executes on the call progress thread. Rather than blocking the thread for
+     * the length of the tone, the tone is ended by a delayed task so that other tones can play.
+     */
+    private void playTone() {
         ToneGenerator toneGenerator = null;
+        boolean isToneOn = false;
         try {
-            synchronized (mSessionLock) {
-                if (mSession != null) {
-                    Log.continueSession(mSession, "ICTP.r");
-                    mSession = null;
-                }
-            }
-            Log.d(this, "run(toneId = %s)", mToneId);
+            Log.d(this, "playTone(toneId = %s)", mToneId);
 
             final int toneType;  // Passed to ToneGenerator.startTone.
             final int toneVolume;  // Passed to the ToneGenerator constructor.
@@ -247,25 +271,43 @@ public class InCallTonePlayer extends Thread {
                 if (mState != STATE_STOPPED) {
                     mState = STATE_ON;
                     toneGenerator.startTone(toneType);
-                    try {
-                        Log.v(this, "Starting tone %d...waiting for %d ms.", mToneId,
-                                toneLengthMillis + TIMEOUT_BUFFER_MILLIS);
-                        wait(toneLengthMillis + TIMEOUT_BUFFER_MILLIS);
-                    } catch (InterruptedException e) {
-                        Log.w(this, "wait interrupted", e);
-                    }
+                    mToneGenerator = toneGenerator;
+                    isToneOn = true;
+                    Log.v(this, "Starting tone %d...ending in %d ms.", mToneId,
+                            toneLengthMillis + TIMEOUT_BUFFER_MILLIS);
+                    mToneTimeoutToken = mAudioTaskExecutor.postDelayed(
+                            AudioTaskExecutor.LANE_CALL_PROGRESS, mToneTimeoutRunnable,
+                            toneLengthMillis + TIMEOUT_BUFFER_MILLIS);
                 }
             }
-            mState = STATE_OFF;
         } finally {
-            if (toneGenerator != null) {
-                toneGenerator.release();
+            if (!isToneOn) {
+                if (toneGenerator != null) {
+                    toneGenerator.release();
+                }
+                mState = STATE_OFF;
+                cleanUpTonePlayer();
+            }
+        }
+    }
+
+    /**
+     * Ends the tone if it is on. Executes on the call progress thread.
+     */
+    private void finishTone() {
+        ToneGenerator toneGenerator;
+        synchronized (this) {
+            toneGenerator = mToneGenerator;
+            if (toneGenerator == null) {
+                return;
             }
-            cleanUpTonePlayer();
-            Log.endSession();
+            mToneGenerator = null;
+            mState = STATE_OFF;
         }
+        toneGenerator.release();
+        cleanUpTonePlayer();
     }
-    
+
     @VisibleForTesting
     public void startTone() {
         sTonesPlaying++;
@@ -273,19 +315,13 @@ public class InCallTonePlayer extends Thread {
             mCallAudioManager.setIsTonePlaying(true);
         }
 
-        synchronized (mSessionLock) {
-            if (mSession != null) {
-                Log.cancelSubsession(mSession);
-            }
-            mSession = Log.createSubsession();
-        }
-
-        super.start();
-    }
-
-    @Override
-    public void start() {
-        Log.w(this, "Do not call the start method directly; use startTone instead.");
+        mAudioTaskExecutor.post(AudioTaskExecutor.LANE_CALL_PROGRESS,
+                new Runnable("ICTP.r", null /* lock */) {
+                    @Override
+                    public void loggedRun() {
+                        playTone();
+                    }
+                }.prepare());
     }
 
     /**
@@ -296,7 +332,14 @@ public class InCallTonePlayer extends Thread {
         synchronized (this) {
             if (mState == STATE_ON) {
                 Log.d(this, "Stopping the tone %d.", mToneId);
-                notify();
+                mToneTimeoutToken.cancel();
+                mToneTimeoutToken = mAudioTaskExecutor.post(AudioTaskExecutor.LANE_CALL_PROGRESS,
+                        new Runnable("ICTP.sT", null /* lock */) {
+                            @Override
+                            public void loggedRun() {
+                                finishTone();
+                            }
+                        }.prepare());
             }
             mState = STATE_STOPPED;
         }
@@ -21,6 +21,7 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.AsyncTask;
+import android.os.Debug;
 import android.telecom.PhoneAccount;
 import android.telecom.TimedEvent;
 import android.telephony.PhoneNumberUtils;
@@ -41,12 +42,10 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.IllegalFormatException;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -125,12 +124,16 @@ public class Log {
         public static final String STOP_DTMF = "STOP_DTMF";
         public static final String START_RINGER = "START_RINGER";
         public static final String STOP_RINGER = "STOP_RINGER";
+        public static final String RINGTONE_PLAYED = "RINGTONE_PLAYED";
         public static final String SKIP_RINGING = "SKIP_RINGING";
         public static final String START_CALL_WAITING_TONE = "START_CALL_WAITING_TONE";
         public static final String STOP_CALL_WAITING_TONE = "STOP_CALL_WAITING_TONE";
         public static final String START_CONNECTION = "START_CONNECTION";
         public static final String BIND_CS = "BIND_CS";
         public static final String CS_BOUND = "CS_BOUND";
+        public static final String BROADCAST_NEW_OUTGOING_CALL = "BROADCAST_NEW_OUTGOING_CALL";
+        public static final String CS_WARM_UP = "CS_WARM_UP";
+        public static final String CS_WARM_UP_RELEASED = "CS_WARM_UP_RELEASED";
         public static final String CONFERENCE_WITH = "CONF_WITH";
         public static final String SPLIT_FROM_CONFERENCE = "CONF_SPLIT";
         public static final String SWAP = "SWAP";
@@ -151,6 +154,14 @@ public class Log {
         public static final String SCREENING_BOUND = "SCREENING_BOUND";
         public static final String SCREENING_SENT = "SCREENING_SENT";
         public static final String SCREENING_COMPLETED = "SCREENING_COMPLETED";
+        public static final String PREBIND_INCALL = "PREBIND_INCALL";
+        public static final String INCALL_PREBOUND = "INCALL_PREBOUND";
+        public static final String BIND_INCALL = "BIND_INCALL";
+        public static final String INCALL_BOUND = "INCALL_BOUND";
+        public static final String BT_AUDIO_PRECONNECT = "BT_AUDIO_PRECONNECT";
+        public static final String BT_AUDIO_PRECONNECT_CANCELLED =
+                "BT_AUDIO_PRECONNECT_CANCELLED";
+        public static final String BT_AUDIO_CONNECTED = "BT_AUDIO_CONNECTED";
         public static final String BLOCK_CHECK_INITIATED = "BLOCK_CHECK_INITIATED";
         public static final String BLOCK_CHECK_FINISHED = "BLOCK_CHECK_FINISHED";
         public static final String DIRECT_TO_VM_INITIATED = "DIRECT_TO_VM_INITIATED";
@@ -179,12 +190,22 @@ public class Log {
             public static final String HOLD_TIMING = "hold";
             public static final String UNHOLD_TIMING = "unhold";
             public static final String OUTGOING_TIME_TO_DIALING_TIMING = "outgoing_time_to_dialing";
+            public static final String OUTGOING_TIME_TO_START_CONNECTION_TIMING =
+                    "outgoing_time_to_start_connection";
             public static final String BIND_CS_TIMING = "bind_cs";
             public static final String SCREENING_COMPLETED_TIMING = "screening_completed";
+            public static final String BIND_SCREENING_TIMING = "bind_screening";
+            public static final String PREBIND_INCALL_TIMING = "prebind_incall";
+            public static final String BIND_INCALL_TIMING = "bind_incall";
+            public static final String INCOMING_TIME_TO_INCALL_UI_TIMING =
+                    "incoming_time_to_incall_ui";
+            public static final String ACCEPT_TO_BT_AUDIO_TIMING = "accept_to_bt_audio";
             public static final String DIRECT_TO_VM_FINISHED_TIMING = "direct_to_vm_finished";
             public static final String BLOCK_CHECK_FINISHED_TIMING = "block_check_finished";
             public static final String FILTERING_COMPLETED_TIMING = "filtering_completed";
             public static final String FILTERING_TIMED_OUT_TIMING = "filtering_timed_out";
+            public static final String RINGING_TO_RINGTONE_PLAYED_TIMING =
+                    "ringing_to_ringtone_played";
 
             private static final TimedEventPair[] sTimedEvents = {
                     new TimedEventPair(REQUEST_ACCEPT, SET_ACTIVE, ACCEPT_TIMING),
@@ -194,9 +215,16 @@ public class Log {
                     new TimedEventPair(REQUEST_UNHOLD, SET_ACTIVE, UNHOLD_TIMING),
                     new TimedEventPair(START_CONNECTION, SET_DIALING,
                             OUTGOING_TIME_TO_DIALING_TIMING),
+                    new TimedEventPair(BROADCAST_NEW_OUTGOING_CALL, START_CONNECTION,
+                            OUTGOING_TIME_TO_START_CONNECTION_TIMING),
                     new TimedEventPair(BIND_CS, CS_BOUND, BIND_CS_TIMING),
                     new TimedEventPair(SCREENING_SENT, SCREENING_COMPLETED,
                             SCREENING_COMPLETED_TIMING),
+                    new TimedEventPair(BIND_SCREENING, SCREENING_BOUND, BIND_SCREENING_TIMING),
+                    new TimedEventPair(PREBIND_INCALL, INCALL_PREBOUND, PREBIND_INCALL_TIMING),
+                    new TimedEventPair(BIND_INCALL, INCALL_BOUND, BIND_INCALL_TIMING),
+                    new TimedEventPair(REQUEST_ACCEPT, BT_AUDIO_CONNECTED,
+                            ACCEPT_TO_BT_AUDIO_TIMING, 10000L),
                     new TimedEventPair(DIRECT_TO_VM_INITIATED, DIRECT_TO_VM_FINISHED,
                             DIRECT_TO_VM_FINISHED_TIMING),
                     new TimedEventPair(BLOCK_CHECK_INITIATED, BLOCK_CHECK_FINISHED,
@@ -205,6 +233,10 @@ public class Log {
                             FILTERING_COMPLETED_TIMING),
                     new TimedEventPair(FILTERING_INITIATED, FILTERING_TIMED_OUT,
                             FILTERING_TIMED_OUT_TIMING, 6000L),
+                    new TimedEventPair(FILTERING_INITIATED, INCALL_BOUND,
+                            INCOMING_TIME_TO_INCALL_UI_TIMING, 10000L),
+                    new TimedEventPair(SET_RINGING, RINGTONE_PLAYED,
+                            RINGING_TO_RINGTONE_PLAYED_TIMING),
             };
         }
 
@@ -406,8 +438,9 @@ public class Log {
     private static Context mContext = null;
     // Synchronized in all method calls
     private static int sCodeEntryCounter = 0;
+    // The active session of each thread. Read without the Log lock when messages are logged.
     @VisibleForTesting
-    public static ConcurrentHashMap<Integer, Session> sSessionMapper = new ConcurrentHashMap<>(100);
+    public static final SessionMapper sSessionMapper = new SessionMapper();
     @VisibleForTesting
     public static Handler sSessionCleanupHandler = new Handler(Looper.getMainLooper());
     @VisibleForTesting
@@ -520,15 +553,71 @@ public class Log {
                 }
             };
 
+    /**
+     * Reports how many bytes the calling thread has allocated so far. On device this is backed by
+     * the runtime's per-thread allocation counters, which only count while
+     * {@link Debug#startAllocCounting()} is in effect; tests running on a JVM can substitute
+     * {@code ThreadMXBean#getThreadAllocatedBytes}.
+     */
+    public interface IThreadAllocationCounter {
+        long getAllocatedBytes();
+    }
+    @VisibleForTesting
+    public static IThreadAllocationCounter sThreadAllocationCounter =
+            new IThreadAllocationCounter() {
+                @Override
+                public long getAllocatedBytes() {
+                    return Debug.getThreadAllocSize();
+                }
+            };
+
+    /**
+     * Tracks whether the bytes allocated by each session are recorded.
+     */
+    private static volatile boolean sIsAllocationProfilingEnabled = false;
+
+    /**
+     * Enable or disable recording the bytes allocated between the start and end of each session.
+     * The totals are reported per session name in {@link Analytics}. Counting allocations slows
+     * down every allocation in the process, so this is only meant to be enabled while
+     * investigating garbage created during calls.
+     *
+     * @param isAllocationProfilingEnabled {@code true} if allocations should be recorded,
+     *          {@code false} if they should not.
+     */
+    public static synchronized void setIsAllocationProfilingEnabled(
+            boolean isAllocationProfilingEnabled) {
+        if (sIsAllocationProfilingEnabled == isAllocationProfilingEnabled) {
+            return;
+        }
+        sIsAllocationProfilingEnabled = isAllocationProfilingEnabled;
+        if (isAllocationProfilingEnabled) {
+            Debug.startAllocCounting();
+        } else {
+            Debug.stopAllocCounting();
+        }
+    }
+
     private static long getSessionCleanupTimeoutMs() {
         return sSessionCleanupTimeoutMs.get();
     }
 
+    // Runs outside of any session, since the sweep is rescheduled whenever a session starts.
+    private static final TimeoutScheduler.Timeout sStaleSessionTimeout =
+            new TimeoutScheduler.Timeout("Log.cSS", () -> {
+                java.lang.Runnable cleanStaleSessions = sCleanStaleSessions;
+                if (cleanStaleSessions != null) {
+                    cleanStaleSessions.run();
+                }
+            });
+
     private static synchronized void resetStaleSessionTimer() {
-        sSessionCleanupHandler.removeCallbacksAndMessages(null);
         // Will be null in Log Testing
         if (sCleanStaleSessions != null) {
-            sSessionCleanupHandler.postDelayed(sCleanStaleSessions, getSessionCleanupTimeoutMs());
+            TimeoutScheduler.getInstance().schedule(sStaleSessionTimeout,
+                    getSessionCleanupTimeoutMs());
+        } else {
+            TimeoutScheduler.getInstance().cancel(sStaleSessionTimeout);
         }
     }
 
@@ -542,8 +631,7 @@ public class Log {
     public static synchronized void startSession(String shortMethodName,
             String callerIdentification) {
         resetStaleSessionTimer();
-        int threadId = getCallingThreadId();
-        Session activeSession = sSessionMapper.get(threadId);
+        Session activeSession = sSessionMapper.get();
         // We have called startSession within an active session that has not ended... Register this
         // session as a subsession.
         if (activeSession != null) {
@@ -551,9 +639,10 @@ public class Log {
             continueSession(childSession, shortMethodName);
             return;
         }
-        Session newSession = new Session(getNextSessionID(), shortMethodName,
-                System.currentTimeMillis(), threadId, false, callerIdentification);
-        sSessionMapper.put(threadId, newSession);
+        Session newSession = Session.obtain(getNextSessionID(), false, shortMethodName,
+                System.currentTimeMillis(), false, callerIdentification);
+        startAllocationTracking(newSession);
+        sSessionMapper.set(newSession);
 
         Log.v(LOGGING_TAG, Session.START_SESSION);
     }
@@ -569,15 +658,14 @@ public class Log {
     }
 
     private static synchronized Session createSubsession(boolean isStartedFromActiveSession) {
-        int threadId = getCallingThreadId();
-        Session threadSession = sSessionMapper.get(threadId);
+        Session threadSession = sSessionMapper.get();
         if (threadSession == null) {
             Log.d(LOGGING_TAG, "Log.createSubsession was called with no session active.");
             return null;
         }
         // Start execution time of the session will be overwritten in continueSession(...).
-        Session newSubsession = new Session(threadSession.getNextChildId(),
-                threadSession.getShortMethodName(), System.currentTimeMillis(), threadId,
+        Session newSubsession = Session.obtain(threadSession.getNextChildId(), true,
+                threadSession.getShortMethodName(), System.currentTimeMillis(),
                 isStartedFromActiveSession, null);
         threadSession.addChild(newSubsession);
         newSubsession.setParentSession(threadSession);
@@ -593,10 +681,11 @@ public class Log {
     /**
      * Cancels a subsession that had Log.createSubsession() called on it, but will never have
      * Log.continueSession(...) called on it due to an error. Allows the subsession to be cleaned
-     * gracefully instead of being removed by the sSessionCleanupHandler forcefully later.
+     * gracefully instead of being removed by the stale session sweep forcefully later.
      */
     public static synchronized void cancelSubsession(Session subsession) {
-        if (subsession == null) {
+        // The subsession may already have been run or cancelled.
+        if (subsession == null || subsession.isSessionCompleted()) {
             return;
         }
 
@@ -613,6 +702,11 @@ public class Log {
         if (subsession == null) {
             return;
         }
+        if (subsession.isSessionCompleted()) {
+            Log.d(LOGGING_TAG, "Log.continueSession was called with a completed subsession for " +
+                    "method %s.", shortMethodName);
+            return;
+        }
         resetStaleSessionTimer();
         String callingMethodName = subsession.getShortMethodName();
         subsession.setShortMethodName(callingMethodName + "->" + shortMethodName);
@@ -624,7 +718,8 @@ public class Log {
             return;
         }
 
-        sSessionMapper.put(getCallingThreadId(), subsession);
+        sSessionMapper.set(subsession);
+        startAllocationTracking(subsession);
         if(!subsession.isStartedFromActiveSession()) {
             Log.v(LOGGING_TAG, Session.CONTINUE_SUBSESSION);
         } else {
@@ -634,8 +729,7 @@ public class Log {
     }
 
     public static void checkIsThreadLogged() {
-        int threadId = getCallingThreadId();
-        Session threadSession = sSessionMapper.get(threadId);
+        Session threadSession = sSessionMapper.get();
         if (threadSession == null) {
             android.util.Log.e(LOGGING_TAG, "Logging Thread Check Failed!", new Exception());
         }
@@ -646,14 +740,14 @@ public class Log {
      * Log.continueSession(...) call.
      */
     public static synchronized void endSession() {
-        int threadId = getCallingThreadId();
-        Session completedSession = sSessionMapper.get(threadId);
+        Session completedSession = sSessionMapper.get();
         if (completedSession == null) {
             Log.w(LOGGING_TAG, "Log.endSession was called with no session active.");
             return;
         }
 
         completedSession.markSessionCompleted(System.currentTimeMillis());
+        endAllocationTracking(completedSession);
         if(!completedSession.isStartedFromActiveSession()) {
             Log.v(LOGGING_TAG, Session.END_SUBSESSION + " (dur: " +
                     completedSession.getLocalExecutionTime() + " mS)");
@@ -663,13 +757,16 @@ public class Log {
         }
         // Remove after completed so that reference still exists for logging the end events
         Session parentSession = completedSession.getParentSession();
-        sSessionMapper.remove(threadId);
-        endParentSessions(completedSession);
         // If this subsession was started from a parent session using Log.startSession, return the
-        // ThreadID back to the parent after completion.
-        if (parentSession != null && !parentSession.isSessionCompleted() &&
-                completedSession.isStartedFromActiveSession()) {
-            sSessionMapper.put(threadId, parentSession);
+        // ThreadID back to the parent after completion. Decided before the completed sessions are
+        // recycled.
+        boolean isReturningToParent = parentSession != null &&
+                !parentSession.isSessionCompleted() &&
+                completedSession.isStartedFromActiveSession();
+        sSessionMapper.set(null);
+        endParentSessions(completedSession);
+        if (isReturningToParent) {
+            sSessionMapper.set(parentSession);
         }
     }
 
@@ -685,25 +782,54 @@ public class Log {
         if (parentSession != null) {
             subsession.setParentSession(null);
             parentSession.removeChild(subsession);
+            subsession.recycle();
             endParentSessions(parentSession);
         } else {
             // All of the subsessions have been completed and it is time to report on the full
             // running time of the session.
             long fullSessionTimeMs =
                     System.currentTimeMillis() - subsession.getExecutionStartTimeMilliseconds();
-            Analytics.addSessionTiming(subsession.getShortMethodName(), fullSessionTimeMs);
+            Analytics.addSessionTiming(subsession.getShortMethodName(), fullSessionTimeMs,
+                    subsession.getAllocatedBytes());
             Log.v(LOGGING_TAG, Session.END_SESSION + " (dur: " + fullSessionTimeMs + " ms): " +
                     subsession.toString());
+            subsession.recycle();
+        }
+    }
+
+    private static void startAllocationTracking(Session session) {
+        // A session started from an active session on the same thread runs within the parent's
+        // measurement, so it is not measured separately.
+        if (sIsAllocationProfilingEnabled && !session.isStartedFromActiveSession()) {
+            session.setAllocationStartBytes(sThreadAllocationCounter.getAllocatedBytes());
+        }
+    }
+
+    // Adds the bytes allocated while the subsession ran to its top level session.
+    private static void endAllocationTracking(Session subsession) {
+        long startBytes = subsession.getAllocationStartBytes();
+        if (startBytes == Session.UNDEFINED) {
+            return;
+        }
+        long allocatedBytes = sThreadAllocationCounter.getAllocatedBytes() - startBytes;
+        // The thread's counter was cleared, or wrapped around, while the subsession ran.
+        if (allocatedBytes < 0) {
+            return;
         }
+        Session topLevelSession = subsession;
+        while (topLevelSession.getParentSession() != null) {
+            topLevelSession = topLevelSession.getParentSession();
+        }
+        topLevelSession.addAllocatedBytes(allocatedBytes);
     }
 
-    private synchronized static String getNextSessionID() {
-        Integer nextId = sCodeEntryCounter++;
+    private synchronized static int getNextSessionID() {
+        int nextId = sCodeEntryCounter++;
         if (nextId >= SESSION_ID_ROLLOVER_THRESHOLD) {
             restartSessionCounter();
             nextId = sCodeEntryCounter++;
         }
-        return getBase64Encoding(nextId);
+        return nextId;
     }
 
     @VisibleForTesting
@@ -727,7 +853,7 @@ public class Log {
     }
 
     public static void event(Call call, String event, Object data) {
-        Session currentSession = sSessionMapper.get(getCallingThreadId());
+        Session currentSession = sSessionMapper.get();
         String currentSessionID = currentSession != null ? currentSession.toString() : "";
 
         if (call == null) {
@@ -768,15 +894,11 @@ public class Log {
         // sessions that are lasting longer than LOGGING_SESSION_TIMEOUT_MS.
         // If this occurs, then there is most likely a Session active that never had
         // Log.endSession called on it.
-        for (Iterator<ConcurrentHashMap.Entry<Integer, Session>> it =
-             sSessionMapper.entrySet().iterator(); it.hasNext(); ) {
-            ConcurrentHashMap.Entry<Integer, Session> entry = it.next();
-            Session session = entry.getValue();
-            if (currentTimeMs - session.getExecutionStartTimeMilliseconds() > timeoutMs) {
-                it.remove();
-                logMessage += session.printFullSessionTree() + "\n";
-                isSessionsStale = true;
-            }
+        // Stale sessions are not recycled, since whoever failed to end them may still use them.
+        for (Session session :
+                sSessionMapper.removeSessionsStartedBefore(currentTimeMs - timeoutMs)) {
+            logMessage += session.printFullSessionTree() + "\n";
+            isSessionsStale = true;
         }
         if (isSessionsStale) {
             Log.w(LOGGING_TAG, logMessage);
@@ -1011,7 +1133,7 @@ public class Log {
         }
         // Incorporate thread ID and calling method into prefix
         String sessionPostfix = "";
-        Session currentSession = sSessionMapper.get(getCallingThreadId());
+        Session currentSession = sSessionMapper.get();
         if (currentSession != null) {
             sessionPostfix = ": " + currentSession.toString();
         }
@@ -80,6 +80,12 @@ public class NewOutgoingCallIntentBroadcaster {
      */
     private final boolean mIsDefaultOrSystemPhoneApp;
 
+    /**
+     * The connection service being bound while the broadcast is in progress, if any; see
+     * {@link CallsManager#warmUpConnectionService}.
+     */
+    private ConnectionServiceWrapper mWarmConnectionService;
+
     @VisibleForTesting
     public NewOutgoingCallIntentBroadcaster(Context context, CallsManager callsManager, Call call,
             Intent intent, PhoneNumberUtilsAdapter phoneNumberUtilsAdapter,
@@ -125,6 +131,8 @@ public class NewOutgoingCallIntentBroadcaster {
                     }
 
                     if (endEarly) {
+                        releaseConnectionServiceWarmUp();
+                        mCallsManager.releaseInCallServicesPreBinding();
                         if (mCall != null) {
                             mCall.disconnect(true /* wasViaNewOutgoingCall */);
                         }
@@ -135,6 +143,8 @@ public class NewOutgoingCallIntentBroadcaster {
                     if (mCall.isDisconnected()) {
                         Log.w(this, "Call has already been disconnected," +
                                         " ignore the broadcast Call %s", mCall);
+                        releaseConnectionServiceWarmUp();
+                        mCallsManager.releaseInCallServicesPreBinding();
                         return;
                     }
 
@@ -153,6 +163,8 @@ public class NewOutgoingCallIntentBroadcaster {
                                 " broadcast: Original: %s, Modified: %s",
                                 Log.pii(originalUri),
                                 Log.pii(resultHandleUri));
+                        // The service was picked for the original number.
+                        releaseConnectionServiceWarmUp();
                     }
 
                     GatewayInfo gatewayInfo = getGateWayInfoFromIntent(intent, resultHandleUri);
@@ -162,6 +174,9 @@ public class NewOutgoingCallIntentBroadcaster {
                                     TelecomManager.EXTRA_START_CALL_WITH_SPEAKERPHONE, false),
                             mIntent.getIntExtra(TelecomManager.EXTRA_START_CALL_WITH_VIDEO_STATE,
                                     VideoProfile.STATE_AUDIO_ONLY));
+                    // Released only now so that the binding carries over to the call if it was
+                    // placed through the same service.
+                    releaseConnectionServiceWarmUp();
                 }
             } finally {
                 Trace.endSection();
@@ -294,6 +309,17 @@ public class NewOutgoingCallIntentBroadcaster {
             // initiate the call again because of the presence of the EXTRA_ALREADY_CALLED extra.
         }
 
+        // Calls which have not been added yet (e.g. potential MMI codes) are only added once the
+        // broadcast completes; start the in-call UI in the meantime.
+        mCallsManager.preBindInCallServices(mCall);
+
+        if (!callImmediately) {
+            // Bind to the connection service while receivers see the broadcast, rather than
+            // after they have all finished.
+            Log.event(mCall, Log.Events.BROADCAST_NEW_OUTGOING_CALL);
+            mWarmConnectionService = mCallsManager.warmUpConnectionService(mCall);
+        }
+
         UserHandle targetUser = mCall.getInitiatingUser();
         Log.i(this, "Sending NewOutgoingCallBroadcast for %s to %s", mCall, targetUser);
         if (isSkipSchemaParsing) {
@@ -343,6 +369,13 @@ public class NewOutgoingCallIntentBroadcaster {
                 null);  // initialExtras
     }
 
+    private void releaseConnectionServiceWarmUp() {
+        if (mWarmConnectionService != null) {
+            mCallsManager.releaseConnectionServiceWarmUp(mCall, mWarmConnectionService);
+            mWarmConnectionService = null;
+        }
+    }
+
     /**
      * Copy all the expected extras set when a 3rd party gateway provider is to be used, from the
      * source intent to the destination one.
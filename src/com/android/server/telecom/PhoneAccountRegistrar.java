@@ -17,9 +17,11 @@
 package com.android.server.telecom;
 
 import android.Manifest;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
@@ -77,7 +79,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collector;
@@ -136,6 +137,21 @@ public class PhoneAccountRegistrar {
     private final SubscriptionManager mSubscriptionManager;
     private State mState;
     private UserHandle mCurrentUserHandle;
+    private volatile PublishedQueries mPublishedQueries = new PublishedQueries();
+
+    /**
+     * Drops the published query results when a connection service may have been enabled, disabled,
+     * installed or removed, or when a user or profile changes, since the results also depend on
+     * which components resolve and which profiles can see an account.
+     */
+    private final BroadcastReceiver mPublishedQueriesReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(PhoneAccountRegistrar.this, "%s, dropping published queries",
+                    intent.getAction());
+            mPublishedQueries = new PublishedQueries();
+        }
+    };
     private interface PhoneAccountRegistrarWriteLock {}
     private final PhoneAccountRegistrarWriteLock mWriteLock =
             new PhoneAccountRegistrarWriteLock() {};
@@ -163,6 +179,26 @@ public class PhoneAccountRegistrar {
         mSubscriptionManager = SubscriptionManager.from(mContext);
         mCurrentUserHandle = Process.myUserHandle();
         read();
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mPublishedQueriesReceiver, UserHandle.ALL, packageFilter,
+                null, null);
+
+        IntentFilter userFilter = new IntentFilter();
+        userFilter.addAction(Intent.ACTION_USER_ADDED);
+        userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        userFilter.addAction(Intent.ACTION_USER_UNLOCKED);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_AVAILABLE);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_UNAVAILABLE);
+        mContext.registerReceiverAsUser(mPublishedQueriesReceiver, UserHandle.ALL, userFilter,
+                null, null);
     }
 
     /**
@@ -194,6 +230,32 @@ public class PhoneAccountRegistrar {
      */
     public PhoneAccountHandle getOutgoingPhoneAccountForScheme(String uriScheme,
             UserHandle userHandle) {
+        final PublishedQueries publishedQueries = mPublishedQueries;
+        final PhoneAccountHandle outgoing = getOutgoingPhoneAccountForSchemeInternal(uriScheme,
+                userHandle);
+        if (!isUserSelectedOutgoingFromVoiceSubscription(userHandle)) {
+            publishedQueries.outgoingAccounts.put(PublishedQueries.key(userHandle, uriScheme),
+                    new PublishedOutgoingAccount(true /* isPublished */, outgoing));
+        }
+        return outgoing;
+    }
+
+    /**
+     * Returns the result of {@link #getOutgoingPhoneAccountForScheme} if it has been published
+     * since the last change to the registered accounts. Can be called without holding the Telecom
+     * lock.
+     *
+     * @return The published result, or {@link PublishedOutgoingAccount#NOT_PUBLISHED}.
+     */
+    public PublishedOutgoingAccount getPublishedOutgoingPhoneAccountForScheme(String uriScheme,
+            UserHandle userHandle) {
+        final PublishedOutgoingAccount published =
+                mPublishedQueries.outgoingAccounts.get(PublishedQueries.key(userHandle, uriScheme));
+        return published != null ? published : PublishedOutgoingAccount.NOT_PUBLISHED;
+    }
+
+    private PhoneAccountHandle getOutgoingPhoneAccountForSchemeInternal(String uriScheme,
+            UserHandle userHandle) {
         final PhoneAccountHandle userSelected = getUserSelectedOutgoingPhoneAccount(userHandle);
 
         if (userSelected != null) {
@@ -252,6 +314,15 @@ public class PhoneAccountRegistrar {
         return null;
     }
 
+    /**
+     * @return {@code true} if the user selected outgoing account is taken from the default voice
+     *         subscription, which can change without the registrar being told.
+     */
+    private boolean isUserSelectedOutgoingFromVoiceSubscription(UserHandle userHandle) {
+        return userHandle != null && mState.defaultOutgoingAccountHandles.get(userHandle) == null
+                && TelephonyManager.getDefault().getPhoneCount() > 1;
+    }
+
     PhoneAccountHandle getUserSelectedVoicePhoneAccount() {
         long voiceSubId = SubscriptionManager.getDefaultVoiceSubscriptionId();
         PhoneAccountHandle prefPhoneAccount = null;
@@ -400,6 +471,16 @@ public class PhoneAccountRegistrar {
      * 3. Otherwise, we return null.
      */
     public PhoneAccountHandle getSimCallManager(UserHandle userHandle) {
+        return getSimCallManager(userHandle, null);
+    }
+
+    /**
+     * @param simCallManagers The connection managers visible to the user, or {@code null} to look
+     *         them up.
+     * @see #getSimCallManager(UserHandle)
+     */
+    private PhoneAccountHandle getSimCallManager(UserHandle userHandle,
+            List<PhoneAccountHandle> simCallManagers) {
         // Get the default dialer in case it has a connection manager associated with it.
         String dialerPackage = DefaultDialerManager
                 .getDefaultDialerApplication(mContext, userHandle.getIdentifier());
@@ -412,9 +493,8 @@ public class PhoneAccountRegistrar {
 
         if (!TextUtils.isEmpty(dialerPackage) || systemSimCallManagerComponent != null) {
             // loop through and look for any connection manager in the same package.
-            List<PhoneAccountHandle> allSimCallManagers = getPhoneAccountHandles(
-                    PhoneAccount.CAPABILITY_CONNECTION_MANAGER, null, null,
-                    true /* includeDisabledAccounts */, userHandle);
+            List<PhoneAccountHandle> allSimCallManagers = simCallManagers != null
+                    ? simCallManagers : getSimCallManagerCandidates(userHandle);
             for (PhoneAccountHandle accountHandle : allSimCallManagers) {
                 ComponentName component = accountHandle.getComponentName();
 
@@ -441,6 +521,11 @@ public class PhoneAccountRegistrar {
         return retval;
     }
 
+    private List<PhoneAccountHandle> getSimCallManagerCandidates(UserHandle userHandle) {
+        return getPhoneAccountHandles(PhoneAccount.CAPABILITY_CONNECTION_MANAGER, null, null,
+                true /* includeDisabledAccounts */, userHandle);
+    }
+
     /**
      * If it is a outgoing call, sim call manager of call-initiating user is returned.
      * Otherwise, we return the sim call manager of the user associated with the
@@ -475,6 +560,7 @@ public class PhoneAccountRegistrar {
         }
         Log.d(this, "setCurrentUserHandle, %s", userHandle);
         mCurrentUserHandle = userHandle;
+        mPublishedQueries = new PublishedQueries();
     }
 
     /**
@@ -600,10 +686,27 @@ public class PhoneAccountRegistrar {
      */
     public List<PhoneAccountHandle> getCallCapablePhoneAccounts(
             String uriScheme, boolean includeDisabledAccounts, UserHandle userHandle) {
-        return getPhoneAccountHandles(
+        final PublishedQueries publishedQueries = mPublishedQueries;
+        final List<PhoneAccountHandle> handles = getPhoneAccountHandles(
                 PhoneAccount.CAPABILITY_CALL_PROVIDER,
                 PhoneAccount.CAPABILITY_EMERGENCY_CALLS_ONLY /*excludedCapabilities*/,
                 uriScheme, null, includeDisabledAccounts, userHandle);
+        publishedQueries.callCapableAccounts.put(
+                PublishedQueries.key(userHandle, uriScheme, includeDisabledAccounts),
+                Collections.unmodifiableList(new ArrayList<>(handles)));
+        return handles;
+    }
+
+    /**
+     * Returns the result of {@link #getCallCapablePhoneAccounts} if it has been published since
+     * the last change to the registered accounts. Can be called without holding the Telecom lock.
+     *
+     * @return An unmodifiable list, or {@code null} if there is none published.
+     */
+    public List<PhoneAccountHandle> getPublishedCallCapablePhoneAccounts(
+            String uriScheme, boolean includeDisabledAccounts, UserHandle userHandle) {
+        return mPublishedQueries.callCapableAccounts.get(
+                PublishedQueries.key(userHandle, uriScheme, includeDisabledAccounts));
     }
 
     public List<PhoneAccountHandle> getCallCapablePhoneAccountsOfCurrentUser(
@@ -1050,21 +1153,112 @@ public class PhoneAccountRegistrar {
     }
 
     /**
-     * Dumps the state of the {@link CallsManager}.
+     * A result of {@link #getOutgoingPhoneAccountForScheme} published in {@link PublishedQueries}.
+     * The handle is {@code null} both when the result is not published and when there is no
+     * outgoing account, so callers check {@link #isPublished} first.
+     */
+    public static final class PublishedOutgoingAccount {
+        public static final PublishedOutgoingAccount NOT_PUBLISHED =
+                new PublishedOutgoingAccount(false /* isPublished */, null);
+
+        public final boolean isPublished;
+        public final PhoneAccountHandle handle;
+
+        public PublishedOutgoingAccount(boolean isPublished, PhoneAccountHandle handle) {
+            this.isPublished = isPublished;
+            this.handle = handle;
+        }
+    }
+
+    /**
+     * The results of the account queries which apps make most often, published so that
+     * {@link TelecomServiceImpl} can answer them without holding the Telecom lock. Results are
+     * added as they are computed, and a new, empty instance replaces the current one whenever the
+     * registered accounts, the user selected defaults or the current user change, and whenever a
+     * package, user or profile change is broadcast. An instance therefore never holds a result
+     * computed from an older state for longer than it takes to deliver that broadcast.
+     */
+    private static final class PublishedQueries {
+        final Map<String, List<PhoneAccountHandle>> callCapableAccounts =
+                new ConcurrentHashMap<>();
+        final Map<String, PublishedOutgoingAccount> outgoingAccounts =
+                new ConcurrentHashMap<>();
+
+        static String key(UserHandle userHandle, String uriScheme) {
+            return userHandle + "/" + uriScheme;
+        }
+
+        static String key(UserHandle userHandle, String uriScheme,
+                boolean includeDisabledAccounts) {
+            return key(userHandle, uriScheme) + "/" + includeDisabledAccounts;
+        }
+    }
+
+    /**
+     * The state of the {@link PhoneAccountRegistrar} shown by dumpsys. Copied by
+     * {@link #getDumpState} while holding the Telecom lock, so that it can be written out, and the
+     * SIM call manager looked up, once the lock is released.
+     */
+    public static final class DumpState {
+        private final int mVersionNumber;
+        private final UserHandle mUserHandle;
+        private final PhoneAccountHandle mDefaultOutgoing;
+        private final List<PhoneAccount> mAccounts;
+
+        @VisibleForTesting
+        public DumpState(int versionNumber, UserHandle userHandle,
+                PhoneAccountHandle defaultOutgoing, List<PhoneAccount> accounts) {
+            mVersionNumber = versionNumber;
+            mUserHandle = userHandle;
+            mDefaultOutgoing = defaultOutgoing;
+            mAccounts = Collections.unmodifiableList(new ArrayList<>(accounts));
+        }
+    }
+
+    /**
+     * Copies the state of the {@link PhoneAccountRegistrar} for dumpsys. Must be called while
+     * holding the Telecom lock.
+     *
+     * @return The copied state, or {@code null} if the state has not been read yet.
+     */
+    public DumpState getDumpState() {
+        if (mState == null) {
+            return null;
+        }
+        DefaultPhoneAccountHandle defaultPhoneAccountHandle
+                = mState.defaultOutgoingAccountHandles.get(Process.myUserHandle());
+        return new DumpState(mState.versionNumber, mCurrentUserHandle,
+                defaultPhoneAccountHandle == null ? null
+                        : defaultPhoneAccountHandle.phoneAccountHandle,
+                mState.accounts);
+    }
+
+    /**
+     * Dumps the state copied by {@link #getDumpState}. Looks up the SIM call manager from the
+     * copied accounts, which calls out to the telephony and package managers, so should not be
+     * called while holding the Telecom lock.
      *
      * @param pw The {@code IndentingPrintWriter} to write the state to.
+     * @param state The copied state.
      */
-    public void dump(IndentingPrintWriter pw) {
-        if (mState != null) {
-            pw.println("xmlVersion: " + mState.versionNumber);
-            DefaultPhoneAccountHandle defaultPhoneAccountHandle
-                    = mState.defaultOutgoingAccountHandles.get(Process.myUserHandle());
-            pw.println("defaultOutgoing: " + (defaultPhoneAccountHandle == null ? "none" :
-                    defaultPhoneAccountHandle.phoneAccountHandle));
-            pw.println("simCallManager: " + getSimCallManager(mCurrentUserHandle));
+    public void dump(IndentingPrintWriter pw, DumpState state) {
+        if (state != null) {
+            List<PhoneAccountHandle> simCallManagers = new ArrayList<>();
+            for (PhoneAccount account : state.mAccounts) {
+                if (account.hasCapabilities(PhoneAccount.CAPABILITY_CONNECTION_MANAGER)
+                        && !resolveComponent(account.getAccountHandle()).isEmpty()
+                        && isVisibleForUser(account, state.mUserHandle, false)) {
+                    simCallManagers.add(account.getAccountHandle());
+                }
+            }
+
+            pw.println("xmlVersion: " + state.mVersionNumber);
+            pw.println("defaultOutgoing: " + (state.mDefaultOutgoing == null ? "none" :
+                    state.mDefaultOutgoing));
+            pw.println("simCallManager: " + getSimCallManager(state.mUserHandle, simCallManagers));
             pw.println("phoneAccounts:");
             pw.increaseIndent();
-            for (PhoneAccount phoneAccount : mState.accounts) {
+            for (PhoneAccount phoneAccount : state.mAccounts) {
                 pw.println(phoneAccount);
             }
             pw.decreaseIndent();
@@ -1096,6 +1290,9 @@ public class PhoneAccountRegistrar {
     }
 
     private void write() {
+        // Every change to the state is written out, so this is where published results are
+        // dropped.
+        mPublishedQueries = new PublishedQueries();
         try {
             ByteArrayOutputStream os = new ByteArrayOutputStream();
             XmlSerializer serializer = new FastXmlSerializer();
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+import android.telephony.CarrierConfigManager;
+import android.util.SparseArray;
+
+import com.android.internal.telephony.TelephonyIntents;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Caches, per user, the SIM call manager and the SIM connection services handed to it when it
+ * queries its remote connection services, so that a SIM call manager which queries them each time
+ * it is bound does not cause a scan of the phone accounts and a bind of every SIM connection
+ * service each time.
+ * <p>
+ * A user's entry is dropped when the phone accounts change, when an input to the choice of SIM
+ * call manager changes (the default dialer, the carrier config, the default subscription or an
+ * installed package), when a cached connection service is unbound or dies, and when the user is
+ * removed.
+ * <p>
+ * Must be accessed with the Telecom lock held.
+ */
+public class RemoteConnectionServicesCache {
+    /**
+     * The SIM connection services given to a user's SIM call manager.
+     */
+    public static final class RemoteServices {
+        public final List<ComponentName> componentNames;
+        public final List<IBinder> binders;
+
+        RemoteServices(List<ComponentName> componentNames, List<IBinder> binders) {
+            this.componentNames = Collections.unmodifiableList(new ArrayList<>(componentNames));
+            this.binders = Collections.unmodifiableList(new ArrayList<>(binders));
+        }
+
+        boolean isAlive() {
+            for (IBinder binder : binders) {
+                if (!binder.isBinderAlive()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final class Entry implements IBinder.DeathRecipient {
+        boolean hasSimCallManager;
+        PhoneAccountHandle simCallManager;
+        RemoteServices remoteServices;
+
+        void setRemoteServices(RemoteServices services) {
+            remoteServices = services;
+            for (IBinder binder : services.binders) {
+                try {
+                    binder.linkToDeath(this, 0);
+                } catch (RemoteException e) {
+                    // Already dead; the entry is dropped when it is next read.
+                }
+            }
+        }
+
+        void clearRemoteServices() {
+            if (remoteServices == null) {
+                return;
+            }
+            for (IBinder binder : remoteServices.binders) {
+                binder.unlinkToDeath(this, 0);
+            }
+            remoteServices = null;
+        }
+
+        @Override
+        public void binderDied() {
+            Log.startSession("RCSC.bD");
+            try {
+                synchronized (mLock) {
+                    if (remoteServices != null) {
+                        invalidate("binder died");
+                    }
+                }
+            } finally {
+                Log.endSession();
+            }
+        }
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.startSession("RCSC.oR");
+            try {
+                synchronized (mLock) {
+                    String action = intent.getAction();
+                    if (Intent.ACTION_USER_REMOVED.equals(action)) {
+                        int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE,
+                                UserHandle.USER_NULL);
+                        Entry entry = mEntriesByUser.get(userId);
+                        if (entry != null) {
+                            entry.clearRemoteServices();
+                            mEntriesByUser.remove(userId);
+                        }
+                    } else {
+                        invalidate(action);
+                    }
+                }
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
+
+    private final PhoneAccountRegistrar.Listener mRegistrarListener =
+            new PhoneAccountRegistrar.Listener() {
+                @Override
+                public void onAccountsChanged(PhoneAccountRegistrar registrar) {
+                    invalidate("accounts changed");
+                }
+
+                @Override
+                public void onSimCallManagerChanged(PhoneAccountRegistrar registrar) {
+                    invalidate("SIM call manager changed");
+                }
+            };
+
+    private final Context mContext;
+    private final TelecomSystem.SyncRoot mLock;
+    private final PhoneAccountRegistrar mPhoneAccountRegistrar;
+
+    /** Entries keyed by user ID. */
+    private final SparseArray<Entry> mEntriesByUser = new SparseArray<>();
+    /** Incremented on each invalidation so that a query in flight does not store a stale result. */
+    private int mGeneration;
+    private int mHits;
+    private int mMisses;
+
+    public RemoteConnectionServicesCache(Context context, TelecomSystem.SyncRoot lock,
+            PhoneAccountRegistrar phoneAccountRegistrar) {
+        mContext = context;
+        mLock = lock;
+        mPhoneAccountRegistrar = phoneAccountRegistrar;
+        mPhoneAccountRegistrar.addListener(mRegistrarListener);
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mReceiver, UserHandle.ALL, packageFilter, null, null);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_USER_REMOVED);
+        filter.addAction(TelecomManager.ACTION_DEFAULT_DIALER_CHANGED);
+        filter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        // The carrier config is read for the default subscription.
+        filter.addAction(TelephonyIntents.ACTION_DEFAULT_VOICE_SUBSCRIPTION_CHANGED);
+        filter.addAction(TelephonyIntents.ACTION_DEFAULT_SUBSCRIPTION_CHANGED);
+        mContext.registerReceiverAsUser(mReceiver, UserHandle.ALL, filter, null, null);
+    }
+
+    /**
+     * @return The user's SIM call manager, as returned by
+     *         {@link PhoneAccountRegistrar#getSimCallManager}.
+     */
+    public PhoneAccountHandle getSimCallManager(UserHandle userHandle) {
+        Entry entry = getEntry(userHandle);
+        if (!entry.hasSimCallManager) {
+            entry.simCallManager = mPhoneAccountRegistrar.getSimCallManager(userHandle);
+            entry.hasSimCallManager = true;
+        }
+        return entry.simCallManager;
+    }
+
+    /**
+     * @return The SIM connection services last given to the user's SIM call manager, or
+     *         {@code null} if they have to be looked up and bound again.
+     */
+    public RemoteServices getRemoteServices(UserHandle userHandle) {
+        Entry entry = mEntriesByUser.get(userHandle.getIdentifier());
+        RemoteServices services = entry == null ? null : entry.remoteServices;
+        if (services != null && !services.isAlive()) {
+            invalidate("binder not alive");
+            services = null;
+        }
+        if (services == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return services;
+    }
+
+    /**
+     * @return A token to pass to {@link #putRemoteServices} once the services have been bound.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Stores the SIM connection services given to the user's SIM call manager, unless the cache
+     * was invalidated since {@code generation} was read.
+     */
+    public void putRemoteServices(UserHandle userHandle, int generation,
+            List<ComponentName> componentNames, List<IBinder> binders) {
+        if (generation != mGeneration) {
+            Log.d(this, "Not caching remote services for %s; invalidated while binding.",
+                    userHandle);
+            return;
+        }
+        Entry entry = getEntry(userHandle);
+        entry.clearRemoteServices();
+        entry.setRemoteServices(new RemoteServices(componentNames, binders));
+    }
+
+    /**
+     * Drops the entries which include the connection service, which has been unbound.
+     */
+    public void onServiceUnbound(ComponentName componentName) {
+        for (int i = 0; i < mEntriesByUser.size(); i++) {
+            RemoteServices services = mEntriesByUser.valueAt(i).remoteServices;
+            if (services != null && services.componentNames.contains(componentName)) {
+                invalidate(componentName.flattenToShortString() + " unbound");
+                return;
+            }
+        }
+    }
+
+    /**
+     * The state of the {@link RemoteConnectionServicesCache} shown by dumpsys.
+     */
+    public static final class DumpState {
+        private final int mHits;
+        private final int mMisses;
+        private final int[] mUserIds;
+        private final PhoneAccountHandle[] mSimCallManagers;
+        private final List<List<ComponentName>> mRemoteServices;
+
+        private DumpState(int hits, int misses, int[] userIds,
+                PhoneAccountHandle[] simCallManagers, List<List<ComponentName>> remoteServices) {
+            mHits = hits;
+            mMisses = misses;
+            mUserIds = userIds;
+            mSimCallManagers = simCallManagers;
+            mRemoteServices = remoteServices;
+        }
+
+        public void dump(IndentingPrintWriter pw) {
+            pw.println("RemoteConnectionServicesCache:");
+            pw.increaseIndent();
+            pw.println("hits: " + mHits + ", misses: " + mMisses);
+            for (int i = 0; i < mUserIds.length; i++) {
+                pw.print("user " + mUserIds[i] + ": ");
+                pw.println("simCallManager=" + mSimCallManagers[i] + ", remoteServices="
+                        + mRemoteServices.get(i));
+            }
+            pw.decreaseIndent();
+        }
+    }
+
+    public DumpState getDumpState() {
+        int size = mEntriesByUser.size();
+        int[] userIds = new int[size];
+        PhoneAccountHandle[] simCallManagers = new PhoneAccountHandle[size];
+        List<List<ComponentName>> remoteServices = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Entry entry = mEntriesByUser.valueAt(i);
+            userIds[i] = mEntriesByUser.keyAt(i);
+            simCallManagers[i] = entry.simCallManager;
+            // The component names of a RemoteServices are already an unmodifiable copy.
+            remoteServices.add(entry.remoteServices == null ? null
+                    : entry.remoteServices.componentNames);
+        }
+        return new DumpState(mHits, mMisses, userIds, simCallManagers, remoteServices);
+    }
+
+    private Entry getEntry(UserHandle userHandle) {
+        Entry entry = mEntriesByUser.get(userHandle.getIdentifier());
+        if (entry == null) {
+            entry = new Entry();
+            mEntriesByUser.put(userHandle.getIdentifier(), entry);
+        }
+        return entry;
+    }
+
+    private void invalidate(String reason) {
+        mGeneration++;
+        if (mEntriesByUser.size() == 0) {
+            return;
+        }
+        Log.i(this, "Invalidating remote connection services: %s", reason);
+        for (int i = 0; i < mEntriesByUser.size(); i++) {
+            mEntriesByUser.valueAt(i).clearRemoteServices();
+        }
+        mEntriesByUser.clear();
+    }
+}
@@ -20,11 +20,13 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.media.AudioAttributes;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Vibrator;
+import android.provider.Settings;
 
 import com.android.internal.annotations.VisibleForTesting;
 import cyanogenmod.providers.CMSettings;
@@ -63,6 +65,20 @@ public class Ringer {
     private InCallTonePlayer mCallWaitingPlayer;
     private RingtoneFactory mRingtoneFactory;
 
+    // Notified on a binder thread, so that the settings are not read on the ringing path.
+    private final ContentObserver mSettingsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            loadSettings();
+        }
+    };
+
+    /** The ringing settings, read whenever one of them changes. */
+    private volatile boolean mIsIncreasingRing;
+    private volatile float mIncreasingRingStartVolume;
+    private volatile int mIncreasingRingRampUpTime;
+    private volatile boolean mCanVibrateWhenRinging;
+
     /**
      * Call objects that are ringing or call-waiting. These are used only for logging purposes.
      */
@@ -94,6 +110,36 @@ public class Ringer {
         mRingtonePlayer = asyncRingtonePlayer;
         mRingtoneFactory = ringtoneFactory;
         mInCallController = inCallController;
+
+        final ContentResolver cr = mContext.getContentResolver();
+        cr.registerContentObserver(CMSettings.System.getUriFor(CMSettings.System.INCREASING_RING),
+                false, mSettingsObserver);
+        cr.registerContentObserver(CMSettings.System.getUriFor(
+                CMSettings.System.INCREASING_RING_START_VOLUME), false, mSettingsObserver);
+        cr.registerContentObserver(CMSettings.System.getUriFor(
+                CMSettings.System.INCREASING_RING_RAMP_UP_TIME), false, mSettingsObserver);
+        cr.registerContentObserver(Settings.System.getUriFor(
+                Settings.System.VIBRATE_WHEN_RINGING), false, mSettingsObserver);
+        loadSettings();
+    }
+
+    /**
+     * Gets the default ringtone ready for an incoming call which may start ringing once it has
+     * been filtered.
+     */
+    public void preloadRingtone() {
+        if (mSystemSettingsUtil.isTheaterModeOn(mContext)) {
+            return;
+        }
+        mRingtonePlayer.preload(mRingtoneFactory);
+    }
+
+    /**
+     * Releases the ringtone loaded by {@link #preloadRingtone()} when the incoming call it was
+     * loaded for is not going to ring.
+     */
+    public void releasePreloadedRingtone() {
+        mRingtonePlayer.releasePreload(mRingtoneFactory);
     }
 
     public boolean startRinging(Call foregroundCall) {
@@ -102,16 +148,19 @@ public class Ringer {
         boolean isRingerAudible = audioManager.getStreamVolume(AudioManager.STREAM_RING) > 0;
 
         if (mSystemSettingsUtil.isTheaterModeOn(mContext)) {
+            releasePreloadedRingtone();
             return false;
         }
 
         if (foregroundCall == null) {
             Log.wtf(this, "startRinging called with null foreground call.");
+            releasePreloadedRingtone();
             return false;
         }
 
         if (mInCallController.doesConnectedDialerSupportRinging()) {
             Log.event(foregroundCall, Log.Events.SKIP_RINGING);
+            releasePreloadedRingtone();
             return isRingerAudible;
         }
 
@@ -129,12 +178,14 @@ public class Ringer {
             float startVolume = 0;
             int rampUpTime = 0;
 
-            final ContentResolver cr = mContext.getContentResolver();
-            if (CMSettings.System.getInt(cr, CMSettings.System.INCREASING_RING, 0) != 0) {
-                startVolume = CMSettings.System.getFloat(cr,
-                        CMSettings.System.INCREASING_RING_START_VOLUME, 0.1f);
-                rampUpTime = CMSettings.System.getInt(cr,
-                        CMSettings.System.INCREASING_RING_RAMP_UP_TIME, 20);
+            if (mIsIncreasingRing) {
+                startVolume = mIncreasingRingStartVolume;
+                rampUpTime = mIncreasingRingRampUpTime;
+            }
+
+            if (!mRingtoneFactory.canUsePreloadedRingtone(foregroundCall)) {
+                // The call rings with its own ringtone.
+                releasePreloadedRingtone();
             }
 
             // Because we wait until a contact info query to complete before processing a
@@ -144,6 +195,7 @@ public class Ringer {
             mRingtonePlayer.play(mRingtoneFactory, foregroundCall, startVolume, rampUpTime);
         } else {
             Log.i(this, "startRingingOrCallWaiting, skipping because volume is 0");
+            releasePreloadedRingtone();
         }
 
         if (vibrationAllowed && shouldVibrate(mContext) && !mIsVibrating) {
@@ -205,6 +257,21 @@ public class Ringer {
         }
     }
 
+    @VisibleForTesting
+    public ContentObserver getSettingsObserver() {
+        return mSettingsObserver;
+    }
+
+    private void loadSettings() {
+        final ContentResolver cr = mContext.getContentResolver();
+        mIncreasingRingStartVolume = CMSettings.System.getFloat(cr,
+                CMSettings.System.INCREASING_RING_START_VOLUME, 0.1f);
+        mIncreasingRingRampUpTime = CMSettings.System.getInt(cr,
+                CMSettings.System.INCREASING_RING_RAMP_UP_TIME, 20);
+        mIsIncreasingRing = CMSettings.System.getInt(cr, CMSettings.System.INCREASING_RING, 0) != 0;
+        mCanVibrateWhenRinging = mSystemSettingsUtil.canVibrateWhenRinging(mContext);
+    }
+
     private boolean[] shouldRingOrVibrateForContact(Uri contactUri) {
         final NotificationManager manager =
                 (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
@@ -229,6 +296,6 @@ public class Ringer {
         if (!mVibrator.hasVibrator()) {
             return false;
         }
-        return mSystemSettingsUtil.canVibrateWhenRinging(context);
+        return mCanVibrateWhenRinging;
     }
 }
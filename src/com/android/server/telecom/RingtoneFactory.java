@@ -16,9 +16,13 @@
 
 package com.android.server.telecom;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
+import android.database.ContentObserver;
 import android.media.AudioManager;
 import android.media.RingtoneManager;
 import android.media.Ringtone;
@@ -28,6 +32,7 @@ import android.os.UserManager;
 import android.provider.Settings;
 import android.telecom.PhoneAccount;
 import android.text.TextUtils;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CallerInfo;
@@ -38,43 +43,264 @@ import java.util.List;
  * Uses the incoming {@link Call}'s ringtone URI (obtained by the Contact Lookup) to obtain a
  * {@link Ringtone} from the {@link RingtoneManager} that can be played by the system during an
  * incoming call. If the ringtone URI is null, use the default Ringtone for the active user.
+ * <p>
+ * The context each user's ringtone is created from, and whether that user has a default ringtone,
+ * are remembered until the ringtone setting or the user's profiles change. The default ringtone
+ * of the current user can also be prepared ahead of time with {@link #preloadDefaultRingtone()}.
  */
 @VisibleForTesting
 public class RingtoneFactory {
 
+    /**
+     * The context a user's ringtones are created from, and whether that user has set a default
+     * ringtone.
+     */
+    private static final class RingtoneContext {
+        final Context context;
+        final boolean hasDefaultRingtone;
+
+        RingtoneContext(Context context, boolean hasDefaultRingtone) {
+            this.context = context;
+            this.hasDefaultRingtone = hasDefaultRingtone;
+        }
+    }
+
     private final Context mContext;
     private final CallsManager mCallsManager;
 
+    private final ContentObserver mRingtoneObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            Log.d(RingtoneFactory.this, "Ringtone setting changed.");
+            clearCache();
+        }
+    };
+
+    private final BroadcastReceiver mProfilesChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(RingtoneFactory.this, "Profiles changed: %s", intent.getAction());
+            clearCache();
+        }
+    };
+
+    // Guarded by this. Keyed by user id.
+    private final SparseArray<RingtoneContext> mUserRingtoneContexts = new SparseArray<>();
+    private final SparseArray<RingtoneContext> mWorkProfileRingtoneContexts = new SparseArray<>();
+    private Ringtone mPreloadedRingtone;
+    private int mPreloadedRingtoneUserId = UserHandle.USER_NULL;
+    // Incremented whenever the cache is cleared, so that lookups which were started before then
+    // are not cached.
+    private int mCacheGeneration;
+    private boolean mIsObserving;
+    private boolean mIsCacheEnabled;
+
     public RingtoneFactory(CallsManager callsManager, Context context) {
         mContext = context;
         mCallsManager = callsManager;
     }
 
     public Ringtone getRingtone(Call incomingCall) {
-        // Use the default ringtone of the work profile if the contact is a work profile contact.
-        Context userContext = isWorkContact(incomingCall) ?
-                getWorkProfileContextForUser(mCallsManager.getCurrentUserHandle()) :
-                getContextForUserHandle(mCallsManager.getCurrentUserHandle());
+        UserHandle userHandle = mCallsManager.getCurrentUserHandle();
         Uri ringtoneUri = incomingCall.getRingtone();
+        boolean isWorkContact = isWorkContact(incomingCall);
+        if (canUsePreloadedRingtone(incomingCall)) {
+            Ringtone ringtone = takePreloadedRingtone(userHandle);
+            if (ringtone != null) {
+                Log.d(this, "Using preloaded ringtone.");
+                return ringtone;
+            }
+        }
+
+        // Use the default ringtone of the work profile if the contact is a work profile contact.
+        RingtoneContext ringtoneContext = getRingtoneContext(userHandle, isWorkContact);
+        Context userContext = ringtoneContext.context;
         Ringtone ringtone = null;
 
         if(ringtoneUri != null && userContext != null) {
             // Ringtone URI is explicitly specified. First, try to create a Ringtone with that.
-            ringtone = RingtoneManager.getRingtone(userContext, ringtoneUri);
+            ringtone = createRingtone(userContext, ringtoneUri);
+            if (ringtone != null) {
+                ringtone.setStreamType(AudioManager.STREAM_RING);
+            }
         }
         if(ringtone == null) {
             // Contact didn't specify ringtone or custom Ringtone creation failed. Get default
             // ringtone for user or profile.
-            ringtone = RingtoneManager.getRingtone(
-                    hasDefaultRingtoneForUser(userContext) ? userContext : mContext,
-                    Settings.System.DEFAULT_RINGTONE_URI);
+            ringtone = getDefaultRingtone(ringtoneContext);
         }
+        return ringtone;
+    }
+
+    /**
+     * Creates the default ringtone of the current user, unless one has already been created, so
+     * that the next incoming call without a custom ringtone can start ringing sooner. Creating a
+     * ringtone prepares its media player, so this must not be called on the main thread.
+     */
+    public void preloadDefaultRingtone() {
+        ThreadUtil.checkNotOnMainThread();
+        UserHandle userHandle = mCallsManager.getCurrentUserHandle();
+        if (userHandle == null) {
+            return;
+        }
+        int generation;
+        synchronized (this) {
+            if (mPreloadedRingtone != null
+                    && mPreloadedRingtoneUserId == userHandle.getIdentifier()) {
+                return;
+            }
+            generation = mCacheGeneration;
+        }
+
+        Ringtone ringtone = getDefaultRingtone(getRingtoneContext(userHandle, false));
+        if (ringtone == null) {
+            return;
+        }
+        Ringtone unusedRingtone;
+        synchronized (this) {
+            if (!mIsCacheEnabled || generation != mCacheGeneration) {
+                unusedRingtone = ringtone;
+            } else {
+                unusedRingtone = mPreloadedRingtone;
+                mPreloadedRingtone = ringtone;
+                mPreloadedRingtoneUserId = userHandle.getIdentifier();
+            }
+        }
+        if (unusedRingtone != null) {
+            // Releases its media player.
+            unusedRingtone.stop();
+        }
+    }
+
+    /**
+     * @return {@code true} if the call rings with the default ringtone of the current user, which
+     *         is the one {@link #preloadDefaultRingtone()} loads, rather than a custom ringtone or
+     *         the default ringtone of the work profile.
+     */
+    public boolean canUsePreloadedRingtone(Call incomingCall) {
+        return incomingCall.getRingtone() == null && !isWorkContact(incomingCall);
+    }
+
+    /**
+     * Stops and forgets the preloaded ringtone, if any, when the call it was loaded for is not
+     * going to ring.
+     */
+    public void releasePreloadedRingtone() {
+        Ringtone preloadedRingtone;
+        synchronized (this) {
+            preloadedRingtone = mPreloadedRingtone;
+            mPreloadedRingtone = null;
+            mPreloadedRingtoneUserId = UserHandle.USER_NULL;
+        }
+        if (preloadedRingtone != null) {
+            Log.d(this, "Releasing preloaded ringtone.");
+            preloadedRingtone.stop();
+        }
+    }
+
+    @VisibleForTesting
+    public Ringtone createRingtone(Context context, Uri ringtoneUri) {
+        return RingtoneManager.getRingtone(context, ringtoneUri);
+    }
+
+    /**
+     * Registers for changes to the ringtone setting and to the profiles of every user.
+     *
+     * @throws SecurityException if changes for all users can not be observed.
+     */
+    @VisibleForTesting
+    public void registerForChanges(ContentObserver ringtoneObserver,
+            BroadcastReceiver profilesChangedReceiver) {
+        mContext.getContentResolver().registerContentObserver(
+                Settings.System.getUriFor(Settings.System.RINGTONE), false /* descendants */,
+                ringtoneObserver, UserHandle.USER_ALL);
+        IntentFilter filter = new IntentFilter(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_AVAILABLE);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_UNAVAILABLE);
+        mContext.registerReceiverAsUser(profilesChangedReceiver, UserHandle.ALL, filter,
+                null, null);
+    }
+
+    private Ringtone getDefaultRingtone(RingtoneContext ringtoneContext) {
+        Ringtone ringtone = createRingtone(
+                ringtoneContext.hasDefaultRingtone ? ringtoneContext.context : mContext,
+                Settings.System.DEFAULT_RINGTONE_URI);
         if (ringtone != null) {
             ringtone.setStreamType(AudioManager.STREAM_RING);
         }
         return ringtone;
     }
 
+    private Ringtone takePreloadedRingtone(UserHandle userHandle) {
+        Ringtone ringtone;
+        synchronized (this) {
+            ringtone = mPreloadedRingtone;
+            if (ringtone == null) {
+                return null;
+            }
+            boolean isForUser = userHandle != null
+                    && mPreloadedRingtoneUserId == userHandle.getIdentifier();
+            mPreloadedRingtone = null;
+            mPreloadedRingtoneUserId = UserHandle.USER_NULL;
+            if (isForUser) {
+                return ringtone;
+            }
+        }
+        // Preloaded for a user who is no longer the current user.
+        ringtone.stop();
+        return null;
+    }
+
+    private RingtoneContext getRingtoneContext(UserHandle userHandle, boolean isWorkProfile) {
+        int userId = userHandle == null ? UserHandle.USER_NULL : userHandle.getIdentifier();
+        SparseArray<RingtoneContext> cache = isWorkProfile
+                ? mWorkProfileRingtoneContexts : mUserRingtoneContexts;
+        int generation;
+        synchronized (this) {
+            startObservingLocked();
+            RingtoneContext ringtoneContext = cache.get(userId);
+            if (ringtoneContext != null) {
+                return ringtoneContext;
+            }
+            generation = mCacheGeneration;
+        }
+
+        Context userContext = isWorkProfile ? getWorkProfileContextForUser(userHandle) :
+                getContextForUserHandle(userHandle);
+        RingtoneContext ringtoneContext =
+                new RingtoneContext(userContext, hasDefaultRingtoneForUser(userContext));
+        synchronized (this) {
+            if (mIsCacheEnabled && generation == mCacheGeneration) {
+                cache.put(userId, ringtoneContext);
+            }
+        }
+        return ringtoneContext;
+    }
+
+    private void startObservingLocked() {
+        if (mIsObserving) {
+            return;
+        }
+        mIsObserving = true;
+        try {
+            registerForChanges(mRingtoneObserver, mProfilesChangedReceiver);
+            mIsCacheEnabled = true;
+        } catch (SecurityException e) {
+            // Without being told about changes, look everything up for each call.
+            Log.w(this, "Unable to observe ringtone changes: %s", e);
+        }
+    }
+
+    private void clearCache() {
+        synchronized (this) {
+            mCacheGeneration++;
+            mUserRingtoneContexts.clear();
+            mWorkProfileRingtoneContexts.clear();
+        }
+        releasePreloadedRingtone();
+    }
+
     private Context getWorkProfileContextForUser(UserHandle userHandle) {
         // UserManager.getEnabledProfiles returns the enabled profiles along with the user's handle
         // itself (so we must filter out the user).
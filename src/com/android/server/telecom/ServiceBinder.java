@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.ArraySet;
@@ -83,6 +84,7 @@ abstract class ServiceBinder {
                 ServiceConnection connection = new ServiceBinderConnection(call);
 
                 Log.event(call, Log.Events.BIND_CS, mComponentName);
+                mBindStartTime = SystemClock.elapsedRealtime();
                 final int bindingFlags = Context.BIND_AUTO_CREATE | Context.BIND_FOREGROUND_SERVICE;
                 final boolean isBound;
                 if (mUserHandle != null) {
@@ -98,6 +100,13 @@ abstract class ServiceBinder {
             } else {
                 Log.d(ServiceBinder.this, "Service is already bound.");
                 Preconditions.checkNotNull(mBinder);
+                if (mIsReusingKeptAliveBinding) {
+                    // Logged as a bind so that the bind_cs timing reflects the time saved.
+                    mIsReusingKeptAliveBinding = false;
+                    Log.event(call, Log.Events.BIND_CS, mComponentName);
+                    Log.event(call, Log.Events.CS_BOUND, "kept alive");
+                    mKeepAlivePolicy.onBindingReused(mComponentName);
+                }
                 handleSuccessfulConnection();
             }
         }
@@ -122,6 +131,10 @@ abstract class ServiceBinder {
 
                     Log.event(mCall, Log.Events.CS_BOUND, componentName);
                     mCall = null;
+                    if (mKeepAlivePolicy != null) {
+                        mKeepAlivePolicy.onBindCompleted(mComponentName,
+                                SystemClock.elapsedRealtime() - mBindStartTime);
+                    }
 
                     // Unbind request was queued so unbind immediately.
                     if (mIsBindingAborted) {
@@ -148,8 +161,18 @@ abstract class ServiceBinder {
                 synchronized (mLock) {
                     logServiceDisconnected("onServiceDisconnected");
 
+                    boolean hasDied = mServiceConnection == this;
                     mServiceConnection = null;
                     clearAbort();
+                    if (hasDied && mKeepAlivePolicy != null) {
+                        mKeepAlivePolicy.onServiceDied(mComponentName);
+                    }
+                    if (hasDied && mIsKeptAlive) {
+                        // Nothing is using the binding, so do not let the system restart the
+                        // service for it.
+                        endKeepAlive();
+                        mContext.unbindService(this);
+                    }
 
                     handleServiceDisconnected();
                 }
@@ -200,6 +223,23 @@ abstract class ServiceBinder {
     private final Set<Listener> mListeners = Collections.newSetFromMap(
             new ConcurrentHashMap<Listener, Boolean>(8, 0.9f, 1));
 
+    private final TimeoutScheduler mTimeoutScheduler = TimeoutScheduler.getInstance();
+
+    /** Unbinds once the keep-alive after the last associated call has ended expires. */
+    private final TimeoutScheduler.Timeout mKeepAliveTimeout;
+
+    /** Decides how long to stay bound without associated calls; null to unbind at once. */
+    private ServiceBinderKeepAlivePolicy mKeepAlivePolicy;
+
+    /** Indicates that the service is bound without associated calls, until the keep-alive ends. */
+    private boolean mIsKeptAlive;
+
+    /** Indicates that a call was associated while the binding was kept alive. */
+    private boolean mIsReusingKeptAliveBinding;
+
+    /** The time of the last bind request, in {@link SystemClock#elapsedRealtime} milliseconds. */
+    private long mBindStartTime;
+
     /**
      * Persists the specified parameters and initializes the new instance.
      *
@@ -218,9 +258,47 @@ abstract class ServiceBinder {
         mServiceAction = serviceAction;
         mComponentName = componentName;
         mUserHandle = userHandle;
+        mKeepAliveTimeout = new TimeoutScheduler.Timeout("SB.kAE", new Runnable("SB.kAE", mLock) {
+            @Override
+            public void loggedRun() {
+                if (mIsKeptAlive && mAssociatedCallCount == 0) {
+                    Log.i(ServiceBinder.this, "Keep-alive expired for %s",
+                            mComponentName.flattenToShortString());
+                    unbind();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the policy deciding how long to stay bound once there are no associated calls.
+     */
+    final void setKeepAlivePolicy(ServiceBinderKeepAlivePolicy keepAlivePolicy) {
+        mKeepAlivePolicy = keepAlivePolicy;
     }
 
     final void incrementAssociatedCallCount() {
+        if (mKeepAlivePolicy != null) {
+            mKeepAlivePolicy.onCallAssociated(mComponentName);
+        }
+        holdBinding();
+    }
+
+    /**
+     * Holds the binding for a call which is about to be placed through this service, before the
+     * call itself is associated with it. Unlike {@link #incrementAssociatedCallCount}, this is not
+     * recorded as a call with the keep-alive policy. Released with
+     * {@link #decrementAssociatedCallCount()}.
+     */
+    final void holdBindingForWarmUp() {
+        holdBinding();
+    }
+
+    private void holdBinding() {
+        if (mIsKeptAlive) {
+            endKeepAlive();
+            mIsReusingKeptAliveBinding = true;
+        }
         mAssociatedCallCount++;
         Log.v(this, "Call count increment %d, %s", mAssociatedCallCount,
                 mComponentName.flattenToShortString());
@@ -237,7 +315,7 @@ abstract class ServiceBinder {
                     mComponentName.flattenToShortString());
 
             if (!isSuppressingUnbind && mAssociatedCallCount == 0) {
-                unbind();
+                unbindOrKeepAlive();
             }
         } else {
             Log.wtf(this, "%s: ignoring a request to decrement mAssociatedCallCount below zero",
@@ -249,17 +327,55 @@ abstract class ServiceBinder {
         return mAssociatedCallCount;
     }
 
+    /**
+     * Unbinds from the service now that it has no associated calls, unless the keep-alive policy
+     * says to stay bound for a while in case another call comes along.
+     */
+    private void unbindOrKeepAlive() {
+        long keepAliveMillis = mKeepAlivePolicy == null || mServiceConnection == null
+                ? 0 : mKeepAlivePolicy.getKeepAliveMillis(mComponentName);
+        if (keepAliveMillis <= 0) {
+            unbind();
+            return;
+        }
+        Log.i(this, "Keeping %s bound for %d ms", mComponentName.flattenToShortString(),
+                keepAliveMillis);
+        mIsKeptAlive = true;
+        mKeepAlivePolicy.onKeepAliveStarted(this);
+        mTimeoutScheduler.schedule(mKeepAliveTimeout, keepAliveMillis);
+    }
+
+    /**
+     * Stops keeping the service bound; used when the system is under memory pressure.
+     */
+    final void dropKeepAlive() {
+        if (mIsKeptAlive) {
+            unbind();
+        }
+    }
+
+    private void endKeepAlive() {
+        mTimeoutScheduler.cancel(mKeepAliveTimeout);
+        mIsKeptAlive = false;
+        mKeepAlivePolicy.onKeepAliveEnded(this);
+    }
+
     /**
      * Unbinds from the service if already bound, no-op otherwise.
      */
     final void unbind() {
+        if (mIsKeptAlive) {
+            endKeepAlive();
+        }
+        mIsReusingKeptAliveBinding = false;
         if (mServiceConnection == null) {
             // We're not yet bound, so queue up an abort request.
             mIsBindingAborted = true;
         } else {
             logServiceDisconnected("unbind");
-            mContext.unbindService(mServiceConnection);
+            ServiceConnection serviceConnection = mServiceConnection;
             mServiceConnection = null;
+            mContext.unbindService(serviceConnection);
             setBinder(null);
         }
     }
@@ -272,6 +388,11 @@ abstract class ServiceBinder {
         return mUserHandle;
     }
 
+    @VisibleForTesting
+    public boolean isKeptAlive() {
+        return mIsKeptAlive;
+    }
+
     @VisibleForTesting
     public boolean isServiceValid(String actionName) {
         if (mBinder == null) {
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.util.ArraySet;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides how long a {@link ServiceBinder} stays bound once it has no associated calls left, so
+ * that a service which handles calls in quick succession does not pay the cost of binding to (and
+ * possibly starting) its process for each one. The keep-alive adapts to each component's recent
+ * calls: it lasts twice the average gap between them, but at least {@link #MIN_KEEP_ALIVE_MILLIS}
+ * and at most {@link Timeouts#getConnectionServiceMaxKeepAliveMillis}. A component with a single
+ * recent call, or whose calls are further apart than that limit, is unbound at once as before.
+ * <p>
+ * Nothing is kept alive on low-RAM devices. When the system reports memory pressure, kept-alive
+ * bindings are dropped and no new ones are made for {@link #MEMORY_PRESSURE_BACKOFF_MILLIS}.
+ * <p>
+ * All methods other than the {@link ComponentCallbacks2} ones must be called with the Telecom lock
+ * held.
+ */
+public class ServiceBinderKeepAlivePolicy implements ComponentCallbacks2 {
+    private static final int MAX_RECENT_CALLS = 5;
+    private static final long RECENT_CALL_WINDOW_MILLIS = 10 * 60 * 1000;  // 10 minutes
+    @VisibleForTesting
+    public static final long MIN_KEEP_ALIVE_MILLIS = 5000;
+    @VisibleForTesting
+    public static final long MEMORY_PRESSURE_BACKOFF_MILLIS = 5 * 60 * 1000;  // 5 minutes
+
+    private final Context mContext;
+    private final TelecomSystem.SyncRoot mLock;
+    private final Timeouts.Adapter mTimeoutsAdapter;
+    private final boolean mIsLowRamDevice;
+
+    private final Map<ComponentName, ArrayDeque<Long>> mRecentCallTimes = new HashMap<>();
+    private final Map<ComponentName, Long> mLastBindDurations = new HashMap<>();
+    private final Set<ServiceBinder> mKeptAliveBinders = new ArraySet<>();
+    private long mLastMemoryPressureTime = -MEMORY_PRESSURE_BACKOFF_MILLIS;
+    private int mReusedBindings;
+    private long mBindMillisSaved;
+
+    public ServiceBinderKeepAlivePolicy(Context context, TelecomSystem.SyncRoot lock,
+            Timeouts.Adapter timeoutsAdapter) {
+        this(context, lock, timeoutsAdapter, ActivityManager.isLowRamDevice());
+    }
+
+    @VisibleForTesting
+    public ServiceBinderKeepAlivePolicy(Context context, TelecomSystem.SyncRoot lock,
+            Timeouts.Adapter timeoutsAdapter, boolean isLowRamDevice) {
+        mContext = context;
+        mLock = lock;
+        mTimeoutsAdapter = timeoutsAdapter;
+        mIsLowRamDevice = isLowRamDevice;
+    }
+
+    /**
+     * Records that a call has been associated with the component.
+     */
+    public void onCallAssociated(ComponentName componentName) {
+        long now = elapsedRealtime();
+        ArrayDeque<Long> callTimes = mRecentCallTimes.get(componentName);
+        if (callTimes == null) {
+            callTimes = new ArrayDeque<>(MAX_RECENT_CALLS);
+            mRecentCallTimes.put(componentName, callTimes);
+        }
+        if (callTimes.size() == MAX_RECENT_CALLS) {
+            callTimes.removeFirst();
+        }
+        callTimes.addLast(now);
+    }
+
+    /**
+     * @return How long to stay bound to the component now that it has no associated calls; 0 or
+     *         less to unbind at once.
+     */
+    public long getKeepAliveMillis(ComponentName componentName) {
+        long now = elapsedRealtime();
+        if (mIsLowRamDevice || now - mLastMemoryPressureTime < MEMORY_PRESSURE_BACKOFF_MILLIS) {
+            return 0;
+        }
+        long maxKeepAliveMillis = mTimeoutsAdapter.getConnectionServiceMaxKeepAliveMillis(
+                mContext.getContentResolver());
+        ArrayDeque<Long> callTimes = mRecentCallTimes.get(componentName);
+        if (maxKeepAliveMillis <= 0 || callTimes == null) {
+            return 0;
+        }
+        while (!callTimes.isEmpty() && now - callTimes.peekFirst() > RECENT_CALL_WINDOW_MILLIS) {
+            callTimes.removeFirst();
+        }
+        if (callTimes.size() < 2) {
+            return 0;
+        }
+        long averageGapMillis = (callTimes.peekLast() - callTimes.peekFirst())
+                / (callTimes.size() - 1);
+        if (averageGapMillis > maxKeepAliveMillis) {
+            return 0;
+        }
+        return Math.min(Math.max(2 * averageGapMillis, MIN_KEEP_ALIVE_MILLIS),
+                maxKeepAliveMillis);
+    }
+
+    void onKeepAliveStarted(ServiceBinder binder) {
+        mKeptAliveBinders.add(binder);
+    }
+
+    void onKeepAliveEnded(ServiceBinder binder) {
+        mKeptAliveBinders.remove(binder);
+    }
+
+    /**
+     * Records how long the component took to bind, as the time a later reuse of the binding saves.
+     */
+    public void onBindCompleted(ComponentName componentName, long bindMillis) {
+        mLastBindDurations.put(componentName, bindMillis);
+    }
+
+    /**
+     * Records that a kept-alive binding to the component was used for a new call.
+     */
+    public void onBindingReused(ComponentName componentName) {
+        mReusedBindings++;
+        Long bindMillis = mLastBindDurations.get(componentName);
+        if (bindMillis != null) {
+            mBindMillisSaved += bindMillis;
+        }
+    }
+
+    /**
+     * Records that the component's process died. Its recent calls are forgotten, so that it is
+     * not kept alive again until it has had several calls in quick succession.
+     */
+    public void onServiceDied(ComponentName componentName) {
+        mRecentCallTimes.remove(componentName);
+    }
+
+    @VisibleForTesting
+    public int getReusedBindings() {
+        return mReusedBindings;
+    }
+
+    @VisibleForTesting
+    public long getBindMillisSaved() {
+        return mBindMillisSaved;
+    }
+
+    @VisibleForTesting
+    public void onMemoryPressure() {
+        synchronized (mLock) {
+            mLastMemoryPressureTime = elapsedRealtime();
+            if (mKeptAliveBinders.isEmpty()) {
+                return;
+            }
+            Log.i(this, "Memory pressure, dropping %d kept-alive bindings.",
+                    mKeptAliveBinders.size());
+            for (ServiceBinder binder : new ArrayList<>(mKeptAliveBinders)) {
+                binder.dropKeepAlive();
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // TRIM_MEMORY_UI_HIDDEN lies between these levels, but only means that a Telecom activity
+        // went to the background.
+        if (level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= TRIM_MEMORY_BACKGROUND) {
+            Log.startSession("SBKAP.oTM");
+            try {
+                onMemoryPressure();
+            } finally {
+                Log.endSession();
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @VisibleForTesting
+    protected long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * The state of the {@link ServiceBinderKeepAlivePolicy} shown by dumpsys.
+     */
+    public static final class DumpState {
+        private final int mKeptAlive;
+        private final int mReusedBindings;
+        private final long mBindMillisSaved;
+
+        private DumpState(int keptAlive, int reusedBindings, long bindMillisSaved) {
+            mKeptAlive = keptAlive;
+            mReusedBindings = reusedBindings;
+            mBindMillisSaved = bindMillisSaved;
+        }
+
+        public void dump(IndentingPrintWriter pw) {
+            pw.println("ServiceBinderKeepAlivePolicy:");
+            pw.increaseIndent();
+            pw.println("keptAlive: " + mKeptAlive + ", reusedBindings: " + mReusedBindings
+                    + ", bindMillisSaved: " + mBindMillisSaved);
+            pw.decreaseIndent();
+        }
+    }
+
+    public DumpState getDumpState() {
+        return new DumpState(mKeptAliveBinders.size(), mReusedBindings, mBindMillisSaved);
+    }
+}
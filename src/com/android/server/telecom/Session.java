@@ -16,13 +16,21 @@
 
 package com.android.server.telecom;
 
-import android.annotation.NonNull;
+import android.util.Pools;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * The session that stores information about a thread's point of entry into the Telecom code that
  * persists until the thread exits Telecom.
+ * <p>
+ * Sessions are obtained with {@link #obtain}. Sessions which {@link Log} never hands out, top level
+ * sessions and subsessions started from an active session on the same thread, are returned to a
+ * pool once they and all of their subsessions have ended. Subsessions returned by
+ * {@link Log#createSubsession()} are never pooled, since their holder may still pass them to
+ * {@link Log#continueSession} or {@link Log#cancelSubsession} after they have ended.
  */
 public class Session {
 
@@ -34,11 +42,22 @@ public class Session {
 
     public static final int UNDEFINED = -1;
 
-    private String mSessionId;
+    // Enough for the sessions which are usually active at the same time.
+    private static final int MAX_POOL_SIZE = 20;
+    private static final Pools.SynchronizedPool<Session> sPool =
+            new Pools.SynchronizedPool<>(MAX_POOL_SIZE);
+
+    // The session counter value of a top level session, or the index of a subsession within its
+    // parent. Only rendered into a string when the session is printed.
+    private int mSessionId;
+    private boolean mIsSubsession;
+    private boolean mIsPoolable;
+    private String mSessionIdString;
     private String mShortMethodName;
     private long mExecutionStartTimeMs;
     private long mExecutionEndTimeMs = UNDEFINED;
     private Session mParentSession;
+    // Created when the first subsession is added, and kept when the session is recycled.
     private ArrayList<Session> mChildSessions;
     private boolean mIsCompleted = false;
     private int mChildCounter = 0;
@@ -51,23 +70,64 @@ public class Session {
     // Optionally provided info about the method/class/component that started the session in order
     // to make Logging easier. This info will be provided in parentheses along with the session.
     private String mOwnerInfo;
+    // The bytes the thread running this session had allocated when it started running it, or
+    // UNDEFINED if allocation profiling was disabled at the time.
+    private long mAllocationStartBytes = UNDEFINED;
+    // The bytes allocated by this session and all of its subsessions. Only tracked on the top
+    // level session, and UNDEFINED until a subsession with a known allocation start completes.
+    private long mAllocatedBytes = UNDEFINED;
 
-    public Session(String sessionId, String shortMethodName, long startTimeMs, long threadID,
-            boolean isStartedFromActiveSession, String ownerInfo) {
-        setSessionId(sessionId);
-        setShortMethodName(shortMethodName);
-        mExecutionStartTimeMs = startTimeMs;
-        mParentSession = null;
-        mChildSessions = new ArrayList<>(5);
-        mIsStartedFromActiveSession = isStartedFromActiveSession;
-        mOwnerInfo = ownerInfo;
+    private Session() {
+    }
+
+    /**
+     * Returns a session from the pool, or a new one if the pool is empty or the session is a
+     * subsession which will be handed out.
+     *
+     * @param sessionId The session counter value of a top level session, or the index of a
+     *         subsession within its parent.
+     * @param isSubsession Whether this is a subsession.
+     */
+    public static Session obtain(int sessionId, boolean isSubsession, String shortMethodName,
+            long startTimeMs, boolean isStartedFromActiveSession, String ownerInfo) {
+        boolean isPoolable = !isSubsession || isStartedFromActiveSession;
+        Session session = isPoolable ? sPool.acquire() : null;
+        if (session == null) {
+            session = new Session();
+        }
+        session.mSessionId = sessionId;
+        session.mIsSubsession = isSubsession;
+        session.mIsPoolable = isPoolable;
+        session.setShortMethodName(shortMethodName);
+        session.mExecutionStartTimeMs = startTimeMs;
+        session.mIsStartedFromActiveSession = isStartedFromActiveSession;
+        session.mOwnerInfo = ownerInfo;
+        return session;
     }
 
-    public void setSessionId(@NonNull String sessionId) {
-       if(sessionId == null) {
-           mSessionId = "?";
-       }
-       mSessionId = sessionId;
+    /**
+     * Returns this session to the pool, unless it was handed out by {@link Log#createSubsession()}.
+     * Called by {@link Log} once the session has completed and has been detached from its parent.
+     */
+    public void recycle() {
+        if (!mIsPoolable) {
+            // Left as it is, so that a late cancelSubsession still finds it completed.
+            mParentSession = null;
+            return;
+        }
+        mSessionIdString = null;
+        mShortMethodName = null;
+        mExecutionEndTimeMs = UNDEFINED;
+        mParentSession = null;
+        if (mChildSessions != null) {
+            mChildSessions.clear();
+        }
+        mIsCompleted = false;
+        mChildCounter = 0;
+        mOwnerInfo = null;
+        mAllocationStartBytes = UNDEFINED;
+        mAllocatedBytes = UNDEFINED;
+        sPool.release(this);
     }
 
     public String getShortMethodName() {
@@ -87,12 +147,15 @@ public class Session {
 
     public void addChild(Session childSession) {
         if(childSession != null) {
+            if (mChildSessions == null) {
+                mChildSessions = new ArrayList<>(5);
+            }
             mChildSessions.add(childSession);
         }
     }
 
     public void removeChild(Session child) {
-        if(child != null) {
+        if(child != null && mChildSessions != null) {
             mChildSessions.remove(child);
         }
     }
@@ -105,11 +168,33 @@ public class Session {
         mExecutionStartTimeMs = startTimeMs;
     }
 
+    public long getAllocationStartBytes() {
+        return mAllocationStartBytes;
+    }
+
+    public void setAllocationStartBytes(long allocationStartBytes) {
+        mAllocationStartBytes = allocationStartBytes;
+    }
+
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    public synchronized void addAllocatedBytes(long allocatedBytes) {
+        if (mAllocatedBytes == UNDEFINED) {
+            mAllocatedBytes = 0;
+        }
+        mAllocatedBytes += allocatedBytes;
+    }
+
     public Session getParentSession() {
         return mParentSession;
     }
 
-    public ArrayList<Session> getChildSessions() {
+    public List<Session> getChildSessions() {
+        if (mChildSessions == null) {
+            return Collections.emptyList();
+        }
         return mChildSessions;
     }
 
@@ -135,8 +220,16 @@ public class Session {
         return mExecutionEndTimeMs - mExecutionStartTimeMs;
     }
 
-    public synchronized String getNextChildId() {
-        return String.valueOf(mChildCounter++);
+    public synchronized int getNextChildId() {
+        return mChildCounter++;
+    }
+
+    private String getSessionIdString() {
+        if (mSessionIdString == null) {
+            mSessionIdString = mIsSubsession ? String.valueOf(mSessionId)
+                    : Log.getBase64Encoding(mSessionId);
+        }
+        return mSessionIdString;
     }
 
     @Override
@@ -148,11 +241,12 @@ public class Session {
             return true;
         }
         Session otherSession = (Session) obj;
-        return (mSessionId.equals(otherSession.mSessionId)) &&
+        return mSessionId == otherSession.mSessionId &&
+                mIsSubsession == otherSession.mIsSubsession &&
                 (mShortMethodName.equals(otherSession.mShortMethodName)) &&
                 mExecutionStartTimeMs == otherSession.mExecutionStartTimeMs &&
                 mParentSession == otherSession.mParentSession &&
-                mChildSessions.equals(otherSession.mChildSessions) &&
+                getChildSessions().equals(otherSession.getChildSessions()) &&
                 mIsCompleted == otherSession.mIsCompleted &&
                 mExecutionEndTimeMs == otherSession.mExecutionEndTimeMs &&
                 mChildCounter == otherSession.mChildCounter &&
@@ -168,9 +262,9 @@ public class Session {
         // occurred.
         Session parentSession = mParentSession;
         if(parentSession == null) {
-            return mSessionId;
+            return getSessionIdString();
         } else {
-            return parentSession.getFullSessionId() + "_" + mSessionId;
+            return parentSession.getFullSessionId() + "_" + getSessionIdString();
         }
     }
 
@@ -193,7 +287,7 @@ public class Session {
 
     private void printSessionTree(int tabI, StringBuilder sb) {
         sb.append(toString());
-        for (Session child : mChildSessions) {
+        for (Session child : getChildSessions()) {
             sb.append("\n");
             for(int i = 0; i <= tabI; i++) {
                 sb.append("\t");
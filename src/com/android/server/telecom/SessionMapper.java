@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The active {@link Session} of each thread. The calling thread's session is kept in a
+ * {@link ThreadLocal}, so that it is read without locking or allocating each time a message is
+ * logged. Each thread's entry is also registered once, when the thread first starts a session, so
+ * that sessions which were never ended can be found and removed from another thread.
+ */
+public class SessionMapper {
+    private static class Entry extends AtomicReference<Session> {
+        final int threadId;
+        final WeakReference<Thread> thread;
+
+        Entry() {
+            threadId = Log.getCallingThreadId();
+            thread = new WeakReference<>(Thread.currentThread());
+        }
+
+        boolean isThreadAlive() {
+            Thread t = thread.get();
+            return t != null && t.isAlive();
+        }
+    }
+
+    private final ThreadLocal<Entry> mEntry = new ThreadLocal<>();
+    // Only written when a thread starts its first session, or when entries of threads which have
+    // died are dropped.
+    private final List<Entry> mEntries = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return The active session of the calling thread, or {@code null}.
+     */
+    public Session get() {
+        Entry entry = mEntry.get();
+        return entry == null ? null : entry.get();
+    }
+
+    /**
+     * Sets the active session of the calling thread; {@code null} removes it.
+     */
+    public void set(Session session) {
+        Entry entry = mEntry.get();
+        if (entry == null) {
+            if (session == null) {
+                return;
+            }
+            entry = new Entry();
+            mEntry.set(entry);
+            mEntries.add(entry);
+        }
+        entry.set(session);
+    }
+
+    /**
+     * @return The active session of the given thread, or {@code null}.
+     */
+    public Session get(int threadId) {
+        for (Entry entry : mEntries) {
+            if (entry.threadId == threadId && entry.isThreadAlive()) {
+                return entry.get();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of threads with an active session.
+     */
+    public int size() {
+        int size = 0;
+        for (Entry entry : mEntries) {
+            if (entry.get() != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Entry entry : mEntries) {
+            entry.set(null);
+        }
+    }
+
+    /**
+     * Removes the sessions which started before the given time, unless their thread has moved on
+     * to another session in the meantime. Entries of threads which have died are dropped.
+     *
+     * @return The sessions removed.
+     */
+    public List<Session> removeSessionsStartedBefore(long timeMs) {
+        List<Session> removed = new ArrayList<>();
+        for (Entry entry : mEntries) {
+            Session session = entry.get();
+            if (session != null && session.getExecutionStartTimeMilliseconds() < timeMs
+                    && entry.compareAndSet(session, null)) {
+                removed.add(session);
+            }
+            if (!entry.isThreadAlive()) {
+                entry.set(null);
+                mEntries.remove(entry);
+            }
+        }
+        return removed;
+    }
+}
@@ -49,6 +49,7 @@ import android.telephony.TelephonyManager;
 import android.util.EventLog;
 
 // TODO: Needed for move to system service: import com.android.internal.R;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telecom.ITelecomService;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.server.telecom.components.UserCallIntentProcessorFactory;
@@ -113,12 +114,18 @@ public class TelecomServiceImpl {
                 String callingPackage) {
             try {
                 Log.startSession("TSI.gDOPA");
-                synchronized (mLock) {
-                    if (!canReadPhoneState(callingPackage, "getDefaultOutgoingPhoneAccount")) {
-                        return null;
-                    }
+                if (!canReadPhoneState(callingPackage, "getDefaultOutgoingPhoneAccount")) {
+                    return null;
+                }
 
-                    final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                final PhoneAccountRegistrar.PublishedOutgoingAccount published =
+                        mPhoneAccountRegistrar.getPublishedOutgoingPhoneAccountForScheme(
+                                uriScheme, callingUserHandle);
+                if (published.isPublished) {
+                    return published.handle;
+                }
+                synchronized (mLock) {
                     long token = Binder.clearCallingIdentity();
                     try {
                         return mPhoneAccountRegistrar
@@ -183,8 +190,14 @@ public class TelecomServiceImpl {
                 if (!canReadPhoneState(callingPackage, "getDefaultOutgoingPhoneAccount")) {
                     return Collections.emptyList();
                 }
+                final UserHandle callingUserHandle = Binder.getCallingUserHandle();
+                final List<PhoneAccountHandle> published = mPhoneAccountRegistrar
+                        .getPublishedCallCapablePhoneAccounts(null, includeDisabledAccounts,
+                                callingUserHandle);
+                if (published != null) {
+                    return published;
+                }
                 synchronized (mLock) {
-                    final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     long token = Binder.clearCallingIdentity();
                     try {
                         return mPhoneAccountRegistrar.getCallCapablePhoneAccounts(null,
@@ -649,11 +662,9 @@ public class TelecomServiceImpl {
                     return false;
                 }
 
-                synchronized (mLock) {
-                    final int callState = mCallsManager.getCallState();
-                    return callState == TelephonyManager.CALL_STATE_OFFHOOK
-                            || callState == TelephonyManager.CALL_STATE_RINGING;
-                }
+                final int callState = mCallsManager.getPublishedCallState().callState;
+                return callState == TelephonyManager.CALL_STATE_OFFHOOK
+                        || callState == TelephonyManager.CALL_STATE_RINGING;
             } finally {
                 Log.endSession();
             }
@@ -670,14 +681,12 @@ public class TelecomServiceImpl {
                     return false;
                 }
 
-                synchronized (mLock) {
-                    // Note: We are explicitly checking the calls telecom is tracking rather than
-                    // relying on mCallsManager#getCallState(). Since getCallState() relies on the
-                    // current state as tracked by PhoneStateBroadcaster, any failure to properly
-                    // track the current call state there could result in the wrong ringing state
-                    // being reported by this API.
-                    return mCallsManager.hasRingingCall();
-                }
+                // Note: We are explicitly checking the calls telecom is tracking rather than
+                // relying on mCallsManager#getCallState(). Since getCallState() relies on the
+                // current state as tracked by PhoneStateBroadcaster, any failure to properly
+                // track the current call state there could result in the wrong ringing state
+                // being reported by this API.
+                return mCallsManager.getPublishedCallState().hasRingingCall;
             } finally {
                 Log.endSession();
             }
@@ -690,9 +699,7 @@ public class TelecomServiceImpl {
         public int getCallState() {
             try {
                 Log.startSession("TSI.getCallState");
-                synchronized (mLock) {
-                    return mCallsManager.getCallState();
-                }
+                return mCallsManager.getPublishedCallState().callState;
             } finally {
                 Log.endSession();
             }
@@ -1176,25 +1183,7 @@ public class TelecomServiceImpl {
                 return;
             }
 
-            final IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
-            if (mCallsManager != null) {
-                pw.println("CallsManager: ");
-                pw.increaseIndent();
-                mCallsManager.dump(pw);
-                pw.decreaseIndent();
-
-                pw.println("PhoneAccountRegistrar: ");
-                pw.increaseIndent();
-                mPhoneAccountRegistrar.dump(pw);
-                pw.decreaseIndent();
-
-                pw.println("Analytics:");
-                pw.increaseIndent();
-                Analytics.dump(pw);
-                pw.decreaseIndent();
-            }
-
-            Log.dumpCallEvents(pw);
+            dumpTelecomState(writer);
         }
 
         /**
@@ -1250,6 +1239,45 @@ public class TelecomServiceImpl {
     // Supporting methods for the ITelecomService interface implementation.
     //
 
+    /**
+     * Dumps the state of Telecom. The state of the calls, the components of the
+     * {@link CallsManager} and the phone accounts is copied while holding the Telecom lock, and
+     * only rendered once it has been released, so that neither a slow reader of the dump nor the
+     * SIM call manager lookup can hold up call handling.
+     *
+     * @param writer The print writer to dump the state to.
+     */
+    @VisibleForTesting
+    public void dumpTelecomState(PrintWriter writer) {
+        final IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        if (mCallsManager != null) {
+            final CallsManager.DumpState callsManagerState;
+            final PhoneAccountRegistrar.DumpState phoneAccountRegistrarState;
+            synchronized (mLock) {
+                callsManagerState = mCallsManager.getDumpState();
+                phoneAccountRegistrarState = mPhoneAccountRegistrar.getDumpState();
+            }
+
+            pw.println("CallsManager: ");
+            pw.increaseIndent();
+            callsManagerState.dump(pw);
+            pw.decreaseIndent();
+
+            pw.println("PhoneAccountRegistrar: ");
+            pw.increaseIndent();
+            mPhoneAccountRegistrar.dump(pw, phoneAccountRegistrarState);
+            pw.decreaseIndent();
+
+            pw.println("Analytics:");
+            pw.increaseIndent();
+            Analytics.dump(pw);
+            pw.decreaseIndent();
+        }
+
+        Log.dumpCallEvents(pw);
+        pw.flush();
+    }
+
     private boolean isPhoneAccountHandleVisibleToCallingUser(
             PhoneAccountHandle phoneAccountUserHandle, UserHandle callingUser) {
         return mPhoneAccountRegistrar.getPhoneAccount(phoneAccountUserHandle, callingUser) != null;
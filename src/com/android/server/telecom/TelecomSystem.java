@@ -86,6 +86,11 @@ public final class TelecomSystem {
                 .addDataAuthority(DialerCodeReceiver.TELECOM_SECRET_CODE_DEBUG_OFF, null);
         DIALER_SECRET_CODE_FILTER
                 .addDataAuthority(DialerCodeReceiver.TELECOM_SECRET_CODE_MARK, null);
+        DIALER_SECRET_CODE_FILTER
+                .addDataAuthority(DialerCodeReceiver.TELECOM_SECRET_CODE_ALLOC_PROFILING_ON, null);
+        DIALER_SECRET_CODE_FILTER
+                .addDataAuthority(DialerCodeReceiver.TELECOM_SECRET_CODE_ALLOC_PROFILING_OFF,
+                        null);
     }
 
     private static TelecomSystem INSTANCE = null;
@@ -163,6 +168,7 @@ public final class TelecomSystem {
         mContext = context.getApplicationContext();
         Log.setContext(mContext);
         Log.initMd5Sum();
+        Timeouts.startObserving(mContext.getContentResolver());
 
         Log.startSession("TS.init");
         mViceNotifier = vicenotifier;
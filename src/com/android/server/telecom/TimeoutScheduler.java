@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs Telecom's timeouts from a hashed timer wheel, so that scheduling and canceling a timeout
+ * take constant time instead of scanning the looper's message queue.
+ * <p>
+ * Each {@link Timeout} is kept at the tail of the wheel slot of the tick on which it expires, so
+ * that timeouts expiring on the same tick run in the order they were scheduled. A bitmap of the
+ * slots which hold timeouts lets the scheduler's looper sleep until the next occupied slot instead
+ * of waking up on every tick. A slot may only hold timeouts due on a later turn of the wheel, in
+ * which case the looper wakes up once for that turn and goes back to sleep. Expired timeouts run
+ * on the looper, outside of the scheduler's lock.
+ * <p>
+ * A timeout created from a {@link Runnable} continues the logging session of whoever scheduled it,
+ * as if the runnable had been posted to a handler.
+ */
+public class TimeoutScheduler {
+    /**
+     * A timeout which can be scheduled any number of times. Scheduling a pending timeout again
+     * moves its deadline.
+     */
+    public static final class Timeout {
+        private final String mName;
+        private final Runnable mLoggedRunnable;
+        private final java.lang.Runnable mTask;
+
+        // Guarded by the scheduler's lock.
+        private java.lang.Runnable mScheduledTask;
+        private long mDeadlineTick;
+        private long mDeadlineMillis;
+        private boolean mIsPending;
+        private Timeout mPrevious;
+        private Timeout mNext;
+
+        /**
+         * Creates a timeout which runs {@code runnable} in a subsession of the session which
+         * scheduled it.
+         */
+        public Timeout(String name, Runnable runnable) {
+            mName = name;
+            mLoggedRunnable = runnable;
+            mTask = null;
+        }
+
+        /**
+         * Creates a timeout which runs {@code task} outside of any session.
+         */
+        public Timeout(String name, java.lang.Runnable task) {
+            mName = name;
+            mLoggedRunnable = null;
+            mTask = task;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    // Must be a power of two. One turn of the wheel takes a little over 10 seconds.
+    public static final int DEFAULT_WHEEL_SIZE = 1024;
+
+    private static final int MSG_TICK = 1;
+
+    private static TimeoutScheduler sInstance;
+
+    /**
+     * Returns the scheduler which runs Telecom's timeouts on the main looper.
+     */
+    public static synchronized TimeoutScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new TimeoutScheduler(Looper.getMainLooper(), DEFAULT_TICK_MILLIS,
+                    DEFAULT_WHEEL_SIZE);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public static synchronized void setInstance(TimeoutScheduler scheduler) {
+        sInstance = scheduler;
+    }
+
+    private final Object mLock = new Object();
+    private final long mTickMillis;
+    private final Timeout[] mSlots;
+    private final Timeout[] mSlotTails;
+    private final int mSlotMask;
+    // Bit i is set while slot i holds at least one timeout. Guarded by mLock.
+    private final long[] mOccupiedSlots;
+    private final long mStartTimeMillis;
+    private final Handler mHandler;
+    // Only used on the looper.
+    private final List<Timeout> mExpiredTimeouts = new ArrayList<>();
+
+    // Guarded by mLock. Every tick before mCurrentTick has been expired.
+    private long mCurrentTick;
+    private long mWakeUpTick = -1;
+    private int mPendingCount;
+
+    @VisibleForTesting
+    public TimeoutScheduler(Looper looper, long tickMillis, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two: " + wheelSize);
+        }
+        mTickMillis = tickMillis;
+        mSlots = new Timeout[wheelSize];
+        mSlotTails = new Timeout[wheelSize];
+        mSlotMask = wheelSize - 1;
+        mOccupiedSlots = new long[(wheelSize + Long.SIZE - 1) / Long.SIZE];
+        mStartTimeMillis = SystemClock.uptimeMillis();
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_TICK) {
+                    expireTimeouts();
+                }
+            }
+        };
+    }
+
+    /**
+     * Schedules {@code timeout} to run once {@code delayMillis} have passed, replacing its
+     * previous deadline if it is already pending.
+     */
+    public void schedule(Timeout timeout, long delayMillis) {
+        // Creates the subsession which the timeout runs in, canceling any previous one.
+        java.lang.Runnable task = timeout.mLoggedRunnable != null
+                ? timeout.mLoggedRunnable.prepare() : timeout.mTask;
+        long deadlineMillis = SystemClock.uptimeMillis() + Math.max(delayMillis, 0);
+        synchronized (mLock) {
+            if (timeout.mIsPending) {
+                unlink(timeout);
+            }
+            long deadlineTick = Math.max(mCurrentTick,
+                    (deadlineMillis - mStartTimeMillis + mTickMillis - 1) / mTickMillis);
+            timeout.mScheduledTask = task;
+            timeout.mDeadlineTick = deadlineTick;
+            timeout.mDeadlineMillis = deadlineMillis;
+            link(timeout);
+            if (mWakeUpTick < 0 || deadlineTick < mWakeUpTick) {
+                wakeUpAt(deadlineTick);
+            }
+        }
+    }
+
+    /**
+     * Cancels {@code timeout} if it is pending, and ends the subsession it would have run in.
+     */
+    public void cancel(Timeout timeout) {
+        synchronized (mLock) {
+            if (timeout.mIsPending) {
+                unlink(timeout);
+            }
+            timeout.mScheduledTask = null;
+        }
+        if (timeout.mLoggedRunnable != null) {
+            timeout.mLoggedRunnable.cancel();
+        }
+    }
+
+    public boolean isPending(Timeout timeout) {
+        synchronized (mLock) {
+            return timeout.mIsPending;
+        }
+    }
+
+    /**
+     * Runs {@code timeout} at once on the calling thread, for schedulers which keep their own
+     * clock in tests.
+     */
+    @VisibleForTesting
+    protected static void runNow(Timeout timeout) {
+        if (timeout.mLoggedRunnable != null) {
+            timeout.mLoggedRunnable.prepare().run();
+        } else {
+            timeout.mTask.run();
+        }
+    }
+
+    /**
+     * The pending timeouts shown by dumpsys.
+     */
+    public static final class DumpState {
+        private final List<String> mNames;
+        private final long[] mRemainingMillis;
+
+        private DumpState(List<String> names, long[] remainingMillis) {
+            mNames = names;
+            mRemainingMillis = remainingMillis;
+        }
+
+        /**
+         * Dumps the copied timeouts.
+         *
+         * @param pw The {@code IndentingPrintWriter} to write the state to.
+         */
+        public void dump(IndentingPrintWriter pw) {
+            pw.println("Pending timeouts: " + mNames.size());
+            pw.increaseIndent();
+            for (int i = 0; i < mNames.size(); i++) {
+                pw.println(mNames.get(i) + " in " + mRemainingMillis[i] + " ms");
+            }
+            pw.decreaseIndent();
+        }
+    }
+
+    /**
+     * Copies the pending timeouts for dumpsys.
+     *
+     * @return The copied timeouts.
+     */
+    public DumpState getDumpState() {
+        synchronized (mLock) {
+            List<String> names = new ArrayList<>(mPendingCount);
+            long[] remainingMillis = new long[mPendingCount];
+            long now = SystemClock.uptimeMillis();
+            for (Timeout head : mSlots) {
+                for (Timeout timeout = head; timeout != null; timeout = timeout.mNext) {
+                    remainingMillis[names.size()] = timeout.mDeadlineMillis - now;
+                    names.add(timeout.mName);
+                }
+            }
+            return new DumpState(names, remainingMillis);
+        }
+    }
+
+    private void expireTimeouts() {
+        synchronized (mLock) {
+            long nowTick = (SystemClock.uptimeMillis() - mStartTimeMillis) / mTickMillis;
+            // A slot holds the timeouts of every turn of the wheel, so one turn covers them all.
+            long lastTick = Math.min(nowTick, mCurrentTick + mSlots.length - 1);
+            long tick = mCurrentTick;
+            while (mPendingCount > 0) {
+                tick = getNextOccupiedTick(tick);
+                if (tick > lastTick) {
+                    break;
+                }
+                Timeout timeout = mSlots[(int) (tick & mSlotMask)];
+                while (timeout != null) {
+                    Timeout next = timeout.mNext;
+                    if (timeout.mDeadlineTick <= nowTick) {
+                        unlink(timeout);
+                        mExpiredTimeouts.add(timeout);
+                    }
+                    timeout = next;
+                }
+                tick++;
+            }
+            mCurrentTick = Math.max(mCurrentTick, nowTick + 1);
+            mWakeUpTick = -1;
+            if (mPendingCount > 0) {
+                wakeUpAt(getNextOccupiedTick(mCurrentTick));
+            }
+        }
+
+        for (int i = 0; i < mExpiredTimeouts.size(); i++) {
+            Timeout timeout = mExpiredTimeouts.get(i);
+            java.lang.Runnable task;
+            synchronized (mLock) {
+                // The timeout may have been canceled or rescheduled since it was expired.
+                if (timeout.mIsPending) {
+                    continue;
+                }
+                task = timeout.mScheduledTask;
+                timeout.mScheduledTask = null;
+            }
+            if (task != null) {
+                task.run();
+            }
+        }
+        mExpiredTimeouts.clear();
+    }
+
+    /**
+     * Returns the first tick from {@code fromTick} on whose slot holds a timeout, looking at most
+     * one turn of the wheel ahead. Must only be called while timeouts are pending.
+     */
+    private long getNextOccupiedTick(long fromTick) {
+        int fromSlot = (int) (fromTick & mSlotMask);
+        int slot = getNextOccupiedSlot(fromSlot, mSlots.length);
+        if (slot < 0) {
+            slot = getNextOccupiedSlot(0, fromSlot);
+        }
+        return fromTick + ((slot - fromSlot) & mSlotMask);
+    }
+
+    // Returns the first occupied slot in [fromSlot, toSlot), or -1 if there is none.
+    private int getNextOccupiedSlot(int fromSlot, int toSlot) {
+        int word = fromSlot / Long.SIZE;
+        long bits = mOccupiedSlots[word] & (-1L << (fromSlot % Long.SIZE));
+        while (bits == 0) {
+            word++;
+            if (word >= mOccupiedSlots.length || word * Long.SIZE >= toSlot) {
+                return -1;
+            }
+            bits = mOccupiedSlots[word];
+        }
+        int slot = word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+        return slot < toSlot ? slot : -1;
+    }
+
+    private void wakeUpAt(long tick) {
+        mWakeUpTick = tick;
+        mHandler.removeMessages(MSG_TICK);
+        mHandler.sendEmptyMessageAtTime(MSG_TICK, mStartTimeMillis + tick * mTickMillis);
+    }
+
+    private void link(Timeout timeout) {
+        int slot = (int) (timeout.mDeadlineTick & mSlotMask);
+        timeout.mPrevious = mSlotTails[slot];
+        timeout.mNext = null;
+        if (mSlotTails[slot] != null) {
+            mSlotTails[slot].mNext = timeout;
+        } else {
+            mSlots[slot] = timeout;
+            mOccupiedSlots[slot / Long.SIZE] |= 1L << (slot % Long.SIZE);
+        }
+        mSlotTails[slot] = timeout;
+        timeout.mIsPending = true;
+        mPendingCount++;
+    }
+
+    private void unlink(Timeout timeout) {
+        int slot = (int) (timeout.mDeadlineTick & mSlotMask);
+        if (timeout.mPrevious != null) {
+            timeout.mPrevious.mNext = timeout.mNext;
+        } else {
+            mSlots[slot] = timeout.mNext;
+        }
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrevious = timeout.mPrevious;
+        } else {
+            mSlotTails[slot] = timeout.mPrevious;
+        }
+        if (mSlots[slot] == null) {
+            mOccupiedSlots[slot / Long.SIZE] &= ~(1L << (slot % Long.SIZE));
+        }
+        timeout.mPrevious = null;
+        timeout.mNext = null;
+        timeout.mIsPending = false;
+        mPendingCount--;
+    }
+}
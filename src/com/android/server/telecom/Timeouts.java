@@ -17,12 +17,25 @@
 package com.android.server.telecom;
 
 import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
 import android.provider.Settings;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * A helper class which serves only to make it easier to lookup timeout values. This class should
  * never be instantiated, and only accessed through the {@link #get(String, long)} method.
  *
+ * Once {@link #startObserving(ContentResolver)} has been called, timeout values are served from a
+ * snapshot of the telecom settings instead of a settings provider query, and the snapshot is
+ * reloaded whenever one of those settings changes.
+ *
  * These methods are safe to call from any thread, including the UI thread.
  */
 public final class Timeouts {
@@ -36,13 +49,140 @@ public final class Timeouts {
         public long getCallRemoveUnbindInCallServicesDelay(ContentResolver cr) {
             return Timeouts.getCallRemoveUnbindInCallServicesDelay(cr);
         }
+
+        public long getCallScreeningServiceKeepAliveMillis(ContentResolver cr) {
+            return Timeouts.getCallScreeningServiceKeepAliveMillis(cr);
+        }
+
+        public long getInCallServicePreBindTimeoutMillis(ContentResolver cr) {
+            return Timeouts.getInCallServicePreBindTimeoutMillis(cr);
+        }
+
+        public long getVideoProviderUpdateIntervalMillis(ContentResolver cr) {
+            return Timeouts.getVideoProviderUpdateIntervalMillis(cr);
+        }
+
+        public long getConnectionServiceMaxKeepAliveMillis(ContentResolver cr) {
+            return Timeouts.getConnectionServiceMaxKeepAliveMillis(cr);
+        }
+
+        public long getEmergencyCallHedgeDelayMillis(ContentResolver cr) {
+            return Timeouts.getEmergencyCallHedgeDelayMillis(cr);
+        }
     }
 
+    private static final String TAG = "Timeouts";
+
     /** A prefix to use for all keys so to not clobber the global namespace. */
     private static final String PREFIX = "telecom.";
 
+    private static final String[] PROJECTION = new String[] {
+            Settings.NameValueTable.NAME,
+            Settings.NameValueTable.VALUE
+    };
+
+    /**
+     * The telecom settings which are set, keyed without {@link #PREFIX}, or {@code null} until they
+     * have been loaded. Replaced as a whole whenever one of them changes.
+     */
+    private static volatile Map<String, Long> sSnapshot;
+
+    // Guarded by Timeouts.class.
+    private static ContentResolver sObservedContentResolver;
+    private static ContentObserver sObserver;
+
     private Timeouts() {}
 
+    /**
+     * Loads the telecom settings and keeps them up to date, so that timeouts can be looked up
+     * without querying the settings provider. Telecom only reads its own settings, so values are
+     * served from this snapshot whichever content resolver is later passed to the getters.
+     *
+     * @param contentResolver The content resolver of the Telecom system context.
+     */
+    public static synchronized void startObserving(ContentResolver contentResolver) {
+        if (sObserver != null) {
+            return;
+        }
+        // Notified on a binder thread, since reloading queries the settings provider.
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                onSettingChanged(uri);
+            }
+        };
+        try {
+            // Registered before loading, so that no change is missed in between.
+            contentResolver.registerContentObserver(Settings.Secure.CONTENT_URI,
+                    true /* notifyForDescendants */, observer);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Unable to observe settings: %s", e);
+            return;
+        }
+        sObservedContentResolver = contentResolver;
+        sObserver = observer;
+        reload();
+    }
+
+    @VisibleForTesting
+    public static synchronized void stopObserving() {
+        if (sObserver != null) {
+            sObservedContentResolver.unregisterContentObserver(sObserver);
+            sObserver = null;
+            sObservedContentResolver = null;
+        }
+        sSnapshot = null;
+    }
+
+    @VisibleForTesting
+    public static void onSettingChanged(Uri uri) {
+        // A null uri means the changed settings are unknown.
+        String name = uri == null ? null : uri.getLastPathSegment();
+        if (name == null || name.startsWith(PREFIX)) {
+            Log.d(TAG, "Telecom settings changed, reloading: %s", name);
+            reload();
+        }
+    }
+
+    private static synchronized void reload() {
+        if (sObservedContentResolver == null) {
+            return;
+        }
+        Map<String, Long> snapshot = new ArrayMap<>();
+        Cursor cursor = null;
+        try {
+            cursor = sObservedContentResolver.query(Settings.Secure.CONTENT_URI, PROJECTION,
+                    null, null, null);
+            if (cursor == null) {
+                // Keep querying the settings provider for each timeout instead.
+                Log.w(TAG, "Settings query returned no cursor.");
+                sSnapshot = null;
+                return;
+            }
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                String value = cursor.getString(1);
+                if (name == null || !name.startsWith(PREFIX) || value == null) {
+                    continue;
+                }
+                try {
+                    snapshot.put(name.substring(PREFIX.length()), Long.parseLong(value));
+                } catch (NumberFormatException e) {
+                    // Settings.Secure#getLong also falls back to the default value.
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to load settings: %s", e);
+            sSnapshot = null;
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        sSnapshot = Collections.unmodifiableMap(snapshot);
+    }
+
     /**
      * Returns the timeout value from Settings or the default value if it hasn't been changed. This
      * method is safe to call from any thread, including the UI thread.
@@ -53,6 +193,11 @@ public final class Timeouts {
      * @return The timeout value from Settings or the default value if it hasn't been changed.
      */
     private static long get(ContentResolver contentResolver, String key, long defaultValue) {
+        Map<String, Long> snapshot = sSnapshot;
+        if (snapshot != null) {
+            Long value = snapshot.get(key);
+            return value != null ? value : defaultValue;
+        }
         return Settings.Secure.getLong(contentResolver, PREFIX + key, defaultValue);
     }
 
@@ -93,6 +238,16 @@ public final class Timeouts {
                 60000L /* 1 minute */);
     }
 
+    /**
+     * Returns the amount of time to wait, once an emergency call has been sent to a connection
+     * service, before binding the connection service which would be tried next if it fails. The
+     * call is only placed through one connection service at a time. A value of 0 or less means
+     * the next connection service is only bound once the current one has failed.
+     */
+    public static long getEmergencyCallHedgeDelayMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "emergency_call_hedge_delay_millis", 0L);
+    }
+
     /**
      * Returns the amount of delay before unbinding the in-call services after all the calls
      * are removed.
@@ -136,4 +291,41 @@ public final class Timeouts {
     public static long getCallScreeningTimeoutMillis(ContentResolver contentResolver) {
         return get(contentResolver, "call_screening_timeout", 5000L /* 5 seconds */);
     }
+
+    /**
+     * Returns the amount of time to stay bound to the call screening service after the last call
+     * has been screened. A value of 0 or less unbinds as soon as screening completes.
+     */
+    public static long getCallScreeningServiceKeepAliveMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "call_screening_service_keep_alive_millis",
+                30000L /* 30 seconds */);
+    }
+
+    /**
+     * Returns the amount of time to hold a speculative binding to the in-call UI for a call which
+     * has not been added yet (for example, one that is still being filtered).
+     */
+    public static long getInCallServicePreBindTimeoutMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "incall_service_prebind_timeout_millis",
+                10000L /* 10 seconds */);
+    }
+
+    /**
+     * Returns the minimum interval between two peer dimension, video quality or call data usage
+     * updates forwarded from a video provider to the InCallServices; updates received in between
+     * are coalesced into the latest one. A value of 0 or less forwards every update.
+     */
+    public static long getVideoProviderUpdateIntervalMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "video_provider_update_interval_millis", 100L);
+    }
+
+    /**
+     * Returns the longest time to stay bound to a connection service after its last call has
+     * ended; see {@link ServiceBinderKeepAlivePolicy}. A value of 0 or less unbinds as soon as the
+     * last call ends.
+     */
+    public static long getConnectionServiceMaxKeepAliveMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "connection_service_max_keep_alive_millis",
+                60000L /* 1 minute */);
+    }
 }
@@ -131,11 +131,31 @@ final class TtyManager implements WiredHeadsetManager.Listener {
     }
 
     /**
-     * Dumps the state of the {@link TtyManager}.
+     * The state of the {@link TtyManager} shown by dumpsys.
+     */
+    static final class DumpState {
+        private final int mCurrentTtyMode;
+
+        private DumpState(int currentTtyMode) {
+            mCurrentTtyMode = currentTtyMode;
+        }
+
+        /**
+         * Dumps the copied state.
+         *
+         * @param pw The {@code IndentingPrintWriter} to write the state to.
+         */
+        void dump(IndentingPrintWriter pw) {
+            pw.println("mCurrentTtyMode: " + mCurrentTtyMode);
+        }
+    }
+
+    /**
+     * Copies the state of the {@link TtyManager} for dumpsys.
      *
-     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     * @return The copied state.
      */
-    public void dump(IndentingPrintWriter pw) {
-        pw.println("mCurrentTtyMode: " + mCurrentTtyMode);
+    DumpState getDumpState() {
+        return new DumpState(mCurrentTtyMode);
     }
 }
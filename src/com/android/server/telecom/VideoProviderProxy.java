@@ -20,11 +20,13 @@ import android.net.Uri;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.telecom.Connection;
 import android.telecom.InCallService;
 import android.telecom.VideoProfile;
 import android.view.Surface;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telecom.IVideoCallback;
 import com.android.internal.telecom.IVideoProvider;
 
@@ -39,8 +41,23 @@ import java.util.concurrent.ConcurrentHashMap;
  * implementations.
  *
  * Also provides a means for Telecom to send and receive these messages.
+ *
+ * Some video providers report peer dimension, video quality and call data usage changes at frame
+ * rate. These updates only describe the current state of the session, so they are forwarded at
+ * most once per update interval; updates received in between are coalesced into the latest one,
+ * which is forwarded at the end of the interval. Session modify requests and responses and call
+ * session events are always forwarded right away, after any update which is still pending so that
+ * the order in which the InCallServices see them is preserved.
  */
 public class VideoProviderProxy extends Connection.VideoProvider {
+    /** Kinds of rate-limited updates, used as indices of the update counters. */
+    @VisibleForTesting
+    public static final int UPDATE_PEER_DIMENSIONS = 0;
+    @VisibleForTesting
+    public static final int UPDATE_VIDEO_QUALITY = 1;
+    @VisibleForTesting
+    public static final int UPDATE_CALL_DATA_USAGE = 2;
+    private static final int UPDATE_KIND_COUNT = 3;
 
     /**
      * Listener for Telecom components interested in callbacks from the video provider.
@@ -80,10 +97,41 @@ public class VideoProviderProxy extends Connection.VideoProvider {
      */
     private Call mCall;
 
+    /** Minimum interval between two forwarded updates of the same kind. */
+    private final long mUpdateIntervalMillis;
+
+    private final TimeoutScheduler mTimeoutScheduler = TimeoutScheduler.getInstance();
+
+    /** Forwards the pending updates whose interval has elapsed. */
+    private final TimeoutScheduler.Timeout mForwardPendingUpdatesTimeout;
+
+    // The following are indexed by the UPDATE_* kinds, and guarded by mLock.
+    private final long[] mLastForwardedMillis = new long[UPDATE_KIND_COUNT];
+    private final boolean[] mIsUpdatePending = new boolean[UPDATE_KIND_COUNT];
+    private final int[] mUpdatesReceived = new int[UPDATE_KIND_COUNT];
+    private final int[] mUpdatesForwarded = new int[UPDATE_KIND_COUNT];
+    private final int[] mUpdatesCoalesced = new int[UPDATE_KIND_COUNT];
+
+    // Latest values received for the pending updates.
+    private int mPendingPeerWidth;
+    private int mPendingPeerHeight;
+    private int mPendingVideoQuality;
+    private long mPendingCallDataUsage;
+
+    /** Uptime at which mForwardPendingUpdatesTimeout is due, or 0 if it is not scheduled. */
+    private long mForwardPendingUpdatesAtMillis;
+
+    /** Whether mDeathRecipient is still linked.  Guarded by mLock. */
+    private boolean mIsLinkedToDeath;
+
     private IBinder.DeathRecipient mDeathRecipient = new IBinder.DeathRecipient() {
         @Override
         public void binderDied() {
-            mConectionServiceVideoProvider.asBinder().unlinkToDeath(this, 0);
+            synchronized (mLock) {
+                mConectionServiceVideoProvider.asBinder().unlinkToDeath(this, 0);
+                mIsLinkedToDeath = false;
+                cancelPendingUpdates();
+            }
         }
     };
 
@@ -95,17 +143,30 @@ public class VideoProviderProxy extends Connection.VideoProvider {
      * @param lock
      * @param videoProvider The {@link android.telecom.ConnectionService}'s video provider.
      * @param call The current call.
+     * @param updateIntervalMillis The minimum interval between two forwarded peer dimension,
+     *         video quality or call data usage updates.
      * @throws RemoteException Remote exception.
      */
     VideoProviderProxy(TelecomSystem.SyncRoot lock,
-            IVideoProvider videoProvider, Call call) throws RemoteException {
+            IVideoProvider videoProvider, Call call, long updateIntervalMillis)
+            throws RemoteException {
 
         super(Looper.getMainLooper());
 
         mLock = lock;
+        mUpdateIntervalMillis = updateIntervalMillis;
+        mForwardPendingUpdatesTimeout = new TimeoutScheduler.Timeout("VPP.fPU",
+                new Runnable("VPP.fPU", mLock) {
+                    @Override
+                    public void loggedRun() {
+                        mForwardPendingUpdatesAtMillis = 0;
+                        forwardPendingUpdates(false /* ignoreInterval */);
+                    }
+                });
 
         mConectionServiceVideoProvider = videoProvider;
         mConectionServiceVideoProvider.asBinder().linkToDeath(mDeathRecipient, 0);
+        mIsLinkedToDeath = true;
 
         mVideoCallListenerBinder = new VideoCallListenerBinder();
         mConectionServiceVideoProvider.addVideoCallback(mVideoCallListenerBinder);
@@ -155,6 +216,8 @@ public class VideoProviderProxy extends Connection.VideoProvider {
                         return;
                     }
 
+                    forwardPendingUpdates(true /* ignoreInterval */);
+
                     // Inform other Telecom components of the session modification request.
                     for (Listener listener : mListeners) {
                         listener.onSessionModifyRequestReceived(mCall, videoProfile);
@@ -191,6 +254,7 @@ public class VideoProviderProxy extends Connection.VideoProvider {
                                     VideoProfile.STATE_AUDIO_ONLY :
                                     responseProfile.getVideoState());
                 }
+                forwardPendingUpdates(true /* ignoreInterval */);
                 VideoProviderProxy.this.receiveSessionModifyResponse(status, requestProfile,
                         responseProfile);
             }
@@ -207,13 +271,14 @@ public class VideoProviderProxy extends Connection.VideoProvider {
             synchronized (mLock) {
                 logFromVideoProvider("handleCallSessionEvent: " +
                         Connection.VideoProvider.sessionEventToString(event));
+                forwardPendingUpdates(true /* ignoreInterval */);
                 VideoProviderProxy.this.handleCallSessionEvent(event);
             }
         }
 
         /**
          * Proxies a request from the {@link #mConectionServiceVideoProvider} to the
-         * {@link InCallService} when the peer dimensions change.
+         * {@link InCallService} when the peer dimensions change.  Rate-limited.
          *
          * @param width The width of the peer's video.
          * @param height The height of the peer's video.
@@ -221,41 +286,41 @@ public class VideoProviderProxy extends Connection.VideoProvider {
         @Override
         public void changePeerDimensions(int width, int height) {
             synchronized (mLock) {
-                logFromVideoProvider("changePeerDimensions: width=" + width + " height=" +
-                        height);
-                VideoProviderProxy.this.changePeerDimensions(width, height);
+                mPendingPeerWidth = width;
+                mPendingPeerHeight = height;
+                onUpdateReceived(UPDATE_PEER_DIMENSIONS);
             }
         }
 
         /**
          * Proxies a request from the {@link #mConectionServiceVideoProvider} to the
-         * {@link InCallService} when the video quality changes.
+         * {@link InCallService} when the video quality changes.  Rate-limited.
          *
          * @param videoQuality The video quality.
          */
         @Override
         public void changeVideoQuality(int videoQuality) {
             synchronized (mLock) {
-                logFromVideoProvider("changeVideoQuality: " + videoQuality);
-                VideoProviderProxy.this.changeVideoQuality(videoQuality);
+                mPendingVideoQuality = videoQuality;
+                onUpdateReceived(UPDATE_VIDEO_QUALITY);
             }
         }
 
         /**
          * Proxies a request from the {@link #mConectionServiceVideoProvider} to the
-         * {@link InCallService} when the call data usage changes.
+         * {@link InCallService} when the call data usage changes.  Rate-limited.
          *
          * Also tracks the current call data usage on the {@link Call} for use when writing to the
-         * call log.
+         * call log; this is not rate-limited.
          *
          * @param dataUsage The data usage.
          */
         @Override
         public void changeCallDataUsage(long dataUsage) {
             synchronized (mLock) {
-                logFromVideoProvider("changeCallDataUsage: " + dataUsage);
-                VideoProviderProxy.this.setCallDataUsage(dataUsage);
                 mCall.setCallDataUsage(dataUsage);
+                mPendingCallDataUsage = dataUsage;
+                onUpdateReceived(UPDATE_CALL_DATA_USAGE);
             }
         }
 
@@ -269,6 +334,7 @@ public class VideoProviderProxy extends Connection.VideoProvider {
         public void changeCameraCapabilities(VideoProfile.CameraCapabilities cameraCapabilities) {
             synchronized (mLock) {
                 logFromVideoProvider("changeCameraCapabilities: " + cameraCapabilities);
+                forwardPendingUpdates(true /* ignoreInterval */);
                 VideoProviderProxy.this.changeCameraCapabilities(cameraCapabilities);
             }
         }
@@ -472,6 +538,149 @@ public class VideoProviderProxy extends Connection.VideoProvider {
         }
     }
 
+    /**
+     * @param kind One of the UPDATE_* kinds.
+     * @return The number of updates of this kind received from the video provider.
+     */
+    @VisibleForTesting
+    public int getUpdatesReceived(int kind) {
+        synchronized (mLock) {
+            return mUpdatesReceived[kind];
+        }
+    }
+
+    /**
+     * @param kind One of the UPDATE_* kinds.
+     * @return The number of updates of this kind forwarded to the InCallServices.
+     */
+    @VisibleForTesting
+    public int getUpdatesForwarded(int kind) {
+        synchronized (mLock) {
+            return mUpdatesForwarded[kind];
+        }
+    }
+
+    /**
+     * @param kind One of the UPDATE_* kinds.
+     * @return The number of updates of this kind which were superseded by a later update before
+     *         they could be forwarded.
+     */
+    @VisibleForTesting
+    public int getUpdatesCoalesced(int kind) {
+        synchronized (mLock) {
+            return mUpdatesCoalesced[kind];
+        }
+    }
+
+    /**
+     * Stops listening to the {@link android.telecom.ConnectionService}'s video provider, e.g. when
+     * the call switches to another one, and drops any updates not yet forwarded.
+     */
+    void clearVideoCallback() {
+        synchronized (mLock) {
+            cancelPendingUpdates();
+            if (mIsLinkedToDeath) {
+                mConectionServiceVideoProvider.asBinder().unlinkToDeath(mDeathRecipient, 0);
+                mIsLinkedToDeath = false;
+            }
+        }
+        try {
+            mConectionServiceVideoProvider.removeVideoCallback(mVideoCallListenerBinder);
+        } catch (RemoteException ignored) {
+        }
+    }
+
+    /**
+     * Forwards the update whose latest value was just stored, or holds on to it until the update
+     * interval for its kind has elapsed.  Called with mLock held.
+     *
+     * @param kind One of the UPDATE_* kinds.
+     */
+    private void onUpdateReceived(int kind) {
+        mUpdatesReceived[kind]++;
+        if (mIsUpdatePending[kind]) {
+            // The pending update is superseded; it is already scheduled to be forwarded.
+            mUpdatesCoalesced[kind]++;
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long dueMillis = mLastForwardedMillis[kind] + mUpdateIntervalMillis;
+        if (mUpdatesForwarded[kind] == 0 || mUpdateIntervalMillis <= 0 || now >= dueMillis) {
+            forwardUpdate(kind, now);
+        } else {
+            mIsUpdatePending[kind] = true;
+            scheduleForwardPendingUpdates(dueMillis);
+        }
+    }
+
+    /**
+     * Forwards the pending updates.  Called with mLock held.
+     *
+     * @param ignoreInterval {@code true} to forward all pending updates right away, e.g. ahead of
+     *         a session modify request, {@code false} to forward only those whose update interval
+     *         has elapsed.
+     */
+    private void forwardPendingUpdates(boolean ignoreInterval) {
+        long now = SystemClock.uptimeMillis();
+        long nextDueMillis = Long.MAX_VALUE;
+        for (int kind = 0; kind < UPDATE_KIND_COUNT; kind++) {
+            if (!mIsUpdatePending[kind]) {
+                continue;
+            }
+            long dueMillis = mLastForwardedMillis[kind] + mUpdateIntervalMillis;
+            if (ignoreInterval || now >= dueMillis) {
+                forwardUpdate(kind, now);
+            } else {
+                nextDueMillis = Math.min(nextDueMillis, dueMillis);
+            }
+        }
+        if (nextDueMillis != Long.MAX_VALUE) {
+            scheduleForwardPendingUpdates(nextDueMillis);
+        }
+    }
+
+    private void scheduleForwardPendingUpdates(long atMillis) {
+        if (mForwardPendingUpdatesAtMillis != 0 && mForwardPendingUpdatesAtMillis <= atMillis) {
+            // Already scheduled early enough.
+            return;
+        }
+        mTimeoutScheduler.schedule(mForwardPendingUpdatesTimeout,
+                atMillis - SystemClock.uptimeMillis());
+        mForwardPendingUpdatesAtMillis = atMillis;
+    }
+
+    /**
+     * Drops the pending updates and their scheduled forwarding.  Called with mLock held.
+     */
+    private void cancelPendingUpdates() {
+        mTimeoutScheduler.cancel(mForwardPendingUpdatesTimeout);
+        mForwardPendingUpdatesAtMillis = 0;
+        for (int kind = 0; kind < UPDATE_KIND_COUNT; kind++) {
+            mIsUpdatePending[kind] = false;
+        }
+    }
+
+    private void forwardUpdate(int kind, long now) {
+        mIsUpdatePending[kind] = false;
+        mLastForwardedMillis[kind] = now;
+        mUpdatesForwarded[kind]++;
+        switch (kind) {
+            case UPDATE_PEER_DIMENSIONS:
+                logFromVideoProvider("changePeerDimensions: width=" + mPendingPeerWidth
+                        + " height=" + mPendingPeerHeight);
+                changePeerDimensions(mPendingPeerWidth, mPendingPeerHeight);
+                break;
+            case UPDATE_VIDEO_QUALITY:
+                logFromVideoProvider("changeVideoQuality: " + mPendingVideoQuality);
+                changeVideoQuality(mPendingVideoQuality);
+                break;
+            case UPDATE_CALL_DATA_USAGE:
+                logFromVideoProvider("changeCallDataUsage: " + mPendingCallDataUsage);
+                setCallDataUsage(mPendingCallDataUsage);
+                break;
+        }
+    }
+
     /**
      * Logs a message originating from the {@link InCallService}.
      *
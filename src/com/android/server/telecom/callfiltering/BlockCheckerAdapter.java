@@ -21,9 +21,24 @@ import android.content.Context;
 import com.android.internal.telephony.BlockChecker;
 
 public class BlockCheckerAdapter {
-    public BlockCheckerAdapter() { }
+    private final BlockedNumberCache mBlockedNumberCache;
+
+    public BlockCheckerAdapter() {
+        this(null);
+    }
+
+    /**
+     * @param blockedNumberCache Local index consulted before the blocked number provider, or
+     *         {@code null} to always query the provider.
+     */
+    public BlockCheckerAdapter(BlockedNumberCache blockedNumberCache) {
+        mBlockedNumberCache = blockedNumberCache;
+    }
 
     public boolean isBlocked(Context context, String number) {
+        if (mBlockedNumberCache != null && mBlockedNumberCache.isReady()) {
+            return mBlockedNumberCache.isBlocked(number);
+        }
         return BlockChecker.isBlocked(context, number);
     }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.callfiltering;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.location.Country;
+import android.location.CountryDetector;
+import android.location.CountryListener;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.BlockedNumberContract;
+import android.provider.BlockedNumberContract.BlockedNumbers;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.telecom.Log;
+import com.android.server.telecom.Runnable;
+
+/**
+ * Keeps a local {@link BlockedNumberIndex} of the blocked number provider so that incoming calls
+ * can be checked without a provider query. The index is loaded in the background on first use and
+ * reloaded whenever the provider notifies a change. Until an index has been loaded, after a reload
+ * has failed, or while blocking is suppressed after an emergency call, callers must fall back to
+ * the provider. Like the provider, incoming numbers are formatted as E.164 for the country the
+ * device is currently in, which is tracked as it changes.
+ */
+public class BlockedNumberCache {
+    private static final String[] PROJECTION = new String[] {
+            BlockedNumbers.COLUMN_ORIGINAL_NUMBER,
+            BlockedNumbers.COLUMN_E164_NUMBER
+    };
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Object mLoadLock = new Object();
+
+    private final ContentObserver mBlockedNumbersObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            Log.d(BlockedNumberCache.this, "Blocked numbers changed, reloading.");
+            scheduleLoad();
+        }
+    };
+
+    private final BroadcastReceiver mSuppressionReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.startSession("BNC.oR");
+            try {
+                updateSuppressionStatus();
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
+
+    private final CountryListener mCountryListener = new CountryListener() {
+        @Override
+        public void onCountryDetected(Country country) {
+            Log.startSession("BNC.oCD");
+            try {
+                mCountryIso = country == null ? null : country.getCountryIso();
+                Log.i(BlockedNumberCache.this, "Country ISO changed to %s", mCountryIso);
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
+
+    private volatile BlockedNumberIndex mIndex;
+    private volatile String mCountryIso;
+    private volatile boolean mIsBlockingSuppressed;
+    private boolean mIsRegistered;
+    private boolean mIsLoadPending;
+    private boolean mIsReloadRequested;
+
+    public BlockedNumberCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Registers for provider changes and starts loading the index if that has not happened yet.
+     */
+    public void initialize() {
+        synchronized (mLoadLock) {
+            if (mIsRegistered) {
+                return;
+            }
+            mIsRegistered = true;
+        }
+        try {
+            mContext.getContentResolver().registerContentObserver(
+                    BlockedNumbers.CONTENT_URI, true /* notifyForDescendants */,
+                    mBlockedNumbersObserver);
+            mContext.registerReceiver(mSuppressionReceiver, new IntentFilter(
+                    BlockedNumberContract.SystemContract.ACTION_BLOCK_SUPPRESSION_STATE_CHANGED));
+        } catch (SecurityException e) {
+            Log.w(this, "Unable to observe blocked numbers: %s", e);
+        }
+        CountryDetector detector = getCountryDetector();
+        if (detector != null) {
+            detector.addCountryListener(mCountryListener, Looper.getMainLooper());
+        }
+        scheduleLoad();
+    }
+
+    /**
+     * @return {@code true} if {@link #isBlocked(String)} can answer from the local index.
+     */
+    public boolean isReady() {
+        return mIndex != null && !mIsBlockingSuppressed;
+    }
+
+    /**
+     * Checks a number against the local index. Only valid when {@link #isReady()}. Like the
+     * provider, emergency numbers are never blocked.
+     *
+     * @param number The incoming number.
+     * @return {@code true} if the number is blocked.
+     */
+    public boolean isBlocked(String number) {
+        BlockedNumberIndex index = mIndex;
+        if (index == null || TextUtils.isEmpty(number)) {
+            return false;
+        }
+        String e164Number = null;
+        String countryIso = mCountryIso;
+        if (!TextUtils.isEmpty(countryIso)) {
+            e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+        }
+        if (PhoneNumberUtils.isEmergencyNumber(number)
+                || (e164Number != null && PhoneNumberUtils.isEmergencyNumber(e164Number))) {
+            return false;
+        }
+        return index.contains(number, e164Number);
+    }
+
+    private void scheduleLoad() {
+        synchronized (mLoadLock) {
+            if (mIsLoadPending) {
+                mIsReloadRequested = true;
+                return;
+            }
+            mIsLoadPending = true;
+        }
+        AsyncTask.execute(new Runnable("BNC.sL", null /*lock*/) {
+            @Override
+            public void loggedRun() {
+                boolean reload;
+                do {
+                    synchronized (mLoadLock) {
+                        mIsReloadRequested = false;
+                    }
+                    load();
+                    synchronized (mLoadLock) {
+                        reload = mIsReloadRequested;
+                        if (!reload) {
+                            mIsLoadPending = false;
+                        }
+                    }
+                } while (reload);
+            }
+        }.prepare());
+    }
+
+    @VisibleForTesting
+    public void load() {
+        long startTime = SystemClock.elapsedRealtime();
+        mCountryIso = getCurrentCountryIso();
+        updateSuppressionStatus();
+
+        BlockedNumberIndex index = new BlockedNumberIndex();
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(BlockedNumbers.CONTENT_URI, PROJECTION,
+                    null, null, null);
+            if (cursor == null) {
+                Log.w(this, "Blocked number query returned no cursor.");
+                mIndex = null;
+                return;
+            }
+            while (cursor.moveToNext()) {
+                index.add(cursor.getString(0), cursor.getString(1));
+            }
+        } catch (RuntimeException e) {
+            // The provider may be unavailable (e.g. user locked). The previous index may be
+            // missing the change which caused this reload, so fall back to the provider.
+            Log.w(this, "Unable to load blocked numbers: %s", e);
+            mIndex = null;
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        mIndex = index;
+        Log.i(this, "Loaded %d blocked numbers (%d with E.164) in %dms",
+                index.getOriginalCount(), index.getE164Count(),
+                SystemClock.elapsedRealtime() - startTime);
+    }
+
+    private void updateSuppressionStatus() {
+        try {
+            mIsBlockingSuppressed = BlockedNumberContract.SystemContract
+                    .getBlockSuppressionStatus(mContext).isSuppressed;
+        } catch (RuntimeException e) {
+            Log.w(this, "Unable to query block suppression status: %s", e);
+            mIsBlockingSuppressed = true;
+        }
+    }
+
+    private String getCurrentCountryIso() {
+        CountryDetector detector = getCountryDetector();
+        if (detector == null) {
+            return null;
+        }
+        Country country = detector.detectCountry();
+        return country == null ? null : country.getCountryIso();
+    }
+
+    private CountryDetector getCountryDetector() {
+        return (CountryDetector) mContext.getSystemService(Context.COUNTRY_DETECTOR);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.callfiltering;
+
+import android.text.TextUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An in-memory index of blocked numbers. Matches exactly like the blocked number provider, which
+ * blocks a number if it equals the {@code original_number} of a row, or if its E.164 form is
+ * non-empty and equals the {@code e164_number} of a row. The two columns are indexed separately so
+ * that a raw number is never matched against an E.164 entry or vice versa.
+ * <p>
+ * An index is built once by {@link BlockedNumberCache} and is not modified after it has been
+ * published, so lookups do not require any locking.
+ */
+public class BlockedNumberIndex {
+    private final Set<String> mOriginalNumbers = new HashSet<>();
+    private final Set<String> mE164Numbers = new HashSet<>();
+
+    /**
+     * Adds a row from the blocked number provider to the index.
+     *
+     * @param originalNumber The number as it was blocked by the user.
+     * @param e164Number The E.164 form of the number, or {@code null} if it has none.
+     */
+    public void add(String originalNumber, String e164Number) {
+        if (originalNumber != null) {
+            mOriginalNumbers.add(originalNumber);
+        }
+        if (!TextUtils.isEmpty(e164Number)) {
+            mE164Numbers.add(e164Number);
+        }
+    }
+
+    /**
+     * Determines if a number is blocked.
+     *
+     * @param number The number as received from the network.
+     * @param e164Number The number formatted as E.164 for the current country, or {@code null}.
+     * @return {@code true} if the number matches the original number or E.164 form of an entry.
+     */
+    public boolean contains(String number, String e164Number) {
+        if (number != null && mOriginalNumbers.contains(number)) {
+            return true;
+        }
+        return !TextUtils.isEmpty(e164Number) && mE164Numbers.contains(e164Number);
+    }
+
+    public int getOriginalCount() {
+        return mOriginalNumbers.size();
+    }
+
+    public int getE164Count() {
+        return mE164Numbers.size();
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.callfiltering;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.IBinder;
+import android.os.UserHandle;
+import android.telecom.CallScreeningService;
+import android.telecom.TelecomManager;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telecom.ICallScreeningService;
+import com.android.server.telecom.Call;
+import com.android.server.telecom.CallsManager;
+import com.android.server.telecom.Log;
+import com.android.server.telecom.Runnable;
+import com.android.server.telecom.TelecomServiceImpl;
+import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.TimeoutScheduler;
+import com.android.server.telecom.Timeouts;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Manages the binding to the default dialer's {@link CallScreeningService}, which is shared by all
+ * {@link CallScreeningServiceFilter}s. Rather than unbinding as soon as a call has been screened,
+ * the binding is kept for {@link Timeouts#getCallScreeningServiceKeepAliveMillis} so that calls
+ * arriving in quick succession do not each pay the cost of binding to (and possibly starting) the
+ * dialer process. The resolved service is cached until the dialer package or the user changes.
+ * <p>
+ * All methods must be called with the Telecom lock held.
+ */
+public class CallScreeningServiceBinder {
+    /**
+     * Notified when the screening service requested through {@link #bind} is available.
+     */
+    public interface Listener {
+        void onScreeningServiceBound(ICallScreeningService service);
+        void onScreeningServiceUnbound();
+    }
+
+    private class ScreeningServiceConnection implements ServiceConnection {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            Log.startSession("CSSB.oSC");
+            try {
+                synchronized (mTelecomLock) {
+                    if (mConnection != this) {
+                        Log.i(CallScreeningServiceBinder.this, "Ignoring stale connection %s",
+                                componentName);
+                        return;
+                    }
+                    mService = ICallScreeningService.Stub.asInterface(service);
+                    for (Map.Entry<Listener, Call> entry : copyListeners()) {
+                        Log.event(entry.getValue(), Log.Events.SCREENING_BOUND, componentName);
+                        entry.getKey().onScreeningServiceBound(mService);
+                    }
+                }
+            } finally {
+                Log.endSession();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            Log.startSession("CSSB.oSD");
+            try {
+                synchronized (mTelecomLock) {
+                    if (mConnection != this) {
+                        return;
+                    }
+                    // Keep the connection; the system rebinds when the service restarts. Calls
+                    // currently being screened cannot be recovered, so let them complete.
+                    Log.i(CallScreeningServiceBinder.this, "Screening service %s died",
+                            componentName);
+                    mService = null;
+                    for (Map.Entry<Listener, Call> entry : copyListeners()) {
+                        entry.getKey().onScreeningServiceUnbound();
+                    }
+                }
+            } finally {
+                Log.endSession();
+            }
+        }
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.startSession("CSSB.oR");
+            try {
+                synchronized (mTelecomLock) {
+                    Uri data = intent.getData();
+                    String packageName = data == null ? null : data.getSchemeSpecificPart();
+                    onPackageChanged(packageName);
+                }
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
+
+    private final Context mContext;
+    private final CallsManager mCallsManager;
+    private final TelecomServiceImpl.DefaultDialerManagerAdapter mDefaultDialerManagerAdapter;
+    private final TelecomSystem.SyncRoot mTelecomLock;
+    private final Timeouts.Adapter mTimeoutsAdapter;
+    private final TimeoutScheduler mTimeoutScheduler = TimeoutScheduler.getInstance();
+    private final Map<Listener, Call> mListeners = new LinkedHashMap<>();
+
+    private final TimeoutScheduler.Timeout mIdleUnbindTimeout;
+
+    // Cached resolution of the screening service; valid while mIsResolved is true.
+    private boolean mIsResolved;
+    private String mResolvedPackage;
+    private int mResolvedUserId;
+    private ComponentName mComponentName;
+
+    private ScreeningServiceConnection mConnection;
+    private ICallScreeningService mService;
+
+    public CallScreeningServiceBinder(
+            Context context,
+            CallsManager callsManager,
+            TelecomServiceImpl.DefaultDialerManagerAdapter defaultDialerManagerAdapter,
+            TelecomSystem.SyncRoot lock,
+            Timeouts.Adapter timeoutsAdapter) {
+        mContext = context;
+        mCallsManager = callsManager;
+        mDefaultDialerManagerAdapter = defaultDialerManagerAdapter;
+        mTelecomLock = lock;
+        mTimeoutsAdapter = timeoutsAdapter;
+        mIdleUnbindTimeout = new TimeoutScheduler.Timeout("CSSB.iU",
+                new Runnable("CSSB.iU", mTelecomLock) {
+                    @Override
+                    public void loggedRun() {
+                        if (mListeners.isEmpty()) {
+                            Log.i(CallScreeningServiceBinder.this,
+                                    "Keep-alive expired, unbinding.");
+                            disconnect();
+                        }
+                    }
+                });
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, packageFilter, null,
+                null);
+        IntentFilter dialerFilter = new IntentFilter(
+                TelecomManager.ACTION_DEFAULT_DIALER_CHANGED);
+        mContext.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, dialerFilter, null,
+                null);
+    }
+
+    /**
+     * Requests the screening service for a call. If the service is already bound, the listener is
+     * notified before this method returns.
+     *
+     * @return {@code false} if there is no valid screening service, in which case the listener
+     *         will not be notified.
+     */
+    public boolean bind(Call call, Listener listener) {
+        String dialerPackage = mDefaultDialerManagerAdapter
+                .getDefaultDialerApplication(mContext, UserHandle.USER_CURRENT);
+        if (TextUtils.isEmpty(dialerPackage)) {
+            Log.i(this, "Default dialer is empty. Not performing call screening.");
+            return false;
+        }
+        int userId = mCallsManager.getCurrentUserHandle().getIdentifier();
+        if (!mIsResolved || !dialerPackage.equals(mResolvedPackage)
+                || userId != mResolvedUserId) {
+            // Calls still being screened by the previous service cannot be moved to the new one,
+            // so let them complete before it is unbound.
+            finishListeners();
+            unbind();
+            resolve(dialerPackage, userId);
+        }
+        if (mComponentName == null) {
+            return false;
+        }
+
+        mTimeoutScheduler.cancel(mIdleUnbindTimeout);
+        Log.event(call, Log.Events.BIND_SCREENING, mComponentName);
+        mListeners.put(listener, call);
+
+        if (mService != null) {
+            Log.d(this, "bind, reusing bound screening service");
+            Log.event(call, Log.Events.SCREENING_BOUND, mComponentName);
+            listener.onScreeningServiceBound(mService);
+            return true;
+        }
+        if (mConnection != null) {
+            Log.d(this, "bind, waiting for pending screening service connection");
+            return true;
+        }
+
+        Intent intent = new Intent(CallScreeningService.SERVICE_INTERFACE)
+                .setPackage(mResolvedPackage)
+                .setComponent(mComponentName);
+        ScreeningServiceConnection connection = new ScreeningServiceConnection();
+        mConnection = connection;
+        if (mContext.bindServiceAsUser(
+                intent,
+                connection,
+                Context.BIND_AUTO_CREATE | Context.BIND_FOREGROUND_SERVICE,
+                UserHandle.CURRENT)) {
+            Log.d(this, "bind, found service, waiting for it to connect");
+            return true;
+        }
+        mConnection = null;
+        mListeners.remove(listener);
+        return false;
+    }
+
+    /**
+     * Indicates that a listener no longer needs the screening service. Once no listener remains,
+     * the service is unbound after the keep-alive period.
+     */
+    public void release(Listener listener) {
+        if (mListeners.remove(listener) == null || !mListeners.isEmpty()) {
+            return;
+        }
+        long keepAliveMillis = mTimeoutsAdapter.getCallScreeningServiceKeepAliveMillis(
+                mContext.getContentResolver());
+        if (keepAliveMillis <= 0 || mConnection == null) {
+            unbind();
+        } else {
+            mTimeoutScheduler.schedule(mIdleUnbindTimeout, keepAliveMillis);
+        }
+    }
+
+    @VisibleForTesting
+    public boolean isBound() {
+        return mConnection != null;
+    }
+
+    private void resolve(String dialerPackage, int userId) {
+        mIsResolved = true;
+        mResolvedPackage = dialerPackage;
+        mResolvedUserId = userId;
+        mComponentName = null;
+
+        Intent intent = new Intent(CallScreeningService.SERVICE_INTERFACE)
+                .setPackage(dialerPackage);
+        List<ResolveInfo> entries = mContext.getPackageManager().queryIntentServicesAsUser(
+                intent, 0, userId);
+        if (entries.isEmpty()) {
+            Log.i(this, "There are no call screening services installed on this device.");
+            return;
+        }
+
+        ResolveInfo entry = entries.get(0);
+        if (entry.serviceInfo == null) {
+            Log.w(this, "The call screening service has invalid service info");
+            return;
+        }
+
+        if (entry.serviceInfo.permission == null || !entry.serviceInfo.permission.equals(
+                Manifest.permission.BIND_SCREENING_SERVICE)) {
+            Log.w(this, "CallScreeningService must require BIND_SCREENING_SERVICE permission: " +
+                    entry.serviceInfo.packageName);
+            return;
+        }
+
+        mComponentName = new ComponentName(entry.serviceInfo.packageName, entry.serviceInfo.name);
+    }
+
+    private void onPackageChanged(String packageName) {
+        if (!mIsResolved) {
+            return;
+        }
+        if (packageName != null && !Objects.equals(packageName, mResolvedPackage)) {
+            return;
+        }
+        Log.i(this, "Screening service package %s changed, invalidating.", packageName);
+        mIsResolved = false;
+        if (mListeners.isEmpty()) {
+            unbind();
+        }
+    }
+
+    /**
+     * Detaches all listeners and tells them that the screening service is gone. Listeners release
+     * themselves in response, which is a no-op once they have been detached.
+     */
+    private void finishListeners() {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+        Log.i(this, "Screening service changed, finishing %d pending screenings.",
+                mListeners.size());
+        List<Map.Entry<Listener, Call>> listeners = copyListeners();
+        mListeners.clear();
+        for (Map.Entry<Listener, Call> entry : listeners) {
+            entry.getKey().onScreeningServiceUnbound();
+        }
+    }
+
+    private void unbind() {
+        mTimeoutScheduler.cancel(mIdleUnbindTimeout);
+        disconnect();
+    }
+
+    private void disconnect() {
+        if (mConnection != null) {
+            // We still need to call unbind even if the service disconnected.
+            mContext.unbindService(mConnection);
+            mConnection = null;
+        }
+        mService = null;
+    }
+
+    private List<Map.Entry<Listener, Call>> copyListeners() {
+        return new ArrayList<>(new LinkedHashMap<>(mListeners).entrySet());
+    }
+}
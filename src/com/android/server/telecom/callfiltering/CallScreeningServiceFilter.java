@@ -16,18 +16,9 @@
 
 package com.android.server.telecom.callfiltering;
 
-import android.Manifest;
-import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
-import android.content.ServiceConnection;
-import android.content.pm.ResolveInfo;
 import android.os.Binder;
-import android.os.IBinder;
 import android.os.RemoteException;
-import android.os.UserHandle;
-import android.telecom.CallScreeningService;
-import android.text.TextUtils;
 
 import com.android.internal.telecom.ICallScreeningAdapter;
 import com.android.internal.telecom.ICallScreeningService;
@@ -39,39 +30,22 @@ import com.android.server.telecom.PhoneAccountRegistrar;
 import com.android.server.telecom.TelecomServiceImpl;
 import com.android.server.telecom.TelecomSystem;
 
-import java.util.List;
-
 /**
- * Binds to {@link ICallScreeningService} to allow call blocking. A single instance of this class
- * handles a single call.
+ * Uses {@link ICallScreeningService} to allow call blocking. A single instance of this class
+ * handles a single call; the binding itself is shared through {@link CallScreeningServiceBinder}.
  */
 public class CallScreeningServiceFilter implements IncomingCallFilter.CallFilter {
-    private class CallScreeningServiceConnection implements ServiceConnection {
+    private class CallScreeningServiceListener implements CallScreeningServiceBinder.Listener {
         @Override
-        public void onServiceConnected(ComponentName componentName, IBinder service) {
-            Log.startSession("CSCR.oSC");
-            try {
-                synchronized (mTelecomLock) {
-                    Log.event(mCall, Log.Events.SCREENING_BOUND, componentName);
-                    if (!mHasFinished) {
-                        onServiceBound(ICallScreeningService.Stub.asInterface(service));
-                    }
-                }
-            } finally {
-                Log.endSession();
+        public void onScreeningServiceBound(ICallScreeningService service) {
+            if (!mHasFinished) {
+                onServiceBound(service);
             }
         }
 
         @Override
-        public void onServiceDisconnected(ComponentName componentName) {
-            Log.startSession("CSCR.oSD");
-            try {
-                synchronized (mTelecomLock) {
-                    finishCallScreening();
-                }
-            } finally {
-                Log.endSession();
-            }
+        public void onScreeningServiceUnbound() {
+            finishCallScreening();
         }
     }
 
@@ -139,11 +113,12 @@ public class CallScreeningServiceFilter implements IncomingCallFilter.CallFilter
     private final TelecomServiceImpl.DefaultDialerManagerAdapter mDefaultDialerManagerAdapter;
     private final ParcelableCallUtils.Converter mParcelableCallUtilsConverter;
     private final TelecomSystem.SyncRoot mTelecomLock;
+    private final CallScreeningServiceBinder mCallScreeningServiceBinder;
+    private final CallScreeningServiceListener mListener = new CallScreeningServiceListener();
 
     private Call mCall;
     private CallFilterResultCallback mCallback;
     private ICallScreeningService mService;
-    private ServiceConnection mConnection;
 
     private boolean mHasFinished = false;
     private CallFilteringResult mResult = new CallFilteringResult(
@@ -159,13 +134,15 @@ public class CallScreeningServiceFilter implements IncomingCallFilter.CallFilter
             PhoneAccountRegistrar phoneAccountRegistrar,
             TelecomServiceImpl.DefaultDialerManagerAdapter defaultDialerManagerAdapter,
             ParcelableCallUtils.Converter parcelableCallUtilsConverter,
-            TelecomSystem.SyncRoot lock) {
+            TelecomSystem.SyncRoot lock,
+            CallScreeningServiceBinder callScreeningServiceBinder) {
         mContext = context;
         mPhoneAccountRegistrar = phoneAccountRegistrar;
         mCallsManager = callsManager;
         mDefaultDialerManagerAdapter = defaultDialerManagerAdapter;
         mParcelableCallUtilsConverter = parcelableCallUtilsConverter;
         mTelecomLock = lock;
+        mCallScreeningServiceBinder = callScreeningServiceBinder;
     }
 
     @Override
@@ -177,7 +154,7 @@ public class CallScreeningServiceFilter implements IncomingCallFilter.CallFilter
         Log.event(call, Log.Events.SCREENING_SENT);
         mCall = call;
         mCallback = callback;
-        if (!bindService()) {
+        if (!mCallScreeningServiceBinder.bind(call, mListener)) {
             Log.i(this, "Could not bind to call screening service");
             finishCallScreening();
         }
@@ -188,64 +165,12 @@ public class CallScreeningServiceFilter implements IncomingCallFilter.CallFilter
             Log.event(mCall, Log.Events.SCREENING_COMPLETED, mResult);
             mCallback.onCallFilteringComplete(mCall, mResult);
 
-            if (mConnection != null) {
-                // We still need to call unbind even if the service disconnected.
-                mContext.unbindService(mConnection);
-                mConnection = null;
-            }
-            mService = null;
             mHasFinished = true;
+            mService = null;
+            mCallScreeningServiceBinder.release(mListener);
         }
     }
 
-    private boolean bindService() {
-        String dialerPackage = mDefaultDialerManagerAdapter
-                .getDefaultDialerApplication(mContext, UserHandle.USER_CURRENT);
-        if (TextUtils.isEmpty(dialerPackage)) {
-            Log.i(this, "Default dialer is empty. Not performing call screening.");
-            return false;
-        }
-
-        Intent intent = new Intent(CallScreeningService.SERVICE_INTERFACE)
-            .setPackage(dialerPackage);
-        List<ResolveInfo> entries = mContext.getPackageManager().queryIntentServicesAsUser(
-                intent, 0, mCallsManager.getCurrentUserHandle().getIdentifier());
-        if (entries.isEmpty()) {
-            Log.i(this, "There are no call screening services installed on this device.");
-            return false;
-        }
-
-        ResolveInfo entry = entries.get(0);
-        if (entry.serviceInfo == null) {
-            Log.w(this, "The call screening service has invalid service info");
-            return false;
-        }
-
-        if (entry.serviceInfo.permission == null || !entry.serviceInfo.permission.equals(
-                Manifest.permission.BIND_SCREENING_SERVICE)) {
-            Log.w(this, "CallScreeningService must require BIND_SCREENING_SERVICE permission: " +
-                    entry.serviceInfo.packageName);
-            return false;
-        }
-
-        ComponentName componentName =
-                new ComponentName(entry.serviceInfo.packageName, entry.serviceInfo.name);
-        Log.event(mCall, Log.Events.BIND_SCREENING, componentName);
-        intent.setComponent(componentName);
-        ServiceConnection connection = new CallScreeningServiceConnection();
-        if (mContext.bindServiceAsUser(
-                intent,
-                connection,
-                Context.BIND_AUTO_CREATE | Context.BIND_FOREGROUND_SERVICE,
-                UserHandle.CURRENT)) {
-            Log.d(this, "bindService, found service, waiting for it to connect");
-            mConnection = connection;
-            return true;
-        }
-
-        return false;
-    }
-
     private void onServiceBound(ICallScreeningService service) {
         mService = service;
         try {
@@ -25,6 +25,7 @@ import com.android.server.telecom.Call;
 import com.android.server.telecom.Log;
 import com.android.server.telecom.Runnable;
 import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.TimeoutScheduler;
 import com.android.server.telecom.Timeouts;
 
 import java.util.List;
@@ -42,6 +43,8 @@ public class IncomingCallFilter implements CallFilterResultCallback {
     private final Call mCall;
     private final CallFilterResultCallback mListener;
     private final Timeouts.Adapter mTimeoutsAdapter;
+    private final TimeoutScheduler mTimeoutScheduler = TimeoutScheduler.getInstance();
+    private final TimeoutScheduler.Timeout mTimeout;
 
     private CallFilteringResult mResult = new CallFilteringResult(
             true, // shouldAllowCall
@@ -63,15 +66,8 @@ public class IncomingCallFilter implements CallFilterResultCallback {
         mFilters = filters;
         mNumPendingFilters = filters.size();
         mTimeoutsAdapter = timeoutsAdapter;
-    }
-
-    public void performFiltering() {
-        Log.event(mCall, Log.Events.FILTERING_INITIATED);
-        for (CallFilter filter : mFilters) {
-            filter.startFilterLookup(mCall, this);
-        }
-        // synchronized to prevent a race on mResult and to enter into Telecom.
-        mHandler.postDelayed(new Runnable("ICF.pFTO", mTelecomLock) { // performFiltering time-out
+        // performFiltering time-out
+        mTimeout = new TimeoutScheduler.Timeout("ICF.pFTO", new Runnable("ICF.pFTO", mTelecomLock) {
             @Override
             public void loggedRun() {
                 if (mIsPending) {
@@ -81,7 +77,17 @@ public class IncomingCallFilter implements CallFilterResultCallback {
                     mIsPending = false;
                 }
             }
-        }.prepare(), mTimeoutsAdapter.getCallScreeningTimeoutMillis(mContext.getContentResolver()));
+        });
+    }
+
+    public void performFiltering() {
+        Log.event(mCall, Log.Events.FILTERING_INITIATED);
+        for (CallFilter filter : mFilters) {
+            filter.startFilterLookup(mCall, this);
+        }
+        // synchronized to prevent a race on mResult and to enter into Telecom.
+        mTimeoutScheduler.schedule(mTimeout,
+                mTimeoutsAdapter.getCallScreeningTimeoutMillis(mContext.getContentResolver()));
     }
 
     public void onCallFilteringComplete(Call call, CallFilteringResult result) {
@@ -89,6 +95,7 @@ public class IncomingCallFilter implements CallFilterResultCallback {
             mNumPendingFilters--;
             mResult = result.combine(mResult);
             if (mNumPendingFilters == 0) {
+                mTimeoutScheduler.cancel(mTimeout);
                 // synchronized on mTelecomLock to enter into Telecom.
                 mHandler.post(new Runnable("ICF.oCFC", mTelecomLock) {
                     @Override
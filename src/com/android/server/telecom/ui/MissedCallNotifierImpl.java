@@ -40,6 +40,7 @@ import com.android.server.telecom.Runnable;
 import com.android.server.telecom.TelecomBroadcastIntentProcessor;
 import com.android.server.telecom.TelecomSystem;
 import com.android.server.telecom.TelephonyUtil;
+import com.android.server.telecom.Timeouts;
 import com.android.server.telecom.components.TelecomBroadcastReceiver;
 
 import android.app.Notification;
@@ -638,9 +639,9 @@ public class MissedCallNotifierImpl extends CallsManagerListenerBase implements
                                 // Convert the data to a call object
                                 Call call = new Call(Call.CALL_ID_UNKNOWN, mContext, callsManager,
                                         lock, null, contactsAsyncHelper,
-                                        callerInfoAsyncQueryFactory, mPhoneNumberUtilsAdapter, null,
-                                        null, null, null, Call.CALL_DIRECTION_INCOMING, false,
-                                        false);
+                                        callerInfoAsyncQueryFactory, mPhoneNumberUtilsAdapter,
+                                        new Timeouts.Adapter(), null, null, null, null,
+                                        Call.CALL_DIRECTION_INCOMING, false, false);
                                 call.setDisconnectCause(
                                         new DisconnectCause(DisconnectCause.MISSED));
                                 call.setState(CallState.DISCONNECTED, "throw away call");
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import android.os.Handler;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.telecom.AsyncRingtonePlayer;
+import com.android.server.telecom.AudioTaskExecutor;
+import com.android.server.telecom.Call;
+import com.android.server.telecom.CallAudioManager;
+import com.android.server.telecom.CallAudioRoutePeripheralAdapter;
+import com.android.server.telecom.InCallTonePlayer;
+import com.android.server.telecom.RingtoneFactory;
+import com.android.server.telecom.TelecomSystem;
+
+import org.mockito.InOrder;
+import org.mockito.Mock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.when;
+
+public class AudioTaskExecutorTest extends TelecomTestCase {
+    private static final long TEST_TIMEOUT = 1000;
+    private static final int CALL_LIFECYCLES = 10;
+
+    @Mock CallAudioManager mCallAudioManager;
+    @Mock CallAudioRoutePeripheralAdapter mCallAudioRoutePeripheralAdapter;
+    @Mock RingtoneFactory mRingtoneFactory;
+    @Mock Call mCall;
+
+    private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
+    private AudioTaskExecutor mAudioTaskExecutor;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mAudioTaskExecutor = new AudioTaskExecutor();
+        when(mCallAudioRoutePeripheralAdapter.isBluetoothAudioOn()).thenReturn(false);
+    }
+
+    /**
+     * Runs the audio work of several call lifecycles (ringing, a call waiting tone, and the call
+     * ended tone) and verifies that threads are only created for the first one.
+     */
+    @MediumTest
+    public void testThreadsCreatedPerCallLifecycle() throws Exception {
+        AsyncRingtonePlayer ringtonePlayer = new AsyncRingtonePlayer(mAudioTaskExecutor);
+        InCallTonePlayer.Factory playerFactory = new InCallTonePlayer.Factory(
+                mCallAudioRoutePeripheralAdapter, mLock, mAudioTaskExecutor);
+        playerFactory.setCallAudioManager(mCallAudioManager);
+
+        int[] threadsCreated = new int[CALL_LIFECYCLES];
+        for (int i = 0; i < CALL_LIFECYCLES; i++) {
+            ringtonePlayer.play(mRingtoneFactory, mCall, 0, 0);
+            ringtonePlayer.stop();
+
+            InCallTonePlayer callWaitingTone =
+                    playerFactory.createPlayer(InCallTonePlayer.TONE_CALL_WAITING);
+            callWaitingTone.startTone();
+            flushLane(AudioTaskExecutor.LANE_CALL_PROGRESS);
+            callWaitingTone.stopTone();
+
+            playerFactory.createPlayer(InCallTonePlayer.TONE_CALL_ENDED).startTone();
+            flushLane(AudioTaskExecutor.LANE_RINGTONE);
+            flushLane(AudioTaskExecutor.LANE_CALL_PROGRESS);
+            threadsCreated[i] = mAudioTaskExecutor.getThreadsCreated();
+        }
+
+        assertEquals(2, threadsCreated[0]);
+        for (int i = 1; i < CALL_LIFECYCLES; i++) {
+            assertEquals("Threads created in call lifecycle " + i, threadsCreated[0],
+                    threadsCreated[i]);
+        }
+    }
+
+    @SmallTest
+    public void testCancelledTaskDoesNotRun() throws Exception {
+        final CountDownLatch cancelledLatch = new CountDownLatch(1);
+        AudioTaskExecutor.Token token = mAudioTaskExecutor.postDelayed(
+                AudioTaskExecutor.LANE_DTMF, cancelledLatch::countDown, 100);
+        token.cancel();
+        assertTrue(token.isCancelled());
+
+        assertFalse(cancelledLatch.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    @SmallTest
+    public void testLanesDoNotBlockEachOther() throws Exception {
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final CountDownLatch dtmfLatch = new CountDownLatch(1);
+        mAudioTaskExecutor.post(AudioTaskExecutor.LANE_CALL_PROGRESS, () -> {
+            try {
+                releaseLatch.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+        });
+        mAudioTaskExecutor.post(AudioTaskExecutor.LANE_DTMF, dtmfLatch::countDown);
+
+        assertTrue(dtmfLatch.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+        releaseLatch.countDown();
+        assertEquals(2, mAudioTaskExecutor.getThreadsCreated());
+    }
+
+    @SmallTest
+    public void testRingtonePreloadedOnRingtoneLane() throws Exception {
+        AsyncRingtonePlayer ringtonePlayer = new AsyncRingtonePlayer(mAudioTaskExecutor);
+        ringtonePlayer.preload(mRingtoneFactory);
+        ringtonePlayer.play(mRingtoneFactory, mCall, 0, 0);
+        flushLane(AudioTaskExecutor.LANE_RINGTONE);
+
+        InOrder inOrder = inOrder(mRingtoneFactory);
+        inOrder.verify(mRingtoneFactory).preloadDefaultRingtone();
+        inOrder.verify(mRingtoneFactory).getRingtone(mCall);
+        assertEquals(1, mAudioTaskExecutor.getThreadsCreated());
+    }
+
+    @SmallTest
+    public void testPreloadReleasedAfterItIsCreated() throws Exception {
+        AsyncRingtonePlayer ringtonePlayer = new AsyncRingtonePlayer(mAudioTaskExecutor);
+        ringtonePlayer.preload(mRingtoneFactory);
+        ringtonePlayer.releasePreload(mRingtoneFactory);
+        flushLane(AudioTaskExecutor.LANE_RINGTONE);
+
+        InOrder inOrder = inOrder(mRingtoneFactory);
+        inOrder.verify(mRingtoneFactory).preloadDefaultRingtone();
+        inOrder.verify(mRingtoneFactory).releasePreloadedRingtone();
+    }
+
+    private void flushLane(int lane) {
+        waitForHandlerAction(new Handler(mAudioTaskExecutor.getLooper(lane)), TEST_TIMEOUT);
+    }
+}
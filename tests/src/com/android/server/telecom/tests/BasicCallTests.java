@@ -21,6 +21,7 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
@@ -46,22 +47,32 @@ import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.telecom.VideoProfile;
+import android.telephony.TelephonyManager;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 
 import com.android.internal.telecom.IInCallAdapter;
+import com.android.internal.telecom.ITelecomService;
 import com.android.internal.telephony.CallerInfo;
 import com.android.server.telecom.Log;
+import com.android.server.telecom.RingtoneFactory;
 
 import com.google.common.base.Predicate;
 
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.mockito.ArgumentCaptor;
 
@@ -71,6 +82,14 @@ import org.mockito.ArgumentCaptor;
 public class BasicCallTests extends TelecomSystemTest {
     private static final String TEST_BUNDLE_KEY = "android.telecom.extra.TEST";
     private static final String TEST_EVENT = "android.telecom.event.TEST";
+    private static final String TEST_PACKAGE = "com.android.server.telecom.tests";
+    private static final int QUERY_THREADS = 8;
+    // The call states a ringing call goes through as it is answered and then hung up.
+    private static final int[] INCOMING_CALL_STATES = {
+            TelephonyManager.CALL_STATE_IDLE,
+            TelephonyManager.CALL_STATE_RINGING,
+            TelephonyManager.CALL_STATE_OFFHOOK,
+            TelephonyManager.CALL_STATE_IDLE};
 
     @LargeTest
     public void testSingleOutgoingCallLocalDisconnect() throws Exception {
@@ -304,6 +323,7 @@ public class BasicCallTests extends TelecomSystemTest {
                 .setInCallAdapter(any(IInCallAdapter.class));
         verify(mInCallServiceFixtureY.getTestDouble(), never())
                 .setInCallAdapter(any(IInCallAdapter.class));
+        verifyPreloadedRingtoneReleased();
     }
 
     @LargeTest
@@ -343,9 +363,16 @@ public class BasicCallTests extends TelecomSystemTest {
                 .addCall(any(ParcelableCall.class));
         verify(mInCallServiceFixtureY.getTestDouble(), timeout(TEST_TIMEOUT))
                 .addCall(any(ParcelableCall.class));
+        verify(mAsyncRingtonePlayer).preload(any(RingtoneFactory.class));
+        verify(mAsyncRingtonePlayer, never()).releasePreload(any(RingtoneFactory.class));
 
         disconnectCall(mInCallServiceFixtureX.mLatestCallId,
                 mConnectionServiceFixtureA.mLatestConnectionId);
+        // The mock ringtone player never took the preloaded ringtone, so it is released along
+        // with the call.
+        mConnectionServiceFixtureA.sendRemoveCall(mConnectionServiceFixtureA.mLatestConnectionId);
+        verify(mAsyncRingtonePlayer, timeout(TEST_TIMEOUT).atLeastOnce())
+                .releasePreload(any(RingtoneFactory.class));
     }
 
     @LargeTest
@@ -384,6 +411,7 @@ public class BasicCallTests extends TelecomSystemTest {
                 .setInCallAdapter(any(IInCallAdapter.class));
         verify(mInCallServiceFixtureY.getTestDouble(), never())
                 .setInCallAdapter(any(IInCallAdapter.class));
+        verifyPreloadedRingtoneReleased();
     }
 
     @LargeTest
@@ -693,6 +721,12 @@ public class BasicCallTests extends TelecomSystemTest {
                 isNull(Bundle.class))).thenAnswer(answer);
     }
 
+    private void verifyPreloadedRingtoneReleased() {
+        verify(mAsyncRingtonePlayer).preload(any(RingtoneFactory.class));
+        verify(mAsyncRingtonePlayer, timeout(TEST_TIMEOUT)).releasePreload(
+                any(RingtoneFactory.class));
+    }
+
     private void verifyNoBlockChecks() {
         verifyZeroInteractions(getBlockedNumberProvider());
     }
@@ -843,4 +877,202 @@ public class BasicCallTests extends TelecomSystemTest {
         assertEquals(mInCallServiceFixtureX.getCall(ids.mCallId).getAccountHandle(),
                 mPhoneAccountE1.getAccountHandle());
     }
+
+    /**
+     * Queries the call state from several threads while a call rings, is answered and is hung
+     * up. Each thread must only see the call state move forward, and a query made after a
+     * transition has completed must see it. The latency of the queries is logged next to that of
+     * the same queries made while taking the Telecom lock, as they were before being published.
+     */
+    @LargeTest
+    public void testCallStateQueriesDuringCallTransitions() throws Exception {
+        final ITelecomService service = mTelecomSystem.getTelecomServiceImpl().getBinder();
+        final Object lock = mTelecomSystem.getLock();
+        final AtomicBoolean isRunning = new AtomicBoolean(true);
+        final List<String> failures = new ArrayList<>();
+        final long[][] publishedLatencies = new long[QUERY_THREADS][];
+        final long[][] lockedLatencies = new long[QUERY_THREADS][];
+        Thread[] threads = new Thread[QUERY_THREADS];
+        for (int i = 0; i < QUERY_THREADS; i++) {
+            final int thread = i;
+            threads[i] = new Thread(() -> {
+                List<Long> published = new ArrayList<>();
+                List<Long> locked = new ArrayList<>();
+                int transition = 0;
+                try {
+                    while (isRunning.get()) {
+                        long start = System.nanoTime();
+                        int callState = service.getCallState();
+                        boolean isInCall = service.isInCall(TEST_PACKAGE);
+                        published.add(System.nanoTime() - start);
+
+                        start = System.nanoTime();
+                        synchronized (lock) {
+                            service.getCallState();
+                            service.isInCall(TEST_PACKAGE);
+                        }
+                        locked.add(System.nanoTime() - start);
+
+                        int next = transition;
+                        while (next < INCOMING_CALL_STATES.length
+                                && INCOMING_CALL_STATES[next] != callState) {
+                            next++;
+                        }
+                        if (next == INCOMING_CALL_STATES.length) {
+                            addFailure(failures, "Thread " + thread + " saw state " + callState
+                                    + " after transition " + transition);
+                        } else if (isInCall != isInCallState(next)
+                                && (next + 1 == INCOMING_CALL_STATES.length
+                                        || isInCall != isInCallState(next + 1))) {
+                            // isInCall is read after getCallState, so it may be one transition
+                            // ahead, but no further.
+                            addFailure(failures, "Thread " + thread + " saw isInCall " + isInCall
+                                    + " with state " + callState);
+                        } else {
+                            transition = next;
+                        }
+                    }
+                } catch (Exception e) {
+                    addFailure(failures, "Thread " + thread + " failed: " + e);
+                }
+                publishedLatencies[thread] = toArray(published);
+                lockedLatencies[thread] = toArray(locked);
+            });
+            threads[i].start();
+        }
+
+        assertEquals(TelephonyManager.CALL_STATE_IDLE, service.getCallState());
+        IdPair ids = startIncomingPhoneCall("650-555-1212", mPhoneAccountA0.getAccountHandle(),
+                mConnectionServiceFixtureA);
+        assertEquals(TelephonyManager.CALL_STATE_RINGING, service.getCallState());
+        assertTrue(service.isRinging(TEST_PACKAGE));
+
+        mInCallServiceFixtureX.mInCallAdapter.answerCall(ids.mCallId,
+                VideoProfile.STATE_AUDIO_ONLY);
+        mConnectionServiceFixtureA.sendSetActive(ids.mConnectionId);
+        assertEquals(TelephonyManager.CALL_STATE_OFFHOOK, service.getCallState());
+        assertTrue(service.isInCall(TEST_PACKAGE));
+        assertFalse(service.isRinging(TEST_PACKAGE));
+
+        mConnectionServiceFixtureA.sendSetDisconnected(ids.mConnectionId, DisconnectCause.LOCAL);
+        assertEquals(TelephonyManager.CALL_STATE_IDLE, service.getCallState());
+        assertFalse(service.isInCall(TEST_PACKAGE));
+
+        isRunning.set(false);
+        for (Thread thread : threads) {
+            thread.join(TEST_TIMEOUT);
+        }
+        assertEquals(failures.toString(), 0, failures.size());
+        Log.i(this, "getCallState and isInCall from %d threads: published %s, locked %s",
+                QUERY_THREADS, formatPercentiles(publishedLatencies),
+                formatPercentiles(lockedLatencies));
+    }
+
+    /**
+     * Dumps the state of Telecom with 10 calls while the reader of the dump is slow, and measures
+     * how long call handling would have to wait for the Telecom lock.
+     */
+    @LargeTest
+    public void testDumpHoldsLockOnlyToCopyState() throws Exception {
+        IdPair ids = startAndMakeActiveOutgoingCall("650-555-1212",
+                mPhoneAccountA0.getAccountHandle(), mConnectionServiceFixtureA);
+        ConnectionServiceFixture.ConnectionInfo activeConnection =
+                mConnectionServiceFixtureA.mConnectionById.get(ids.mConnectionId);
+        for (int i = 0; i < 9; i++) {
+            // Added as existing connections, since Telecom limits how many calls can be placed.
+            ConnectionServiceFixture.ConnectionInfo heldConnection =
+                    mConnectionServiceFixtureA.new ConnectionInfo();
+            heldConnection.request = activeConnection.request;
+            heldConnection.state = Connection.STATE_HOLDING;
+            String connectionId = "existing" + i;
+            mConnectionServiceFixtureA.mConnectionById.put(connectionId, heldConnection);
+            mConnectionServiceFixtureA.sendAddExistingConnection(connectionId);
+        }
+        final Object lock = mTelecomSystem.getLock();
+        final List<String> callIds = new ArrayList<>();
+        synchronized (lock) {
+            for (com.android.server.telecom.Call call :
+                    mTelecomSystem.getCallsManager().getCalls()) {
+                callIds.add(call.getId());
+            }
+        }
+        assertEquals(10, callIds.size());
+
+        // Tries to take the lock for as long as the dump runs, recording the longest wait.
+        final AtomicBoolean isDumping = new AtomicBoolean(true);
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        Thread contender = new Thread(() -> {
+            while (isDumping.get()) {
+                long start = System.nanoTime();
+                synchronized (lock) {
+                    maxWaitNanos.set(Math.max(maxWaitNanos.get(), System.nanoTime() - start));
+                }
+                Thread.yield();
+            }
+        });
+        contender.start();
+
+        StringWriter output = new StringWriter();
+        mTelecomSystem.getTelecomServiceImpl().dumpTelecomState(new PrintWriter(output) {
+            @Override
+            public void write(String s, int off, int len) {
+                // A slow reader of the dump.
+                assertFalse(Thread.holdsLock(lock));
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    // do nothing
+                }
+                super.write(s, off, len);
+            }
+        });
+        isDumping.set(false);
+        contender.join();
+
+        long maxWaitMillis = TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+        Log.i(this, "Longest wait for the Telecom lock during dump of %d calls: %d ms",
+                callIds.size(), maxWaitMillis);
+        assertTrue(maxWaitMillis < 100);
+        for (String callId : callIds) {
+            assertTrue(output.toString().contains(callId));
+        }
+    }
+
+    private static void addFailure(List<String> failures, String failure) {
+        synchronized (failures) {
+            failures.add(failure);
+        }
+    }
+
+    private static boolean isInCallState(int transition) {
+        return INCOMING_CALL_STATES[transition] != TelephonyManager.CALL_STATE_IDLE;
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private static String formatPercentiles(long[][] latencies) {
+        long[] sorted = new long[0];
+        for (long[] threadLatencies : latencies) {
+            if (threadLatencies == null) {
+                continue;
+            }
+            int length = sorted.length;
+            sorted = Arrays.copyOf(sorted, length + threadLatencies.length);
+            System.arraycopy(threadLatencies, 0, sorted, length, threadLatencies.length);
+        }
+        if (sorted.length == 0) {
+            return "no samples";
+        }
+        Arrays.sort(sorted);
+        return String.format("p50=%dus p99=%dus max=%dus",
+                TimeUnit.NANOSECONDS.toMicros(sorted[sorted.length / 2]),
+                TimeUnit.NANOSECONDS.toMicros(sorted[sorted.length * 99 / 100]),
+                TimeUnit.NANOSECONDS.toMicros(sorted[sorted.length - 1]));
+    }
 }
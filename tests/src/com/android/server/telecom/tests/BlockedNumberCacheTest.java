@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.IContentProvider;
+import android.database.MatrixCursor;
+import android.location.Country;
+import android.location.CountryDetector;
+import android.location.CountryListener;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ICancellationSignal;
+import android.os.Looper;
+import android.provider.BlockedNumberContract;
+import android.provider.BlockedNumberContract.BlockedNumbers;
+import android.provider.BlockedNumberContract.SystemContract;
+import android.telephony.PhoneNumberUtils;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+
+import com.android.server.telecom.callfiltering.BlockedNumberCache;
+
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BlockedNumberCacheTest extends TelecomTestCase {
+    /**
+     * Stands in for the blocked number provider behind the mocked {@link IContentProvider} of the
+     * test context. Rows are stored and numbers are checked the way the provider does it: the
+     * E.164 form of a number is computed for the current country when it is blocked and when it
+     * is checked, and a number is blocked if it equals the original number of a row, or if its
+     * E.164 form is non-empty and equals the E.164 form of a row. Emergency numbers are never
+     * blocked, and nothing is blocked while blocking is suppressed.
+     */
+    private class FakeBlockedNumberProvider {
+        private final List<String[]> mRows = new ArrayList<>();
+        boolean mIsSuppressed;
+        boolean mIsUnavailable;
+
+        void block(String number) {
+            for (String[] row : mRows) {
+                if (row[0].equals(number)) {
+                    return;
+                }
+            }
+            mRows.add(new String[] { number, getE164Number(number) });
+        }
+
+        boolean shouldSystemBlockNumber(String number) {
+            if (mIsSuppressed || TextUtils.isEmpty(number)) {
+                return false;
+            }
+            String e164Number = getE164Number(number);
+            if (PhoneNumberUtils.isEmergencyNumber(number)
+                    || PhoneNumberUtils.isEmergencyNumber(e164Number)) {
+                return false;
+            }
+            for (String[] row : mRows) {
+                if (row[0].equals(number)
+                        || (!e164Number.isEmpty() && e164Number.equals(row[1]))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        MatrixCursor query(String[] projection) {
+            if (mIsUnavailable) {
+                throw new IllegalStateException("Provider unavailable");
+            }
+            MatrixCursor cursor = new MatrixCursor(projection);
+            for (String[] row : mRows) {
+                Object[] values = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    values[i] = BlockedNumbers.COLUMN_ORIGINAL_NUMBER.equals(projection[i])
+                            ? row[0] : row[1];
+                }
+                cursor.addRow(values);
+            }
+            return cursor;
+        }
+
+        Bundle call(String method, String arg) {
+            Bundle result = new Bundle();
+            if (SystemContract.METHOD_SHOULD_SYSTEM_BLOCK_NUMBER.equals(method)) {
+                result.putBoolean(BlockedNumberContract.RES_NUMBER_IS_BLOCKED,
+                        shouldSystemBlockNumber(arg));
+            } else if (SystemContract.METHOD_GET_BLOCK_SUPPRESSION_STATUS.equals(method)) {
+                result.putBoolean(SystemContract.RES_IS_BLOCKING_SUPPRESSED, mIsSuppressed);
+                result.putLong(SystemContract.RES_BLOCKING_SUPPRESSED_UNTIL_TIMESTAMP, 0);
+            }
+            return result;
+        }
+
+        private String getE164Number(String number) {
+            String e164Number = TextUtils.isEmpty(mCountryIso) ? null
+                    : PhoneNumberUtils.formatNumberToE164(number, mCountryIso);
+            return e164Number == null ? "" : e164Number;
+        }
+    }
+
+    private Context mContext;
+    private CountryDetector mCountryDetector;
+    private FakeBlockedNumberProvider mProvider;
+    private String mCountryIso = "US";
+    private BlockedNumberCache mCache;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mContext = mComponentContextFixture.getTestDouble().getApplicationContext();
+        mCountryDetector = (CountryDetector) mContext.getSystemService(Context.COUNTRY_DETECTOR);
+        when(mCountryDetector.detectCountry()).thenAnswer(
+                invocation -> new Country(mCountryIso, Country.COUNTRY_SOURCE_NETWORK));
+
+        mProvider = new FakeBlockedNumberProvider();
+        ContentResolver resolver = mContext.getContentResolver();
+        IContentProvider provider = resolver.acquireProvider(BlockedNumberContract.AUTHORITY);
+        when(provider.query(anyString(), any(Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString(), any(ICancellationSignal.class))).thenAnswer(
+                invocation -> mProvider.query((String[]) invocation.getArguments()[2]));
+        when(provider.call(anyString(), anyString(), anyString(), any(Bundle.class))).thenAnswer(
+                invocation -> mProvider.call((String) invocation.getArguments()[1],
+                        (String) invocation.getArguments()[2]));
+
+        mCache = new BlockedNumberCache(mContext);
+    }
+
+    /**
+     * Verifies that the cache answers exactly like {@link SystemContract#shouldSystemBlockNumber}
+     * for blocked numbers stored in various forms and for numbers close to them.
+     */
+    @SmallTest
+    public void testMatchesProvider() {
+        Random random = new Random(1);
+        List<String> blocked = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            blocked.add(randomNumber(random));
+        }
+        // Entries stored in E.164 or with formatting, and entries without an E.164 form.
+        blocked.add("+16505551212");
+        blocked.add("(650) 555-1313");
+        blocked.add("+1900*");
+        blocked.add("spammer@example.com");
+        // Emergency numbers are never blocked, even if they have been added.
+        blocked.add("911");
+        for (String number : blocked) {
+            mProvider.block(number);
+        }
+        mCache.load();
+        assertTrue(mCache.isReady());
+
+        List<String> candidates = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String entry = blocked.get(random.nextInt(blocked.size()));
+            candidates.add(entry);
+            candidates.add("+1" + entry);
+            candidates.add("1" + entry);
+            candidates.add(randomNumber(random));
+        }
+        candidates.add("6505551212");
+        candidates.add("+16505551313");
+        candidates.add("+19005551212");
+        candidates.add("911");
+        candidates.add("");
+
+        assertMatchesProvider(candidates);
+    }
+
+    /**
+     * Verifies that incoming numbers are formatted for the country the device is in when the
+     * number is checked, not when the index was loaded.
+     */
+    @SmallTest
+    public void testFollowsCountryChanges() {
+        mProvider.block("+442079460000");
+        mCache.initialize();
+        mCache.load();
+        ArgumentCaptor<CountryListener> listenerCaptor =
+                ArgumentCaptor.forClass(CountryListener.class);
+        verify(mCountryDetector).addCountryListener(listenerCaptor.capture(), any(Looper.class));
+
+        assertFalse(mCache.isBlocked("02079460000"));
+        assertFalse(SystemContract.shouldSystemBlockNumber(mContext, "02079460000"));
+
+        mCountryIso = "GB";
+        listenerCaptor.getValue().onCountryDetected(
+                new Country(mCountryIso, Country.COUNTRY_SOURCE_NETWORK));
+
+        assertTrue(SystemContract.shouldSystemBlockNumber(mContext, "02079460000"));
+        assertTrue(mCache.isBlocked("02079460000"));
+    }
+
+    @SmallTest
+    public void testFailedReloadFallsBackToProvider() {
+        mProvider.block("6505551212");
+        mCache.load();
+        assertTrue(mCache.isReady());
+
+        // The number blocked in the meantime is missing from the loaded index.
+        mProvider.block("6505551313");
+        mProvider.mIsUnavailable = true;
+        mCache.load();
+        assertFalse(mCache.isReady());
+
+        mProvider.mIsUnavailable = false;
+        mCache.load();
+        assertTrue(mCache.isReady());
+        assertTrue(mCache.isBlocked("6505551313"));
+    }
+
+    @SmallTest
+    public void testNotReadyWhileSuppressed() {
+        mProvider.block("6505551212");
+        mProvider.mIsSuppressed = true;
+        mCache.load();
+        assertFalse(mCache.isReady());
+    }
+
+    private void assertMatchesProvider(List<String> numbers) {
+        for (String number : numbers) {
+            assertEquals(number, SystemContract.shouldSystemBlockNumber(mContext, number),
+                    mCache.isBlocked(number));
+        }
+    }
+
+    private static String randomNumber(Random random) {
+        return String.valueOf(200 + random.nextInt(700)) + String.valueOf(
+                1000000 + random.nextInt(9000000));
+    }
+}
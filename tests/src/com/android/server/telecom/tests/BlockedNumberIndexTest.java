@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.telecom.callfiltering.BlockedNumberIndex;
+
+public class BlockedNumberIndexTest extends TelecomTestCase {
+    @SmallTest
+    public void testMatchesOriginalAndE164Columns() {
+        BlockedNumberIndex index = new BlockedNumberIndex();
+        index.add("6505551212", "+16505551212");
+        index.add("spammer@example.com", null);
+
+        assertTrue(index.contains("6505551212", null));
+        assertTrue(index.contains("16505551212", "+16505551212"));
+        assertTrue(index.contains("spammer@example.com", null));
+        assertFalse(index.contains("6505551213", "+16505551213"));
+        assertFalse(index.contains(null, null));
+    }
+
+    @SmallTest
+    public void testDoesNotMatchAcrossColumns() {
+        BlockedNumberIndex index = new BlockedNumberIndex();
+        index.add("6505551212", "+16505551212");
+        index.add("+19005551212", null);
+
+        // A raw number equal to an entry's E.164 form is not blocked by the provider...
+        assertFalse(index.contains("+16505551212", null));
+        // ...nor is an E.164 form equal to an entry's original number.
+        assertFalse(index.contains("9005551212", "+19005551212"));
+        // Wildcards have no meaning to the provider.
+        index.add("+1800*", null);
+        assertFalse(index.contains("8005551212", "+18005551212"));
+        assertTrue(index.contains("+1800*", null));
+    }
+}
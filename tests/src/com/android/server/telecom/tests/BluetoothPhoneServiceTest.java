@@ -23,6 +23,8 @@ import android.graphics.drawable.Icon;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Debug;
+import android.os.SystemClock;
+import android.os.UserHandle;
 import android.telecom.Connection;
 import android.telecom.GatewayInfo;
 import android.telecom.PhoneAccount;
@@ -30,6 +32,7 @@ import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
@@ -39,9 +42,11 @@ import com.android.server.telecom.BluetoothPhoneServiceImpl;
 import com.android.server.telecom.Call;
 import com.android.server.telecom.CallState;
 import com.android.server.telecom.CallsManager;
+import com.android.server.telecom.Log;
 import com.android.server.telecom.PhoneAccountRegistrar;
 import com.android.server.telecom.TelecomSystem;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -94,6 +99,9 @@ public class BluetoothPhoneServiceTest extends TelecomTestCase {
     @Mock PhoneAccountRegistrar mMockPhoneAccountRegistrar;
     @Mock BluetoothHeadsetProxy mMockBluetoothHeadset;
 
+    // The calls in CallsManager, which the headset state is loaded from when it is queried.
+    private final ArrayList<Call> mCalls = new ArrayList<>();
+
     @Override
     public void setUp() throws Exception {
         super.setUp();
@@ -109,6 +117,7 @@ public class BluetoothPhoneServiceTest extends TelecomTestCase {
         doReturn(null).when(mMockCallsManager).getHeldCall();
         doReturn(null).when(mMockCallsManager).getOutgoingCall();
         doReturn(0).when(mMockCallsManager).getNumHeldCalls();
+        doReturn(mCalls).when(mMockCallsManager).getCalls();
         mBluetoothPhoneService = new BluetoothPhoneServiceImpl(mContext, mLock, mMockCallsManager,
                 mock(BluetoothAdapterProxy.class), mMockPhoneAccountRegistrar);
 
@@ -540,6 +549,138 @@ public class BluetoothPhoneServiceTest extends TelecomTestCase {
         verify(mMockBluetoothHeadset).clccResponse(0, 0, 0, 0, false, null, 0);
     }
 
+    @MediumTest
+    public void testListCurrentCallsReplaysSnapshot() throws Exception {
+        ArrayList<Call> calls = new ArrayList<>();
+        Call activeCall = createActiveCall();
+        when(activeCall.getState()).thenReturn(CallState.ACTIVE);
+        when(activeCall.getHandle()).thenReturn(Uri.parse("tel:555-000"));
+        calls.add(activeCall);
+        when(mMockCallsManager.getCalls()).thenReturn(calls);
+
+        mBluetoothPhoneService.mBinder.listCurrentCalls();
+        mBluetoothPhoneService.mBinder.listCurrentCalls();
+
+        verify(mMockBluetoothHeadset, times(2)).clccResponse(eq(1), eq(0), eq(CALL_STATE_ACTIVE),
+                eq(0), eq(false), eq("555-000"), eq(PhoneNumberUtils.TOA_Unknown));
+        verify(mMockBluetoothHeadset, times(2)).clccResponse(0, 0, 0, 0, false, null, 0);
+        // The row was only built once.
+        verify(activeCall, times(1)).isIncoming();
+
+        // A call event invalidates the rows.
+        mBluetoothPhoneService.mCallsManagerListener.onIsConferencedChanged(activeCall);
+        mBluetoothPhoneService.mBinder.listCurrentCalls();
+        verify(activeCall, times(2)).isIncoming();
+    }
+
+    @MediumTest
+    public void testListCurrentCallsCdmaSwapRebuildsSnapshot() throws Exception {
+        ArrayList<Call> calls = new ArrayList<>();
+        Call parentCall = createActiveCall();
+        final Call foregroundCall = mock(Call.class);
+        final Call heldCall = createHeldCall();
+        calls.add(parentCall);
+        calls.add(foregroundCall);
+        calls.add(heldCall);
+        when(mMockCallsManager.getCalls()).thenReturn(calls);
+        when(foregroundCall.getState()).thenReturn(CallState.ACTIVE);
+        when(heldCall.getState()).thenReturn(CallState.ACTIVE);
+        when(foregroundCall.getHandle()).thenReturn(Uri.parse("tel:555-0000"));
+        when(heldCall.getHandle()).thenReturn(Uri.parse("tel:555-0001"));
+        addCallCapability(parentCall, Connection.CAPABILITY_SWAP_CONFERENCE);
+        removeCallCapability(parentCall, Connection.CAPABILITY_CONFERENCE_HAS_NO_CHILDREN);
+        when(parentCall.getConferenceLevelActiveCall()).thenReturn(foregroundCall);
+        when(parentCall.isConference()).thenReturn(true);
+        when(foregroundCall.getParentCall()).thenReturn(parentCall);
+        when(heldCall.getParentCall()).thenReturn(parentCall);
+
+        mBluetoothPhoneService.mBinder.listCurrentCalls();
+        verify(mMockBluetoothHeadset).clccResponse(eq(1), eq(0), eq(CALL_STATE_ACTIVE), eq(0),
+                eq(false), eq("555-0000"), eq(PhoneNumberUtils.TOA_Unknown));
+        verify(mMockBluetoothHeadset).clccResponse(eq(2), eq(0), eq(CALL_STATE_HELD), eq(0),
+                eq(false), eq("555-0001"), eq(PhoneNumberUtils.TOA_Unknown));
+
+        // Swapping a CDMA conference is not reported by any call event.
+        when(parentCall.getConferenceLevelActiveCall()).thenReturn(heldCall);
+        mBluetoothPhoneService.mBinder.listCurrentCalls();
+        verify(mMockBluetoothHeadset).clccResponse(eq(1), eq(0), eq(CALL_STATE_HELD), eq(0),
+                eq(false), eq("555-0000"), eq(PhoneNumberUtils.TOA_Unknown));
+        verify(mMockBluetoothHeadset).clccResponse(eq(2), eq(0), eq(CALL_STATE_ACTIVE), eq(0),
+                eq(false), eq("555-0001"), eq(PhoneNumberUtils.TOA_Unknown));
+    }
+
+    @MediumTest
+    public void testClccIndexReusedAfterCallRemoved() throws Exception {
+        ArrayList<Call> calls = new ArrayList<>();
+        when(mMockCallsManager.getCalls()).thenReturn(calls);
+        Call firstCall = createActiveCall();
+        when(firstCall.getState()).thenReturn(CallState.ACTIVE);
+        calls.add(firstCall);
+        Call secondCall = createHeldCall();
+        when(secondCall.getState()).thenReturn(CallState.ON_HOLD);
+        calls.add(secondCall);
+        mBluetoothPhoneService.mBinder.listCurrentCalls();
+
+        calls.remove(firstCall);
+        mBluetoothPhoneService.mCallsManagerListener.onCallRemoved(firstCall);
+        Call thirdCall = createRingingCall();
+        when(thirdCall.getState()).thenReturn(CallState.RINGING);
+        calls.add(thirdCall);
+        mBluetoothPhoneService.mBinder.listCurrentCalls();
+
+        verify(mMockBluetoothHeadset, times(2)).clccResponse(eq(2), eq(0), eq(CALL_STATE_HELD),
+                eq(0), eq(false), anyString(), anyInt());
+        verify(mMockBluetoothHeadset).clccResponse(eq(1), eq(0), eq(CALL_STATE_WAITING), eq(0),
+                eq(false), anyString(), anyInt());
+    }
+
+    /**
+     * Simulates a car kit polling the call list every 100ms for a minute while in a six party
+     * conference, with a participant changing every five seconds.
+     */
+    @LargeTest
+    public void testListCurrentCallsConferenceBenchmark() throws Exception {
+        final int pollIntervalMillis = 100;
+        final int polls = 60 * 1000 / pollIntervalMillis;
+        final int pollsPerChange = 5 * 1000 / pollIntervalMillis;
+        final int participants = 6;
+
+        ArrayList<Call> calls = new ArrayList<>();
+        Call parentCall = createActiveCall();
+        when(parentCall.getState()).thenReturn(CallState.ACTIVE);
+        when(parentCall.isConference()).thenReturn(true);
+        removeCallCapability(parentCall, Connection.CAPABILITY_CONFERENCE_HAS_NO_CHILDREN);
+        calls.add(parentCall);
+        Call[] children = new Call[participants];
+        for (int i = 0; i < participants; i++) {
+            children[i] = mock(Call.class);
+            when(children[i].getState()).thenReturn(CallState.ACTIVE);
+            when(children[i].getParentCall()).thenReturn(parentCall);
+            when(children[i].getHandle()).thenReturn(Uri.parse("tel:+1650555000" + i));
+            calls.add(children[i]);
+        }
+        when(mMockCallsManager.getCalls()).thenReturn(calls);
+
+        int changes = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < polls; i++) {
+            if (i > 0 && i % pollsPerChange == 0) {
+                mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(
+                        children[changes % participants], CallState.ACTIVE, CallState.ACTIVE);
+                changes++;
+            }
+            mBluetoothPhoneService.mBinder.listCurrentCalls();
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(this, "listCurrentCalls: %d polls of %d calls, %d rebuilds, %d us/poll",
+                polls, participants, changes + 1, elapsed / polls / 1000);
+        verify(mMockBluetoothHeadset, times(polls * (participants + 1))).clccResponse(anyInt(),
+                anyInt(), anyInt(), anyInt(), anyBoolean(), anyString(), anyInt());
+        // Rows are only built again after a change.
+        verify(children[0], times(changes + 1)).isIncoming();
+    }
+
     @MediumTest
     public void testQueryPhoneState() throws Exception {
         Call ringingCall = createRingingCall();
@@ -739,7 +880,6 @@ public class BluetoothPhoneServiceTest extends TelecomTestCase {
     public void testOnCallRemoved() throws Exception {
         Call activeCall = createActiveCall();
         mBluetoothPhoneService.mCallsManagerListener.onCallAdded(activeCall);
-        doReturn(null).when(mMockCallsManager).getActiveCall();
         mBluetoothPhoneService.mCallsManagerListener.onCallRemoved(activeCall);
 
         verify(mMockBluetoothHeadset).phoneStateChanged(eq(0), eq(0), eq(CALL_STATE_IDLE),
@@ -748,29 +888,32 @@ public class BluetoothPhoneServiceTest extends TelecomTestCase {
 
     @MediumTest
     public void testOnCallStateChangedConnectingCall() throws Exception {
-        Call activeCall = mock(Call.class);
-        Call connectingCall = mock(Call.class);
+        Call activeCall = createActiveCall();
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(activeCall);
+        Call connectingCall = createOutgoingCall();
         when(connectingCall.getState()).thenReturn(CallState.CONNECTING);
-        ArrayList<Call> calls = new ArrayList<>();
-        calls.add(connectingCall);
-        calls.add(activeCall);
-        when(mMockCallsManager.getCalls()).thenReturn(calls);
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(connectingCall);
 
+        when(activeCall.getState()).thenReturn(CallState.ON_HOLD);
         mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(activeCall,
                 CallState.ACTIVE, CallState.ON_HOLD);
 
-        verify(mMockBluetoothHeadset, never()).phoneStateChanged(anyInt(), anyInt(), anyInt(),
+        // Sent along with the DIALING state once the connecting call is dialing.
+        verify(mMockBluetoothHeadset, never()).phoneStateChanged(eq(0), eq(1), anyInt(),
                 anyString(), anyInt());
     }
 
     @MediumTest
     public void testOnCallStateChangedDialing() throws Exception {
         Call activeCall = createActiveCall();
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(activeCall);
+        Call dialingCall = createOutgoingCall();
 
-        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(activeCall,
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(dialingCall,
                 CallState.CONNECTING, CallState.DIALING);
 
-        verify(mMockBluetoothHeadset, never()).phoneStateChanged(anyInt(), anyInt(), anyInt(),
+        // Only the update for the active call.
+        verify(mMockBluetoothHeadset, times(1)).phoneStateChanged(anyInt(), anyInt(), anyInt(),
                 anyString(), anyInt());
     }
 
@@ -795,8 +938,7 @@ public class BluetoothPhoneServiceTest extends TelecomTestCase {
                 eq("555-0000"), eq(PhoneNumberUtils.TOA_Unknown));
 
         //Switch to active
-        doReturn(null).when(mMockCallsManager).getRingingCall();
-        when(mMockCallsManager.getActiveCall()).thenReturn(ringingCall);
+        when(ringingCall.getState()).thenReturn(CallState.ACTIVE);
 
         mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(ringingCall,
                 CallState.RINGING, CallState.ACTIVE);
@@ -807,14 +949,18 @@ public class BluetoothPhoneServiceTest extends TelecomTestCase {
 
     @MediumTest
     public void testOnCallStateChangedGSMSwap() throws Exception {
+        Call otherHeldCall = createHeldCall();
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(otherHeldCall,
+                CallState.ACTIVE, CallState.ON_HOLD);
         Call heldCall = createHeldCall();
         when(heldCall.getHandle()).thenReturn(Uri.parse("tel:555-0000"));
-        doReturn(2).when(mMockCallsManager).getNumHeldCalls();
         mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(heldCall,
                 CallState.ACTIVE, CallState.ON_HOLD);
 
-        verify(mMockBluetoothHeadset, never()).phoneStateChanged(eq(0), eq(2), eq(CALL_STATE_HELD),
-                eq("555-0000"), eq(PhoneNumberUtils.TOA_Unknown));
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(0), eq(1), eq(CALL_STATE_IDLE),
+                eq(""), eq(128));
+        verify(mMockBluetoothHeadset, never()).phoneStateChanged(anyInt(), eq(2), anyInt(),
+                anyString(), anyInt());
     }
 
     @MediumTest
@@ -866,6 +1012,266 @@ public class BluetoothPhoneServiceTest extends TelecomTestCase {
                 eq("555-0000"), eq(PhoneNumberUtils.TOA_Unknown));
     }
 
+    /**
+     * Replays an incoming call which is answered and then ended, with the redundant callbacks
+     * CallsManager sends along the way, and counts the updates sent to the headset.
+     */
+    @MediumTest
+    public void testReplayIncomingCallScenarioHeadsetUpdates() throws Exception {
+        Call call = createRingingCall();
+        when(call.getHandle()).thenReturn(Uri.parse("tel:555-0000"));
+        when(call.getState()).thenReturn(CallState.RINGING);
+
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(call);
+        // A second callback for the same state must not be sent to the headset again.
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(call,
+                CallState.NEW, CallState.RINGING);
+        verify(mMockBluetoothHeadset, times(1)).phoneStateChanged(eq(0), eq(0),
+                eq(CALL_STATE_INCOMING), eq("555-0000"), eq(PhoneNumberUtils.TOA_Unknown));
+
+        // Answer.
+        when(call.getState()).thenReturn(CallState.ACTIVE);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(call,
+                CallState.RINGING, CallState.ACTIVE);
+        mBluetoothPhoneService.mCallsManagerListener.onIsConferencedChanged(call);
+
+        // End.
+        when(call.getState()).thenReturn(CallState.DISCONNECTED);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(call,
+                CallState.ACTIVE, CallState.DISCONNECTED);
+        mBluetoothPhoneService.mCallsManagerListener.onCallRemoved(call);
+
+        verify(mMockBluetoothHeadset, times(1)).phoneStateChanged(eq(1), eq(0),
+                eq(CALL_STATE_IDLE), eq(""), eq(128));
+        verify(mMockBluetoothHeadset, times(1)).phoneStateChanged(eq(0), eq(0),
+                eq(CALL_STATE_IDLE), eq(""), eq(128));
+        verify(mMockBluetoothHeadset, times(3)).phoneStateChanged(anyInt(), anyInt(), anyInt(),
+                anyString(), anyInt());
+        // The call type is only broadcast once for the call.
+        verify(mContext, times(1)).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
+        verifyNoCallsManagerScans();
+    }
+
+    /**
+     * Replays a call waiting scenario: the active call is held to answer the waiting call, and
+     * the held call is resumed once the second call ends.
+     */
+    @MediumTest
+    public void testReplayCallWaitingScenarioHeadsetUpdates() throws Exception {
+        Call firstCall = createActiveCall();
+        when(firstCall.getState()).thenReturn(CallState.ACTIVE);
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(firstCall);
+
+        Call waitingCall = createRingingCall();
+        when(waitingCall.getHandle()).thenReturn(Uri.parse("tel:555-0001"));
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(waitingCall);
+
+        // Hold the first call and answer the waiting call.
+        when(firstCall.getState()).thenReturn(CallState.ON_HOLD);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(firstCall,
+                CallState.ACTIVE, CallState.ON_HOLD);
+        when(waitingCall.getState()).thenReturn(CallState.ACTIVE);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(waitingCall,
+                CallState.RINGING, CallState.ACTIVE);
+        mBluetoothPhoneService.mCallsManagerListener.onIsConferencedChanged(waitingCall);
+
+        // The second call ends and the first call is resumed.
+        when(waitingCall.getState()).thenReturn(CallState.DISCONNECTED);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(waitingCall,
+                CallState.ACTIVE, CallState.DISCONNECTED);
+        mBluetoothPhoneService.mCallsManagerListener.onCallRemoved(waitingCall);
+        when(firstCall.getState()).thenReturn(CallState.ACTIVE);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(firstCall,
+                CallState.ON_HOLD, CallState.ACTIVE);
+
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(1), eq(0), eq(CALL_STATE_INCOMING),
+                eq("555-0001"), eq(PhoneNumberUtils.TOA_Unknown));
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(0), eq(1), eq(CALL_STATE_INCOMING),
+                eq("555-0001"), eq(PhoneNumberUtils.TOA_Unknown));
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(1), eq(1), eq(CALL_STATE_IDLE),
+                eq(""), eq(128));
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(0), eq(1), eq(CALL_STATE_IDLE),
+                eq(""), eq(128));
+        verify(mMockBluetoothHeadset, times(2)).phoneStateChanged(eq(1), eq(0),
+                eq(CALL_STATE_IDLE), eq(""), eq(128));
+        // One update for each state change, none for the redundant callback or the removal.
+        verify(mMockBluetoothHeadset, times(6)).phoneStateChanged(anyInt(), anyInt(), anyInt(),
+                anyString(), anyInt());
+        verifyNoCallsManagerScans();
+    }
+
+    /**
+     * Replays an outgoing call made while another call is active: the active call is held once
+     * the new call is connecting, and the headset is told about both at once.
+     */
+    @MediumTest
+    public void testReplayOutgoingCallWhileActiveScenarioHeadsetUpdates() throws Exception {
+        Call firstCall = createActiveCall();
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(firstCall);
+
+        Call outgoingCall = createOutgoingCall();
+        when(outgoingCall.getState()).thenReturn(CallState.CONNECTING);
+        when(outgoingCall.getHandle()).thenReturn(Uri.parse("tel:555-0002"));
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(outgoingCall);
+        when(firstCall.getState()).thenReturn(CallState.ON_HOLD);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(firstCall,
+                CallState.ACTIVE, CallState.ON_HOLD);
+        when(outgoingCall.getState()).thenReturn(CallState.DIALING);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(outgoingCall,
+                CallState.CONNECTING, CallState.DIALING);
+        when(outgoingCall.getState()).thenReturn(CallState.ACTIVE);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(outgoingCall,
+                CallState.DIALING, CallState.ACTIVE);
+
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(1), eq(0), eq(CALL_STATE_IDLE),
+                eq(""), eq(128));
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(1), eq(0), eq(CALL_STATE_DIALING),
+                eq(""), eq(128));
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(1), eq(0), eq(CALL_STATE_ALERTING),
+                eq(""), eq(128));
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(0), eq(1), eq(CALL_STATE_ALERTING),
+                eq(""), eq(128));
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(1), eq(1), eq(CALL_STATE_IDLE),
+                eq(""), eq(128));
+        verify(mMockBluetoothHeadset, times(5)).phoneStateChanged(anyInt(), anyInt(), anyInt(),
+                anyString(), anyInt());
+        verifyNoCallsManagerScans();
+    }
+
+    @MediumTest
+    public void testConferenceParticipantStateChangeIgnored() throws Exception {
+        Call parentCall = createActiveCall();
+        Call childCall = mock(Call.class);
+        when(childCall.getParentCall()).thenReturn(parentCall);
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(parentCall);
+
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(childCall,
+                CallState.ACTIVE, CallState.DISCONNECTED);
+
+        verify(mMockBluetoothHeadset, times(1)).phoneStateChanged(anyInt(), anyInt(), anyInt(),
+                anyString(), anyInt());
+        verifyNoCallsManagerScans();
+    }
+
+    @MediumTest
+    public void testExternalCallRemoved() throws Exception {
+        Call activeCall = createActiveCall();
+        when(activeCall.getHandle()).thenReturn(Uri.parse("tel:555-0000"));
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(activeCall);
+        mBluetoothPhoneService.mBinder.listCurrentCalls();
+        assertEquals(1, mBluetoothPhoneService.getNumCallAddresses());
+
+        // The call is pulled to another device, and is then removed.
+        when(activeCall.isExternalCall()).thenReturn(true);
+        mBluetoothPhoneService.mCallsManagerListener.onExternalCallChanged(activeCall, true);
+        mCalls.remove(activeCall);
+        mBluetoothPhoneService.mCallsManagerListener.onCallRemoved(activeCall);
+
+        assertEquals(0, mBluetoothPhoneService.getNumCallAddresses());
+    }
+
+    /**
+     * A participant leaves a swappable conference and becomes the foreground call before the
+     * conference is held. As in CallsManager, the foreground call is the active call, even though
+     * the participant is tracked after the conference.
+     */
+    @MediumTest
+    public void testConferenceSplitForegroundCallIsActive() throws Exception {
+        ArgumentCaptor<Call.Listener> listenerCaptor = ArgumentCaptor.forClass(Call.Listener.class);
+        Call conferenceCall = createActiveCall();
+        Call splitCall = createActiveCall();
+        Call otherChildCall = createActiveCall();
+        ArrayList<Call> childCalls = new ArrayList<>();
+        childCalls.add(splitCall);
+        childCalls.add(otherChildCall);
+        when(conferenceCall.getChildCalls()).thenReturn(childCalls);
+        when(conferenceCall.isConference()).thenReturn(true);
+        removeCallCapability(conferenceCall, Connection.CAPABILITY_CONFERENCE_HAS_NO_CHILDREN);
+        addCallCapability(conferenceCall, Connection.CAPABILITY_SWAP_CONFERENCE);
+        when(conferenceCall.wasConferencePreviouslyMerged()).thenReturn(false);
+        when(splitCall.getParentCall()).thenReturn(conferenceCall);
+        when(otherChildCall.getParentCall()).thenReturn(conferenceCall);
+        when(mMockCallsManager.getForegroundCall()).thenReturn(conferenceCall);
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(conferenceCall);
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(splitCall);
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(otherChildCall);
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(1), eq(1), eq(CALL_STATE_IDLE),
+                eq(""), eq(128));
+        verify(splitCall).addListener(listenerCaptor.capture());
+
+        childCalls.remove(splitCall);
+        when(splitCall.getParentCall()).thenReturn(null);
+        when(mMockCallsManager.getForegroundCall()).thenReturn(splitCall);
+        listenerCaptor.getValue().onParentChanged(splitCall);
+        mBluetoothPhoneService.mCallsManagerListener.onIsConferencedChanged(splitCall);
+
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(1), eq(0), eq(CALL_STATE_IDLE),
+                eq(""), eq(128));
+        verifyNoCallsManagerScans();
+    }
+
+    /**
+     * With one call dialing and a newer one connecting, the connecting call is the outgoing call,
+     * as in CallsManager, so the active call being held waits for it to dial.
+     */
+    @MediumTest
+    public void testMultipleOutgoingCalls() throws Exception {
+        Call activeCall = createActiveCall();
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(activeCall);
+        Call dialingCall = createOutgoingCall();
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(dialingCall);
+        Call connectingCall = createCall(CallState.CONNECTING);
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(connectingCall);
+
+        when(activeCall.getState()).thenReturn(CallState.ON_HOLD);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(activeCall,
+                CallState.ACTIVE, CallState.ON_HOLD);
+        verify(mMockBluetoothHeadset, never()).phoneStateChanged(eq(0), eq(1), anyInt(),
+                anyString(), anyInt());
+
+        when(dialingCall.getState()).thenReturn(CallState.DISCONNECTED);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(dialingCall,
+                CallState.DIALING, CallState.DISCONNECTED);
+        mCalls.remove(dialingCall);
+        mBluetoothPhoneService.mCallsManagerListener.onCallRemoved(dialingCall);
+        when(connectingCall.getState()).thenReturn(CallState.DIALING);
+        mBluetoothPhoneService.mCallsManagerListener.onCallStateChanged(connectingCall,
+                CallState.CONNECTING, CallState.DIALING);
+
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(0), eq(1), eq(CALL_STATE_ALERTING),
+                eq(""), eq(128));
+        verifyNoCallsManagerScans();
+    }
+
+    @MediumTest
+    public void testRingingAddressUpdatedOnHandleChange() throws Exception {
+        ArgumentCaptor<Call.Listener> listenerCaptor = ArgumentCaptor.forClass(Call.Listener.class);
+        Call ringingCall = createRingingCall();
+        when(ringingCall.getHandle()).thenReturn(Uri.parse("tel:555-0000"));
+        mBluetoothPhoneService.mCallsManagerListener.onCallAdded(ringingCall);
+        verify(ringingCall).addListener(listenerCaptor.capture());
+
+        when(ringingCall.getHandle()).thenReturn(Uri.parse("tel:555-0001"));
+        listenerCaptor.getValue().onHandleChanged(ringingCall);
+        mBluetoothPhoneService.mBinder.queryPhoneState();
+
+        verify(mMockBluetoothHeadset).phoneStateChanged(eq(0), eq(0), eq(CALL_STATE_INCOMING),
+                eq("555-0001"), eq(PhoneNumberUtils.TOA_Unknown));
+    }
+
+    /**
+     * Checks that the headset state was only derived from call events, without going through the
+     * calls in CallsManager.
+     */
+    private void verifyNoCallsManagerScans() {
+        verify(mMockCallsManager, never()).getCalls();
+        verify(mMockCallsManager, never()).getActiveCall();
+        verify(mMockCallsManager, never()).getRingingCall();
+        verify(mMockCallsManager, never()).getHeldCall();
+        verify(mMockCallsManager, never()).getOutgoingCall();
+        verify(mMockCallsManager, never()).getNumHeldCalls();
+    }
+
     private void addCallCapability(Call call, int capability) {
         when(call.can(capability)).thenReturn(true);
     }
@@ -875,29 +1281,36 @@ public class BluetoothPhoneServiceTest extends TelecomTestCase {
     }
 
     private Call createActiveCall() {
-        Call call = mock(Call.class);
+        Call call = createCall(CallState.ACTIVE);
         when(mMockCallsManager.getActiveCall()).thenReturn(call);
         return call;
     }
 
     private Call createRingingCall() {
-        Call call = mock(Call.class);
+        Call call = createCall(CallState.RINGING);
         when(mMockCallsManager.getRingingCall()).thenReturn(call);
         return call;
     }
 
     private Call createHeldCall() {
-        Call call = mock(Call.class);
+        Call call = createCall(CallState.ON_HOLD);
         when(mMockCallsManager.getHeldCall()).thenReturn(call);
         return call;
     }
 
     private Call createOutgoingCall() {
-        Call call = mock(Call.class);
+        Call call = createCall(CallState.DIALING);
         when(mMockCallsManager.getOutgoingCall()).thenReturn(call);
         return call;
     }
 
+    private Call createCall(int state) {
+        Call call = mock(Call.class);
+        when(call.getState()).thenReturn(state);
+        mCalls.add(call);
+        return call;
+    }
+
     private Call createForegroundCall() {
         Call call = mock(Call.class);
         when(mMockCallsManager.getForegroundCall()).thenReturn(call);
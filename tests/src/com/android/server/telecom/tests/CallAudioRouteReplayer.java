@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.IAudioService;
+import android.telecom.CallAudioState;
+import android.util.SparseArray;
+
+import com.android.server.telecom.BluetoothManager;
+import com.android.server.telecom.CallAudioManager;
+import com.android.server.telecom.CallAudioRouteStateMachine;
+import com.android.server.telecom.CallAudioRouteTrace;
+import com.android.server.telecom.CallsManager;
+import com.android.server.telecom.InterruptionFilterProxy;
+import com.android.server.telecom.StatusBarNotifier;
+import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.WiredHeadsetManager;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Replays a {@link CallAudioRouteTrace} against a {@link CallAudioRouteStateMachine} backed by
+ * fake audio peripherals. Before each message is sent, the fakes are set to the peripheral state
+ * recorded with it, and the replayer waits for the state machine to process the message before
+ * moving on, so a replay is deterministic. The recorded timestamps are used to work out how long
+ * the call spent in each route, and the fakes count the calls which did not change anything.
+ */
+public class CallAudioRouteReplayer {
+    /**
+     * The outcome of a replay.
+     */
+    public static class Report {
+        private final SparseArray<Long> mTimeInRouteMillis = new SparseArray<>();
+        private int mSpeakerphoneCalls;
+        private int mRedundantSpeakerphoneCalls;
+        private int mMuteCalls;
+        private int mRedundantMuteCalls;
+        private int mBluetoothConnectCalls;
+        private int mRedundantBluetoothConnectCalls;
+        private int mCallAudioStateChanges;
+
+        public long getTimeInRouteMillis(int route) {
+            return mTimeInRouteMillis.get(route, 0L);
+        }
+
+        public int getSpeakerphoneCalls() {
+            return mSpeakerphoneCalls;
+        }
+
+        public int getRedundantSpeakerphoneCalls() {
+            return mRedundantSpeakerphoneCalls;
+        }
+
+        public int getMuteCalls() {
+            return mMuteCalls;
+        }
+
+        public int getRedundantMuteCalls() {
+            return mRedundantMuteCalls;
+        }
+
+        public int getBluetoothConnectCalls() {
+            return mBluetoothConnectCalls;
+        }
+
+        public int getRedundantBluetoothConnectCalls() {
+            return mRedundantBluetoothConnectCalls;
+        }
+
+        public int getCallAudioStateChanges() {
+            return mCallAudioStateChanges;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Report)) {
+                return false;
+            }
+            return toString().equals(o.toString());
+        }
+
+        @Override
+        public int hashCode() {
+            return toString().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[timeInRoute=");
+            for (int i = 0; i < mTimeInRouteMillis.size(); i++) {
+                sb.append(CallAudioState.audioRouteToString(mTimeInRouteMillis.keyAt(i)))
+                        .append(':').append(mTimeInRouteMillis.valueAt(i)).append("ms ");
+            }
+            return sb.append(", speakerphone=").append(mSpeakerphoneCalls)
+                    .append(" (").append(mRedundantSpeakerphoneCalls).append(" redundant)")
+                    .append(", mute=").append(mMuteCalls)
+                    .append(" (").append(mRedundantMuteCalls).append(" redundant)")
+                    .append(", btConnect=").append(mBluetoothConnectCalls)
+                    .append(" (").append(mRedundantBluetoothConnectCalls).append(" redundant)")
+                    .append(", callAudioStateChanges=").append(mCallAudioStateChanges)
+                    .append(']').toString();
+        }
+    }
+
+    private final Context mContext;
+    private final AudioManager mAudioManager;
+    private final CallsManager mCallsManager = mock(CallsManager.class);
+    private final BluetoothManager mBluetoothManager = mock(BluetoothManager.class);
+    private final WiredHeadsetManager mWiredHeadsetManager = mock(WiredHeadsetManager.class);
+    private final StatusBarNotifier mStatusBarNotifier = mock(StatusBarNotifier.class);
+    private final IAudioService mAudioService = mock(IAudioService.class);
+    private final InterruptionFilterProxy mInterruptionFilterProxy =
+            mock(InterruptionFilterProxy.class);
+    private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
+
+    // Fake peripheral state.
+    private boolean mIsWiredHeadsetPluggedIn;
+    private boolean mIsBluetoothAvailable;
+    private boolean mIsBluetoothAudioOn;
+    private boolean mIsApplyingPeripheralState;
+
+    private Report mReport;
+
+    /**
+     * @param context A context whose {@link AudioManager} is a spy of
+     *         {@link ComponentContextFixture.FakeAudioManager}.
+     */
+    public CallAudioRouteReplayer(Context context) {
+        mContext = context;
+        mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        setUpFakes();
+    }
+
+    /**
+     * Replays the trace against a new state machine.
+     */
+    public Report replay(CallAudioRouteTrace trace, boolean doesDeviceSupportEarpieceRoute)
+            throws Exception {
+        List<CallAudioRouteTrace.Entry> entries = trace.getEntries();
+        mReport = new Report();
+        if (entries.isEmpty()) {
+            return mReport;
+        }
+
+        applyPeripheralState(entries.get(0));
+        CallAudioRouteStateMachine stateMachine = new CallAudioRouteStateMachine(
+                mContext,
+                mCallsManager,
+                mBluetoothManager,
+                mWiredHeadsetManager,
+                mStatusBarNotifier,
+                new CallAudioManager.AudioServiceFactory() {
+                    @Override
+                    public IAudioService getAudioService() {
+                        return mAudioService;
+                    }
+                },
+                mInterruptionFilterProxy,
+                doesDeviceSupportEarpieceRoute);
+        stateMachine.initialize();
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                CallAudioRouteTrace.Entry entry = entries.get(i);
+                applyPeripheralState(entry);
+                stateMachine.sendMessageWithSessionInfo(entry.message, entry.arg);
+                waitForCompletion(stateMachine);
+                if (i + 1 < entries.size()) {
+                    int route = stateMachine.getCurrentCallAudioState().getRoute();
+                    long duration = entries.get(i + 1).timestampMillis - entry.timestampMillis;
+                    mReport.mTimeInRouteMillis.put(route,
+                            mReport.getTimeInRouteMillis(route) + duration);
+                }
+            }
+        } finally {
+            stateMachine.quitStateMachine();
+        }
+        return mReport;
+    }
+
+    private void applyPeripheralState(CallAudioRouteTrace.Entry entry) {
+        mIsWiredHeadsetPluggedIn = entry.hasPeripheral(
+                CallAudioRouteTrace.PERIPHERAL_WIRED_HEADSET);
+        mIsBluetoothAvailable = entry.hasPeripheral(
+                CallAudioRouteTrace.PERIPHERAL_BLUETOOTH_AVAILABLE);
+        mIsBluetoothAudioOn = entry.hasPeripheral(CallAudioRouteTrace.PERIPHERAL_BLUETOOTH_AUDIO);
+        // These are not calls made by the state machine, so they are not counted.
+        mIsApplyingPeripheralState = true;
+        mAudioManager.setSpeakerphoneOn(
+                entry.hasPeripheral(CallAudioRouteTrace.PERIPHERAL_SPEAKERPHONE));
+        mIsApplyingPeripheralState = false;
+        mAudioManager.setMicrophoneMute(
+                entry.hasPeripheral(CallAudioRouteTrace.PERIPHERAL_MICROPHONE_MUTE));
+    }
+
+    private void setUpFakes() {
+        when(mCallsManager.getLock()).thenReturn(mLock);
+        when(mInterruptionFilterProxy.getCurrentInterruptionFilter()).thenReturn(0);
+        when(mWiredHeadsetManager.isPluggedIn()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return mIsWiredHeadsetPluggedIn;
+            }
+        });
+        when(mBluetoothManager.isBluetoothAvailable()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return mIsBluetoothAvailable;
+            }
+        });
+        when(mBluetoothManager.isBluetoothAudioConnectedOrPending()).thenAnswer(
+                new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) {
+                        return mIsBluetoothAudioOn;
+                    }
+                });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                mReport.mBluetoothConnectCalls++;
+                if (mIsBluetoothAudioOn) {
+                    mReport.mRedundantBluetoothConnectCalls++;
+                }
+                mIsBluetoothAudioOn = true;
+                return null;
+            }
+        }).when(mBluetoothManager).connectBluetoothAudio();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                mIsBluetoothAudioOn = false;
+                return null;
+            }
+        }).when(mBluetoothManager).disconnectBluetoothAudio();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                boolean on = (Boolean) invocation.getArguments()[0];
+                if (!mIsApplyingPeripheralState) {
+                    mReport.mSpeakerphoneCalls++;
+                    if (on == mAudioManager.isSpeakerphoneOn()) {
+                        mReport.mRedundantSpeakerphoneCalls++;
+                    }
+                }
+                invocation.callRealMethod();
+                return null;
+            }
+        }).when(mAudioManager).setSpeakerphoneOn(any(Boolean.class));
+        try {
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    boolean mute = (Boolean) invocation.getArguments()[0];
+                    mReport.mMuteCalls++;
+                    if (mute == mAudioManager.isMicrophoneMute()) {
+                        mReport.mRedundantMuteCalls++;
+                    }
+                    mAudioManager.setMicrophoneMute(mute);
+                    return null;
+                }
+            }).when(mAudioService).setMicrophoneMute(any(Boolean.class), any(String.class),
+                    any(Integer.class));
+        } catch (Exception e) {
+            // Not thrown by the mock.
+        }
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                mReport.mCallAudioStateChanges++;
+                return null;
+            }
+        }).when(mCallsManager).onCallAudioStateChanged(any(CallAudioState.class),
+                any(CallAudioState.class));
+    }
+
+    private static void waitForCompletion(CallAudioRouteStateMachine stateMachine)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        stateMachine.sendMessage(CallAudioRouteStateMachine.RUN_RUNNABLE, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        latch.await();
+    }
+}
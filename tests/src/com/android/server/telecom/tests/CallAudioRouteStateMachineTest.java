@@ -25,6 +25,7 @@ import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.android.server.telecom.Analytics;
 import com.android.server.telecom.BluetoothManager;
 import com.android.server.telecom.Call;
 import com.android.server.telecom.CallAudioModeStateMachine;
@@ -33,11 +34,13 @@ import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.ConnectionServiceWrapper;
 import com.android.server.telecom.CallAudioManager;
 import com.android.server.telecom.InterruptionFilterProxy;
+import com.android.server.telecom.Log;
 import com.android.server.telecom.StatusBarNotifier;
 import com.android.server.telecom.TelecomSystem;
 import com.android.server.telecom.WiredHeadsetManager;
 
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
@@ -46,6 +49,7 @@ import org.mockito.stubbing.Answer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
@@ -54,6 +58,7 @@ import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
@@ -349,6 +354,250 @@ public class CallAudioRouteStateMachineTest
         verify(mockBluetoothManager, times(1)).connectBluetoothAudio();
     }
 
+    @MediumTest
+    public void testBluetoothPreconnectWhileRinging() {
+        CallAudioRouteStateMachine stateMachine = createBluetoothStateMachine();
+
+        // The answer arrives before the ringing focus does.
+        stateMachine.sendMessageWithSessionInfo(
+                CallAudioRouteStateMachine.PRECONNECT_BLUETOOTH);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.RINGING_FOCUS);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        verify(mockBluetoothManager, times(1)).connectBluetoothAudio();
+
+        when(mockBluetoothManager.isBluetoothAudioConnectedOrPending()).thenReturn(true);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.BT_AUDIO_CONNECTED);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.ACTIVE_FOCUS);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        // The active route finds the audio already connected.
+        verify(mockBluetoothManager, times(1)).connectBluetoothAudio();
+        verify(mockBluetoothManager, never()).disconnectBluetoothAudio();
+        assertEquals(CallAudioState.ROUTE_BLUETOOTH,
+                stateMachine.getCurrentCallAudioState().getRoute());
+        stateMachine.quitStateMachine();
+    }
+
+    @MediumTest
+    public void testBluetoothPreconnectTornDownOnReject() {
+        CallAudioRouteStateMachine stateMachine = createBluetoothStateMachine();
+
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.RINGING_FOCUS);
+        stateMachine.sendMessageWithSessionInfo(
+                CallAudioRouteStateMachine.PRECONNECT_BLUETOOTH);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        verify(mockBluetoothManager, times(1)).connectBluetoothAudio();
+
+        when(mockBluetoothManager.isBluetoothAudioConnectedOrPending()).thenReturn(true);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.NO_FOCUS);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        verify(mockBluetoothManager, times(1)).disconnectBluetoothAudio();
+
+        // The request does not carry over to the next incoming call.
+        when(mockBluetoothManager.isBluetoothAudioConnectedOrPending()).thenReturn(false);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.RINGING_FOCUS);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        verify(mockBluetoothManager, times(1)).connectBluetoothAudio();
+        stateMachine.quitStateMachine();
+    }
+
+    @MediumTest
+    public void testBluetoothPreconnectedAudioTimedFromAnswer() {
+        CallAudioRouteStateMachine stateMachine = createBluetoothStateMachine();
+        Call call = mock(Call.class);
+        Analytics.CallInfo callInfo = mock(Analytics.CallInfo.class);
+        when(call.getAnalytics()).thenReturn(callInfo);
+        when(mockCallsManager.getForegroundCall()).thenReturn(call);
+
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.RINGING_FOCUS);
+        stateMachine.sendMessageWithSessionInfo(
+                CallAudioRouteStateMachine.PRECONNECT_BLUETOOTH);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        when(mockBluetoothManager.isBluetoothAudioConnectedOrPending()).thenReturn(true);
+        when(mockBluetoothManager.isBluetoothAudioConnected()).thenReturn(true);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.BT_AUDIO_CONNECTED);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+
+        // The audio is already connected when the call is answered.
+        Log.event(call, Log.Events.REQUEST_ACCEPT);
+        stateMachine.sendMessageWithSessionInfo(
+                CallAudioRouteStateMachine.PRECONNECT_BLUETOOTH);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        verify(mockBluetoothManager, times(1)).connectBluetoothAudio();
+
+        ArgumentCaptor<Log.CallEventRecord> captor =
+                ArgumentCaptor.forClass(Log.CallEventRecord.class);
+        verify(callInfo).setCallEvents(captor.capture());
+        assertTrue(captor.getValue().extractEventTimings().stream().anyMatch(timing ->
+                timing.name.equals(Log.Events.Timings.ACCEPT_TO_BT_AUDIO_TIMING)));
+        stateMachine.quitStateMachine();
+    }
+
+    @MediumTest
+    public void testMuteTogglesAppliedInOrder() throws Exception {
+        CallAudioRouteStateMachine stateMachine = createActiveEarpieceStateMachine();
+        resetMocks();
+        int forwardedBefore =
+                stateMachine.getStat(CallAudioRouteStateMachine.STAT_MUTE_FORWARDED);
+        int unchangedBefore =
+                stateMachine.getStat(CallAudioRouteStateMachine.STAT_MUTE_UNCHANGED);
+        final boolean[] isMicrophoneMute = new boolean[1];
+        when(mockAudioManager.isMicrophoneMute()).thenAnswer(i -> isMicrophoneMute[0]);
+        doAnswer(i -> {
+            isMicrophoneMute[0] = (boolean) i.getArguments()[0];
+            return null;
+        }).when(mockAudioService).setMicrophoneMute(any(Boolean.class), any(String.class),
+                any(Integer.class));
+
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.MUTE_ON);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.MUTE_OFF);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.MUTE_OFF);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+
+        // Each change reaches the audio service and the InCallServices, in the order requested.
+        CallAudioState earpiece = new CallAudioState(false, CallAudioState.ROUTE_EARPIECE,
+                CallAudioState.ROUTE_EARPIECE | CallAudioState.ROUTE_SPEAKER);
+        CallAudioState mutedEarpiece = new CallAudioState(true, CallAudioState.ROUTE_EARPIECE,
+                CallAudioState.ROUTE_EARPIECE | CallAudioState.ROUTE_SPEAKER);
+        InOrder inOrder = inOrder(mockAudioService, mockCallsManager);
+        inOrder.verify(mockAudioService).setMicrophoneMute(eq(true), any(String.class),
+                any(Integer.class));
+        inOrder.verify(mockCallsManager).onCallAudioStateChanged(earpiece, mutedEarpiece);
+        inOrder.verify(mockAudioService).setMicrophoneMute(eq(false), any(String.class),
+                any(Integer.class));
+        inOrder.verify(mockCallsManager).onCallAudioStateChanged(mutedEarpiece, earpiece);
+        // The second unmute finds the microphone already unmuted.
+        verify(mockAudioService, times(2)).setMicrophoneMute(any(Boolean.class),
+                any(String.class), any(Integer.class));
+        assertEquals(forwardedBefore + 2,
+                stateMachine.getStat(CallAudioRouteStateMachine.STAT_MUTE_FORWARDED));
+        assertEquals(unchangedBefore + 1,
+                stateMachine.getStat(CallAudioRouteStateMachine.STAT_MUTE_UNCHANGED));
+        stateMachine.quitStateMachine();
+    }
+
+    @MediumTest
+    public void testQueuedMuteTogglesCoalesced() throws Exception {
+        CallAudioRouteStateMachine stateMachine = createActiveEarpieceStateMachine();
+        resetMocks();
+        int coalescedBefore =
+                stateMachine.getStat(CallAudioRouteStateMachine.STAT_MUTE_COALESCED);
+
+        CountDownLatch release = blockStateMachine(stateMachine);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.MUTE_ON);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.MUTE_OFF);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.TOGGLE_MUTE);
+        release.countDown();
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+
+        // Only the outcome of the burst reaches the audio service and the InCallServices.
+        CallAudioState earpiece = new CallAudioState(false, CallAudioState.ROUTE_EARPIECE,
+                CallAudioState.ROUTE_EARPIECE | CallAudioState.ROUTE_SPEAKER);
+        CallAudioState mutedEarpiece = new CallAudioState(true, CallAudioState.ROUTE_EARPIECE,
+                CallAudioState.ROUTE_EARPIECE | CallAudioState.ROUTE_SPEAKER);
+        verify(mockAudioService, times(1)).setMicrophoneMute(any(Boolean.class),
+                any(String.class), any(Integer.class));
+        verify(mockAudioService).setMicrophoneMute(eq(true), any(String.class),
+                any(Integer.class));
+        verify(mockCallsManager, times(1)).onCallAudioStateChanged(any(CallAudioState.class),
+                any(CallAudioState.class));
+        verify(mockCallsManager).onCallAudioStateChanged(earpiece, mutedEarpiece);
+        assertEquals(coalescedBefore + 2,
+                stateMachine.getStat(CallAudioRouteStateMachine.STAT_MUTE_COALESCED));
+        assertTrue(stateMachine.getCurrentCallAudioState().isMuted());
+        stateMachine.quitStateMachine();
+    }
+
+    @MediumTest
+    public void testBluetoothRouteBounceNotPublished() throws Exception {
+        CallAudioRouteStateMachine stateMachine = createBluetoothStateMachine();
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.ACTIVE_FOCUS);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        resetMocks();
+        when(mockBluetoothManager.isBluetoothAvailable()).thenReturn(true);
+        when(mockBluetoothManager.isBluetoothAudioConnectedOrPending()).thenReturn(true);
+        int coalescedBefore =
+                stateMachine.getStat(CallAudioRouteStateMachine.STAT_AUDIO_STATE_COALESCED);
+
+        // The headset drops and comes back before the state machine gets to either event.
+        CountDownLatch release = blockStateMachine(stateMachine);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.DISCONNECT_BLUETOOTH);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.CONNECT_BLUETOOTH);
+        release.countDown();
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+
+        // The InCallServices never see the call leave bluetooth.
+        verify(mockCallsManager, never()).onCallAudioStateChanged(any(CallAudioState.class),
+                any(CallAudioState.class));
+        verify(mockConnectionServiceWrapper, never()).onCallAudioStateChanged(
+                any(Call.class), any(CallAudioState.class));
+        assertTrue(stateMachine.getStat(CallAudioRouteStateMachine.STAT_AUDIO_STATE_COALESCED)
+                > coalescedBefore);
+        assertEquals(new CallAudioState(false, CallAudioState.ROUTE_BLUETOOTH,
+                        CallAudioState.ROUTE_EARPIECE | CallAudioState.ROUTE_BLUETOOTH),
+                stateMachine.getCurrentCallAudioState());
+        stateMachine.quitStateMachine();
+    }
+
+    @MediumTest
+    public void testUnchangedSpeakerphoneCallsCounted() throws Exception {
+        CallAudioRouteStateMachine stateMachine = createActiveEarpieceStateMachine();
+        final boolean[] isSpeakerphoneOn = new boolean[1];
+        when(mockAudioManager.isSpeakerphoneOn()).thenAnswer(i -> isSpeakerphoneOn[0]);
+        doAnswer(i -> {
+            isSpeakerphoneOn[0] = (boolean) i.getArguments()[0];
+            return null;
+        }).when(mockAudioManager).setSpeakerphoneOn(any(Boolean.class));
+        when(mockWiredHeadsetManager.isPluggedIn()).thenReturn(true);
+
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.CONNECT_WIRED_HEADSET);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.USER_SWITCH_SPEAKER);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.USER_SWITCH_HEADSET);
+        stateMachine.sendMessageWithSessionInfo(
+                CallAudioRouteStateMachine.DISCONNECT_WIRED_HEADSET);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+
+        // Speaker on, then off for the headset; the headset and the earpiece need nothing more.
+        verify(mockAudioManager).setSpeakerphoneOn(true);
+        verify(mockAudioManager).setSpeakerphoneOn(false);
+        assertEquals(2,
+                stateMachine.getStat(CallAudioRouteStateMachine.STAT_SPEAKERPHONE_FORWARDED));
+        assertEquals(3,
+                stateMachine.getStat(CallAudioRouteStateMachine.STAT_SPEAKERPHONE_UNCHANGED));
+        assertEquals(CallAudioState.ROUTE_EARPIECE,
+                stateMachine.getCurrentCallAudioState().getRoute());
+        stateMachine.quitStateMachine();
+    }
+
+    @MediumTest
+    public void testSpeakerphoneChangedByOthersIsCorrected() throws Exception {
+        CallAudioRouteStateMachine stateMachine = createActiveEarpieceStateMachine();
+        when(mockWiredHeadsetManager.isPluggedIn()).thenReturn(true);
+        when(mockAudioManager.isSpeakerphoneOn()).thenReturn(false);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.CONNECT_WIRED_HEADSET);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        verify(mockAudioManager, never()).setSpeakerphoneOn(any(Boolean.class));
+
+        // Something else turns the speakerphone on while the call is on the headset, without
+        // telling Telecom.
+        when(mockAudioManager.isSpeakerphoneOn()).thenReturn(true);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.USER_SWITCH_EARPIECE);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+
+        verify(mockAudioManager).setSpeakerphoneOn(false);
+        assertEquals(CallAudioState.ROUTE_EARPIECE,
+                stateMachine.getCurrentCallAudioState().getRoute());
+        stateMachine.quitStateMachine();
+    }
+
     @SmallTest
     public void testInitializationWithEarpieceNoHeadsetNoBluetooth() {
         CallAudioState expectedState = new CallAudioState(false, CallAudioState.ROUTE_EARPIECE,
@@ -1021,6 +1270,65 @@ public class CallAudioRouteStateMachineTest
         assertEquals(expectedState, stateMachine.getCurrentCallAudioState());
     }
 
+    private CallAudioRouteStateMachine createActiveEarpieceStateMachine() {
+        CallAudioRouteStateMachine stateMachine = new CallAudioRouteStateMachine(
+                mContext,
+                mockCallsManager,
+                mockBluetoothManager,
+                mockWiredHeadsetManager,
+                mockStatusBarNotifier,
+                mAudioServiceFactory,
+                mMockInterruptionFilterProxy,
+                true);
+        when(mockBluetoothManager.isBluetoothAudioConnectedOrPending()).thenReturn(false);
+        when(mockBluetoothManager.isBluetoothAvailable()).thenReturn(false);
+        when(mockAudioManager.isSpeakerphoneOn()).thenReturn(false);
+        when(mockAudioManager.isMicrophoneMute()).thenReturn(false);
+        stateMachine.initialize(new CallAudioState(false, CallAudioState.ROUTE_EARPIECE,
+                CallAudioState.ROUTE_EARPIECE | CallAudioState.ROUTE_SPEAKER));
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.ACTIVE_FOCUS);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        return stateMachine;
+    }
+
+    private CallAudioRouteStateMachine createBluetoothStateMachine() {
+        CallAudioRouteStateMachine stateMachine = new CallAudioRouteStateMachine(
+                mContext,
+                mockCallsManager,
+                mockBluetoothManager,
+                mockWiredHeadsetManager,
+                mockStatusBarNotifier,
+                mAudioServiceFactory,
+                mMockInterruptionFilterProxy,
+                true);
+        when(mockBluetoothManager.isBluetoothAudioConnectedOrPending()).thenReturn(false);
+        when(mockBluetoothManager.isBluetoothAvailable()).thenReturn(true);
+        when(mockAudioManager.isSpeakerphoneOn()).thenReturn(false);
+        stateMachine.initialize(new CallAudioState(false, CallAudioState.ROUTE_BLUETOOTH,
+                CallAudioState.ROUTE_EARPIECE | CallAudioState.ROUTE_BLUETOOTH));
+        return stateMachine;
+    }
+
+    /**
+     * Keeps the state machine thread busy until the returned latch is released, so that the
+     * messages sent in the meantime are all queued when it gets to them.
+     */
+    private CountDownLatch blockStateMachine(CallAudioRouteStateMachine stateMachine) {
+        final CountDownLatch release = new CountDownLatch(1);
+        stateMachine.sendMessage(CallAudioRouteStateMachine.RUN_RUNNABLE, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // do nothing
+                }
+            }
+        });
+        return release;
+    }
+
     private void verifyNoSystemAudioChanges() {
         verify(mockBluetoothManager, never()).disconnectBluetoothAudio();
         verify(mockBluetoothManager, never()).connectBluetoothAudio();
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.IAudioService;
+import android.telecom.CallAudioState;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.telecom.BluetoothManager;
+import com.android.server.telecom.CallAudioManager;
+import com.android.server.telecom.CallAudioRouteStateMachine;
+import com.android.server.telecom.CallAudioRouteTrace;
+import com.android.server.telecom.CallsManager;
+import com.android.server.telecom.InterruptionFilterProxy;
+import com.android.server.telecom.Log;
+import com.android.server.telecom.StatusBarNotifier;
+import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.WiredHeadsetManager;
+
+import org.mockito.Mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import static org.mockito.Mockito.when;
+
+public class CallAudioRouteTraceTest extends StateMachineTestBase<CallAudioRouteStateMachine> {
+    private static final int WIRED = CallAudioRouteTrace.PERIPHERAL_WIRED_HEADSET;
+    private static final int BT_AVAILABLE = CallAudioRouteTrace.PERIPHERAL_BLUETOOTH_AVAILABLE;
+    private static final int BT_AUDIO = CallAudioRouteTrace.PERIPHERAL_BLUETOOTH_AUDIO;
+    private static final int SPEAKER = CallAudioRouteTrace.PERIPHERAL_SPEAKERPHONE;
+
+    @Mock CallsManager mockCallsManager;
+    @Mock BluetoothManager mockBluetoothManager;
+    @Mock IAudioService mockAudioService;
+    @Mock WiredHeadsetManager mockWiredHeadsetManager;
+    @Mock StatusBarNotifier mockStatusBarNotifier;
+    @Mock InterruptionFilterProxy mockInterruptionFilterProxy;
+
+    private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
+    private Context mContext;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mContext = mComponentContextFixture.getTestDouble().getApplicationContext();
+        when(mockCallsManager.getLock()).thenReturn(mLock);
+    }
+
+    @SmallTest
+    public void testTraceRoundTrip() throws Exception {
+        CallAudioRouteTrace trace = new CallAudioRouteTrace(2);
+        trace.record(1000, CallAudioRouteStateMachine.CONNECT_WIRED_HEADSET, 0, 0);
+        trace.record(1500, CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.ACTIVE_FOCUS, WIRED);
+        trace.record(86400000L, CallAudioRouteStateMachine.USER_SWITCH_SPEAKER, 0,
+                WIRED | BT_AVAILABLE | SPEAKER);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        CallAudioRouteTrace readTrace =
+                CallAudioRouteTrace.readFrom(new ByteArrayInputStream(out.toByteArray()));
+
+        // Only the latest entries are kept.
+        List<CallAudioRouteTrace.Entry> entries = readTrace.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals(trace.getEntries(), entries);
+        assertEquals(CallAudioRouteStateMachine.SWITCH_FOCUS, entries.get(0).message);
+        assertTrue(entries.get(1).hasPeripheral(SPEAKER));
+    }
+
+    @MediumTest
+    public void testRecordsMessagesWithPeripheralState() throws Exception {
+        CallAudioRouteStateMachine stateMachine = createStateMachine();
+        CallAudioRouteTrace trace = new CallAudioRouteTrace();
+        stateMachine.setTrace(trace);
+
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.ACTIVE_FOCUS);
+        when(mockBluetoothManager.isBluetoothAvailable()).thenReturn(true);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.CONNECT_BLUETOOTH);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        stateMachine.quitStateMachine();
+
+        List<CallAudioRouteTrace.Entry> entries = trace.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals(CallAudioRouteStateMachine.SWITCH_FOCUS, entries.get(0).message);
+        assertEquals(CallAudioRouteStateMachine.ACTIVE_FOCUS, entries.get(0).arg);
+        assertFalse(entries.get(0).hasPeripheral(BT_AVAILABLE));
+        assertEquals(CallAudioRouteStateMachine.CONNECT_BLUETOOTH, entries.get(1).message);
+        assertTrue(entries.get(1).hasPeripheral(BT_AVAILABLE));
+        assertTrue(entries.get(1).timestampMillis >= entries.get(0).timestampMillis);
+    }
+
+    @MediumTest
+    public void testReplayReportsTimeInRoute() throws Exception {
+        CallAudioRouteTrace trace = new CallAudioRouteTrace();
+        trace.record(1000, CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.ACTIVE_FOCUS, 0);
+        trace.record(2000, CallAudioRouteStateMachine.CONNECT_WIRED_HEADSET, 0, WIRED);
+        trace.record(5000, CallAudioRouteStateMachine.USER_SWITCH_SPEAKER, 0, WIRED);
+        trace.record(5500, CallAudioRouteStateMachine.DISCONNECT_WIRED_HEADSET, 0, SPEAKER);
+        trace.record(6000, CallAudioRouteStateMachine.CONNECT_BLUETOOTH, 0,
+                BT_AVAILABLE | SPEAKER);
+        trace.record(9000, CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.NO_FOCUS, BT_AVAILABLE | BT_AUDIO);
+
+        CallAudioRouteReplayer replayer = new CallAudioRouteReplayer(mContext);
+        CallAudioRouteReplayer.Report report = replayer.replay(trace, true);
+        Log.i(this, "Replay report: %s", report);
+
+        assertEquals(1000, report.getTimeInRouteMillis(CallAudioState.ROUTE_EARPIECE));
+        assertEquals(3000, report.getTimeInRouteMillis(CallAudioState.ROUTE_WIRED_HEADSET));
+        assertEquals(1000, report.getTimeInRouteMillis(CallAudioState.ROUTE_SPEAKER));
+        assertEquals(3000, report.getTimeInRouteMillis(CallAudioState.ROUTE_BLUETOOTH));
+        assertEquals(1, report.getBluetoothConnectCalls());
+        assertEquals(0, report.getRedundantBluetoothConnectCalls());
+        assertEquals(0, report.getRedundantSpeakerphoneCalls());
+        assertEquals(0, report.getRedundantMuteCalls());
+
+        // Replaying the same trace again gives the same result.
+        assertEquals(report, replayer.replay(trace, true));
+    }
+
+    @MediumTest
+    public void testReplayRecordedTrace() throws Exception {
+        CallAudioRouteStateMachine stateMachine = createStateMachine();
+        CallAudioRouteTrace trace = new CallAudioRouteTrace();
+        stateMachine.setTrace(trace);
+
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
+                CallAudioRouteStateMachine.ACTIVE_FOCUS);
+        when(mockWiredHeadsetManager.isPluggedIn()).thenReturn(true);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.CONNECT_WIRED_HEADSET);
+        stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.MUTE_ON);
+        waitForStateMachineActionCompletion(stateMachine, CallAudioRouteStateMachine.RUN_RUNNABLE);
+        CallAudioState expectedState = stateMachine.getCurrentCallAudioState();
+        stateMachine.quitStateMachine();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        CallAudioRouteTrace readTrace =
+                CallAudioRouteTrace.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        // Leave the recorded route so that the headset route is timed as well.
+        readTrace.record(trace.getEntries().get(2).timestampMillis + 100,
+                CallAudioRouteStateMachine.SWITCH_FOCUS, CallAudioRouteStateMachine.NO_FOCUS,
+                WIRED);
+
+        CallAudioRouteReplayer.Report report =
+                new CallAudioRouteReplayer(mContext).replay(readTrace, true);
+        assertEquals(CallAudioState.ROUTE_WIRED_HEADSET, expectedState.getRoute());
+        assertTrue(report.getTimeInRouteMillis(CallAudioState.ROUTE_WIRED_HEADSET) >= 100);
+        assertEquals(1, report.getMuteCalls());
+        assertEquals(0, report.getRedundantMuteCalls());
+    }
+
+    private CallAudioRouteStateMachine createStateMachine() {
+        CallAudioRouteStateMachine stateMachine = new CallAudioRouteStateMachine(
+                mContext,
+                mockCallsManager,
+                mockBluetoothManager,
+                mockWiredHeadsetManager,
+                mockStatusBarNotifier,
+                new CallAudioManager.AudioServiceFactory() {
+                    @Override
+                    public IAudioService getAudioService() {
+                        return mockAudioService;
+                    }
+                },
+                mockInterruptionFilterProxy,
+                true);
+        stateMachine.initialize(new CallAudioState(false, CallAudioState.ROUTE_EARPIECE,
+                CallAudioState.ROUTE_EARPIECE | CallAudioState.ROUTE_SPEAKER));
+        return stateMachine;
+    }
+
+    @Override
+    protected void runParametrizedTestCase(TestParameters params) throws Throwable {
+        // Not used.
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.IAudioService;
+import android.telecom.CallAudioState;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.server.telecom.BluetoothManager;
+import com.android.server.telecom.Call;
+import com.android.server.telecom.CallAudioManager;
+import com.android.server.telecom.CallAudioModeStateMachine;
+import com.android.server.telecom.CallAudioRouteStateMachine;
+import com.android.server.telecom.CallState;
+import com.android.server.telecom.CallsManager;
+import com.android.server.telecom.DtmfLocalTonePlayer;
+import com.android.server.telecom.InCallTonePlayer;
+import com.android.server.telecom.InterruptionFilterProxy;
+import com.android.server.telecom.Log;
+import com.android.server.telecom.RingbackPlayer;
+import com.android.server.telecom.Ringer;
+import com.android.server.telecom.StatusBarNotifier;
+import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.WiredHeadsetManager;
+
+import org.mockito.Mock;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the {@link CallAudioModeStateMachine} and {@link CallAudioRouteStateMachine} running
+ * together, the way {@link CallsManager} sets them up.
+ */
+public class CallAudioSharedLooperTest extends StateMachineTestBase<CallAudioRouteStateMachine> {
+    private static final int TEST_TIMEOUT = 1000;
+    private static final int BENCHMARK_ITERATIONS = 100;
+
+    @Mock CallsManager mockCallsManager;
+    @Mock BluetoothManager mockBluetoothManager;
+    @Mock IAudioService mockAudioService;
+    @Mock WiredHeadsetManager mockWiredHeadsetManager;
+    @Mock StatusBarNotifier mockStatusBarNotifier;
+    @Mock InterruptionFilterProxy mockInterruptionFilterProxy;
+    @Mock AudioManager mockModeAudioManager;
+    @Mock InCallTonePlayer.Factory mockPlayerFactory;
+    @Mock Ringer mockRinger;
+    @Mock RingbackPlayer mockRingbackPlayer;
+    @Mock DtmfLocalTonePlayer mockDtmfLocalTonePlayer;
+
+    private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
+    private CallAudioRouteStateMachine mRouteStateMachine;
+    private CallAudioModeStateMachine mModeStateMachine;
+    private CallAudioManager mCallAudioManager;
+
+    // Counted down when the mode state machine sets the audio mode to mExpectedMode.
+    private volatile int mExpectedMode;
+    private volatile CountDownLatch mModeLatch;
+    private volatile long mModeAppliedNanos;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        when(mockCallsManager.getLock()).thenReturn(mLock);
+        when(mockPlayerFactory.createPlayer(anyInt())).thenReturn(mock(InCallTonePlayer.class));
+        doAnswer(invocation -> {
+            int mode = (Integer) invocation.getArguments()[0];
+            if (mode == mExpectedMode && mModeLatch != null) {
+                mModeAppliedNanos = System.nanoTime();
+                mModeLatch.countDown();
+            }
+            return null;
+        }).when(mockModeAudioManager).setMode(anyInt());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (mRouteStateMachine != null) {
+            mRouteStateMachine.quitStateMachine();
+        }
+        if (mModeStateMachine != null) {
+            mModeStateMachine.quitNow();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Verifies that the route focus change which follows a mode change is queued behind the route
+     * requests made before it, rather than jumping ahead of them.
+     */
+    @MediumTest
+    public void testFocusChangeQueuedInOrder() throws Exception {
+        setUpStateMachines(true);
+        Call call = mock(Call.class);
+        when(call.getState()).thenReturn(CallState.DIALING);
+
+        final CountDownLatch blockLatch = new CountDownLatch(1);
+        mRouteStateMachine.sendMessage(CallAudioRouteStateMachine.RUN_RUNNABLE,
+                (Runnable) () -> {
+                    try {
+                        blockLatch.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // do nothing
+                    }
+                });
+        mCallAudioManager.onCallAdded(call);
+        final boolean[] wasActive = {false};
+        mRouteStateMachine.sendMessage(CallAudioRouteStateMachine.RUN_RUNNABLE,
+                (Runnable) () -> wasActive[0] = mRouteStateMachine.isInActiveState());
+        blockLatch.countDown();
+        // The focus change is sent while the mode change is handled; the second wait makes sure
+        // it has been handled as well.
+        waitForStateMachineActionCompletion(mRouteStateMachine,
+                CallAudioRouteStateMachine.RUN_RUNNABLE);
+        waitForStateMachineActionCompletion(mRouteStateMachine,
+                CallAudioRouteStateMachine.RUN_RUNNABLE);
+
+        assertFalse(wasActive[0]);
+        assertTrue(mRouteStateMachine.isInActiveState());
+        assertEquals(CallAudioModeStateMachine.CALL_STATE_NAME,
+                mModeStateMachine.getCurrentStateName());
+    }
+
+    /**
+     * Verifies that when nothing is queued for the route state machine, the focus change which
+     * follows a mode change is handled in the same message turn as the mode change.
+     */
+    @MediumTest
+    public void testFocusChangeHandledWithModeChange() throws Exception {
+        setUpStateMachines(true);
+        Call call = mock(Call.class);
+        when(call.getState()).thenReturn(CallState.DIALING);
+
+        mCallAudioManager.onCallAdded(call);
+        final boolean[] wasActive = {false};
+        final CountDownLatch checkLatch = new CountDownLatch(1);
+        // Queued right behind the mode change, on the looper both state machines share.
+        mModeStateMachine.getHandler().post(() -> {
+            wasActive[0] = mRouteStateMachine.isInActiveState();
+            checkLatch.countDown();
+        });
+        assertTrue(checkLatch.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        assertTrue(wasActive[0]);
+        assertEquals(CallAudioModeStateMachine.CALL_STATE_NAME,
+                mModeStateMachine.getCurrentStateName());
+    }
+
+    /**
+     * Measures the time from {@link CallAudioManager#onCallStateChanged} answering a call to the
+     * audio mode being set, with the state machines sharing a looper and with each running on its
+     * own thread.
+     */
+    @LargeTest
+    public void testCallStateChangeToAudioModeLatency() throws Exception {
+        long[] separateLatencies = runLatencyBenchmark(false);
+        long[] sharedLatencies = runLatencyBenchmark(true);
+        Log.i(this, "onCallStateChanged to MODE_IN_CALL: separate loopers %s, shared looper %s",
+                formatPercentiles(separateLatencies), formatPercentiles(sharedLatencies));
+        assertEquals(BENCHMARK_ITERATIONS, sharedLatencies.length);
+    }
+
+    private long[] runLatencyBenchmark(boolean isLooperShared) throws Exception {
+        setUpStateMachines(isLooperShared);
+        long[] latencies = new long[BENCHMARK_ITERATIONS];
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            Call call = mock(Call.class);
+            when(call.getState()).thenReturn(CallState.RINGING);
+            mCallAudioManager.onCallAdded(call);
+            waitForHandlerAction(mModeStateMachine.getHandler(), TEST_TIMEOUT);
+
+            when(call.getState()).thenReturn(CallState.ACTIVE);
+            long startNanos = System.nanoTime();
+            awaitMode(AudioManager.MODE_IN_CALL,
+                    () -> mCallAudioManager.onCallStateChanged(call, CallState.RINGING,
+                            CallState.ACTIVE));
+            latencies[i] = mModeAppliedNanos - startNanos;
+
+            awaitMode(AudioManager.MODE_NORMAL, () -> mCallAudioManager.onCallRemoved(call));
+            waitForStateMachineActionCompletion(mRouteStateMachine,
+                    CallAudioRouteStateMachine.RUN_RUNNABLE);
+        }
+        mRouteStateMachine.quitStateMachine();
+        mModeStateMachine.quitNow();
+        mRouteStateMachine = null;
+        mModeStateMachine = null;
+        return latencies;
+    }
+
+    private void awaitMode(int mode, Runnable action) throws Exception {
+        mExpectedMode = mode;
+        mModeLatch = new CountDownLatch(1);
+        action.run();
+        assertTrue(mModeLatch.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+        mModeLatch = null;
+    }
+
+    private void setUpStateMachines(boolean isLooperShared) {
+        Context context = mComponentContextFixture.getTestDouble().getApplicationContext();
+        mRouteStateMachine = new CallAudioRouteStateMachine(
+                context,
+                mockCallsManager,
+                mockBluetoothManager,
+                mockWiredHeadsetManager,
+                mockStatusBarNotifier,
+                new CallAudioManager.AudioServiceFactory() {
+                    @Override
+                    public IAudioService getAudioService() {
+                        return mockAudioService;
+                    }
+                },
+                mockInterruptionFilterProxy,
+                true);
+        mRouteStateMachine.initialize(new CallAudioState(false, CallAudioState.ROUTE_EARPIECE,
+                CallAudioState.ROUTE_EARPIECE | CallAudioState.ROUTE_SPEAKER));
+        mModeStateMachine = isLooperShared
+                ? new CallAudioModeStateMachine(mockModeAudioManager,
+                        mRouteStateMachine.getHandler().getLooper())
+                : new CallAudioModeStateMachine(mockModeAudioManager);
+        mCallAudioManager = new CallAudioManager(
+                mRouteStateMachine,
+                mockCallsManager,
+                mModeStateMachine,
+                mockPlayerFactory,
+                mockRinger,
+                mockRingbackPlayer,
+                mockDtmfLocalTonePlayer);
+        waitForHandlerAction(mModeStateMachine.getHandler(), TEST_TIMEOUT);
+    }
+
+    private static String formatPercentiles(long[] latencies) {
+        long[] sorted = Arrays.copyOf(latencies, latencies.length);
+        Arrays.sort(sorted);
+        return String.format("p50=%dus p95=%dus max=%dus",
+                TimeUnit.NANOSECONDS.toMicros(sorted[sorted.length / 2]),
+                TimeUnit.NANOSECONDS.toMicros(sorted[sorted.length * 95 / 100]),
+                TimeUnit.NANOSECONDS.toMicros(sorted[sorted.length - 1]));
+    }
+
+    @Override
+    protected void runParametrizedTestCase(TestParameters params) throws Throwable {
+        // Not used.
+    }
+}
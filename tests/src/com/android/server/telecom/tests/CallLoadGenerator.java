@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+
+import com.android.server.telecom.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Paces and measures the operations of a scripted call-load scenario run against the
+ * {@link TelecomSystemTest} fixtures.
+ * <p>
+ * The load is open-loop: operations are given start times at a fixed rate up front, and the
+ * latency of an operation runs from its scheduled start, not from when it actually got to call
+ * into Telecom, until a condition on the fixtures holds, typically that the
+ * {@link InCallServiceFixture} has been updated. An operation held up behind a slow one is
+ * therefore charged for the wait, rather than the slow one quietly lowering the rate. Operations
+ * which should overlap, such as the calls of a burst, are run with {@link #schedule} on threads
+ * of their own. While the scenario runs, the bytes the process allocates are counted, and a probe
+ * thread takes the Telecom lock every few milliseconds and adds up how long it waited for it, as
+ * a measure of lock contention.
+ * <p>
+ * The rate of every scenario can be overridden with the {@link #RATE_PROPERTY} system property.
+ * Reports are written as JSON next to the {@link TelecomBenchmark} results, so that they can be
+ * compared between builds.
+ */
+public class CallLoadGenerator {
+    /** Overrides the number of operations started per second by each scenario. */
+    public static final String RATE_PROPERTY = "debug.telecom.load_rate";
+
+    private static final long CONDITION_TIMEOUT_MILLIS = 5000;
+    private static final long LOCK_PROBE_INTERVAL_MILLIS = 5;
+
+    /**
+     * A condition which ends an operation.
+     */
+    public interface Condition {
+        boolean isMet() throws Exception;
+    }
+
+    /**
+     * A scheduled piece of a scenario, such as the lifetime of one call.
+     */
+    public interface Task {
+        /**
+         * @param scheduledStartNanos When the task was scheduled to start, on the
+         *         {@link SystemClock#elapsedRealtimeNanos()} clock.
+         */
+        void run(long scheduledStartNanos) throws Exception;
+    }
+
+    /**
+     * The outcome of a scenario.
+     */
+    public static class Report {
+        public final String scenario;
+        public final int operationsPerSecond;
+        private final Map<String, List<Long>> mLatencyNanos = new LinkedHashMap<>();
+        private long mDurationMillis;
+        private long mAllocatedBytes;
+        private long mLockWaitNanos;
+        private long mMaxLockWaitNanos;
+        private int mLockProbes;
+
+        Report(String scenario, int operationsPerSecond) {
+            this.scenario = scenario;
+            this.operationsPerSecond = operationsPerSecond;
+        }
+
+        public int getOperationCount(String operation) {
+            List<Long> latencies = mLatencyNanos.get(operation);
+            return latencies == null ? 0 : latencies.size();
+        }
+
+        public long getPercentileNanos(String operation, int percentile) {
+            long[] sorted = getSortedLatencies(operation);
+            return sorted[Math.min(sorted.length * percentile / 100, sorted.length - 1)];
+        }
+
+        public long getLockWaitNanos() {
+            return mLockWaitNanos;
+        }
+
+        public long getAllocatedBytes() {
+            return mAllocatedBytes;
+        }
+
+        private long[] getSortedLatencies(String operation) {
+            List<Long> latencies = mLatencyNanos.get(operation);
+            long[] sorted = new long[latencies.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject operations = new JSONObject();
+            for (String operation : mLatencyNanos.keySet()) {
+                long[] sorted = getSortedLatencies(operation);
+                operations.put(operation, new JSONObject()
+                        .put("count", sorted.length)
+                        .put("p50Micros", toMicros(getPercentileNanos(operation, 50)))
+                        .put("p90Micros", toMicros(getPercentileNanos(operation, 90)))
+                        .put("p99Micros", toMicros(getPercentileNanos(operation, 99)))
+                        .put("maxMicros", toMicros(sorted[sorted.length - 1])));
+            }
+            return new JSONObject()
+                    .put("scenario", scenario)
+                    .put("build", Build.FINGERPRINT)
+                    .put("timestamp", System.currentTimeMillis())
+                    .put("operationsPerSecond", operationsPerSecond)
+                    .put("durationMillis", mDurationMillis)
+                    .put("allocatedBytes", mAllocatedBytes)
+                    .put("lockProbes", mLockProbes)
+                    .put("lockWaitMicros", toMicros(mLockWaitNanos))
+                    .put("maxLockWaitMicros", toMicros(mMaxLockWaitNanos))
+                    .put("operations", operations);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(scenario).append(" @")
+                    .append(operationsPerSecond).append("/s in ").append(mDurationMillis)
+                    .append("ms:");
+            for (String operation : mLatencyNanos.keySet()) {
+                sb.append(String.format(" %s(n=%d p50=%dus p99=%dus)", operation,
+                        getOperationCount(operation),
+                        toMicros(getPercentileNanos(operation, 50)),
+                        toMicros(getPercentileNanos(operation, 99))));
+            }
+            return sb.append(" allocated=").append(mAllocatedBytes).append(" bytes")
+                    .append(" lockWait=").append(toMicros(mLockWaitNanos)).append("us")
+                    .append(" (max ").append(toMicros(mMaxLockWaitNanos)).append("us over ")
+                    .append(mLockProbes).append(" probes)")
+                    .toString();
+        }
+
+        private static long toMicros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+
+    private final Object mLock;
+    private final Report mReport;
+    private final long mIntervalNanos;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private Thread mLockProbeThread;
+    private volatile boolean mIsRunning;
+    private long mStartNanos;
+    private long mStartBytes;
+    private int mOperationsScheduled;
+
+    /**
+     * @param scenario The name of the scenario, used for its report.
+     * @param lock The Telecom lock.
+     * @param operationsPerSecond How many operations to start each second, unless overridden by
+     *         {@link #RATE_PROPERTY}.
+     */
+    public CallLoadGenerator(String scenario, Object lock, int operationsPerSecond) {
+        mLock = lock;
+        int rate = SystemProperties.getInt(RATE_PROPERTY, operationsPerSecond);
+        mReport = new Report(scenario, rate);
+        mIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(rate, 1);
+    }
+
+    /**
+     * Starts counting allocations and probing the Telecom lock.
+     */
+    public void start() {
+        mIsRunning = true;
+        mLockProbeThread = new Thread(this::probeLock, "CallLoadGenerator lock probe");
+        mLockProbeThread.start();
+        mStartBytes = TelecomBenchmark.getBytesAllocated();
+        mStartNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Runs an operation at the next start time of the schedule and records its latency from that
+     * time. Returns straight away if the start time has already passed.
+     *
+     * @param operation The name the latency is recorded under.
+     * @param action Calls into Telecom.
+     * @param condition Holds once Telecom has finished the operation; {@code null} if it is done
+     *         when {@code action} returns.
+     * @return The result of {@code action}.
+     */
+    public <T> T measure(String operation, Callable<T> action, Condition condition)
+            throws Exception {
+        long startNanos = nextStartNanos();
+        waitUntil(startNanos);
+        return measure(operation, startNanos, action, condition);
+    }
+
+    /**
+     * Runs an operation now and records its latency from {@code startNanos}, without taking a
+     * start time from the schedule. Used for the steps of a {@link Task} after its first.
+     *
+     * @param startNanos When the operation is considered to have started, on the
+     *         {@link SystemClock#elapsedRealtimeNanos()} clock.
+     */
+    public <T> T measure(String operation, long startNanos, Callable<T> action,
+            Condition condition) throws Exception {
+        T result = action.call();
+        if (condition != null) {
+            long deadline = SystemClock.elapsedRealtimeNanos()
+                    + TimeUnit.MILLISECONDS.toNanos(CONDITION_TIMEOUT_MILLIS);
+            while (!condition.isMet()) {
+                if (SystemClock.elapsedRealtimeNanos() > deadline) {
+                    throw new TimeoutException(operation + " did not complete");
+                }
+                Thread.yield();
+            }
+        }
+        record(operation, SystemClock.elapsedRealtimeNanos() - startNanos);
+        return result;
+    }
+
+    /**
+     * Takes the next start time of the schedule and runs a task on a thread of its own once it is
+     * reached, without waiting for earlier tasks to finish.
+     *
+     * @return The task's future, which rethrows anything the task threw.
+     */
+    public Future<?> schedule(Task task) {
+        final long startNanos = nextStartNanos();
+        return mExecutor.submit(() -> {
+            waitUntil(startNanos);
+            task.run(startNanos);
+            return null;
+        });
+    }
+
+    /**
+     * Stops measuring and returns the report. Scheduled tasks should be waited for first.
+     */
+    public Report finish() throws InterruptedException {
+        mReport.mDurationMillis = TimeUnit.NANOSECONDS.toMillis(
+                SystemClock.elapsedRealtimeNanos() - mStartNanos);
+        mReport.mAllocatedBytes = TelecomBenchmark.getBytesAllocated() - mStartBytes;
+        mExecutor.shutdown();
+        mIsRunning = false;
+        mLockProbeThread.join();
+        Log.i(this, "%s", mReport);
+        return mReport;
+    }
+
+    /**
+     * Writes the report to {@code <dir>/benchmarks/load-<scenario>.json}.
+     */
+    public File writeReport(File dir) throws IOException, JSONException {
+        File benchmarkDir = new File(dir, "benchmarks");
+        if (!benchmarkDir.isDirectory() && !benchmarkDir.mkdirs()) {
+            throw new IOException("Unable to create " + benchmarkDir);
+        }
+        File file = new File(benchmarkDir, "load-" + mReport.scenario + ".json");
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(mReport.toJson().toString(2));
+        }
+        return file;
+    }
+
+    private synchronized long nextStartNanos() {
+        return mStartNanos + mOperationsScheduled++ * mIntervalNanos;
+    }
+
+    private void record(String operation, long latencyNanos) {
+        synchronized (mReport) {
+            List<Long> latencies = mReport.mLatencyNanos.get(operation);
+            if (latencies == null) {
+                latencies = new ArrayList<>();
+                mReport.mLatencyNanos.put(operation, latencies);
+            }
+            latencies.add(latencyNanos);
+        }
+    }
+
+    private static void waitUntil(long startNanos) throws InterruptedException {
+        long delayNanos = startNanos - SystemClock.elapsedRealtimeNanos();
+        if (delayNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(delayNanos);
+        }
+    }
+
+    private void probeLock() {
+        while (mIsRunning) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            synchronized (mLock) {
+                long wait = SystemClock.elapsedRealtimeNanos() - start;
+                mReport.mLockWaitNanos += wait;
+                mReport.mMaxLockWaitNanos = Math.max(mReport.mMaxLockWaitNanos, wait);
+                mReport.mLockProbes++;
+            }
+            SystemClock.sleep(LOCK_PROBE_INTERVAL_MILLIS);
+        }
+    }
+}
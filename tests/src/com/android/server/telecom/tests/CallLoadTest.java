@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.telecom.Call;
+import android.telecom.CallAudioState;
+import android.telecom.DisconnectCause;
+import android.telecom.ParcelableCall;
+import android.telecom.PhoneAccountHandle;
+import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.internal.telecom.IInCallAdapter;
+import com.android.server.telecom.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Runs scripted call-load scenarios through {@link CallLoadGenerator} against the
+ * {@link TelecomSystemTest} fixtures, and writes a report of each.
+ */
+public class CallLoadTest extends TelecomSystemTest {
+    private static final int INCOMING_CALLS = 20;
+    private static final int INCOMING_CALLS_PER_SECOND = 10;
+    /** Longer than the gap between calls, so that several calls of a burst are up at once. */
+    private static final long INCOMING_CALL_DURATION_MILLIS = 350;
+    private static final int SWAPS = 100;
+    private static final int SWAP_OPERATIONS_PER_SECOND = 50;
+    private static final int CONFERENCE_MERGES = 10;
+    private static final int CONFERENCE_OPERATIONS_PER_SECOND = 4;
+    private static final int SUB_SWITCHES = 50;
+    private static final int SUB_SWITCHES_PER_SECOND = 20;
+    private static final int ROUTE_CHANGES = 50;
+    private static final int ROUTE_CHANGES_PER_SECOND = 20;
+    /** The extra in which CallsManager marks the calls of the active subscription. */
+    private static final String EXTRA_ACTIVE_SUBSCRIPTION = "active_sub";
+
+    private CallLoadGenerator mLoad;
+
+    @Override
+    public void tearDown() throws Exception {
+        if (mLoad != null) {
+            Log.i(this, "Wrote %s", mLoad.writeReport(getContext().getFilesDir()));
+            mLoad = null;
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Incoming calls arriving at a fixed rate whether or not earlier calls have ended, each
+     * answered and then disconnected after a while, so that several calls are up at once.
+     */
+    @LargeTest
+    public void testIncomingCallBurst() throws Exception {
+        // The fixtures are not thread-safe, and Telecom rejects a call which arrives while another
+        // is ringing, so a call is brought in and answered before the next one can arrive. Time
+        // spent waiting for that counts towards the latency of the waiting call.
+        final Object fixtureLock = new Object();
+        List<Future<?>> calls = new ArrayList<>();
+        startLoad("incomingBurst", INCOMING_CALLS_PER_SECOND);
+        for (int i = 0; i < INCOMING_CALLS; i++) {
+            final String number = "650-555-" + (1000 + i);
+            calls.add(mLoad.schedule(arrivalNanos -> {
+                final IdPair ids;
+                synchronized (fixtureLock) {
+                    // Includes the fixture's own checks that the call reached both in-call
+                    // services.
+                    ids = mLoad.measure("incoming", arrivalNanos,
+                            () -> startIncomingPhoneCall(number,
+                                    mPhoneAccountA0.getAccountHandle(),
+                                    mConnectionServiceFixtureA),
+                            null);
+                    mLoad.measure("answer", SystemClock.elapsedRealtimeNanos(),
+                            () -> {
+                                mConnectionServiceFixtureA.sendSetActive(ids.mConnectionId);
+                                return null;
+                            },
+                            () -> hasState(ids.mCallId, Call.STATE_ACTIVE));
+                }
+                SystemClock.sleep(INCOMING_CALL_DURATION_MILLIS);
+                synchronized (fixtureLock) {
+                    mLoad.measure("disconnect", SystemClock.elapsedRealtimeNanos(),
+                            () -> {
+                                mConnectionServiceFixtureA.sendSetDisconnected(
+                                        ids.mConnectionId, DisconnectCause.REMOTE);
+                                return null;
+                            },
+                            () -> hasState(ids.mCallId, Call.STATE_DISCONNECTED));
+                }
+            }));
+        }
+        for (Future<?> call : calls) {
+            call.get();
+        }
+        assertEquals(INCOMING_CALLS, mLoad.finish().getOperationCount("incoming"));
+    }
+
+    /**
+     * Repeatedly swaps an active and a held call, as a user toggling between two calls would.
+     */
+    @LargeTest
+    public void testHoldSwapStorm() throws Exception {
+        IdPair first = startAndMakeActiveOutgoingCall("650-555-1212",
+                mPhoneAccountA0.getAccountHandle(), mConnectionServiceFixtureA);
+        mConnectionServiceFixtureA.sendSetOnHold(first.mConnectionId);
+        IdPair second = startAndMakeActiveOutgoingCall("650-555-1213",
+                mPhoneAccountA0.getAccountHandle(), mConnectionServiceFixtureA);
+        final IInCallAdapter inCallAdapter = mInCallServiceFixtureX.getInCallAdapter();
+
+        startLoad("holdSwapStorm", SWAP_OPERATIONS_PER_SECOND);
+        IdPair active = second;
+        IdPair held = first;
+        for (int i = 0; i < SWAPS; i++) {
+            final IdPair toHold = active;
+            final IdPair toUnhold = held;
+            mLoad.measure("holdRequest", () -> {
+                inCallAdapter.holdCall(toHold.mCallId);
+                return null;
+            }, null);
+            mLoad.measure("setOnHold",
+                    () -> {
+                        mConnectionServiceFixtureA.sendSetOnHold(toHold.mConnectionId);
+                        return null;
+                    },
+                    () -> hasState(toHold.mCallId, Call.STATE_HOLDING));
+            mLoad.measure("unholdRequest", () -> {
+                inCallAdapter.unholdCall(toUnhold.mCallId);
+                return null;
+            }, null);
+            mLoad.measure("setActive",
+                    () -> {
+                        mConnectionServiceFixtureA.sendSetActive(toUnhold.mConnectionId);
+                        return null;
+                    },
+                    () -> hasState(toUnhold.mCallId, Call.STATE_ACTIVE));
+            active = toUnhold;
+            held = toHold;
+        }
+        assertEquals(SWAPS, mLoad.finish().getOperationCount("setActive"));
+
+        mConnectionServiceFixtureA.sendSetDisconnected(first.mConnectionId, DisconnectCause.LOCAL);
+        mConnectionServiceFixtureA.sendSetDisconnected(second.mConnectionId,
+                DisconnectCause.LOCAL);
+    }
+
+    /**
+     * Merges two calls into a conference, then ends the conference, repeatedly.
+     */
+    @LargeTest
+    public void testConferenceMerges() throws Exception {
+        startLoad("conferenceMerges", CONFERENCE_OPERATIONS_PER_SECOND);
+        final IInCallAdapter inCallAdapter = mInCallServiceFixtureX.getInCallAdapter();
+        for (int i = 0; i < CONFERENCE_MERGES; i++) {
+            final IdPair first = startAndMakeActiveOutgoingCall("650-555-1212",
+                    mPhoneAccountA0.getAccountHandle(), mConnectionServiceFixtureA);
+            final IdPair second = startAndMakeActiveOutgoingCall("650-555-1213",
+                    mPhoneAccountA0.getAccountHandle(), mConnectionServiceFixtureA);
+
+            mLoad.measure("conference",
+                    () -> {
+                        inCallAdapter.conference(first.mCallId, second.mCallId);
+                        return null;
+                    },
+                    () -> {
+                        String parentCallId =
+                                mInCallServiceFixtureX.getCall(first.mCallId).getParentCallId();
+                        return parentCallId != null && parentCallId.equals(
+                                mInCallServiceFixtureX.getCall(second.mCallId).getParentCallId());
+                    });
+            final String conferenceCallId =
+                    mInCallServiceFixtureX.getCall(first.mCallId).getParentCallId();
+
+            mLoad.measure("disconnectConference",
+                    () -> {
+                        mConnectionServiceFixtureA.sendSetDisconnected(first.mConnectionId,
+                                DisconnectCause.LOCAL);
+                        mConnectionServiceFixtureA.sendSetDisconnected(second.mConnectionId,
+                                DisconnectCause.LOCAL);
+                        mConnectionServiceFixtureA.mLatestConference.setDisconnected(
+                                new DisconnectCause(DisconnectCause.LOCAL));
+                        mConnectionServiceFixtureA.mLatestConference.destroy();
+                        return null;
+                    },
+                    () -> hasState(conferenceCallId, Call.STATE_DISCONNECTED));
+        }
+        assertEquals(CONFERENCE_MERGES, mLoad.finish().getOperationCount("conference"));
+    }
+
+    /**
+     * Switches the active subscription between calls on two SIMs, until the in-call service sees
+     * the call on the chosen SIM marked as the active subscription. The switch is only acted on
+     * by devices configured for DSDA, so the scenario is skipped elsewhere.
+     */
+    @LargeTest
+    public void testDsdaSwitching() throws Exception {
+        if (TelephonyManager.getDefault().getMultiSimConfiguration()
+                != TelephonyManager.MultiSimVariants.DSDA) {
+            Log.i(this, "testDsdaSwitching: skipped, the device is not configured for DSDA");
+            return;
+        }
+        IdPair first = startAndMakeActiveOutgoingCall("650-555-1212",
+                mPhoneAccountA0.getAccountHandle(), mConnectionServiceFixtureA);
+        mConnectionServiceFixtureA.sendSetOnHold(first.mConnectionId);
+        IdPair second = startAndMakeActiveOutgoingCall("650-555-1213",
+                mPhoneAccountA1.getAccountHandle(), mConnectionServiceFixtureA);
+        final IInCallAdapter inCallAdapter = mInCallServiceFixtureX.getInCallAdapter();
+        final PhoneAccountHandle[] subs = {
+                mPhoneAccountA0.getAccountHandle(), mPhoneAccountA1.getAccountHandle() };
+        final String[] callIds = { first.mCallId, second.mCallId };
+
+        startLoad("dsdaSwitching", SUB_SWITCHES_PER_SECOND);
+        for (int i = 0; i < SUB_SWITCHES; i++) {
+            final String subId = subs[i % 2].getId();
+            final String callId = callIds[i % 2];
+            final String otherCallId = callIds[(i + 1) % 2];
+            mLoad.measure("switchToOtherActiveSub",
+                    () -> {
+                        inCallAdapter.switchToOtherActiveSub(subId);
+                        return null;
+                    },
+                    () -> isActiveSubscription(callId) && !isActiveSubscription(otherCallId));
+        }
+        assertEquals(SUB_SWITCHES, mLoad.finish().getOperationCount("switchToOtherActiveSub"));
+
+        mConnectionServiceFixtureA.sendSetDisconnected(first.mConnectionId, DisconnectCause.LOCAL);
+        mConnectionServiceFixtureA.sendSetDisconnected(second.mConnectionId,
+                DisconnectCause.LOCAL);
+    }
+
+    /**
+     * Toggles the audio route of an active call. No bluetooth headset is connected in the test
+     * fixtures, so the route is toggled between the speaker and the call's initial route.
+     */
+    @LargeTest
+    public void testAudioRouteToggling() throws Exception {
+        IdPair ids = startAndMakeActiveOutgoingCall("650-555-1212",
+                mPhoneAccountA0.getAccountHandle(), mConnectionServiceFixtureA);
+        final IInCallAdapter inCallAdapter = mInCallServiceFixtureX.getInCallAdapter();
+        assertTrueWithTimeout(v -> mInCallServiceFixtureX.mCallAudioState != null);
+        final int initialRoute = mInCallServiceFixtureX.mCallAudioState.getRoute();
+        final int otherRoute = initialRoute == CallAudioState.ROUTE_SPEAKER
+                ? CallAudioState.ROUTE_EARPIECE : CallAudioState.ROUTE_SPEAKER;
+
+        startLoad("audioRouteToggling", ROUTE_CHANGES_PER_SECOND);
+        for (int i = 0; i < ROUTE_CHANGES; i++) {
+            final int route = i % 2 == 0 ? otherRoute : initialRoute;
+            mLoad.measure("setAudioRoute",
+                    () -> {
+                        inCallAdapter.setAudioRoute(route);
+                        return null;
+                    },
+                    () -> mInCallServiceFixtureX.mCallAudioState.getRoute() == route);
+        }
+        assertEquals(ROUTE_CHANGES, mLoad.finish().getOperationCount("setAudioRoute"));
+
+        mConnectionServiceFixtureA.sendSetDisconnected(ids.mConnectionId, DisconnectCause.LOCAL);
+    }
+
+    private void startLoad(String scenario, int operationsPerSecond) {
+        mLoad = new CallLoadGenerator(scenario, mTelecomSystem.getLock(), operationsPerSecond);
+        mLoad.start();
+    }
+
+    private boolean hasState(String callId, int state) {
+        ParcelableCall call = mInCallServiceFixtureX.getCall(callId);
+        return call != null && call.getState() == state;
+    }
+
+    private boolean isActiveSubscription(String callId) {
+        ParcelableCall call = mInCallServiceFixtureX.getCall(callId);
+        Bundle extras = call == null ? null : call.getExtras();
+        return extras != null && extras.getBoolean(EXTRA_ACTIVE_SUBSCRIPTION);
+    }
+}
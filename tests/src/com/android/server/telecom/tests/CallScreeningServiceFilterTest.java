@@ -16,13 +16,16 @@
 
 package com.android.server.telecom.tests;
 import android.Manifest;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
+import android.net.Uri;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.UserHandle;
@@ -37,12 +40,15 @@ import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.ParcelableCallUtils;
 import com.android.server.telecom.PhoneAccountRegistrar;
 import com.android.server.telecom.TelecomServiceImpl;
+import com.android.server.telecom.Timeouts;
 import com.android.server.telecom.callfiltering.CallFilterResultCallback;
 import com.android.server.telecom.callfiltering.CallFilteringResult;
+import com.android.server.telecom.callfiltering.CallScreeningServiceBinder;
 import com.android.server.telecom.callfiltering.CallScreeningServiceFilter;
 import com.android.server.telecom.TelecomSystem;
 
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 
 import java.util.Collections;
@@ -54,7 +60,10 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -67,7 +76,10 @@ public class CallScreeningServiceFilterTest extends TelecomTestCase {
     ParcelableCallUtils.Converter mParcelableCallUtilsConverter;
     private TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
 
+    @Mock Timeouts.Adapter mTimeoutsAdapter;
+
     @Mock Call mCall;
+    @Mock Call mCall2;
     @Mock CallFilterResultCallback mCallback;
 
     @Mock PackageManager mPackageManager;
@@ -78,6 +90,8 @@ public class CallScreeningServiceFilterTest extends TelecomTestCase {
     private static final String CLS_NAME = "CallScreeningService";
     private static final ComponentName COMPONENT_NAME = new ComponentName(PKG_NAME, CLS_NAME);
     private static final String CALL_ID = "u89prgt9ps78y5";
+    private static final String CALL_ID_2 = "7fpa0m3jt4kq1x";
+    private static final long KEEP_ALIVE_MILLIS = 10000L;
 
     private ResolveInfo mResolveInfo;
 
@@ -88,6 +102,7 @@ public class CallScreeningServiceFilterTest extends TelecomTestCase {
             true // shouldShowNotification
     );
 
+    private CallScreeningServiceBinder mCallScreeningServiceBinder;
     private CallScreeningServiceFilter mFilter;
     @Override
     public void setUp() throws Exception {
@@ -95,6 +110,8 @@ public class CallScreeningServiceFilterTest extends TelecomTestCase {
         when(mCallsManager.getCurrentUserHandle()).thenReturn(UserHandle.CURRENT);
         when(mContext.getPackageManager()).thenReturn(mPackageManager);
         when(mCall.getId()).thenReturn(CALL_ID);
+        when(mCall2.getId()).thenReturn(CALL_ID_2);
+        when(mTimeoutsAdapter.getCallScreeningServiceKeepAliveMillis(any())).thenReturn(0L);
 //        when(mBinder.queryLocalInterface(anyString())).thenReturn(mCallScreeningService);
         doReturn(mCallScreeningService).when(mBinder).queryLocalInterface(anyString());
 
@@ -105,8 +122,9 @@ public class CallScreeningServiceFilterTest extends TelecomTestCase {
             serviceInfo.permission = Manifest.permission.BIND_SCREENING_SERVICE;
         }};
 
-        mFilter = new CallScreeningServiceFilter(mContext, mCallsManager, mPhoneAccountRegistrar,
-                mDefaultDialerManagerAdapter, mParcelableCallUtilsConverter, mLock);
+        mCallScreeningServiceBinder = new CallScreeningServiceBinder(mContext, mCallsManager,
+                mDefaultDialerManagerAdapter, mLock, mTimeoutsAdapter);
+        mFilter = createFilter();
 
         when(mDefaultDialerManagerAdapter.getDefaultDialerApplication(
                 eq(mContext), eq(UserHandle.USER_CURRENT))).thenReturn(PKG_NAME);
@@ -195,6 +213,111 @@ public class CallScreeningServiceFilterTest extends TelecomTestCase {
         )));
     }
 
+    @SmallTest
+    public void testUnbindWithoutKeepAlive() throws Exception {
+        mFilter.startFilterLookup(mCall, mCallback);
+        ServiceConnection serviceConnection = verifyBindingIntent();
+        serviceConnection.onServiceConnected(COMPONENT_NAME, mBinder);
+        getCallScreeningAdapter().allowCall(CALL_ID);
+        verify(mContext).unbindService(eq(serviceConnection));
+        assertFalse(mCallScreeningServiceBinder.isBound());
+    }
+
+    @SmallTest
+    public void testKeepAliveReusesBinding() throws Exception {
+        when(mTimeoutsAdapter.getCallScreeningServiceKeepAliveMillis(any()))
+                .thenReturn(KEEP_ALIVE_MILLIS);
+        mFilter.startFilterLookup(mCall, mCallback);
+        ServiceConnection serviceConnection = verifyBindingIntent();
+        serviceConnection.onServiceConnected(COMPONENT_NAME, mBinder);
+        getCallScreeningAdapter().allowCall(CALL_ID);
+        verify(mCallback).onCallFilteringComplete(eq(mCall), eq(PASS_RESULT));
+        verify(mContext, never()).unbindService(any(ServiceConnection.class));
+        assertTrue(mCallScreeningServiceBinder.isBound());
+
+        // The second call is screened on the existing binding without resolving or binding again.
+        createFilter().startFilterLookup(mCall2, mCallback);
+        verify(mContext, times(1)).bindServiceAsUser(any(Intent.class),
+                any(ServiceConnection.class), anyInt(), any(UserHandle.class));
+        verify(mPackageManager, times(1)).queryIntentServicesAsUser(any(Intent.class), anyInt(),
+                anyInt());
+        ArgumentCaptor<ICallScreeningAdapter> captor =
+                ArgumentCaptor.forClass(ICallScreeningAdapter.class);
+        verify(mCallScreeningService, times(2)).screenCall(captor.capture(),
+                any(ParcelableCall.class));
+        captor.getValue().allowCall(CALL_ID_2);
+        verify(mCallback).onCallFilteringComplete(eq(mCall2), eq(PASS_RESULT));
+    }
+
+    @SmallTest
+    public void testScreeningServiceDeathFinishesScreening() throws Exception {
+        when(mTimeoutsAdapter.getCallScreeningServiceKeepAliveMillis(any()))
+                .thenReturn(KEEP_ALIVE_MILLIS);
+        mFilter.startFilterLookup(mCall, mCallback);
+        ServiceConnection serviceConnection = verifyBindingIntent();
+        serviceConnection.onServiceConnected(COMPONENT_NAME, mBinder);
+        serviceConnection.onServiceDisconnected(COMPONENT_NAME);
+        verify(mCallback).onCallFilteringComplete(eq(mCall), eq(PASS_RESULT));
+
+        // The connection is kept so that the system can rebind once the service restarts.
+        assertTrue(mCallScreeningServiceBinder.isBound());
+        createFilter().startFilterLookup(mCall2, mCallback);
+        serviceConnection.onServiceConnected(COMPONENT_NAME, mBinder);
+        verify(mCallScreeningService, times(2)).screenCall(any(ICallScreeningAdapter.class),
+                any(ParcelableCall.class));
+    }
+
+    @SmallTest
+    public void testPackageChangeInvalidatesResolution() throws Exception {
+        when(mTimeoutsAdapter.getCallScreeningServiceKeepAliveMillis(any()))
+                .thenReturn(KEEP_ALIVE_MILLIS);
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext, times(2)).registerReceiverAsUser(receiverCaptor.capture(),
+                eq(UserHandle.ALL), any(IntentFilter.class), any(), any());
+
+        mFilter.startFilterLookup(mCall, mCallback);
+        ServiceConnection serviceConnection = verifyBindingIntent();
+        serviceConnection.onServiceConnected(COMPONENT_NAME, mBinder);
+        getCallScreeningAdapter().allowCall(CALL_ID);
+
+        receiverCaptor.getValue().onReceive(mContext, new Intent(Intent.ACTION_PACKAGE_REPLACED,
+                Uri.fromParts("package", PKG_NAME, null)));
+        verify(mContext).unbindService(eq(serviceConnection));
+
+        createFilter().startFilterLookup(mCall2, mCallback);
+        verify(mPackageManager, times(2)).queryIntentServicesAsUser(any(Intent.class), anyInt(),
+                anyInt());
+    }
+
+    @SmallTest
+    public void testDialerChangeFinishesPendingScreening() throws Exception {
+        mFilter.startFilterLookup(mCall, mCallback);
+        ServiceConnection serviceConnection = verifyBindingIntent();
+        serviceConnection.onServiceConnected(COMPONENT_NAME, mBinder);
+        verify(mCallback, never()).onCallFilteringComplete(eq(mCall),
+                any(CallFilteringResult.class));
+
+        // The default dialer changes while the first call is still being screened.
+        when(mDefaultDialerManagerAdapter.getDefaultDialerApplication(
+                eq(mContext), eq(UserHandle.USER_CURRENT))).thenReturn(PKG_NAME + ".new");
+        createFilter().startFilterLookup(mCall2, mCallback);
+
+        InOrder inOrder = inOrder(mCallback, mContext);
+        inOrder.verify(mCallback).onCallFilteringComplete(eq(mCall), eq(PASS_RESULT));
+        inOrder.verify(mContext).unbindService(eq(serviceConnection));
+        // A late answer from the old service is ignored.
+        getCallScreeningAdapter().allowCall(CALL_ID);
+        verify(mCallback, times(1)).onCallFilteringComplete(eq(mCall),
+                any(CallFilteringResult.class));
+    }
+
+    private CallScreeningServiceFilter createFilter() {
+        return new CallScreeningServiceFilter(mContext, mCallsManager, mPhoneAccountRegistrar,
+                mDefaultDialerManagerAdapter, mParcelableCallUtilsConverter, mLock,
+                mCallScreeningServiceBinder);
+    }
+
     private ServiceConnection verifyBindingIntent() {
         ArgumentCaptor<Intent> intentCaptor = ArgumentCaptor.forClass(Intent.class);
         ArgumentCaptor<ServiceConnection> serviceCaptor =
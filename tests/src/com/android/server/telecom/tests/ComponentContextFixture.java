@@ -31,6 +31,7 @@ import android.app.AppOpsManager;
 import android.app.NotificationManager;
 import android.app.StatusBarManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -258,6 +259,21 @@ public class ComponentContextFixture implements TestFixture<Context> {
             return null;
         }
 
+        @Override
+        public Intent registerReceiverAsUser(BroadcastReceiver receiver, UserHandle handle,
+                IntentFilter filter, String broadcastPermission, Handler scheduler) {
+            return null;
+        }
+
+        @Override
+        public void registerComponentCallbacks(ComponentCallbacks callback) {
+            // Captured through the spy; the default implementation would call back into it.
+        }
+
+        @Override
+        public void unregisterComponentCallbacks(ComponentCallbacks callback) {
+        }
+
         @Override
         public void sendBroadcast(Intent intent) {
             // TODO -- need to ensure this is captured
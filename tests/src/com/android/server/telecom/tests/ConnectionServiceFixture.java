@@ -473,6 +473,7 @@ public class ConnectionServiceFixture implements TestFixture<IConnectionService>
     }
 
     public void sendQueryRemoteConnectionServices() throws Exception {
+        mRemoteConnectionServiceNames.clear();
         mRemoteConnectionServices.clear();
         for (IConnectionServiceAdapter a : mConnectionServiceAdapters) {
             a.queryRemoteConnectionServices(new RemoteServiceCallback.Stub() {
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.UserHandle;
+import android.telecom.DisconnectCause;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.server.telecom.Analytics;
+import com.android.server.telecom.Call;
+import com.android.server.telecom.ConnectionServiceWrapper;
+import com.android.server.telecom.Log;
+import com.android.server.telecom.ServiceBinderKeepAlivePolicy;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+
+/**
+ * Tests keeping a connection service bound once its last call has ended, through the
+ * {@link ConnectionServiceWrapper}s of the running {@link com.android.server.telecom.TelecomSystem}.
+ */
+public class ConnectionServiceKeepAliveTest extends TelecomSystemTest {
+    private static final long MAX_KEEP_ALIVE_MILLIS = 60000;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        when(mTimeoutsAdapter.getConnectionServiceMaxKeepAliveMillis(any(ContentResolver.class)))
+                .thenReturn(MAX_KEEP_ALIVE_MILLIS);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        // Unbind anything still kept alive so that its expiry does not run after the test.
+        getKeepAlivePolicy().onMemoryPressure();
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testUnbindsAfterSingleCall() throws Exception {
+        IdPair ids = makeCall();
+        ConnectionServiceWrapper service = getServiceA();
+        ServiceConnection connection = getLatestConnectionA();
+
+        endCall(ids);
+
+        assertFalse(service.isKeptAlive());
+        verify(mSpyContext).unbindService(connection);
+        assertNotSame(service, getServiceA());
+    }
+
+    @MediumTest
+    public void testKeepsServiceBoundBetweenCalls() throws Exception {
+        endCall(makeCall());
+        IdPair ids = makeCall();
+        ConnectionServiceWrapper service = getServiceA();
+        ServiceConnection connection = getLatestConnectionA();
+
+        endCall(ids);
+
+        assertTrue(service.isKeptAlive());
+        verify(mSpyContext, never()).unbindService(connection);
+        assertSame(service, getServiceA());
+    }
+
+    @MediumTest
+    public void testReusesKeptAliveBinding() throws Exception {
+        endCall(makeCall());
+        endCall(makeCall());
+        ConnectionServiceWrapper service = getServiceA();
+        assertTrue(service.isKeptAlive());
+
+        IdPair ids = makeCall();
+
+        assertFalse(service.isKeptAlive());
+        assertSame(service, getServiceA());
+        assertEquals(1, getKeepAlivePolicy().getReusedBindings());
+        verify(mSpyContext, times(2)).bindServiceAsUser(
+                argThat(new IntentComponentMatcher(mConnectionServiceComponentNameA)),
+                any(ServiceConnection.class), anyInt(), any(UserHandle.class));
+        // The reuse is logged as a bind, so that the bind timing shows the time saved.
+        Call call = mTelecomSystem.getCallsManager().getCalls().iterator().next();
+        assertTrue(hasEvent(call, Log.Events.BIND_CS, mConnectionServiceComponentNameA));
+        assertTrue(hasEvent(call, Log.Events.CS_BOUND, "kept alive"));
+
+        endCall(ids);
+    }
+
+    @MediumTest
+    public void testUnbindsWhenKeptAliveServiceDies() throws Exception {
+        endCall(makeCall());
+        endCall(makeCall());
+        ConnectionServiceWrapper service = getServiceA();
+        ServiceConnection connection = getLatestConnectionA();
+        assertTrue(service.isKeptAlive());
+
+        connection.onServiceDisconnected(mConnectionServiceComponentNameA);
+
+        // Otherwise the system would restart the service for a binding nothing uses.
+        verify(mSpyContext).unbindService(connection);
+        assertFalse(service.isKeptAlive());
+    }
+
+    @MediumTest
+    public void testDropsKeepAliveUnderMemoryPressure() throws Exception {
+        endCall(makeCall());
+        endCall(makeCall());
+        ConnectionServiceWrapper service = getServiceA();
+        ServiceConnection connection = getLatestConnectionA();
+        assertTrue(service.isKeptAlive());
+
+        getKeepAlivePolicy().onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+
+        verify(mSpyContext).unbindService(connection);
+        assertFalse(service.isKeptAlive());
+        assertNotSame(service, getServiceA());
+    }
+
+    private IdPair makeCall() throws Exception {
+        return startAndMakeActiveOutgoingCall("650-555-1212",
+                mPhoneAccountA0.getAccountHandle(), mConnectionServiceFixtureA);
+    }
+
+    private void endCall(IdPair ids) throws Exception {
+        mConnectionServiceFixtureA.sendSetDisconnected(ids.mConnectionId, DisconnectCause.LOCAL);
+        mConnectionServiceFixtureA.sendRemoveCall(ids.mConnectionId);
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TEST_TIMEOUT);
+    }
+
+    private ConnectionServiceWrapper getServiceA() {
+        return mTelecomSystem.getCallsManager().getConnectionServiceRepository().getService(
+                mConnectionServiceComponentNameA, Process.myUserHandle());
+    }
+
+    private ServiceConnection getLatestConnectionA() {
+        ArgumentCaptor<ServiceConnection> connectionCaptor =
+                ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mSpyContext, atLeastOnce()).bindServiceAsUser(
+                argThat(new IntentComponentMatcher(mConnectionServiceComponentNameA)),
+                connectionCaptor.capture(), anyInt(), any(UserHandle.class));
+        return connectionCaptor.getValue();
+    }
+
+    private ServiceBinderKeepAlivePolicy getKeepAlivePolicy() {
+        ArgumentCaptor<ComponentCallbacks> callbacksCaptor =
+                ArgumentCaptor.forClass(ComponentCallbacks.class);
+        verify(mSpyContext, atLeastOnce()).registerComponentCallbacks(callbacksCaptor.capture());
+        for (ComponentCallbacks callbacks : callbacksCaptor.getAllValues()) {
+            if (callbacks instanceof ServiceBinderKeepAlivePolicy) {
+                return (ServiceBinderKeepAlivePolicy) callbacks;
+            }
+        }
+        fail("Keep-alive policy not registered for memory callbacks");
+        return null;
+    }
+
+    private static boolean hasEvent(Call call, String eventId, Object data) {
+        Log.CallEventRecord record = ((Analytics.CallInfoImpl) call.getAnalytics()).callEvents;
+        for (Log.CallEvent event : record.getEvents()) {
+            if (eventId.equals(event.eventId) && data.equals(event.data)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class IntentComponentMatcher extends ArgumentMatcher<Intent> {
+        private final ComponentName mComponentName;
+
+        IntentComponentMatcher(ComponentName componentName) {
+            mComponentName = componentName;
+        }
+
+        @Override
+        public boolean matches(Object argument) {
+            return argument instanceof Intent
+                    && mComponentName.equals(((Intent) argument).getComponent());
+        }
+    }
+}
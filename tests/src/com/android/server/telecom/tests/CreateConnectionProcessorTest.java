@@ -17,10 +17,12 @@
 package com.android.server.telecom.tests;
 
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.graphics.drawable.Icon;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Debug;
+import android.os.Looper;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
@@ -33,14 +35,24 @@ import com.android.server.telecom.ConnectionServiceWrapper;
 import com.android.server.telecom.CreateConnectionProcessor;
 import com.android.server.telecom.CreateConnectionResponse;
 import com.android.server.telecom.PhoneAccountRegistrar;
+import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.TimeoutScheduler;
+import com.android.server.telecom.Timeouts;
 
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
@@ -55,6 +67,63 @@ public class CreateConnectionProcessorTest extends TelecomTestCase {
     private static final String TEST_PACKAGE = "com.android.server.telecom.tests";
     private static final String TEST_CLASS =
             "com.android.server.telecom.tests.MockConnectionService";
+    private static final long HEDGE_DELAY_MILLIS = 2000;
+
+    /**
+     * A timeout scheduler which only runs its timeouts when the test advances its clock, so that
+     * the hedge delay and the scripted connection service failures happen in a deterministic
+     * order. Delays are counted on the fake clock, and canceled timeouts never run.
+     */
+    private static class FakeClockScheduler extends TimeoutScheduler {
+        // The pending timeouts and their deadlines, in the order they were scheduled.
+        private final Map<Timeout, Long> mDeadlines = new LinkedHashMap<>();
+        private long mNow;
+
+        FakeClockScheduler() {
+            super(Looper.getMainLooper(), DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+        }
+
+        @Override
+        public void schedule(Timeout timeout, long delayMillis) {
+            mDeadlines.remove(timeout);
+            mDeadlines.put(timeout, mNow + Math.max(delayMillis, 0));
+        }
+
+        @Override
+        public void cancel(Timeout timeout) {
+            mDeadlines.remove(timeout);
+        }
+
+        @Override
+        public boolean isPending(Timeout timeout) {
+            return mDeadlines.containsKey(timeout);
+        }
+
+        int getPendingCount() {
+            return mDeadlines.size();
+        }
+
+        void advanceTo(long time) {
+            while (true) {
+                Timeout next = null;
+                long nextDeadline = time;
+                for (Map.Entry<Timeout, Long> entry : mDeadlines.entrySet()) {
+                    if (entry.getValue() <= nextDeadline
+                            && (next == null || entry.getValue() < nextDeadline)) {
+                        next = entry.getKey();
+                        nextDeadline = entry.getValue();
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                mDeadlines.remove(next);
+                mNow = nextDeadline;
+                runNow(next);
+            }
+            mNow = time;
+        }
+    }
 
     @Mock
     ConnectionServiceRepository mMockConnectionServiceRepository;
@@ -64,8 +133,13 @@ public class CreateConnectionProcessorTest extends TelecomTestCase {
     CreateConnectionResponse mMockCreateConnectionResponse;
     @Mock
     Call mMockCall;
+    @Mock
+    Timeouts.Adapter mMockTimeoutsAdapter;
 
     CreateConnectionProcessor mTestCreateConnectionProcessor;
+    FakeClockScheduler mFakeClockScheduler;
+    int mConnectionsBeingCreated;
+    int mMaxConnectionsBeingCreated;
 
     @Override
     public void setUp() throws Exception {
@@ -73,9 +147,11 @@ public class CreateConnectionProcessorTest extends TelecomTestCase {
         MockitoAnnotations.initMocks(this);
         mContext = mComponentContextFixture.getTestDouble().getApplicationContext();
 
+        mFakeClockScheduler = new FakeClockScheduler();
         mTestCreateConnectionProcessor = new CreateConnectionProcessor(mMockCall,
                 mMockConnectionServiceRepository, mMockCreateConnectionResponse,
-                mMockAccountRegistrar, mContext);
+                mMockAccountRegistrar, mContext, mMockTimeoutsAdapter,
+                new TelecomSystem.SyncRoot() { }, mFakeClockScheduler);
     }
 
     @Override
@@ -266,6 +342,157 @@ public class CreateConnectionProcessorTest extends TelecomTestCase {
         verify(service).createConnection(eq(mMockCall), any(CreateConnectionResponse.class));
     }
 
+    @SmallTest
+    public void testEmergencyCallHedgeBindsNextSimBeforeFailover() throws Exception {
+        setEmergencyCallHedgeDelay(HEDGE_DELAY_MILLIS);
+        ConnectionServiceWrapper firstService = makeScriptedConnectionService("sim1", 5000);
+        ConnectionServiceWrapper secondService = makeScriptedConnectionService("sim2", -1);
+        setUpEmergencySims("sim1", "sim2");
+
+        mTestCreateConnectionProcessor.process();
+        verify(firstService).createConnection(eq(mMockCall), any(CreateConnectionResponse.class));
+        verify(secondService, never()).warmUp(any(Call.class));
+
+        // The next SIM is bound once the hedge delay passes, without creating a connection.
+        mFakeClockScheduler.advanceTo(HEDGE_DELAY_MILLIS);
+        verify(secondService).warmUp(mMockCall);
+        verify(secondService, never()).createConnection(any(Call.class),
+                any(CreateConnectionResponse.class));
+
+        // When the first SIM fails, the call fails over to the warm binding.
+        mFakeClockScheduler.advanceTo(5000);
+        InOrder inOrder = inOrder(mMockCall, secondService);
+        inOrder.verify(mMockCall).setConnectionService(secondService);
+        inOrder.verify(secondService).releaseWarmUp();
+        inOrder.verify(secondService).createConnection(eq(mMockCall),
+                any(CreateConnectionResponse.class));
+        assertEquals(1, mMaxConnectionsBeingCreated);
+    }
+
+    @SmallTest
+    public void testEmergencyCallHedgeCancelledByEarlyFailure() throws Exception {
+        setEmergencyCallHedgeDelay(HEDGE_DELAY_MILLIS);
+        makeScriptedConnectionService("sim1", 500);
+        ConnectionServiceWrapper secondService = makeScriptedConnectionService("sim2", -1);
+        setUpEmergencySims("sim1", "sim2");
+
+        mTestCreateConnectionProcessor.process();
+        mFakeClockScheduler.advanceTo(500);
+        verify(secondService).createConnection(eq(mMockCall),
+                any(CreateConnectionResponse.class));
+        // The hedge was canceled when the first SIM failed.
+        assertEquals(0, mFakeClockScheduler.getPendingCount());
+
+        // There is no further SIM to bind ahead of time.
+        mFakeClockScheduler.advanceTo(10000);
+        verify(secondService, never()).warmUp(any(Call.class));
+        verify(secondService, never()).releaseWarmUp();
+        assertEquals(1, mMaxConnectionsBeingCreated);
+    }
+
+    @SmallTest
+    public void testEmergencyCallHedgeReleasedOnSuccess() throws Exception {
+        setEmergencyCallHedgeDelay(HEDGE_DELAY_MILLIS);
+        makeScriptedConnectionService("sim1", -1);
+        ConnectionServiceWrapper secondService = makeScriptedConnectionService("sim2", -1);
+        setUpEmergencySims("sim1", "sim2");
+
+        mTestCreateConnectionProcessor.process();
+        mFakeClockScheduler.advanceTo(3000);
+        verify(secondService).warmUp(mMockCall);
+
+        CallIdMapper mockCallIdMapper = mock(CallIdMapper.class);
+        mTestCreateConnectionProcessor.handleCreateConnectionSuccess(mockCallIdMapper, null);
+
+        verify(mMockCreateConnectionResponse).handleCreateConnectionSuccess(mockCallIdMapper, null);
+        verify(secondService).releaseWarmUp();
+        verify(secondService, never()).createConnection(any(Call.class),
+                any(CreateConnectionResponse.class));
+    }
+
+    @SmallTest
+    public void testEmergencyCallHedgeDisabledByDefault() throws Exception {
+        setEmergencyCallHedgeDelay(0);
+        makeScriptedConnectionService("sim1", 30000);
+        ConnectionServiceWrapper secondService = makeScriptedConnectionService("sim2", -1);
+        setUpEmergencySims("sim1", "sim2");
+
+        mTestCreateConnectionProcessor.process();
+        mFakeClockScheduler.advanceTo(29000);
+        verify(secondService, never()).warmUp(any(Call.class));
+
+        mFakeClockScheduler.advanceTo(30000);
+        verify(secondService).createConnection(eq(mMockCall),
+                any(CreateConnectionResponse.class));
+    }
+
+    private void setEmergencyCallHedgeDelay(long delayMillis) {
+        when(mMockTimeoutsAdapter.getEmergencyCallHedgeDelayMillis(any(ContentResolver.class)))
+                .thenReturn(delayMillis);
+    }
+
+    /**
+     * Sets up an emergency call with a SIM account for each ID, tried in the given order.
+     */
+    private void setUpEmergencySims(String... ids) {
+        when(mMockCall.isEmergencyCall()).thenReturn(true);
+        ArrayList<PhoneAccount> phoneAccounts = new ArrayList<>();
+        for (String id : ids) {
+            PhoneAccount phoneAccount = new PhoneAccount.Builder(
+                    new PhoneAccountHandle(makeConnectionServiceComponentName(id), id,
+                            Binder.getCallingUserHandle()), id)
+                    .setCapabilities(PhoneAccount.CAPABILITY_PLACE_EMERGENCY_CALLS
+                            | PhoneAccount.CAPABILITY_SIM_SUBSCRIPTION)
+                    .build();
+            givePhoneAccountBindPermission(phoneAccount.getAccountHandle());
+            when(mMockAccountRegistrar.getPhoneAccountUnchecked(phoneAccount.getAccountHandle()))
+                    .thenReturn(phoneAccount);
+            phoneAccounts.add(phoneAccount);
+        }
+        // The preferred SIM is tried first.
+        when(mMockCall.getTargetPhoneAccount()).thenReturn(phoneAccounts.get(0).getAccountHandle());
+        when(mMockAccountRegistrar.getAllPhoneAccountsOfCurrentUser()).thenReturn(phoneAccounts);
+    }
+
+    /**
+     * Creates a fake connection service which fails to create a connection the given time after
+     * being asked to, or never if the time is negative.
+     */
+    private ConnectionServiceWrapper makeScriptedConnectionService(String id,
+            final long failAfterMillis) {
+        ConnectionServiceWrapper wrapper = mock(ConnectionServiceWrapper.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                final CreateConnectionResponse response =
+                        (CreateConnectionResponse) invocation.getArguments()[1];
+                mConnectionsBeingCreated++;
+                mMaxConnectionsBeingCreated =
+                        Math.max(mMaxConnectionsBeingCreated, mConnectionsBeingCreated);
+                if (failAfterMillis >= 0) {
+                    mFakeClockScheduler.schedule(new TimeoutScheduler.Timeout("failure",
+                            new java.lang.Runnable() {
+                                @Override
+                                public void run() {
+                                    mConnectionsBeingCreated--;
+                                    response.handleCreateConnectionFailure(
+                                            new DisconnectCause(DisconnectCause.ERROR));
+                                }
+                            }), failAfterMillis);
+                }
+                return null;
+            }
+        }).when(wrapper).createConnection(any(Call.class), any(CreateConnectionResponse.class));
+        when(mMockConnectionServiceRepository.getService(
+                eq(makeConnectionServiceComponentName(id)),
+                eq(Binder.getCallingUserHandle()))).thenReturn(wrapper);
+        return wrapper;
+    }
+
+    private static ComponentName makeConnectionServiceComponentName(String id) {
+        return new ComponentName(TEST_PACKAGE, TEST_CLASS + "." + id);
+    }
+
     private PhoneAccount makeEmergencyPhoneAccount(String id) {
         final PhoneAccount emergencyPhoneAccount = makeQuickAccount(id,
                 PhoneAccount.CAPABILITY_PLACE_EMERGENCY_CALLS |
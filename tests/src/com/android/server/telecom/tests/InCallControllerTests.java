@@ -17,16 +17,20 @@
 package com.android.server.telecom.tests;
 
 import android.Manifest;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
 import android.content.res.Resources;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.UserHandle;
 import android.telecom.InCallService;
@@ -196,15 +200,15 @@ public class InCallControllerTests extends TelecomTestCase {
 
         // Query for the different InCallServices
         ArgumentCaptor<Intent> queryIntentCaptor = ArgumentCaptor.forClass(Intent.class);
-        verify(mMockPackageManager, times(4)).queryIntentServicesAsUser(
+        verify(mMockPackageManager, times(3)).queryIntentServicesAsUser(
                 queryIntentCaptor.capture(),
                 eq(PackageManager.GET_META_DATA), eq(CURRENT_USER_ID));
 
         // Verify call for default dialer InCallService
         assertEquals(DEF_PKG, queryIntentCaptor.getAllValues().get(0).getPackage());
-        // Verify call for car-mode InCallService
+        // Verify call for system InCallService
         assertEquals(null, queryIntentCaptor.getAllValues().get(1).getPackage());
-        // Verify call for non-UI InCallServices
+        // Verify call for car-mode and non-UI InCallServices, which share a single query
         assertEquals(null, queryIntentCaptor.getAllValues().get(2).getPackage());
 
         ArgumentCaptor<Intent> bindIntentCaptor = ArgumentCaptor.forClass(Intent.class);
@@ -248,15 +252,15 @@ public class InCallControllerTests extends TelecomTestCase {
 
         // Query for the different InCallServices
         ArgumentCaptor<Intent> queryIntentCaptor = ArgumentCaptor.forClass(Intent.class);
-        verify(mMockPackageManager, times(4)).queryIntentServicesAsUser(
+        verify(mMockPackageManager, times(3)).queryIntentServicesAsUser(
                 queryIntentCaptor.capture(),
                 eq(PackageManager.GET_META_DATA), eq(CURRENT_USER_ID));
 
         // Verify call for default dialer InCallService
         assertEquals(DEF_PKG, queryIntentCaptor.getAllValues().get(0).getPackage());
-        // Verify call for car-mode InCallService
+        // Verify call for system InCallService
         assertEquals(null, queryIntentCaptor.getAllValues().get(1).getPackage());
-        // Verify call for non-UI InCallServices
+        // Verify call for car-mode and non-UI InCallServices, which share a single query
         assertEquals(null, queryIntentCaptor.getAllValues().get(2).getPackage());
 
         ArgumentCaptor<Intent> bindIntentCaptor = ArgumentCaptor.forClass(Intent.class);
@@ -303,15 +307,15 @@ public class InCallControllerTests extends TelecomTestCase {
 
         // Query for the different InCallServices
         ArgumentCaptor<Intent> queryIntentCaptor = ArgumentCaptor.forClass(Intent.class);
-        verify(mMockPackageManager, times(4)).queryIntentServicesAsUser(
+        verify(mMockPackageManager, times(3)).queryIntentServicesAsUser(
                 queryIntentCaptor.capture(),
                 eq(PackageManager.GET_META_DATA), eq(CURRENT_USER_ID));
 
         // Verify call for default dialer InCallService
         assertEquals(DEF_PKG, queryIntentCaptor.getAllValues().get(0).getPackage());
-        // Verify call for car-mode InCallService
+        // Verify call for system InCallService
         assertEquals(null, queryIntentCaptor.getAllValues().get(1).getPackage());
-        // Verify call for non-UI InCallServices
+        // Verify call for car-mode and non-UI InCallServices, which share a single query
         assertEquals(null, queryIntentCaptor.getAllValues().get(2).getPackage());
 
         ArgumentCaptor<Intent> bindIntentCaptor = ArgumentCaptor.forClass(Intent.class);
@@ -372,15 +376,15 @@ public class InCallControllerTests extends TelecomTestCase {
 
         // Query for the different InCallServices
         ArgumentCaptor<Intent> queryIntentCaptor = ArgumentCaptor.forClass(Intent.class);
-        verify(mMockPackageManager, times(4)).queryIntentServicesAsUser(
+        verify(mMockPackageManager, times(3)).queryIntentServicesAsUser(
                 queryIntentCaptor.capture(),
                 eq(PackageManager.GET_META_DATA), eq(CURRENT_USER_ID));
 
         // Verify call for default dialer InCallService
         assertEquals(DEF_PKG, queryIntentCaptor.getAllValues().get(0).getPackage());
-        // Verify call for car-mode InCallService
+        // Verify call for system InCallService
         assertEquals(null, queryIntentCaptor.getAllValues().get(1).getPackage());
-        // Verify call for non-UI InCallServices
+        // Verify call for car-mode and non-UI InCallServices, which share a single query
         assertEquals(null, queryIntentCaptor.getAllValues().get(2).getPackage());
 
         ArgumentCaptor<Intent> bindIntentCaptor = ArgumentCaptor.forClass(Intent.class);
@@ -451,6 +455,131 @@ public class InCallControllerTests extends TelecomTestCase {
         verify(mockInCallService).addCall(any(ParcelableCall.class));
     }
 
+    /**
+     * Make sure that the unbind scheduled when the last call goes away is canceled when the next
+     * call is pre-bound, so that the services stay bound while that call is being filtered.
+     */
+    @MediumTest
+    public void testPreBindCancelsUnbindAfterCallRemoved() throws Exception {
+        when(mMockCallsManager.getCurrentUserHandle()).thenReturn(mUserHandle);
+        when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
+        when(mMockCallsManager.hasEmergencyCall()).thenReturn(false);
+        when(mMockCall.isIncoming()).thenReturn(true);
+        when(mMockCall.isExternalCall()).thenReturn(false);
+        when(mMockDefaultDialerAdapter.getDefaultDialerApplication(mMockContext, CURRENT_USER_ID))
+                .thenReturn(DEF_PKG);
+        when(mMockContext.bindServiceAsUser(
+                any(Intent.class), any(ServiceConnection.class), anyInt(), any(UserHandle.class)))
+                .thenReturn(true);
+        when(mTimeoutsAdapter.getCallRemoveUnbindInCallServicesDelay(any(ContentResolver.class)))
+                .thenReturn(100L);
+
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.singletonList(mMockCall));
+        setupMockPackageManager(true /* default */, true /* system */, false /* external calls */);
+        mInCallController.bindToServices(mMockCall);
+
+        ArgumentCaptor<ServiceConnection> serviceConnectionCaptor =
+                ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mMockContext, times(1)).bindServiceAsUser(
+                any(Intent.class),
+                serviceConnectionCaptor.capture(),
+                eq(Context.BIND_AUTO_CREATE | Context.BIND_FOREGROUND_SERVICE),
+                eq(UserHandle.CURRENT));
+
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.emptyList());
+        mInCallController.onCallRemoved(mMockCall);
+        // The next call is still being filtered, so it has not been added yet.
+        mInCallController.preBindToServices(mock(Call.class));
+
+        Thread.sleep(300);
+        verify(mMockContext, never()).unbindService(serviceConnectionCaptor.getValue());
+    }
+
+    /**
+     * Ensures that in-call services are resolved once, so that binding for later calls does not
+     * query the package manager, and that a package update only re-resolves that package.
+     */
+    @MediumTest
+    public void testBindToService_UsesCachedComponents() throws Exception {
+        setupMocks(false /* isExternalCall */);
+        setupMockPackageManager(true /* default */, true /* system */, false /* external calls */);
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mMockContext, times(2)).registerReceiverAsUser(receiverCaptor.capture(),
+                eq(UserHandle.ALL), any(IntentFilter.class), isNull(String.class),
+                isNull(Handler.class));
+
+        mInCallController.bindToServices(mMockCall);
+        verify(mMockPackageManager, times(3)).queryIntentServicesAsUser(any(Intent.class),
+                eq(PackageManager.GET_META_DATA), eq(CURRENT_USER_ID));
+        verify(mMockPackageManager, times(1)).checkPermission(
+                eq(Manifest.permission.CONTROL_INCALL_EXPERIENCE), eq(DEF_PKG));
+
+        // Binding again uses the cache.
+        mInCallController.bindToServices(mMockCall);
+        verify(mMockPackageManager, times(3)).queryIntentServicesAsUser(any(Intent.class),
+                eq(PackageManager.GET_META_DATA), eq(CURRENT_USER_ID));
+        verify(mMockPackageManager, times(1)).checkPermission(
+                eq(Manifest.permission.CONTROL_INCALL_EXPERIENCE), eq(DEF_PKG));
+
+        // Updating the default dialer re-resolves that package only.
+        receiverCaptor.getValue().onReceive(mMockContext, new Intent(
+                Intent.ACTION_PACKAGE_REPLACED, Uri.fromParts("package", DEF_PKG, null)));
+        ArgumentCaptor<Intent> queryIntentCaptor = ArgumentCaptor.forClass(Intent.class);
+        verify(mMockPackageManager, times(4)).queryIntentServicesAsUser(
+                queryIntentCaptor.capture(), eq(PackageManager.GET_META_DATA),
+                eq(CURRENT_USER_ID));
+        assertEquals(DEF_PKG, queryIntentCaptor.getValue().getPackage());
+
+        mInCallController.bindToServices(mMockCall);
+        verify(mMockPackageManager, times(4)).queryIntentServicesAsUser(any(Intent.class),
+                eq(PackageManager.GET_META_DATA), eq(CURRENT_USER_ID));
+    }
+
+    /**
+     * Ensures that a pre-binding is made when enabled, and released once the in-call services are
+     * actually bound.
+     */
+    @MediumTest
+    public void testPreBindToService_ReleasedOnBind() throws Exception {
+        doReturn(true).when(mMockResources).getBoolean(R.bool.prebind_incall_service);
+        mInCallController = new InCallController(mMockContext, mLock, mMockCallsManager,
+                mMockSystemStateProvider, mMockDefaultDialerAdapter, mTimeoutsAdapter);
+        setupMocks(false /* isExternalCall */);
+        when(mMockCall.isIncoming()).thenReturn(true);
+        when(mTimeoutsAdapter.getInCallServicePreBindTimeoutMillis(any(ContentResolver.class)))
+                .thenReturn(10000L);
+        setupMockPackageManager(true /* default */, true /* system */, false /* external calls */);
+
+        mInCallController.preBindToServices(mMockCall);
+        ArgumentCaptor<Intent> bindIntentCaptor = ArgumentCaptor.forClass(Intent.class);
+        ArgumentCaptor<ServiceConnection> preBindCaptor =
+                ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mMockContext, times(1)).bindServiceAsUser(bindIntentCaptor.capture(),
+                preBindCaptor.capture(), anyInt(), eq(UserHandle.CURRENT));
+        assertEquals(DEF_PKG, bindIntentCaptor.getValue().getComponent().getPackageName());
+
+        // Pre-binding twice does nothing.
+        mInCallController.preBindToServices(mMockCall);
+        verify(mMockContext, times(1)).bindServiceAsUser(any(Intent.class),
+                any(ServiceConnection.class), anyInt(), eq(UserHandle.CURRENT));
+
+        mInCallController.bindToServices(mMockCall);
+        verify(mMockContext, times(2)).bindServiceAsUser(any(Intent.class),
+                any(ServiceConnection.class), anyInt(), eq(UserHandle.CURRENT));
+        verify(mMockContext).unbindService(preBindCaptor.getValue());
+    }
+
+    @MediumTest
+    public void testPreBindToService_Disabled() throws Exception {
+        setupMocks(false /* isExternalCall */);
+        setupMockPackageManager(true /* default */, true /* system */, false /* external calls */);
+
+        mInCallController.preBindToServices(mMockCall);
+        verify(mMockContext, never()).bindServiceAsUser(any(Intent.class),
+                any(ServiceConnection.class), anyInt(), any(UserHandle.class));
+    }
+
     private void setupMocks(boolean isExternalCall) {
         when(mMockCallsManager.getCurrentUserHandle()).thenReturn(mUserHandle);
         when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
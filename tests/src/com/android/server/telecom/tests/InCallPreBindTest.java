@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.telecom.ConnectionRequest;
+import android.telecom.DisconnectCause;
+import android.telecom.InCallService;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.internal.telecom.IInCallAdapter;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+
+/**
+ * Tests releasing the pre-binding to the in-call UI when the call it was made for is not added.
+ */
+public class InCallPreBindTest extends TelecomSystemTest {
+
+    @Override
+    protected boolean isInCallServicePreBindEnabled() {
+        return true;
+    }
+
+    @LargeTest
+    public void testPreBindingReleasedForCallDisconnectedWhileFiltering() throws Exception {
+        Bundle extras = new Bundle();
+        extras.putParcelable(
+                TelecomManager.EXTRA_INCOMING_CALL_ADDRESS,
+                Uri.fromParts(PhoneAccount.SCHEME_TEL, "650-555-1212", null));
+        mTelecomSystem.getTelecomServiceImpl().getBinder()
+                .addNewIncomingCall(mPhoneAccountA0.getAccountHandle(), extras);
+
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TEST_TIMEOUT);
+        verify(mConnectionServiceFixtureA.getTestDouble())
+                .createConnection(any(PhoneAccountHandle.class), anyString(),
+                        any(ConnectionRequest.class), eq(true), eq(false));
+
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TEST_TIMEOUT);
+        ArgumentCaptor<ServiceConnection> preBindCaptor =
+                ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mSpyContext).bindServiceAsUser(argThat(new InCallServiceIntentMatcher()),
+                preBindCaptor.capture(), anyInt(), any(UserHandle.class));
+
+        // The call ends while its contact is still being looked up.
+        mConnectionServiceFixtureA.sendSetDisconnected(
+                mConnectionServiceFixtureA.mLatestConnectionId, DisconnectCause.REMOTE);
+        assertEquals(1, mCallerInfoAsyncQueryFactoryFixture.mRequests.size());
+        for (CallerInfoAsyncQueryFactoryFixture.Request request :
+                mCallerInfoAsyncQueryFactoryFixture.mRequests) {
+            request.reply();
+        }
+
+        verify(mSpyContext, timeout(TEST_TIMEOUT)).unbindService(preBindCaptor.getValue());
+        verify(mInCallServiceFixtureX.getTestDouble(), never())
+                .setInCallAdapter(any(IInCallAdapter.class));
+        verify(mInCallServiceFixtureY.getTestDouble(), never())
+                .setInCallAdapter(any(IInCallAdapter.class));
+    }
+
+    private static class InCallServiceIntentMatcher extends ArgumentMatcher<Intent> {
+        @Override
+        public boolean matches(Object argument) {
+            return argument instanceof Intent
+                    && InCallService.SERVICE_INTERFACE.equals(((Intent) argument).getAction());
+        }
+    }
+}
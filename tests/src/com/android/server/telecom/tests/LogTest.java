@@ -237,6 +237,7 @@ public class LogTest extends TelecomTestCase{
 
     @Override
     public void tearDown() throws Exception {
+        Log.setIsAllocationProfilingEnabled(false);
         mTestSystemLogger = null;
         Log.setLoggingContainer(new SystemLoggingContainer());
         super.tearDown();
@@ -402,6 +403,31 @@ public class LogTest extends TelecomTestCase{
         assertEquals(true, mTestSystemLogger.isMessagesEmpty());
     }
 
+    @SmallTest
+    public void testLateCancelOfCompletedSubsession() throws Exception {
+        Log.startSession("LT.tLCOCS");
+        Session subsession = Log.createSubsession();
+        Log.endSession();
+        Log.continueSession(subsession, "lTLCOCS.hM");
+        Log.endSession();
+
+        // The sessions above have ended; their holder cancels the subsession anyway.
+        Log.startSession("LT.tLCOCS2");
+        Session activeSession = Log.sSessionMapper.get();
+        Session newSubsession = Log.createSubsession();
+        Log.cancelSubsession(subsession);
+        Log.continueSession(subsession, "lTLCOCS.hM2");
+
+        assertNotSame(subsession, activeSession);
+        assertNotSame(subsession, newSubsession);
+        assertFalse(activeSession.isSessionCompleted());
+        assertFalse(newSubsession.isSessionCompleted());
+        assertSame(activeSession, Log.sSessionMapper.get());
+        Log.cancelSubsession(newSubsession);
+        Log.endSession();
+        assertEquals(0, Log.sSessionMapper.size());
+    }
+
     @MediumTest
     public void testInternalExternalCallToMethod() throws Exception {
         String sessionName = "LT.tIECTM";
@@ -460,6 +486,49 @@ public class LogTest extends TelecomTestCase{
         assertEquals(null, sessionRef.get());
     }
 
+    @SmallTest
+    public void testAllocationProfiling() throws Exception {
+        final long[] allocatedBytes = new long[1];
+        Log.IThreadAllocationCounter oldCounter = Log.sThreadAllocationCounter;
+        Log.sThreadAllocationCounter = () -> allocatedBytes[0];
+        try {
+            String sessionName = "LT.tAP";
+            Log.setIsAllocationProfilingEnabled(true);
+            Log.startSession(sessionName);
+            allocatedBytes[0] = 100;
+            // Runs within the parent's measurement, so it should not be counted twice.
+            internalExternalMethod();
+            allocatedBytes[0] = 1000;
+            Session subsession = Log.createSubsession();
+            Log.endSession();
+
+            allocatedBytes[0] = 5000;
+            Log.continueSession(subsession, "lTAP.hM");
+            allocatedBytes[0] = 5300;
+            Log.endSession();
+
+            assertEquals(1300, Analytics.getSessionAllocatedBytes(sessionName));
+            assertEquals(0, Log.sSessionMapper.size());
+        } finally {
+            Log.sThreadAllocationCounter = oldCounter;
+        }
+    }
+
+    @SmallTest
+    public void testNoAllocationProfilingWhenDisabled() throws Exception {
+        Log.IThreadAllocationCounter oldCounter = Log.sThreadAllocationCounter;
+        Log.sThreadAllocationCounter = () -> 1000;
+        try {
+            String sessionName = "LT.tNAPWD";
+            Log.startSession(sessionName);
+            Log.endSession();
+
+            assertEquals(0, Analytics.getSessionAllocatedBytes(sessionName));
+        } finally {
+            Log.sThreadAllocationCounter = oldCounter;
+        }
+    }
+
     @SmallTest
     public void testEventRecordTiming() throws Exception {
         Call call = mock(Call.class);
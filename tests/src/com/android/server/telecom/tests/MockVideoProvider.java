@@ -256,4 +256,13 @@ public class MockVideoProvider extends VideoProvider {
     public void sendMockVideoQuality(int videoQuality) {
         super.changeVideoQuality(videoQuality);
     }
+
+    /**
+     * Sends a mock call data usage change via the provider.
+     *
+     * @param dataUsage the data usage.
+     */
+    public void sendMockCallDataUsage(long dataUsage) {
+        super.setCallDataUsage(dataUsage);
+    }
 }
@@ -35,12 +35,14 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.server.telecom.Call;
 import com.android.server.telecom.CallsManager;
+import com.android.server.telecom.ConnectionServiceWrapper;
 import com.android.server.telecom.NewOutgoingCallIntentBroadcaster;
 import com.android.server.telecom.PhoneNumberUtilsAdapter;
 import com.android.server.telecom.PhoneNumberUtilsAdapterImpl;
 import com.android.server.telecom.TelecomSystem;
 
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 
 import static org.mockito.Matchers.any;
@@ -51,6 +53,7 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNotNull;
 import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
@@ -69,6 +72,7 @@ public class NewOutgoingCallIntentBroadcasterTest extends TelecomTestCase {
 
     @Mock private CallsManager mCallsManager;
     @Mock private Call mCall;
+    @Mock private ConnectionServiceWrapper mConnectionServiceWrapper;
 
     private PhoneNumberUtilsAdapter mPhoneNumberUtilsAdapterSpy;
 
@@ -314,6 +318,7 @@ public class NewOutgoingCallIntentBroadcasterTest extends TelecomTestCase {
         result.receiver.onReceive(mContext, result.intent);
         verifyNoCallPlaced();
         verify(mCall).disconnect(true);
+        verify(mCallsManager).releaseInCallServicesPreBinding();
     }
 
     @SmallTest
@@ -331,6 +336,71 @@ public class NewOutgoingCallIntentBroadcasterTest extends TelecomTestCase {
         verify(mCall).disconnect(true);
     }
 
+    @SmallTest
+    public void testUnmodifiedCallKeepsWarmConnectionService() {
+        when(mCallsManager.warmUpConnectionService(mCall)).thenReturn(mConnectionServiceWrapper);
+        Uri handle = Uri.parse("tel:6505551234");
+        Intent callIntent = buildIntent(handle, Intent.ACTION_CALL, null);
+        ReceiverIntentPair result = regularCallTestHelper(callIntent, null);
+
+        verify(mCallsManager).warmUpConnectionService(mCall);
+        verify(mCallsManager, never()).releaseConnectionServiceWarmUp(any(Call.class),
+                any(ConnectionServiceWrapper.class));
+
+        result.receiver.setResultData(
+                result.intent.getStringExtra(Intent.EXTRA_PHONE_NUMBER));
+        result.receiver.onReceive(mContext, result.intent);
+
+        // The warm binding is only released once the call has been placed.
+        InOrder inOrder = inOrder(mCallsManager);
+        inOrder.verify(mCallsManager).placeOutgoingCall(eq(mCall), eq(handle),
+                isNull(GatewayInfo.class), eq(true), eq(VideoProfile.STATE_BIDIRECTIONAL));
+        inOrder.verify(mCallsManager).releaseConnectionServiceWarmUp(mCall,
+                mConnectionServiceWrapper);
+    }
+
+    @SmallTest
+    public void testModifiedCallReleasesWarmConnectionService() {
+        when(mCallsManager.warmUpConnectionService(mCall)).thenReturn(mConnectionServiceWrapper);
+        Uri handle = Uri.parse("tel:6505551234");
+        Intent callIntent = buildIntent(handle, Intent.ACTION_CALL, null);
+        ReceiverIntentPair result = regularCallTestHelper(callIntent, null);
+
+        result.receiver.setResultData("6505550000");
+        result.receiver.onReceive(mContext, result.intent);
+
+        InOrder inOrder = inOrder(mCallsManager);
+        inOrder.verify(mCallsManager).releaseConnectionServiceWarmUp(mCall,
+                mConnectionServiceWrapper);
+        inOrder.verify(mCallsManager).placeOutgoingCall(eq(mCall),
+                eq(Uri.parse("tel:6505550000")), isNull(GatewayInfo.class), eq(true),
+                eq(VideoProfile.STATE_BIDIRECTIONAL));
+    }
+
+    @SmallTest
+    public void testCancelledCallReleasesWarmConnectionService() {
+        when(mCallsManager.warmUpConnectionService(mCall)).thenReturn(mConnectionServiceWrapper);
+        Uri handle = Uri.parse("tel:6505551234");
+        Intent callIntent = buildIntent(handle, Intent.ACTION_CALL, null);
+        ReceiverIntentPair result = regularCallTestHelper(callIntent, null);
+
+        result.receiver.setResultData(null);
+        result.receiver.onReceive(mContext, result.intent);
+
+        verifyNoCallPlaced();
+        verify(mCallsManager).releaseConnectionServiceWarmUp(mCall, mConnectionServiceWrapper);
+    }
+
+    @SmallTest
+    public void testNoConnectionServiceWarmUpForEmergencyCall() {
+        Uri handle = Uri.parse("tel:6505551911");
+        Intent intent = buildIntent(handle, Intent.ACTION_CALL_EMERGENCY, null);
+        emergencyCallTestHelper(intent, null);
+
+        // Emergency calls are placed before the broadcast is sent.
+        verify(mCallsManager, never()).warmUpConnectionService(any(Call.class));
+    }
+
     private ReceiverIntentPair regularCallTestHelper(Intent intent,
             Bundle expectedAdditionalExtras) {
         Uri handle = intent.getData();
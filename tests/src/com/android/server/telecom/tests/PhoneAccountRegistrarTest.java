@@ -16,13 +16,17 @@
 
 package com.android.server.telecom.tests;
 
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.BitmapFactory;
 import android.graphics.Rect;
 import android.graphics.drawable.Icon;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Parcel;
 import android.os.Process;
 import android.os.UserHandle;
@@ -38,6 +42,7 @@ import com.android.server.telecom.Log;
 import com.android.server.telecom.PhoneAccountRegistrar;
 import com.android.server.telecom.PhoneAccountRegistrar.DefaultPhoneAccountHandle;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -197,6 +202,39 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
                 PhoneAccount.SCHEME_TEL));
     }
 
+    @MediumTest
+    public void testPublishedQueriesDroppedOnPackageAndProfileChanges() throws Exception {
+        registerAndEnableAccount(makeQuickAccountBuilder("id0", 0)
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                .build());
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        ArgumentCaptor<IntentFilter> filterCaptor = ArgumentCaptor.forClass(IntentFilter.class);
+        Mockito.verify(mComponentContextFixture.getTestDouble().getApplicationContext(),
+                Mockito.atLeastOnce()).registerReceiverAsUser(receiverCaptor.capture(),
+                Mockito.eq(UserHandle.ALL), filterCaptor.capture(), Mockito.isNull(String.class),
+                Mockito.isNull(Handler.class));
+
+        for (String action : new String[] {Intent.ACTION_PACKAGE_CHANGED,
+                Intent.ACTION_MANAGED_PROFILE_REMOVED}) {
+            UserHandle userHandle = Process.myUserHandle();
+            mRegistrar.getCallCapablePhoneAccounts(null, false, userHandle);
+            assertNotNull(mRegistrar.getPublishedCallCapablePhoneAccounts(null, false,
+                    userHandle));
+
+            Intent intent = new Intent(action, Uri.fromParts("package", "com.foo", null));
+            for (int i = 0; i < receiverCaptor.getAllValues().size(); i++) {
+                if (filterCaptor.getAllValues().get(i).matchAction(action)) {
+                    receiverCaptor.getAllValues().get(i).onReceive(
+                            mComponentContextFixture.getTestDouble().getApplicationContext(),
+                            intent);
+                }
+            }
+            assertNull(action, mRegistrar.getPublishedCallCapablePhoneAccounts(null, false,
+                    userHandle));
+        }
+    }
+
     @MediumTest
     public void testSimCallManager() throws Exception {
         // TODO
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.PersistableBundle;
+import android.os.UserHandle;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telephony.CarrierConfigManager;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.internal.telephony.TelephonyIntents;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests the remote connection services which Telecom gives to a SIM call manager.
+ */
+public class RemoteConnectionServicesTest extends TelecomSystemTest {
+    private final PhoneAccount mConnectionManagerAccountB =
+            PhoneAccount.builder(
+                    new PhoneAccountHandle(
+                            mConnectionServiceComponentNameB,
+                            "id B CM"),
+                    "Phone account service B connection manager")
+                    .addSupportedUriScheme("tel")
+                    .setCapabilities(PhoneAccount.CAPABILITY_CONNECTION_MANAGER)
+                    .build();
+
+    private CarrierConfigManager mCarrierConfigManager;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mCarrierConfigManager = (CarrierConfigManager) mSpyContext.getSystemService(
+                Context.CARRIER_CONFIG_SERVICE);
+        // Make connection service B the SIM call manager through the carrier config.
+        PersistableBundle config = new PersistableBundle();
+        config.putString(CarrierConfigManager.KEY_DEFAULT_SIM_CALL_MANAGER_STRING,
+                mConnectionServiceComponentNameB.flattenToString());
+        when(mCarrierConfigManager.getConfig()).thenReturn(config);
+        mTelecomSystem.getPhoneAccountRegistrar().registerPhoneAccount(
+                mConnectionManagerAccountB);
+
+        // Bind to connection service B.
+        startIncomingPhoneCall("650-555-1212", mPhoneAccountB0.getAccountHandle(),
+                mConnectionServiceFixtureB);
+    }
+
+    @MediumTest
+    public void testRepeatedQueriesUseCachedServices() throws Exception {
+        mConnectionServiceFixtureB.sendQueryRemoteConnectionServices();
+        assertEquals(Arrays.asList(mConnectionServiceComponentNameA),
+                mConnectionServiceFixtureB.mRemoteConnectionServiceNames);
+        verify(mSpyContext, times(1)).bindServiceAsUser(
+                argThat(new IntentComponentMatcher(mConnectionServiceComponentNameA)),
+                any(ServiceConnection.class), anyInt(), any(UserHandle.class));
+
+        // The SIM call manager is not looked up again, so this goes unnoticed until the carrier
+        // config changed broadcast.
+        when(mCarrierConfigManager.getConfig()).thenReturn(null);
+        mConnectionServiceFixtureB.sendQueryRemoteConnectionServices();
+        mConnectionServiceFixtureB.sendQueryRemoteConnectionServices();
+
+        assertEquals(Arrays.asList(mConnectionServiceComponentNameA),
+                mConnectionServiceFixtureB.mRemoteConnectionServiceNames);
+        assertEquals(1, mConnectionServiceFixtureB.mRemoteConnectionServices.size());
+        // Connection service A is not asked to bind again.
+        verify(mSpyContext, times(1)).bindServiceAsUser(
+                argThat(new IntentComponentMatcher(mConnectionServiceComponentNameA)),
+                any(ServiceConnection.class), anyInt(), any(UserHandle.class));
+    }
+
+    @MediumTest
+    public void testDefaultSubscriptionChangeInvalidatesCachedServices() throws Exception {
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        ArgumentCaptor<IntentFilter> filterCaptor = ArgumentCaptor.forClass(IntentFilter.class);
+        verify(mSpyContext, atLeastOnce()).registerReceiverAsUser(receiverCaptor.capture(),
+                eq(UserHandle.ALL), filterCaptor.capture(), isNull(String.class),
+                isNull(Handler.class));
+
+        mConnectionServiceFixtureB.sendQueryRemoteConnectionServices();
+        assertEquals(Arrays.asList(mConnectionServiceComponentNameA),
+                mConnectionServiceFixtureB.mRemoteConnectionServiceNames);
+
+        // The default voice subscription now has no carrier config naming B.
+        when(mCarrierConfigManager.getConfig()).thenReturn(null);
+        String action = TelephonyIntents.ACTION_DEFAULT_VOICE_SUBSCRIPTION_CHANGED;
+        for (int i = 0; i < receiverCaptor.getAllValues().size(); i++) {
+            if (filterCaptor.getAllValues().get(i).matchAction(action)) {
+                receiverCaptor.getAllValues().get(i).onReceive(mSpyContext, new Intent(action));
+            }
+        }
+        mConnectionServiceFixtureB.sendQueryRemoteConnectionServices();
+
+        // B is no longer the SIM call manager.
+        assertEquals(Collections.emptyList(),
+                mConnectionServiceFixtureB.mRemoteConnectionServiceNames);
+    }
+
+    @MediumTest
+    public void testAccountChangeInvalidatesCachedServices() throws Exception {
+        mConnectionServiceFixtureB.sendQueryRemoteConnectionServices();
+        assertEquals(Arrays.asList(mConnectionServiceComponentNameA),
+                mConnectionServiceFixtureB.mRemoteConnectionServiceNames);
+
+        when(mCarrierConfigManager.getConfig()).thenReturn(null);
+        mTelecomSystem.getPhoneAccountRegistrar().unregisterPhoneAccount(
+                mPhoneAccountE1.getAccountHandle());
+        mConnectionServiceFixtureB.sendQueryRemoteConnectionServices();
+
+        // B is no longer the SIM call manager.
+        assertEquals(Collections.emptyList(),
+                mConnectionServiceFixtureB.mRemoteConnectionServiceNames);
+    }
+
+    private static class IntentComponentMatcher extends ArgumentMatcher<Intent> {
+        private final ComponentName mComponentName;
+
+        IntentComponentMatcher(ComponentName componentName) {
+            mComponentName = componentName;
+        }
+
+        @Override
+        public boolean matches(Object argument) {
+            return argument instanceof Intent
+                    && mComponentName.equals(((Intent) argument).getComponent());
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.os.Bundle;
+import android.os.Vibrator;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.telecom.AsyncRingtonePlayer;
+import com.android.server.telecom.Call;
+import com.android.server.telecom.InCallController;
+import com.android.server.telecom.InCallTonePlayer;
+import com.android.server.telecom.Ringer;
+import com.android.server.telecom.RingtoneFactory;
+import com.android.server.telecom.SystemSettingsUtil;
+
+import org.mockito.Mock;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RingerTest extends TelecomTestCase {
+    @Mock InCallTonePlayer.Factory mPlayerFactory;
+    @Mock SystemSettingsUtil mSystemSettingsUtil;
+    @Mock AsyncRingtonePlayer mAsyncRingtonePlayer;
+    @Mock RingtoneFactory mRingtoneFactory;
+    @Mock Vibrator mVibrator;
+    @Mock InCallController mInCallController;
+    @Mock Call mCall;
+
+    private Context mContext;
+    private Ringer mRinger;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mContext = mComponentContextFixture.getTestDouble().getApplicationContext();
+        ((AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE))
+                .setStreamVolume(AudioManager.STREAM_RING, 5, 0);
+        when(mVibrator.hasVibrator()).thenReturn(true);
+        when(mSystemSettingsUtil.canVibrateWhenRinging(any(Context.class))).thenReturn(false);
+        mRinger = new Ringer(mPlayerFactory, mContext, mSystemSettingsUtil, mAsyncRingtonePlayer,
+                mRingtoneFactory, mVibrator, mInCallController);
+    }
+
+    @SmallTest
+    public void testSettingsNotReadWhenRinging() throws Exception {
+        mRinger.startRinging(mCall);
+
+        verify(mAsyncRingtonePlayer).play(eq(mRingtoneFactory), eq(mCall), anyFloat(), anyInt());
+        // Only read when the Ringer was created.
+        verify(mSystemSettingsUtil, times(1)).canVibrateWhenRinging(any(Context.class));
+    }
+
+    @SmallTest
+    public void testSettingsReloadedOnChange() throws Exception {
+        mRinger.startRinging(mCall);
+        verify(mVibrator, never()).vibrate(any(long[].class), anyInt(),
+                any(AudioAttributes.class));
+        mRinger.stopRinging();
+
+        when(mSystemSettingsUtil.canVibrateWhenRinging(any(Context.class))).thenReturn(true);
+        mRinger.getSettingsObserver().onChange(false);
+        mRinger.startRinging(mCall);
+
+        verify(mVibrator).vibrate(any(long[].class), anyInt(), any(AudioAttributes.class));
+        verify(mSystemSettingsUtil, times(2)).canVibrateWhenRinging(any(Context.class));
+    }
+
+    @SmallTest
+    public void testPreloadSkippedInTheaterMode() throws Exception {
+        when(mSystemSettingsUtil.isTheaterModeOn(any(Context.class))).thenReturn(true);
+        mRinger.preloadRingtone();
+
+        verify(mAsyncRingtonePlayer, never()).preload(any(RingtoneFactory.class));
+    }
+
+    @SmallTest
+    public void testReleasePreloadedRingtone() throws Exception {
+        mRinger.preloadRingtone();
+        mRinger.releasePreloadedRingtone();
+
+        verify(mAsyncRingtonePlayer).preload(mRingtoneFactory);
+        verify(mAsyncRingtonePlayer).releasePreload(mRingtoneFactory);
+    }
+
+    @SmallTest
+    public void testPreloadedRingtoneKeptForDefaultRingtone() throws Exception {
+        when(mRingtoneFactory.canUsePreloadedRingtone(mCall)).thenReturn(true);
+        mRinger.preloadRingtone();
+        mRinger.startRinging(mCall);
+
+        verify(mAsyncRingtonePlayer).play(eq(mRingtoneFactory), eq(mCall), anyFloat(), anyInt());
+        verify(mAsyncRingtonePlayer, never()).releasePreload(any(RingtoneFactory.class));
+    }
+
+    @SmallTest
+    public void testPreloadedRingtoneReleasedForOwnRingtone() throws Exception {
+        // A custom or work profile ringtone.
+        when(mRingtoneFactory.canUsePreloadedRingtone(mCall)).thenReturn(false);
+        mRinger.preloadRingtone();
+        mRinger.startRinging(mCall);
+
+        verify(mAsyncRingtonePlayer).play(eq(mRingtoneFactory), eq(mCall), anyFloat(), anyInt());
+        verify(mAsyncRingtonePlayer).releasePreload(mRingtoneFactory);
+    }
+
+    @SmallTest
+    public void testPreloadedRingtoneReleasedWhenSilent() throws Exception {
+        when(mRingtoneFactory.canUsePreloadedRingtone(mCall)).thenReturn(true);
+        ((AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE))
+                .setStreamVolume(AudioManager.STREAM_RING, 0, 0);
+        mRinger.preloadRingtone();
+        mRinger.startRinging(mCall);
+
+        verify(mAsyncRingtonePlayer, never()).play(any(RingtoneFactory.class), any(Call.class),
+                anyFloat(), anyInt());
+        verify(mAsyncRingtonePlayer).releasePreload(mRingtoneFactory);
+    }
+
+    @SmallTest
+    public void testPreloadedRingtoneReleasedWhenFilteredByDnd() throws Exception {
+        when(mRingtoneFactory.canUsePreloadedRingtone(mCall)).thenReturn(true);
+        when(((NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE))
+                .matchesCallFilter(any(Bundle.class))).thenReturn(new boolean[] {false, false});
+        mRinger.preloadRingtone();
+        mRinger.startRinging(mCall);
+
+        verify(mAsyncRingtonePlayer, never()).play(any(RingtoneFactory.class), any(Call.class),
+                anyFloat(), anyInt());
+        verify(mAsyncRingtonePlayer).releasePreload(mRingtoneFactory);
+    }
+
+    @SmallTest
+    public void testPreloadedRingtoneReleasedInTheaterMode() throws Exception {
+        when(mRingtoneFactory.canUsePreloadedRingtone(mCall)).thenReturn(true);
+        mRinger.preloadRingtone();
+        // Theater mode turned on after the call was preloaded for.
+        when(mSystemSettingsUtil.isTheaterModeOn(any(Context.class))).thenReturn(true);
+        mRinger.startRinging(mCall);
+
+        verify(mAsyncRingtonePlayer, never()).play(any(RingtoneFactory.class), any(Call.class),
+                anyFloat(), anyInt());
+        verify(mAsyncRingtonePlayer).releasePreload(mRingtoneFactory);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.database.ContentObserver;
+import android.media.Ringtone;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.CallerInfo;
+import com.android.server.telecom.Call;
+import com.android.server.telecom.CallsManager;
+import com.android.server.telecom.RingtoneFactory;
+
+import org.mockito.Mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RingtoneFactoryTest extends TelecomTestCase {
+    private static final UserHandle USER_0 = new UserHandle(0);
+    private static final UserHandle USER_10 = new UserHandle(10);
+    private static final Uri CUSTOM_RINGTONE_URI = Uri.parse("content://media/audio/1");
+
+    /**
+     * Creates mock ringtones, and captures what it registers for instead of registering it.
+     */
+    private static class TestRingtoneFactory extends RingtoneFactory {
+        final List<Uri> createdUris = new ArrayList<>();
+        final List<Ringtone> createdRingtones = new ArrayList<>();
+        ContentObserver ringtoneObserver;
+        BroadcastReceiver profilesChangedReceiver;
+        boolean canRegister = true;
+
+        TestRingtoneFactory(CallsManager callsManager, Context context) {
+            super(callsManager, context);
+        }
+
+        @Override
+        public Ringtone createRingtone(Context context, Uri ringtoneUri) {
+            Ringtone ringtone = mock(Ringtone.class);
+            createdUris.add(ringtoneUri);
+            createdRingtones.add(ringtone);
+            return ringtone;
+        }
+
+        @Override
+        public void registerForChanges(ContentObserver ringtoneObserver,
+                BroadcastReceiver profilesChangedReceiver) {
+            if (!canRegister) {
+                throw new SecurityException();
+            }
+            this.ringtoneObserver = ringtoneObserver;
+            this.profilesChangedReceiver = profilesChangedReceiver;
+        }
+    }
+
+    @Mock CallsManager mCallsManager;
+    @Mock Call mCall;
+
+    private Context mContext;
+    private TestRingtoneFactory mRingtoneFactory;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mContext = mComponentContextFixture.getTestDouble().getApplicationContext();
+        when(mCallsManager.getCurrentUserHandle()).thenReturn(USER_0);
+        mRingtoneFactory = new TestRingtoneFactory(mCallsManager, mContext);
+    }
+
+    @SmallTest
+    public void testPreloadedRingtoneUsedForCurrentUser() throws Exception {
+        mRingtoneFactory.preloadDefaultRingtone();
+        assertEquals(1, mRingtoneFactory.createdUris.size());
+        assertEquals(Settings.System.DEFAULT_RINGTONE_URI, mRingtoneFactory.createdUris.get(0));
+
+        Ringtone ringtone = mRingtoneFactory.getRingtone(mCall);
+        assertNotNull(ringtone);
+        verify(ringtone, never()).stop();
+        // Used rather than creating another one.
+        assertEquals(1, mRingtoneFactory.createdUris.size());
+
+        // Only handed out once.
+        assertNotSame(ringtone, mRingtoneFactory.getRingtone(mCall));
+        assertEquals(2, mRingtoneFactory.createdUris.size());
+    }
+
+    @SmallTest
+    public void testRepeatedPreloadKeepsRingtone() throws Exception {
+        mRingtoneFactory.preloadDefaultRingtone();
+        mRingtoneFactory.preloadDefaultRingtone();
+
+        assertEquals(1, mRingtoneFactory.createdUris.size());
+    }
+
+    @SmallTest
+    public void testPreloadedRingtoneForOtherUserIsStopped() throws Exception {
+        mRingtoneFactory.preloadDefaultRingtone();
+        Ringtone stale = getLastCreatedRingtone();
+
+        when(mCallsManager.getCurrentUserHandle()).thenReturn(USER_10);
+        Ringtone ringtone = mRingtoneFactory.getRingtone(mCall);
+
+        verify(stale).stop();
+        assertNotSame(stale, ringtone);
+        assertEquals(2, mRingtoneFactory.createdUris.size());
+        verify(mContext).createPackageContextAsUser(mContext.getPackageName(), 0, USER_10);
+    }
+
+    @SmallTest
+    public void testPreloadReplacesRingtoneOfOtherUser() throws Exception {
+        mRingtoneFactory.preloadDefaultRingtone();
+        Ringtone stale = getLastCreatedRingtone();
+
+        when(mCallsManager.getCurrentUserHandle()).thenReturn(USER_10);
+        mRingtoneFactory.preloadDefaultRingtone();
+
+        verify(stale).stop();
+        Ringtone preloaded = takePreloadedRingtone();
+        verify(preloaded, never()).stop();
+    }
+
+    @SmallTest
+    public void testCustomRingtoneSkipsPreload() throws Exception {
+        mRingtoneFactory.preloadDefaultRingtone();
+        when(mCall.getRingtone()).thenReturn(CUSTOM_RINGTONE_URI);
+
+        assertNotNull(mRingtoneFactory.getRingtone(mCall));
+        assertEquals(CUSTOM_RINGTONE_URI, mRingtoneFactory.createdUris.get(1));
+
+        // Still there for the next call without a custom ringtone.
+        when(mCall.getRingtone()).thenReturn(null);
+        mRingtoneFactory.getRingtone(mCall);
+        assertEquals(2, mRingtoneFactory.createdUris.size());
+    }
+
+    @SmallTest
+    public void testWorkContactSkipsPreload() throws Exception {
+        mRingtoneFactory.preloadDefaultRingtone();
+        CallerInfo workCallerInfo = new CallerInfo();
+        workCallerInfo.userType = CallerInfo.USER_TYPE_WORK;
+        when(mCall.getCallerInfo()).thenReturn(workCallerInfo);
+
+        assertNotNull(mRingtoneFactory.getRingtone(mCall));
+        assertEquals(2, mRingtoneFactory.createdUris.size());
+
+        // Still there for the next call from a personal contact.
+        when(mCall.getCallerInfo()).thenReturn(null);
+        mRingtoneFactory.getRingtone(mCall);
+        assertEquals(2, mRingtoneFactory.createdUris.size());
+    }
+
+    @SmallTest
+    public void testRingtoneSettingChangeClearsCache() throws Exception {
+        mRingtoneFactory.preloadDefaultRingtone();
+        Ringtone playing = takePreloadedRingtone();
+        mRingtoneFactory.preloadDefaultRingtone();
+        Ringtone stale = getLastCreatedRingtone();
+
+        mRingtoneFactory.ringtoneObserver.onChange(false);
+
+        verify(stale).stop();
+        // Already handed out to a call.
+        verify(playing, never()).stop();
+        mRingtoneFactory.getRingtone(mCall);
+        assertEquals(3, mRingtoneFactory.createdUris.size());
+        // The user's context is looked up again.
+        verify(mContext, times(2)).createPackageContextAsUser(
+                mContext.getPackageName(), 0, USER_0);
+    }
+
+    @SmallTest
+    public void testProfileChangeClearsCache() throws Exception {
+        mRingtoneFactory.preloadDefaultRingtone();
+        Ringtone stale = getLastCreatedRingtone();
+
+        mRingtoneFactory.profilesChangedReceiver.onReceive(mContext,
+                new Intent(Intent.ACTION_MANAGED_PROFILE_REMOVED));
+
+        verify(stale).stop();
+        mRingtoneFactory.getRingtone(mCall);
+        assertEquals(2, mRingtoneFactory.createdUris.size());
+        verify(mContext, times(2)).createPackageContextAsUser(
+                mContext.getPackageName(), 0, USER_0);
+    }
+
+    @SmallTest
+    public void testNothingCachedWhenChangesCannotBeObserved() throws Exception {
+        mRingtoneFactory.canRegister = false;
+
+        mRingtoneFactory.preloadDefaultRingtone();
+        Ringtone unused = getLastCreatedRingtone();
+        verify(unused).stop();
+
+        mRingtoneFactory.getRingtone(mCall);
+        assertEquals(2, mRingtoneFactory.createdUris.size());
+        verify(mContext, times(2)).createPackageContextAsUser(
+                mContext.getPackageName(), 0, USER_0);
+    }
+
+    @SmallTest
+    public void testReleasePreloadedRingtone() throws Exception {
+        mRingtoneFactory.preloadDefaultRingtone();
+        Ringtone preloaded = getLastCreatedRingtone();
+
+        mRingtoneFactory.releasePreloadedRingtone();
+
+        verify(preloaded).stop();
+        mRingtoneFactory.getRingtone(mCall);
+        assertEquals(2, mRingtoneFactory.createdUris.size());
+    }
+
+    /**
+     * Hands out the preloaded ringtone to a call, and checks that it was the one preloaded.
+     */
+    private Ringtone takePreloadedRingtone() {
+        Ringtone preloaded = getLastCreatedRingtone();
+        assertSame(preloaded, mRingtoneFactory.getRingtone(mCall));
+        return preloaded;
+    }
+
+    private Ringtone getLastCreatedRingtone() {
+        List<Ringtone> created = mRingtoneFactory.createdRingtones;
+        return created.get(created.size() - 1);
+    }
+}
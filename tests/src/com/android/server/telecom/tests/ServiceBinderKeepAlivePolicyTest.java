@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.telecom.ServiceBinderKeepAlivePolicy;
+import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.Timeouts;
+
+import org.mockito.Mock;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+public class ServiceBinderKeepAlivePolicyTest extends TelecomTestCase {
+    private static final ComponentName COMPONENT_A = new ComponentName("pkg", "ServiceA");
+    private static final ComponentName COMPONENT_B = new ComponentName("pkg", "ServiceB");
+    private static final long MAX_KEEP_ALIVE = 60000;
+
+    @Mock Timeouts.Adapter mTimeoutsAdapter;
+
+    private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
+    private Context mContext;
+    private long mNow;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mContext = mComponentContextFixture.getTestDouble().getApplicationContext();
+        when(mTimeoutsAdapter.getConnectionServiceMaxKeepAliveMillis(any(ContentResolver.class)))
+                .thenReturn(MAX_KEEP_ALIVE);
+        mNow = 1000000;
+    }
+
+    @SmallTest
+    public void testNoKeepAliveAfterSingleCall() {
+        ServiceBinderKeepAlivePolicy policy = createPolicy(false);
+        policy.onCallAssociated(COMPONENT_A);
+
+        assertEquals(0, policy.getKeepAliveMillis(COMPONENT_A));
+    }
+
+    @SmallTest
+    public void testKeepAliveAdaptsToCallFrequency() {
+        ServiceBinderKeepAlivePolicy policy = createPolicy(false);
+        associateCalls(policy, COMPONENT_A, 3, 10000);
+        assertEquals(20000, policy.getKeepAliveMillis(COMPONENT_A));
+
+        // Calls close together are still kept alive for the minimum time.
+        associateCalls(policy, COMPONENT_B, 2, 1000);
+        assertEquals(ServiceBinderKeepAlivePolicy.MIN_KEEP_ALIVE_MILLIS,
+                policy.getKeepAliveMillis(COMPONENT_B));
+    }
+
+    @SmallTest
+    public void testKeepAliveLimitedByMaximum() {
+        ServiceBinderKeepAlivePolicy policy = createPolicy(false);
+        associateCalls(policy, COMPONENT_A, 2, 40000);
+        assertEquals(MAX_KEEP_ALIVE, policy.getKeepAliveMillis(COMPONENT_A));
+
+        // Calls further apart than the maximum are not kept alive at all.
+        associateCalls(policy, COMPONENT_B, 2, 90000);
+        assertEquals(0, policy.getKeepAliveMillis(COMPONENT_B));
+
+        when(mTimeoutsAdapter.getConnectionServiceMaxKeepAliveMillis(any(ContentResolver.class)))
+                .thenReturn(0L);
+        assertEquals(0, policy.getKeepAliveMillis(COMPONENT_A));
+    }
+
+    @SmallTest
+    public void testNoKeepAliveUnderMemoryPressure() {
+        ServiceBinderKeepAlivePolicy policy = createPolicy(false);
+        associateCalls(policy, COMPONENT_A, 3, 10000);
+
+        policy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(0, policy.getKeepAliveMillis(COMPONENT_A));
+
+        mNow += ServiceBinderKeepAlivePolicy.MEMORY_PRESSURE_BACKOFF_MILLIS;
+        associateCalls(policy, COMPONENT_A, 2, 10000);
+        assertEquals(20000, policy.getKeepAliveMillis(COMPONENT_A));
+    }
+
+    @SmallTest
+    public void testKeepAliveWhenUiHidden() {
+        ServiceBinderKeepAlivePolicy policy = createPolicy(false);
+        associateCalls(policy, COMPONENT_A, 3, 10000);
+
+        // A Telecom activity going to the background is not memory pressure.
+        policy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(20000, policy.getKeepAliveMillis(COMPONENT_A));
+
+        policy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(0, policy.getKeepAliveMillis(COMPONENT_A));
+    }
+
+    @SmallTest
+    public void testNoKeepAliveOnLowRamDevice() {
+        ServiceBinderKeepAlivePolicy policy = createPolicy(true);
+        associateCalls(policy, COMPONENT_A, 3, 10000);
+
+        assertEquals(0, policy.getKeepAliveMillis(COMPONENT_A));
+    }
+
+    @SmallTest
+    public void testServiceDeathForgetsRecentCalls() {
+        ServiceBinderKeepAlivePolicy policy = createPolicy(false);
+        associateCalls(policy, COMPONENT_A, 3, 10000);
+
+        policy.onServiceDied(COMPONENT_A);
+        assertEquals(0, policy.getKeepAliveMillis(COMPONENT_A));
+    }
+
+    @SmallTest
+    public void testBindTimeSavedByReuse() {
+        ServiceBinderKeepAlivePolicy policy = createPolicy(false);
+        policy.onBindCompleted(COMPONENT_A, 150);
+        policy.onBindingReused(COMPONENT_A);
+        policy.onBindingReused(COMPONENT_A);
+
+        assertEquals(2, policy.getReusedBindings());
+        assertEquals(300, policy.getBindMillisSaved());
+    }
+
+    private void associateCalls(ServiceBinderKeepAlivePolicy policy, ComponentName componentName,
+            int count, long gapMillis) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                mNow += gapMillis;
+            }
+            policy.onCallAssociated(componentName);
+        }
+    }
+
+    private ServiceBinderKeepAlivePolicy createPolicy(boolean isLowRamDevice) {
+        return new ServiceBinderKeepAlivePolicy(mContext, mLock, mTimeoutsAdapter,
+                isLowRamDevice) {
+            @Override
+            protected long elapsedRealtime() {
+                return mNow;
+            }
+        };
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import com.android.server.telecom.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A minimal in-process benchmark harness for Telecom's hot paths. Each operation is warmed up, then
+ * timed in batches; the time per operation of each batch is a sample, and the median, 90th
+ * percentile and minimum of the samples are reported. Operations can also be measured for the
+ * bytes they allocate.
+ * <p>
+ * Results are logged and written as JSON to
+ * {@code /data/data/com.android.server.telecom.tests/files/benchmarks/<suite>.json}, so that they
+ * can be pulled with adb and compared between builds.
+ */
+public class TelecomBenchmark {
+    /**
+     * An operation to time.
+     */
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * The timings of one operation.
+     */
+    public static class Result {
+        public final String name;
+        public final int operationsPerSample;
+        public final long[] nanosPerOperation;
+
+        Result(String name, int operationsPerSample, long[] nanosPerOperation) {
+            this.name = name;
+            this.operationsPerSample = operationsPerSample;
+            this.nanosPerOperation = nanosPerOperation;
+            Arrays.sort(this.nanosPerOperation);
+        }
+
+        public long getPercentile(int percentile) {
+            int index = Math.min(nanosPerOperation.length * percentile / 100,
+                    nanosPerOperation.length - 1);
+            return nanosPerOperation[index];
+        }
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("name", name)
+                    .put("samples", nanosPerOperation.length)
+                    .put("opsPerSample", operationsPerSample)
+                    .put("minNanos", nanosPerOperation[0])
+                    .put("p50Nanos", getPercentile(50))
+                    .put("p90Nanos", getPercentile(90));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: p50=%dns p90=%dns min=%dns", name, getPercentile(50),
+                    getPercentile(90), nanosPerOperation[0]);
+        }
+    }
+
+    /**
+     * The allocations of one operation.
+     */
+    public static class AllocationResult {
+        public final String name;
+        public final int operations;
+        public final double bytesPerOperation;
+
+        AllocationResult(String name, int operations, long bytes) {
+            this.name = name;
+            this.operations = operations;
+            this.bytesPerOperation = (double) bytes / operations;
+        }
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("name", name)
+                    .put("operations", operations)
+                    .put("bytesPerOp", bytesPerOperation);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.1f bytes/op", name, bytesPerOperation);
+        }
+    }
+
+    /** The runtime's count of the bytes the process has allocated since it started. */
+    static final String BYTES_ALLOCATED_STAT = "art.gc.bytes-allocated";
+
+    private static final int WARM_UP_SAMPLES = 5;
+    private static final int SAMPLES = 20;
+
+    private final String mSuite;
+    private final List<Result> mResults = new ArrayList<>();
+    private final List<AllocationResult> mAllocationResults = new ArrayList<>();
+
+    public TelecomBenchmark(String suite) {
+        mSuite = suite;
+    }
+
+    /**
+     * Times an operation.
+     *
+     * @param name The name the result is reported under.
+     * @param operationsPerSample How many times to run the operation per sample.
+     */
+    public Result measure(String name, int operationsPerSample, Operation operation)
+            throws Exception {
+        for (int i = 0; i < WARM_UP_SAMPLES * operationsPerSample; i++) {
+            operation.run();
+        }
+        long[] nanosPerOperation = new long[SAMPLES];
+        for (int sample = 0; sample < SAMPLES; sample++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < operationsPerSample; i++) {
+                operation.run();
+            }
+            nanosPerOperation[sample] =
+                    (SystemClock.elapsedRealtimeNanos() - start) / operationsPerSample;
+        }
+        Result result = new Result(name, operationsPerSample, nanosPerOperation);
+        Log.i(this, "%s", result);
+        mResults.add(result);
+        return result;
+    }
+
+    /**
+     * Counts the bytes an operation allocates. The count covers the whole process, so it includes
+     * the work the operation hands to other threads; the runtime counts the bytes of each
+     * thread-local allocation buffer as it is handed out, so use enough operations to amortize
+     * that granularity.
+     *
+     * @param name The name the result is reported under.
+     * @param operations How many times to run the operation.
+     */
+    public AllocationResult measureAllocations(String name, int operations, Operation operation)
+            throws Exception {
+        for (int i = 0; i < operations; i++) {
+            operation.run();
+        }
+        long startBytes = getBytesAllocated();
+        for (int i = 0; i < operations; i++) {
+            operation.run();
+        }
+        AllocationResult result = new AllocationResult(name, operations,
+                getBytesAllocated() - startBytes);
+        Log.i(this, "%s", result);
+        mAllocationResults.add(result);
+        return result;
+    }
+
+    /**
+     * @return The bytes the process has allocated since it started.
+     */
+    static long getBytesAllocated() {
+        return Long.parseLong(Debug.getRuntimeStat(BYTES_ALLOCATED_STAT));
+    }
+
+    public List<Result> getResults() {
+        return mResults;
+    }
+
+    public List<AllocationResult> getAllocationResults() {
+        return mAllocationResults;
+    }
+
+    /**
+     * Writes the results to {@code <dir>/benchmarks/<suite>.json}, replacing any earlier results
+     * of the suite.
+     */
+    public File writeResults(File dir) throws IOException, JSONException {
+        JSONArray results = new JSONArray();
+        for (Result result : mResults) {
+            results.put(result.toJson());
+        }
+        JSONArray allocationResults = new JSONArray();
+        for (AllocationResult result : mAllocationResults) {
+            allocationResults.put(result.toJson());
+        }
+        JSONObject json = new JSONObject()
+                .put("suite", mSuite)
+                .put("build", Build.FINGERPRINT)
+                .put("timestamp", System.currentTimeMillis())
+                .put("results", results)
+                .put("allocations", allocationResults);
+
+        File benchmarkDir = new File(dir, "benchmarks");
+        if (!benchmarkDir.isDirectory() && !benchmarkDir.mkdirs()) {
+            throw new IOException("Unable to create " + benchmarkDir);
+        }
+        File file = new File(benchmarkDir, mSuite + ".json");
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(json.toString(2));
+        }
+        return file;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.mockito.Mockito.mock;
+
+import android.os.Process;
+import android.os.UserHandle;
+import android.telecom.DisconnectCause;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Xml;
+
+import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.server.telecom.Analytics;
+import com.android.server.telecom.Call;
+import com.android.server.telecom.CallIdMapper;
+import com.android.server.telecom.CallsManager;
+import com.android.server.telecom.Log;
+import com.android.server.telecom.ParcelableCallUtils;
+import com.android.server.telecom.PhoneAccountRegistrar;
+import com.android.server.telecom.Session;
+import com.android.server.telecom.callfiltering.BlockedNumberIndex;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmarks of Telecom's hot paths, run against a live {@link TelecomSystemTest} system. Each
+ * test writes its results with {@link TelecomBenchmark#writeResults}.
+ */
+public class TelecomCoreBenchmarks extends TelecomSystemTest {
+    private TelecomBenchmark mBenchmark;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mBenchmark = new TelecomBenchmark(getClass().getSimpleName() + "." + getName());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (!mBenchmark.getResults().isEmpty() || !mBenchmark.getAllocationResults().isEmpty()) {
+            Log.i(this, "Wrote %s", mBenchmark.writeResults(getContext().getFilesDir()));
+        }
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testParcelableCallBenchmark() throws Exception {
+        startAndMakeActiveOutgoingCall("650-555-1212", mPhoneAccountA0.getAccountHandle(),
+                mConnectionServiceFixtureA);
+        final Call call = getFirstCall();
+        final PhoneAccountRegistrar registrar = mTelecomSystem.getPhoneAccountRegistrar();
+
+        mBenchmark.measure("toParcelableCall", 1000,
+                () -> ParcelableCallUtils.toParcelableCall(call, true, registrar, true));
+    }
+
+    @LargeTest
+    public void testCallsManagerQueriesBenchmark() throws Exception {
+        startAndMakeActiveOutgoingCall("650-555-1212", mPhoneAccountA0.getAccountHandle(),
+                mConnectionServiceFixtureA);
+        startIncomingPhoneCall("650-555-1213", mPhoneAccountA0.getAccountHandle(),
+                mConnectionServiceFixtureA);
+        final CallsManager callsManager = mTelecomSystem.getCallsManager();
+
+        mBenchmark.measure("getForegroundCall", 10000, callsManager::getForegroundCall);
+        mBenchmark.measure("getActiveCall", 10000, callsManager::getActiveCall);
+        mBenchmark.measure("getRingingCall", 10000, callsManager::getRingingCall);
+        mBenchmark.measure("hasEmergencyCall", 10000, callsManager::hasEmergencyCall);
+        mBenchmark.measure("getCalls", 10000, () -> {
+            for (Call call : callsManager.getCalls()) {
+                call.getState();
+            }
+        });
+    }
+
+    @LargeTest
+    public void testPhoneAccountRegistrarBenchmark() throws Exception {
+        final PhoneAccountRegistrar registrar = mTelecomSystem.getPhoneAccountRegistrar();
+        final UserHandle userHandle = Process.myUserHandle();
+        final PhoneAccountHandle handle = mPhoneAccountB0.getAccountHandle();
+        final PhoneAccountRegistrar.State state = new PhoneAccountRegistrar.State();
+        state.accounts.addAll(registrar.getAllPhoneAccounts(userHandle));
+        final byte[] xml = writeStateXml(state);
+
+        mBenchmark.measure("writeStateXml", 100, () -> writeStateXml(state));
+        mBenchmark.measure("readStateXml", 100, () -> {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(xml), null);
+            parser.nextTag();
+            PhoneAccountRegistrar.sStateXml.readFromXml(parser, Integer.MAX_VALUE, mSpyContext);
+        });
+        mBenchmark.measure("getCallCapablePhoneAccounts", 1000,
+                () -> registrar.getCallCapablePhoneAccounts(PhoneAccount.SCHEME_TEL, false,
+                        userHandle));
+        mBenchmark.measure("getSimPhoneAccounts", 1000,
+                () -> registrar.getSimPhoneAccounts(userHandle));
+        mBenchmark.measure("getPhoneAccountUnchecked", 10000,
+                () -> registrar.getPhoneAccountUnchecked(handle));
+    }
+
+    @LargeTest
+    public void testLogBenchmark() throws Exception {
+        startAndMakeActiveOutgoingCall("650-555-1212", mPhoneAccountA0.getAccountHandle(),
+                mConnectionServiceFixtureA);
+        final Call call = getFirstCall();
+
+        mBenchmark.measure("startAndEndSession", 1000, () -> {
+            Log.startSession("TCB.s");
+            Log.endSession();
+        });
+        mBenchmark.measure("eventInSession", 1000, () -> {
+            Log.startSession("TCB.e");
+            try {
+                Log.event(call, Log.Events.REQUEST_HOLD);
+            } finally {
+                Log.endSession();
+            }
+        });
+        mBenchmark.measure("iInSession", 1000, () -> {
+            Log.startSession("TCB.i");
+            try {
+                Log.i(this, "Benchmark %s", call);
+            } finally {
+                Log.endSession();
+            }
+        });
+    }
+
+    @LargeTest
+    public void testLogSessionAllocationBenchmark() throws Exception {
+        mBenchmark.measureAllocations("startAndEndSession", 1000, () -> {
+            Log.startSession("TCB.s");
+            Log.endSession();
+        });
+        mBenchmark.measureAllocations("nestedSession", 1000, () -> {
+            Log.startSession("TCB.n");
+            Log.startSession("TCB.nn");
+            Log.endSession();
+            Log.endSession();
+        });
+        mBenchmark.measureAllocations("subsession", 1000, () -> {
+            Log.startSession("TCB.ss");
+            Session subsession = Log.createSubsession();
+            Log.endSession();
+            Log.continueSession(subsession, "TCB.ssc");
+            Log.endSession();
+        });
+        mBenchmark.measureAllocations("cancelSubsession", 1000, () -> {
+            Log.startSession("TCB.cs");
+            Log.cancelSubsession(Log.createSubsession());
+            Log.endSession();
+        });
+    }
+
+    @LargeTest
+    public void testAnalyticsBenchmark() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            IdPair ids = startAndMakeActiveOutgoingCall("650-555-121" + i,
+                    mPhoneAccountA0.getAccountHandle(), mConnectionServiceFixtureA);
+            mConnectionServiceFixtureA.sendSetDisconnected(ids.mConnectionId,
+                    DisconnectCause.LOCAL);
+        }
+
+        mBenchmark.measure("dump", 100, () -> {
+            IndentingPrintWriter pw = new IndentingPrintWriter(new StringWriter(), "  ");
+            Analytics.dump(pw);
+        });
+    }
+
+    @LargeTest
+    public void testCallIdMapperBenchmark() throws Exception {
+        final int calls = 100;
+        final Map<Call, String> ids = new HashMap<>();
+        final Call[] mockCalls = new Call[calls];
+        for (int i = 0; i < calls; i++) {
+            mockCalls[i] = mock(Call.class);
+            ids.put(mockCalls[i], "TC@" + i);
+        }
+        final Call newCall = mock(Call.class);
+        final CallIdMapper mapper = new CallIdMapper(ids::get);
+        for (Call call : mockCalls) {
+            mapper.addCall(call, ids.get(call));
+        }
+
+        mBenchmark.measure("getCall", 10000, () -> mapper.getCall("TC@50"));
+        mBenchmark.measure("getCallId", 10000, () -> mapper.getCallId(mockCalls[50]));
+        mBenchmark.measure("addAndRemoveCall", 10000, () -> {
+            mapper.addCall(newCall, "TC@new");
+            mapper.removeCall(newCall);
+        });
+    }
+
+    @LargeTest
+    public void testBlockedNumberIndexBenchmark() throws Exception {
+        final int entries = 50000;
+        final Random random = new Random(2);
+        final String[] numbers = new String[entries];
+        final String[] e164Numbers = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            numbers[i] = String.valueOf(200 + random.nextInt(700))
+                    + String.valueOf(1000000 + random.nextInt(9000000));
+            e164Numbers[i] = "+1" + numbers[i];
+        }
+        final BlockedNumberIndex index = new BlockedNumberIndex();
+        for (int i = 0; i < entries; i++) {
+            index.add(numbers[i], e164Numbers[i]);
+        }
+
+        mBenchmark.measure("containsBlocked", 10000,
+                () -> index.contains(numbers[entries / 2], e164Numbers[entries / 2]));
+        mBenchmark.measure("containsNotBlocked", 10000,
+                () -> index.contains("6505551212", "+16505551212"));
+    }
+
+    private Call getFirstCall() {
+        return mTelecomSystem.getCallsManager().getCalls().iterator().next();
+    }
+
+    private byte[] writeStateXml(PhoneAccountRegistrar.State state) throws Exception {
+        XmlSerializer serializer = new FastXmlSerializer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.setOutput(out, "utf-8");
+        PhoneAccountRegistrar.sStateXml.writeToXml(state, serializer, mSpyContext);
+        serializer.flush();
+        return out.toByteArray();
+    }
+}
@@ -38,6 +38,7 @@ import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.telecom.VideoProfile;
 import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.internal.telecom.ITelecomService;
@@ -57,9 +58,12 @@ import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.internal.matchers.VarargMatcher;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static android.Manifest.permission.REGISTER_SIM_SUBSCRIPTION;
 import static android.Manifest.permission.WRITE_SECURE_SETTINGS;
@@ -148,6 +152,7 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         }
     }
 
+    private TelecomServiceImpl mTelecomServiceImpl;
     private ITelecomService.Stub mTSIBinder;
     private AppOpsManager mAppOpsManager;
     private UserManager mUserManager;
@@ -187,7 +192,7 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         doReturn(mContext).when(mContext).getApplicationContext();
         doNothing().when(mContext).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class),
                 anyString());
-        TelecomServiceImpl telecomServiceImpl = new TelecomServiceImpl(
+        mTelecomServiceImpl = new TelecomServiceImpl(
                 mContext,
                 mFakeCallsManager,
                 mFakePhoneAccountRegistrar,
@@ -201,7 +206,10 @@ public class TelecomServiceImplTest extends TelecomTestCase {
                 mDefaultDialerManagerAdapter,
                 mSubscriptionManagerAdapter,
                 mLock);
-        mTSIBinder = telecomServiceImpl.getBinder();
+        mTSIBinder = mTelecomServiceImpl.getBinder();
+        when(mFakePhoneAccountRegistrar.getPublishedOutgoingPhoneAccountForScheme(anyString(),
+                any(UserHandle.class)))
+                .thenReturn(PhoneAccountRegistrar.PublishedOutgoingAccount.NOT_PUBLISHED);
         mComponentContextFixture.setTelecomManager(mTelecomManager);
         when(mTelecomManager.getDefaultDialerPackage()).thenReturn(DEFAULT_DIALER_PACKAGE);
         when(mTelecomManager.getSystemDialerPackage()).thenReturn(DEFAULT_DIALER_PACKAGE);
@@ -237,6 +245,25 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         assertEquals(SIP_PA_HANDLE_17, returnedHandleSip);
     }
 
+    @SmallTest
+    public void testGetDefaultOutgoingPhoneAccountPublished() throws RemoteException {
+        when(mFakePhoneAccountRegistrar
+                .getPublishedOutgoingPhoneAccountForScheme(eq("tel"), any(UserHandle.class)))
+                .thenReturn(new PhoneAccountRegistrar.PublishedOutgoingAccount(
+                        true /* isPublished */, TEL_PA_HANDLE_16));
+        when(mFakePhoneAccountRegistrar
+                .getPublishedOutgoingPhoneAccountForScheme(eq("sip"), any(UserHandle.class)))
+                .thenReturn(new PhoneAccountRegistrar.PublishedOutgoingAccount(
+                        true /* isPublished */, null));
+
+        assertEquals(TEL_PA_HANDLE_16,
+                mTSIBinder.getDefaultOutgoingPhoneAccount("tel", DEFAULT_DIALER_PACKAGE));
+        // A published null means there is no outgoing account; it is not looked up again.
+        assertNull(mTSIBinder.getDefaultOutgoingPhoneAccount("sip", DEFAULT_DIALER_PACKAGE));
+        verify(mFakePhoneAccountRegistrar, never())
+                .getOutgoingPhoneAccountForScheme(anyString(), any(UserHandle.class));
+    }
+
     @SmallTest
     public void testGetDefaultOutgoingPhoneAccountFailure() throws RemoteException {
         // make sure that the list of user profiles doesn't include anything the PhoneAccountHandles
@@ -906,6 +933,60 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         verify(call).answer(realVideoState);
     }
 
+    /**
+     * Dumps the state of Telecom while another thread moves the active call from one call to the
+     * other under the Telecom lock, and checks that every dump shows exactly one active call.
+     */
+    @MediumTest
+    public void testDumpShowsConsistentCalls() throws Exception {
+        final int[] callStates = { CallState.ACTIVE, CallState.ON_HOLD };
+        when(mFakeCallsManager.getDumpState()).thenAnswer(invocation -> {
+            List<Call.DumpState> calls = new ArrayList<>();
+            for (int i = 0; i < callStates.length; i++) {
+                calls.add(new Call.DumpState("TC@" + i, callStates[i], null, null,
+                        VideoProfile.STATE_AUDIO_ONLY, 0, false, 0, 0));
+            }
+            return new CallsManager.DumpState(calls);
+        });
+
+        final AtomicBoolean isDumping = new AtomicBoolean(true);
+        Thread swapper = new Thread(() -> {
+            while (isDumping.get()) {
+                synchronized (mLock) {
+                    // Both calls are briefly on hold while the active call changes.
+                    int active = callStates[0] == CallState.ACTIVE ? 0 : 1;
+                    callStates[active] = CallState.ON_HOLD;
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        // do nothing
+                    }
+                    callStates[1 - active] = CallState.ACTIVE;
+                }
+                Thread.yield();
+            }
+        });
+        swapper.start();
+
+        try {
+            for (int i = 0; i < 50; i++) {
+                StringWriter output = new StringWriter();
+                mTelecomServiceImpl.dumpTelecomState(new PrintWriter(output));
+                String dump = output.toString();
+                String active = ", " + CallState.toString(CallState.ACTIVE) + ",";
+                int activeCalls = 0;
+                for (int index = dump.indexOf(active); index >= 0;
+                        index = dump.indexOf(active, index + 1)) {
+                    activeCalls++;
+                }
+                assertEquals(dump, 1, activeCalls);
+            }
+        } finally {
+            isDumping.set(false);
+            swapper.join();
+        }
+    }
+
     /**
      * Register phone accounts for the supplied PhoneAccountHandles to make them
      * visible to all users (via the isVisibleToCaller method in TelecomServiceImpl.
@@ -452,6 +452,9 @@ public class TelecomSystemTest extends TelecomTestCase {
                 mInCallServiceComponentNameX.getClassName());
         mComponentContextFixture.putBooleanResource(
                 com.android.internal.R.bool.config_voice_capable, true);
+        mComponentContextFixture.putBooleanResource(
+                com.android.server.telecom.R.bool.prebind_incall_service,
+                isInCallServicePreBindEnabled());
 
         mInCallServiceFixtureX = new InCallServiceFixture();
         mInCallServiceFixtureY = new InCallServiceFixture();
@@ -462,6 +465,14 @@ public class TelecomSystemTest extends TelecomTestCase {
                 mInCallServiceFixtureY.getTestDouble());
     }
 
+    /**
+     * @return Whether the TelecomSystem under test pre-binds to the in-call UI before a call is
+     *         added; off unless a test class turns it on.
+     */
+    protected boolean isInCallServicePreBindEnabled() {
+        return false;
+    }
+
     /**
      * Helper method for setting up the fake audio service.
      * Calls to the fake audio service need to toggle the return
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.server.telecom.Log;
+import com.android.server.telecom.Runnable;
+import com.android.server.telecom.TimeoutScheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TimeoutSchedulerTest extends TelecomTestCase {
+    private static final long TICK_MILLIS = 10;
+    // Small enough for the tests to schedule timeouts further away than one turn of the wheel.
+    private static final int WHEEL_SIZE = 8;
+    private static final long TEST_TIMEOUT_MILLIS = 2000;
+
+    private HandlerThread mHandlerThread;
+    private TimeoutScheduler mScheduler;
+    private final List<String> mExpired = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("TimeoutSchedulerTest");
+        mHandlerThread.start();
+        mScheduler = new TimeoutScheduler(mHandlerThread.getLooper(), TICK_MILLIS, WHEEL_SIZE);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mHandlerThread.quitSafely();
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testTimeoutRunsAfterDelay() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = SystemClock.uptimeMillis();
+        mScheduler.schedule(new TimeoutScheduler.Timeout("a", latch::countDown), 50);
+
+        assertTrue(latch.await(TEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(SystemClock.uptimeMillis() - start >= 50);
+    }
+
+    @MediumTest
+    public void testTimeoutsRunInDeadlineOrder() throws Exception {
+        CountDownLatch latch = new CountDownLatch(3);
+        mScheduler.schedule(newTimeout("c", latch), 150);
+        mScheduler.schedule(newTimeout("a", latch), 30);
+        // Further away than one turn of the wheel.
+        mScheduler.schedule(newTimeout("b", latch), 100);
+
+        assertTrue(latch.await(TEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("a", "b", "c"), mExpired);
+    }
+
+    @MediumTest
+    public void testSameTickTimeoutsRunInScheduleOrder() throws Exception {
+        CountDownLatch latch = new CountDownLatch(4);
+        TimeoutScheduler.Timeout first = newTimeout("first", latch);
+        mScheduler.schedule(first, 50);
+        mScheduler.schedule(newTimeout("second", latch), 50);
+        mScheduler.schedule(newTimeout("third", latch), 50);
+        // Rescheduling moves a timeout behind those already due on the same tick.
+        mScheduler.schedule(first, 50);
+        // Shares the slot, one turn of the wheel later.
+        mScheduler.schedule(newTimeout("later", latch), 50 + TICK_MILLIS * WHEEL_SIZE);
+
+        assertTrue(latch.await(TEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("second", "third", "first", "later"), mExpired);
+    }
+
+    @MediumTest
+    public void testCanceledTimeoutDoesNotRun() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        TimeoutScheduler.Timeout canceled = newTimeout("canceled", null);
+        mScheduler.schedule(canceled, 30);
+        mScheduler.schedule(newTimeout("other", latch), 60);
+        assertTrue(mScheduler.isPending(canceled));
+        mScheduler.cancel(canceled);
+        assertFalse(mScheduler.isPending(canceled));
+
+        assertTrue(latch.await(TEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList("other"), mExpired);
+    }
+
+    @MediumTest
+    public void testReschedulingMovesDeadline() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+        TimeoutScheduler.Timeout moved = newTimeout("moved", latch);
+        mScheduler.schedule(moved, 30);
+        mScheduler.schedule(newTimeout("other", latch), 60);
+        mScheduler.schedule(moved, 120);
+
+        assertTrue(latch.await(TEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("other", "moved"), mExpired);
+    }
+
+    @MediumTest
+    public void testLoggedTimeoutContinuesSession() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final boolean[] isThreadLogged = new boolean[1];
+        Log.startSession("TST.tLTCS");
+        mScheduler.schedule(new TimeoutScheduler.Timeout("logged", new Runnable("TST.r", null) {
+            @Override
+            public void loggedRun() {
+                isThreadLogged[0] = Log.sSessionMapper.get() != null;
+                latch.countDown();
+            }
+        }), 30);
+        Log.endSession();
+
+        assertTrue(latch.await(TEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(isThreadLogged[0]);
+    }
+
+    private TimeoutScheduler.Timeout newTimeout(final String name, final CountDownLatch latch) {
+        return new TimeoutScheduler.Timeout(name, () -> {
+            mExpired.add(name);
+            if (latch != null) {
+                latch.countDown();
+            }
+        });
+    }
+}
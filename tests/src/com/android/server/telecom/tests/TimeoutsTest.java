@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.telecom.tests;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.Settings;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArrayMap;
+
+import com.android.server.telecom.Timeouts;
+
+import java.util.Map;
+
+public class TimeoutsTest extends TelecomTestCase {
+    private final Map<String, String> mSettings = new ArrayMap<>();
+    private int mQueryCount;
+    private MockContentResolver mContentResolver;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Timeouts.stopObserving();
+        mContentResolver = new MockContentResolver();
+        mContentResolver.addProvider(Settings.AUTHORITY, new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                mQueryCount++;
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (Map.Entry<String, String> setting : mSettings.entrySet()) {
+                    cursor.addRow(new Object[] { setting.getKey(), setting.getValue() });
+                }
+                return cursor;
+            }
+        });
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        Timeouts.stopObserving();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testServesTimeoutsFromSnapshot() {
+        mSettings.put("telecom.delay_between_dtmf_tones_ms", "500");
+        mSettings.put("telecom.new_outgoing_call_cancel_ms", "not a number");
+        mSettings.put("delay_between_dtmf_tones_ms", "700");
+        Timeouts.startObserving(mContentResolver);
+
+        assertEquals(500L, Timeouts.getDelayBetweenDtmfTonesMillis(mContentResolver));
+        assertEquals(500L, Timeouts.getDelayBetweenDtmfTonesMillis(mContentResolver));
+        // Unparseable and unset settings fall back to their defaults.
+        assertEquals(100000L, Timeouts.getNewOutgoingCallCancelMillis(mContentResolver));
+        assertEquals(5000L, Timeouts.getBluetoothPendingTimeoutMillis(mContentResolver));
+        assertEquals(1, mQueryCount);
+    }
+
+    @SmallTest
+    public void testReloadsOnlyWhenTelecomSettingChanges() {
+        Timeouts.startObserving(mContentResolver);
+        assertEquals(300L, Timeouts.getDelayBetweenDtmfTonesMillis(mContentResolver));
+
+        mSettings.put("telecom.delay_between_dtmf_tones_ms", "500");
+        Timeouts.onSettingChanged(Settings.Secure.getUriFor("volume_ring"));
+        assertEquals(300L, Timeouts.getDelayBetweenDtmfTonesMillis(mContentResolver));
+        assertEquals(1, mQueryCount);
+
+        Timeouts.onSettingChanged(
+                Settings.Secure.getUriFor("telecom.delay_between_dtmf_tones_ms"));
+        assertEquals(500L, Timeouts.getDelayBetweenDtmfTonesMillis(mContentResolver));
+        assertEquals(2, mQueryCount);
+    }
+}
@@ -17,14 +17,17 @@
 package com.android.server.telecom.tests;
 
 import com.android.server.telecom.Log;
+import com.android.server.telecom.VideoProviderProxy;
 
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.internal.exceptions.ExceptionIncludingMockitoWarnings;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Camera;
@@ -32,10 +35,12 @@ import android.graphics.SurfaceTexture;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.telecom.Call;
 import android.telecom.CallAudioState;
 import android.telecom.Connection;
 import android.telecom.Connection.VideoProvider;
+import android.telecom.DisconnectCause;
 import android.telecom.InCallService;
 import android.telecom.InCallService.VideoCall;
 import android.telecom.ParcelableCall;
@@ -60,9 +65,11 @@ import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -75,6 +82,8 @@ public class VideoProviderTest extends TelecomSystemTest {
     private static final int ORIENTATION_0 = 0;
     private static final int ORIENTATION_90 = 90;
     private static final float ZOOM_LEVEL = 3.0f;
+    private static final long UPDATE_INTERVAL = 100;
+    private static final int UPDATES_PER_SECOND = 1000;
 
     @Mock private VideoCall.Callback mVideoCallCallback;
     private IdPair mCallIds;
@@ -94,6 +103,8 @@ public class VideoProviderTest extends TelecomSystemTest {
     @Override
     public void setUp() throws Exception {
         super.setUp();
+        when(mTimeoutsAdapter.getVideoProviderUpdateIntervalMillis(any(ContentResolver.class)))
+                .thenReturn(UPDATE_INTERVAL);
 
         mCallIds = startAndMakeActiveOutgoingCall(
                 "650-555-1212",
@@ -447,4 +458,160 @@ public class VideoProviderTest extends TelecomSystemTest {
         verify(mVideoCallCallback, timeout(TEST_TIMEOUT))
                 .onVideoQualityChanged(eq(VideoProfile.QUALITY_HIGH));
     }
+
+    /**
+     * Tests that peer dimension, video quality and data usage updates sent at 1000 per second are
+     * rate-limited, and that the latest value of each is delivered.
+     */
+    @MediumTest
+    public void testFrameRateUpdatesCoalesced() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        doAnswer(invocation -> {
+            if ((Integer) invocation.getArguments()[0] == UPDATES_PER_SECOND) {
+                latch.countDown();
+            }
+            return null;
+        }).when(mVideoCallCallback).onPeerDimensionsChanged(anyInt(), anyInt());
+        doAnswer(invocation -> {
+            if ((Integer) invocation.getArguments()[0] == UPDATES_PER_SECOND) {
+                latch.countDown();
+            }
+            return null;
+        }).when(mVideoCallCallback).onVideoQualityChanged(anyInt());
+        doAnswer(invocation -> {
+            if ((Long) invocation.getArguments()[0] == UPDATES_PER_SECOND) {
+                latch.countDown();
+            }
+            return null;
+        }).when(mVideoCallCallback).onCallDataUsageChanged(anyLong());
+
+        long startMillis = SystemClock.uptimeMillis();
+        for (int i = 1; i <= UPDATES_PER_SECOND; i++) {
+            mConnectionInfo.mockVideoProvider.sendMockPeerDimensions(i, i);
+            mConnectionInfo.mockVideoProvider.sendMockVideoQuality(i);
+            mConnectionInfo.mockVideoProvider.sendMockCallDataUsage(i);
+            SystemClock.sleep(1);
+        }
+        long elapsedMillis = SystemClock.uptimeMillis() - startMillis;
+
+        // The latest value of each kind makes it through.
+        assertTrue(latch.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        VideoProviderProxy proxy = getVideoProviderProxy();
+        int maxForwarded = (int) (elapsedMillis / UPDATE_INTERVAL) + 2;
+        for (int kind : new int[] {VideoProviderProxy.UPDATE_PEER_DIMENSIONS,
+                VideoProviderProxy.UPDATE_VIDEO_QUALITY,
+                VideoProviderProxy.UPDATE_CALL_DATA_USAGE}) {
+            assertEquals(UPDATES_PER_SECOND, proxy.getUpdatesReceived(kind));
+            assertEquals(UPDATES_PER_SECOND,
+                    proxy.getUpdatesForwarded(kind) + proxy.getUpdatesCoalesced(kind));
+            assertTrue(proxy.getUpdatesForwarded(kind) <= maxForwarded);
+        }
+        verify(mVideoCallCallback, times(proxy.getUpdatesForwarded(
+                VideoProviderProxy.UPDATE_PEER_DIMENSIONS))).onPeerDimensionsChanged(anyInt(),
+                anyInt());
+    }
+
+    /**
+     * Tests that session modify requests sent among frame rate updates are all delivered, and after
+     * the updates sent before them.
+     */
+    @MediumTest
+    public void testSessionModifyRequestsNotThrottled() throws Exception {
+        final int requestEvery = 100;
+        for (int i = 1; i <= UPDATES_PER_SECOND; i++) {
+            mConnectionInfo.mockVideoProvider.sendMockPeerDimensions(i, i);
+            if (i % requestEvery == 0) {
+                mConnectionInfo.mockVideoProvider.sendMockSessionModifyRequest();
+            }
+            SystemClock.sleep(1);
+        }
+
+        verify(mVideoCallCallback, timeout(TEST_TIMEOUT).times(UPDATES_PER_SECOND / requestEvery))
+                .onSessionModifyRequestReceived(any(VideoProfile.class));
+        InOrder inOrder = inOrder(mVideoCallCallback);
+        for (int i = requestEvery; i <= UPDATES_PER_SECOND; i += requestEvery) {
+            inOrder.verify(mVideoCallCallback).onPeerDimensionsChanged(eq(i), eq(i));
+            inOrder.verify(mVideoCallCallback).onSessionModifyRequestReceived(
+                    any(VideoProfile.class));
+        }
+    }
+
+    /**
+     * Tests that a rate-limited update held back by the proxy is delivered before a camera
+     * capabilities change which follows it.
+     */
+    @MediumTest
+    public void testCameraCapabilitiesAfterPendingUpdates() throws Exception {
+        mConnectionInfo.mockVideoProvider.sendMockPeerDimensions(1, 1);
+        // Within the update interval, so held back.
+        mConnectionInfo.mockVideoProvider.sendMockPeerDimensions(2, 2);
+        mVideoCall.setCamera(MockVideoProvider.CAMERA_FRONT);
+
+        verify(mVideoCallCallback, timeout(TEST_TIMEOUT))
+                .onCameraCapabilitiesChanged(any(CameraCapabilities.class));
+        InOrder inOrder = inOrder(mVideoCallCallback);
+        inOrder.verify(mVideoCallCallback).onPeerDimensionsChanged(eq(2), eq(2));
+        inOrder.verify(mVideoCallCallback).onCameraCapabilitiesChanged(
+                any(CameraCapabilities.class));
+    }
+
+    /**
+     * Tests that a proxy which has been replaced stops listening to the video provider and drops
+     * the updates it was holding back.
+     */
+    @MediumTest
+    public void testReplacedProxyDropsPendingUpdates() throws Exception {
+        VideoProviderProxy proxy = getVideoProviderProxy();
+        mConnectionInfo.mockVideoProvider.sendMockPeerDimensions(1, 1);
+        mConnectionInfo.mockVideoProvider.sendMockPeerDimensions(2, 2);
+
+        mConnectionServiceFixtureA.sendSetVideoProvider(mCallIds.mConnectionId);
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TEST_TIMEOUT);
+        assertNotSame(proxy, getVideoProviderProxy());
+
+        SystemClock.sleep(2 * UPDATE_INTERVAL);
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TEST_TIMEOUT);
+        verify(mVideoCallCallback, never()).onPeerDimensionsChanged(eq(2), eq(2));
+
+        mConnectionInfo.mockVideoProvider.sendMockPeerDimensions(3, 3);
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TEST_TIMEOUT);
+        assertEquals(2, proxy.getUpdatesReceived(VideoProviderProxy.UPDATE_PEER_DIMENSIONS));
+    }
+
+    /**
+     * Tests that a removed call stops listening to the video provider and drops the updates its
+     * proxy was holding back.
+     */
+    @MediumTest
+    public void testRemovedCallDropsPendingUpdates() throws Exception {
+        VideoProviderProxy proxy = getVideoProviderProxy();
+        mConnectionInfo.mockVideoProvider.sendMockPeerDimensions(1, 1);
+        // Within the update interval, so held back.
+        mConnectionInfo.mockVideoProvider.sendMockPeerDimensions(2, 2);
+
+        mConnectionServiceFixtureA.sendSetDisconnected(mCallIds.mConnectionId,
+                DisconnectCause.LOCAL);
+        mConnectionServiceFixtureA.sendRemoveCall(mCallIds.mConnectionId);
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TEST_TIMEOUT);
+        assertNull(getVideoProviderProxy());
+
+        SystemClock.sleep(2 * UPDATE_INTERVAL);
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TEST_TIMEOUT);
+        verify(mVideoCallCallback, never()).onPeerDimensionsChanged(eq(2), eq(2));
+        assertEquals(1, proxy.getUpdatesForwarded(VideoProviderProxy.UPDATE_PEER_DIMENSIONS));
+
+        mConnectionInfo.mockVideoProvider.sendMockPeerDimensions(3, 3);
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TEST_TIMEOUT);
+        assertEquals(2, proxy.getUpdatesReceived(VideoProviderProxy.UPDATE_PEER_DIMENSIONS));
+    }
+
+    private VideoProviderProxy getVideoProviderProxy() {
+        for (com.android.server.telecom.Call call : mTelecomSystem.getCallsManager().getCalls()) {
+            if (call.getId().equals(mCallIds.mCallId)) {
+                return call.getVideoProviderProxy();
+            }
+        }
+        return null;
+    }
 }